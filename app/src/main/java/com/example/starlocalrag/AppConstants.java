@@ -137,6 +137,41 @@ public class AppConstants {
         public static final String HTML = "html";
     }
     
+    /**
+     * 向量索引类型常量
+     */
+    public static class VectorIndexType {
+        public static final String FLAT = "flat";   // 精确全量扫描
+        public static final String HNSW = "hnsw";   // HNSW图索引
+        public static final String IVF = "ivf";     // IVF倒排索引（磁盘驻留）
+    }
+    
+    /**
+     * 向量量化方式常量（metadata.json 中的 quantization）
+     */
+    public static class VectorQuantization {
+        public static final String NONE = "none";   // 仅存储float32
+        public static final String INT8 = "int8";   // 额外存储int8标量量化编码
+        public static final String PQ = "pq";       // 额外存储乘积量化编码（码本保存在 pq.codebook）
+    }
+    
+    /**
+     * 向量存储精度常量（metadata.json 中的 vector_encoding）
+     */
+    public static class VectorEncoding {
+        public static final String FLOAT32 = "float32";   // embedding 列存储float32（PC端格式）
+        public static final String FLOAT16 = "float16";   // embedding 列存储IEEE半精度，体积减半
+    }
+    
+    /**
+     * 向量存储类型常量（metadata.json 中的 vector_store_type）
+     */
+    public static class VectorStoreType {
+        public static final String SQLITE = "sqlite";             // 仅SQLite，精确扫描
+        public static final String SQLITE_HNSW = "sqlite_hnsw";   // SQLite + hnsw.index
+        public static final String SQLITE_IVF = "sqlite_ivf";     // SQLite + ivf.index
+    }
+    
     /**
      * 文件名常量
      */
@@ -0,0 +1,82 @@
+package com.example.starlocalrag;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Packed sign-bit signatures of embedding vectors
+ * 每个维度只保留符号位（>0 为1），按64位打包为 long 字，用 XOR + popcount 计算汉明距离，
+ * 1024维向量仅需16个 long（128字节），是 float32 的1/32，用于大知识库的第一轮候选筛选
+ *
+ * Blob layout: ceil(dimension / 64) little-endian 64-bit words, bit i of word w is dimension w * 64 + i
+ */
+public final class BinarySignature {
+
+    private BinarySignature() {
+    }
+
+    /**
+     * Number of 64-bit words for a dimension
+     */
+    public static int wordCount(int dimension) {
+        return (dimension + 63) >>> 6;
+    }
+
+    /**
+     * Compute the signature words of a vector
+     * @param vector Vector (NaN components count as 0)
+     * @return Signature words
+     */
+    public static long[] encode(float[] vector) {
+        long[] words = new long[wordCount(vector.length)];
+        for (int i = 0; i < vector.length; i++) {
+            if (vector[i] > 0.0f) {
+                words[i >>> 6] |= 1L << (i & 63);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Compute the signature of a vector as a database blob
+     * @param vector Vector
+     * @return Little-endian packed words
+     */
+    public static byte[] encodeToBlob(float[] vector) {
+        long[] words = encode(vector);
+        ByteBuffer buffer = ByteBuffer.allocate(words.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Hamming distance between query words and a signature blob
+     * @param query Query signature words
+     * @param blob Signature blob
+     * @return Number of differing bits, or Integer.MAX_VALUE if the blob size does not match
+     */
+    public static int hammingDistance(long[] query, byte[] blob) {
+        if (blob == null || blob.length != query.length * 8) {
+            return Integer.MAX_VALUE;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        int distance = 0;
+        for (int w = 0; w < query.length; w++) {
+            distance += Long.bitCount(query[w] ^ buffer.getLong(w * 8));
+        }
+        return distance;
+    }
+
+    /**
+     * Hamming distance between two signatures
+     */
+    public static int hammingDistance(long[] a, long[] b) {
+        int distance = 0;
+        for (int w = 0; w < a.length; w++) {
+            distance += Long.bitCount(a[w] ^ b[w]);
+        }
+        return distance;
+    }
+}
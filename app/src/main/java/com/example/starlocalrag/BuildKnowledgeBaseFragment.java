@@ -941,11 +941,18 @@ public class BuildKnowledgeBaseFragment extends Fragment {
             // 检查知识库是否已存在
             File vectorDbFile = new File(knowledgeBaseDir, "vectorstore.db");
             if (!overwrite && vectorDbFile.exists()) {
-                // 检查现有知识库的向量维度和模型
-                SQLiteVectorDatabaseHandler existingDb = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, embeddingModel);
-                int existingDimension = existingDb.getMetadata().getEmbeddingDimension();
-                String existingModel = existingDb.getMetadata().getModeldir();
-                existingDb.close();
+                // 检查现有知识库的向量维度和模型，通过注册表读取，不另开一个句柄
+                SQLiteVectorDatabaseHandler existingDb = VectorDatabaseRegistry.getInstance().acquire(knowledgeBaseDir);
+                int existingDimension = 0;
+                String existingModel = embeddingModel;
+                if (existingDb != null) {
+                    try {
+                        existingDimension = existingDb.getMetadata().getEmbeddingDimension();
+                        existingModel = existingDb.getMetadata().getModeldir();
+                    } finally {
+                        VectorDatabaseRegistry.getInstance().release(existingDb);
+                    }
+                }
                 
                 if (existingDimension > 0 && existingDimension != modelDimension) {
                     // 在追加模式下，如果维度不匹配，显示错误并停止
@@ -983,12 +990,20 @@ public class BuildKnowledgeBaseFragment extends Fragment {
             } else if (overwrite && vectorDbFile.exists()) {
                 // 在覆盖模式下，删除现有数据库文件
                 LogManager.logD(TAG, "覆盖模式: 删除现有数据库文件");
-                vectorDbFile.delete();
-                
-                // 删除元数据文件
-                File metadataFile = new File(knowledgeBaseDir, "metadata.json");
-                if (metadataFile.exists()) {
-                    metadataFile.delete();
+                // 先关闭共享句柄（包括查询页面仍持有的），删除期间不允许重新打开
+                VectorDatabaseRegistry.getInstance().beginExclusive(knowledgeBaseDir);
+                try {
+                    vectorDbFile.delete();
+                    new File(knowledgeBaseDir, "vectorstore.db-wal").delete();
+                    new File(knowledgeBaseDir, "vectorstore.db-shm").delete();
+                    
+                    // 删除元数据文件
+                    File metadataFile = new File(knowledgeBaseDir, "metadata.json");
+                    if (metadataFile.exists()) {
+                        metadataFile.delete();
+                    }
+                } finally {
+                    VectorDatabaseRegistry.getInstance().endExclusive(knowledgeBaseDir);
                 }
                 
                 textViewProgress.append("\n" + StateDisplayManager.getProcessingStatusDisplayText(requireContext(), AppConstants.PROCESSING_STATUS_OVERWRITE_DELETED));
@@ -1548,7 +1563,15 @@ public class BuildKnowledgeBaseFragment extends Fragment {
         LogManager.logD(TAG, "尝试重命名知识库: " + oldDir.getAbsolutePath() + " -> " + newDir.getAbsolutePath());
         
         if (oldDir.exists()) {
-            if (oldDir.renameTo(newDir)) {
+            // 关闭旧路径上的共享句柄，重命名期间不允许重新打开
+            boolean renamed;
+            VectorDatabaseRegistry.getInstance().beginExclusive(oldDir);
+            try {
+                renamed = oldDir.renameTo(newDir);
+            } finally {
+                VectorDatabaseRegistry.getInstance().endExclusive(oldDir);
+            }
+            if (renamed) {
                 // 重命名成功，更新UI
                 Utils.showToastSafely(requireContext(), getString(R.string.kb_rename_success), Toast.LENGTH_SHORT);
                 
@@ -0,0 +1,386 @@
+package com.example.starlocalrag;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of chunk embeddings
+ * 以“模型标识哈希 + 文本块内容哈希”为键，重建知识库、追加文档、崩溃后重试时未变化的文本块直接读取向量，
+ * 跳过分词和 ONNX 推理。每个模型一个只追加的二进制文件，内存中只保留内容哈希到记录位置的索引；
+ * 文件超过容量上限时按最近使用顺序保留较新的条目重写文件（重写前的命中顺序只在本次打开期间有效）。
+ * 容量上限针对整个缓存目录：打开时删除其他模型的空闲缓存文件，同时打开的文件分摊上限
+ *
+ * File layout: magic, dimension, committed length, then fixed-size records of a 32-byte SHA-256
+ * content hash followed by dimension big-endian floats. Appends are synced in batches and the
+ * committed length is advanced only after a sync, so records a crash may have torn are dropped on load
+ */
+public class ChunkEmbeddingCache {
+    private static final String TAG = "StarLocalRAG_ChunkEmbeddingCache";
+
+    private static final String CACHE_DIR = "chunk_embedding_cache";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int FILE_MAGIC = 0x43454332; // "CEC2"
+    private static final int HEADER_BYTES = 16;
+    private static final int COMMITTED_LENGTH_OFFSET = 8;
+    private static final int HASH_BYTES = 32;
+
+    // 每追加这么多条记录同步一次文件并推进已提交长度
+    private static final int SYNC_INTERVAL_RECORDS = 256;
+
+    // 分到的容量低于此值时不使用缓存
+    private static final long MIN_CAPACITY_BYTES = 1024L * 1024L;
+
+    // 重写时保留的容量比例，避免每次追加都触发重写
+    private static final float COMPACT_RATIO = 0.75f;
+
+    // 已打开的缓存文件及其分到的容量，同一个文件同时只允许一个实例写入
+    private static final Map<String, Long> openFiles = new HashMap<>();
+
+    private final File file;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private RandomAccessFile data;
+    private int dimension;
+    private int unsyncedRecords;
+    private long hitCount;
+    private long missCount;
+
+    private ChunkEmbeddingCache(File file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Open the cache file of an embedding model
+     * @param context Context
+     * @param modelIdentity Model identity, see EmbeddingModelHandler.getModelIdentity()
+     * @return Cache, or null when the cache is disabled, already in use by another build, has no capacity left or cannot be opened
+     */
+    public static ChunkEmbeddingCache open(Context context, String modelIdentity) {
+        int sizeMb = ConfigManager.getChunkEmbeddingCacheSizeMb(context);
+        if (sizeMb <= 0) {
+            return null;
+        }
+        return open(new File(context.getFilesDir(), CACHE_DIR), modelIdentity, sizeMb * 1024L * 1024L);
+    }
+
+    /**
+     * Open the cache file of an embedding model in a cache directory
+     * @param dir Cache directory, shared by all models
+     * @param modelIdentity Model identity
+     * @param directoryCapacity Capacity of the whole directory in bytes
+     * @return Cache, or null when it is already in use, has no capacity left or cannot be opened
+     */
+    static ChunkEmbeddingCache open(File dir, String modelIdentity, long directoryCapacity) {
+        if (modelIdentity == null) {
+            return null;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LogManager.logW(TAG, "Failed to create chunk embedding cache directory");
+            return null;
+        }
+        File file = new File(dir, toHex(sha256(modelIdentity)).substring(0, 32) + FILE_SUFFIX);
+        long capacity;
+        synchronized (openFiles) {
+            if (openFiles.containsKey(file.getPath())) {
+                LogManager.logW(TAG, "Chunk embedding cache is in use by another build, skipping it");
+                return null;
+            }
+            capacity = directoryCapacity;
+            for (long reserved : openFiles.values()) {
+                capacity -= reserved;
+            }
+            if (capacity < MIN_CAPACITY_BYTES) {
+                LogManager.logW(TAG, "Chunk embedding cache capacity is taken by other builds, skipping it");
+                return null;
+            }
+            openFiles.put(file.getPath(), capacity);
+            deleteIdleFiles(dir, file);
+        }
+        ChunkEmbeddingCache cache = new ChunkEmbeddingCache(file, capacity);
+        try {
+            cache.load();
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            LogManager.logW(TAG, "Failed to open chunk embedding cache: " + e.getMessage());
+            cache.close();
+            return null;
+        }
+    }
+
+    /**
+     * Look up the embedding of a chunk
+     * @param text Chunk text
+     * @return Cached embedding, or null on a miss
+     */
+    public synchronized float[] get(String text) {
+        if (data == null) {
+            return null;
+        }
+        Long offset = index.get(keyOf(text));
+        if (offset == null) {
+            missCount++;
+            return null;
+        }
+        try {
+            byte[] bytes = new byte[dimension * 4];
+            data.seek(offset + HASH_BYTES);
+            data.readFully(bytes);
+            float[] embedding = new float[dimension];
+            ByteBuffer.wrap(bytes).asFloatBuffer().get(embedding);
+            hitCount++;
+            return embedding;
+        } catch (IOException e) {
+            LogManager.logW(TAG, "Failed to read cached chunk embedding: " + e.getMessage());
+            missCount++;
+            return null;
+        }
+    }
+
+    /**
+     * Append the embedding of a chunk
+     * 第一条记录决定文件的向量维度，维度不同的向量不写入
+     * @param text Chunk text
+     * @param embedding Embedding vector
+     */
+    public synchronized void put(String text, float[] embedding) {
+        if (data == null || embedding == null || embedding.length == 0) {
+            return;
+        }
+        String key = keyOf(text);
+        if (index.containsKey(key)) {
+            return;
+        }
+        try {
+            if (dimension == 0) {
+                dimension = embedding.length;
+                data.setLength(0);
+                data.seek(0);
+                writeHeader(data, dimension, HEADER_BYTES);
+            } else if (embedding.length != dimension) {
+                return;
+            }
+            ByteBuffer record = ByteBuffer.allocate(recordBytes());
+            record.put(key.getBytes(StandardCharsets.ISO_8859_1));
+            record.asFloatBuffer().put(embedding);
+            long offset = data.length();
+            data.seek(offset);
+            data.write(record.array());
+            index.put(key, offset);
+            if (offset + recordBytes() > maxBytes) {
+                compact();
+            } else if (++unsyncedRecords >= SYNC_INTERVAL_RECORDS) {
+                sync();
+            }
+        } catch (IOException e) {
+            LogManager.logW(TAG, "Failed to write chunk embedding cache, disabling it: " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    /**
+     * Close the file, the cache cannot be used afterwards
+     */
+    public synchronized void close() {
+        closeFile();
+        synchronized (openFiles) {
+            openFiles.remove(file.getPath());
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    private int recordBytes() {
+        return HASH_BYTES + dimension * 4;
+    }
+
+    private void load() throws IOException {
+        data = new RandomAccessFile(file, "rw");
+        long length = data.length();
+        if (length < HEADER_BYTES) {
+            data.setLength(0);
+            return;
+        }
+        if (data.readInt() != FILE_MAGIC) {
+            LogManager.logW(TAG, "Chunk embedding cache file has an unknown format, discarding it");
+            data.setLength(0);
+            return;
+        }
+        dimension = data.readInt();
+        long committedLength = data.readLong();
+        if (dimension <= 0 || committedLength < HEADER_BYTES || committedLength > length) {
+            data.setLength(0);
+            dimension = 0;
+            return;
+        }
+        // Records appended after the last sync may be torn by a crash and are dropped
+        long count = (committedLength - HEADER_BYTES) / recordBytes();
+        long validLength = HEADER_BYTES + count * recordBytes();
+        if (validLength != length) {
+            data.setLength(validLength);
+            if (validLength != committedLength) {
+                data.seek(COMMITTED_LENGTH_OFFSET);
+                data.writeLong(validLength);
+            }
+        }
+        byte[] hash = new byte[HASH_BYTES];
+        for (long i = 0; i < count; i++) {
+            long offset = HEADER_BYTES + i * recordBytes();
+            data.seek(offset);
+            data.readFully(hash);
+            index.put(new String(hash, StandardCharsets.ISO_8859_1), offset);
+        }
+        LogManager.logD(TAG, "Loaded " + index.size() + " cached chunk embeddings from " + file.getName());
+    }
+
+    /**
+     * Rewrite the file with the most recently used entries that fit in the retained capacity
+     */
+    private void compact() throws IOException {
+        long keep = Math.max(1, (long) ((maxBytes * COMPACT_RATIO - HEADER_BYTES) / recordBytes()));
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(index.entrySet());
+        List<Map.Entry<String, Long>> kept = entries.subList((int) Math.max(0, entries.size() - keep), entries.size());
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        LinkedHashMap<String, Long> compacted = new LinkedHashMap<>(16, 0.75f, true);
+        try (RandomAccessFile out = new RandomAccessFile(tmpFile, "rw")) {
+            out.setLength(0);
+            writeHeader(out, dimension, HEADER_BYTES + (long) kept.size() * recordBytes());
+            byte[] record = new byte[recordBytes()];
+            long offset = HEADER_BYTES;
+            for (Map.Entry<String, Long> entry : kept) {
+                data.seek(entry.getValue());
+                data.readFully(record);
+                out.write(record);
+                compacted.put(entry.getKey(), offset);
+                offset += record.length;
+            }
+            // The renamed file must not expose records that are not on disk yet
+            out.getFD().sync();
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        data.close();
+        data = null;
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Failed to replace chunk embedding cache file");
+        }
+        data = new RandomAccessFile(file, "rw");
+        unsyncedRecords = 0;
+        int evicted = index.size() - compacted.size();
+        index.clear();
+        index.putAll(compacted);
+        LogManager.logD(TAG, "Compacted chunk embedding cache, evicted " + evicted + " entries, kept " + index.size());
+    }
+
+    /**
+     * Sync the appended records, then advance the committed length over them
+     */
+    private void sync() throws IOException {
+        data.getFD().sync();
+        data.seek(COMMITTED_LENGTH_OFFSET);
+        data.writeLong(data.length());
+        unsyncedRecords = 0;
+    }
+
+    private static void writeHeader(RandomAccessFile out, int dimension, long committedLength) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(dimension);
+        out.writeLong(committedLength);
+    }
+
+    /**
+     * Delete the cache files of other models that no build has open, and stale temporary files
+     * 调用方持有 openFiles 锁
+     */
+    private static void deleteIdleFiles(File dir, File current) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File other : files) {
+            String path = other.getPath();
+            if (path.endsWith(TMP_SUFFIX)) {
+                path = path.substring(0, path.length() - TMP_SUFFIX.length());
+            }
+            if (other.equals(current) || openFiles.containsKey(path)) {
+                continue;
+            }
+            long length = other.length();
+            if (other.delete()) {
+                LogManager.logD(TAG, "Deleted idle chunk embedding cache " + other.getName() + " (" + length + " bytes)");
+            }
+        }
+    }
+
+    private void closeFile() {
+        index.clear();
+        if (data != null) {
+            try {
+                if (unsyncedRecords > 0) {
+                    sync();
+                }
+            } catch (IOException e) {
+                // Unsynced records stay beyond the committed length and are dropped on the next load
+                LogManager.logW(TAG, "Failed to sync chunk embedding cache: " + e.getMessage());
+            }
+            try {
+                data.close();
+            } catch (IOException e) {
+                LogManager.logW(TAG, "Failed to close chunk embedding cache: " + e.getMessage());
+            }
+            data = null;
+            unsyncedRecords = 0;
+        }
+    }
+
+    /**
+     * In-memory key of a chunk
+     * SHA-256 的 32 个字节按 ISO-8859-1 存为 32 个字符，比十六进制字符串节省一半内存
+     */
+    private static String keyOf(String text) {
+        return new String(sha256(text), StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] sha256(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform must provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
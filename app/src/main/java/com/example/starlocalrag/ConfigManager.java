@@ -73,6 +73,7 @@ public class ConfigManager {
     public static final String KEY_API_KEY = "api_key";
     public static final String KEY_MODEL_NAME = "model_name";
     public static final String KEY_KNOWLEDGE_BASE = "knowledge_base";
+    public static final String KEY_FEDERATED_KNOWLEDGE_BASES = "federated_knowledge_bases"; // 与当前知识库一起检索的其他知识库（逗号分隔）
     public static final String KEY_SYSTEM_PROMPT = "system_prompt";
     
     // 分块相关的键
@@ -97,6 +98,26 @@ public class ConfigManager {
     public static final String KEY_DEBUG_MODE = "debug_mode"; // 调试模式配置键
     public static final String KEY_USE_GPU = "use_gpu"; // GPU加速配置键
     
+    // 向量检索相关的键
+    public static final String KEY_RESIDENT_VECTOR_INDEX = "resident_vector_index"; // 常驻内存向量矩阵
+    public static final String KEY_VECTOR_INDEX_TYPE = "vector_index_type"; // 构建知识库时使用的向量索引类型
+    public static final String KEY_HNSW_M = "hnsw_m"; // HNSW每个节点的最大连接数
+    public static final String KEY_HNSW_EF_CONSTRUCTION = "hnsw_ef_construction"; // HNSW构建候选集大小
+    public static final String KEY_HNSW_EF_SEARCH = "hnsw_ef_search"; // HNSW查询候选集大小
+    public static final String KEY_IVF_NLIST = "ivf_nlist"; // IVF倒排列表数量（0表示自动）
+    public static final String KEY_IVF_NPROBE = "ivf_nprobe"; // IVF查询时扫描的列表数量
+    public static final String KEY_VECTOR_QUANTIZATION = "vector_quantization"; // 新建知识库的向量量化方式（编码与原始向量并存，仅用于加速扫描）
+    public static final String KEY_VECTOR_ENCODING = "vector_encoding"; // 新建知识库 embedding 列的存储精度
+    public static final String KEY_BINARY_SIGNATURE = "binary_signature"; // 新建知识库是否存储符号位签名
+    public static final String KEY_PQ_M = "pq_m"; // 乘积量化子空间数量（每个向量的编码字节数）
+    public static final String KEY_PQ_NBITS = "pq_nbits"; // 乘积量化每个子空间的编码位数
+    public static final String KEY_FLAT_VECTOR_FILE = "flat_vector_file"; // 新建知识库是否额外写入内存映射的 vectors.f32
+    public static final String KEY_SEARCH_THREADS = "search_threads"; // 暴力检索并行线程数（0表示自动）
+    public static final String KEY_HYBRID_SEARCH = "hybrid_search"; // 向量检索与全文检索（BM25）融合排序
+    public static final String KEY_QUERY_EMBEDDING_CACHE_SIZE = "query_embedding_cache_size"; // 查询向量缓存条目数（0表示禁用）
+    public static final String KEY_QUERY_EMBEDDING_CACHE_PERSIST = "query_embedding_cache_persist"; // 查询向量缓存是否保存到磁盘
+    public static final String KEY_CHUNK_EMBEDDING_CACHE_SIZE_MB = "chunk_embedding_cache_size_mb"; // 文本块向量磁盘缓存目录的总上限（MB，0表示禁用）
+    
     // LLM 推理相关的键
     public static final String KEY_MAX_SEQUENCE_LENGTH = "maxSequenceLength"; // 最大序列长度
     public static final String KEY_NO_THINKING = "no_thinking"; // 是否禁用思考模式
@@ -152,6 +173,24 @@ public class ConfigManager {
     public static final String DEFAULT_KNOWLEDGE_BASE_PATH = "/storage/emulated/0/Download/StarRagData/knowledge_bases";
     public static final int DEFAULT_SEARCH_DEPTH = 20;
     public static final int DEFAULT_RERANK_COUNT = 5;
+    public static final boolean DEFAULT_RESIDENT_VECTOR_INDEX = false;
+    public static final String DEFAULT_VECTOR_INDEX_TYPE = AppConstants.VectorIndexType.FLAT; // 默认精确检索，HNSW/IVF需显式开启
+    public static final int DEFAULT_HNSW_M = HnswIndex.DEFAULT_M;
+    public static final int DEFAULT_HNSW_EF_CONSTRUCTION = HnswIndex.DEFAULT_EF_CONSTRUCTION;
+    public static final int DEFAULT_HNSW_EF_SEARCH = HnswIndex.DEFAULT_EF_SEARCH;
+    public static final int DEFAULT_IVF_NLIST = 0;
+    public static final int DEFAULT_IVF_NPROBE = IvfIndex.DEFAULT_NPROBE;
+    public static final String DEFAULT_VECTOR_QUANTIZATION = AppConstants.VectorQuantization.NONE;
+    public static final String DEFAULT_VECTOR_ENCODING = AppConstants.VectorEncoding.FLOAT32;
+    public static final boolean DEFAULT_BINARY_SIGNATURE = false;
+    public static final int DEFAULT_PQ_M = ProductQuantizer.DEFAULT_M;
+    public static final int DEFAULT_PQ_NBITS = ProductQuantizer.DEFAULT_NBITS;
+    public static final boolean DEFAULT_FLAT_VECTOR_FILE = false;
+    public static final int DEFAULT_SEARCH_THREADS = 0;
+    public static final boolean DEFAULT_HYBRID_SEARCH = false;
+    public static final int DEFAULT_QUERY_EMBEDDING_CACHE_SIZE = 256;
+    public static final boolean DEFAULT_QUERY_EMBEDDING_CACHE_PERSIST = false;
+    public static final int DEFAULT_CHUNK_EMBEDDING_CACHE_SIZE_MB = 256;
 
     public static final float DEFAULT_TEXT_SIZE = 14f;
     
@@ -606,6 +645,30 @@ public class ConfigManager {
         setString(context, KEY_KNOWLEDGE_BASE, knowledgeBase);
     }
 
+    /**
+     * 获取与当前知识库一起检索的其他知识库
+     * @param context 上下文
+     * @return 知识库名称列表，为空表示只检索当前知识库
+     */
+    public static List<String> getFederatedKnowledgeBases(Context context) {
+        List<String> knowledgeBases = new ArrayList<>();
+        for (String name : getString(context, KEY_FEDERATED_KNOWLEDGE_BASES, "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                knowledgeBases.add(name.trim());
+            }
+        }
+        return knowledgeBases;
+    }
+
+    /**
+     * 设置与当前知识库一起检索的其他知识库
+     * @param context 上下文
+     * @param knowledgeBases 知识库名称列表
+     */
+    public static void setFederatedKnowledgeBases(Context context, List<String> knowledgeBases) {
+        setString(context, KEY_FEDERATED_KNOWLEDGE_BASES, String.join(",", knowledgeBases));
+    }
+
     /**
      * 获取系统提示词
      * @param context 上下文
@@ -702,8 +765,8 @@ public class ConfigManager {
             LogManager.logD(TAG, getLogString(context, LOG_FOUND_SQLITE_DB));
             SQLiteVectorDatabaseHandler vectorDb = null;
             try {
-                vectorDb = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, "unknown");
-                if (vectorDb.loadDatabase()) {
+                vectorDb = VectorDatabaseRegistry.getInstance().acquire(knowledgeBaseDir);
+                if (vectorDb != null) {
                     SQLiteVectorDatabaseHandler.DatabaseMetadata metadata = vectorDb.getMetadata();
                     if (metadata != null) {
                         String embeddingModel = metadata.getModeldir();
@@ -734,13 +797,7 @@ public class ConfigManager {
             } catch (Exception e) {
                 LogManager.logE(TAG, getLogString(context, LOG_READ_SQLITE_FAILED), e);
             } finally {
-                if (vectorDb != null) {
-                    try {
-                        vectorDb.close();
-                    } catch (Exception e) {
-                        LogManager.logE(TAG, getLogString(context, LOG_CLOSE_SQLITE_FAILED), e);
-                    }
-                }
+                VectorDatabaseRegistry.getInstance().release(vectorDb);
             }
         }
         
@@ -1164,6 +1221,188 @@ public class ConfigManager {
         setInt(context, KEY_THREADS, threads);
     }
 
+    /**
+     * 获取是否启用常驻内存向量矩阵
+     * @param context 上下文
+     * @return 是否在加载知识库时将全部向量常驻内存
+     */
+    public static boolean isResidentVectorIndexEnabled(Context context) {
+        return getBoolean(context, KEY_RESIDENT_VECTOR_INDEX, DEFAULT_RESIDENT_VECTOR_INDEX);
+    }
+    
+    /**
+     * 设置是否启用常驻内存向量矩阵
+     * @param context 上下文
+     * @param enabled 是否启用
+     */
+    public static void setResidentVectorIndexEnabled(Context context, boolean enabled) {
+        setBoolean(context, KEY_RESIDENT_VECTOR_INDEX, enabled);
+    }
+
+    /**
+     * 获取构建知识库时使用的向量索引类型
+     * @param context 上下文
+     * @return 索引类型，见 AppConstants.VectorIndexType
+     */
+    public static String getVectorIndexType(Context context) {
+        return getString(context, KEY_VECTOR_INDEX_TYPE, DEFAULT_VECTOR_INDEX_TYPE);
+    }
+    
+    /**
+     * 获取HNSW每个节点的最大连接数M
+     * @param context 上下文
+     * @return M
+     */
+    public static int getHnswM(Context context) {
+        return getInt(context, KEY_HNSW_M, DEFAULT_HNSW_M);
+    }
+    
+    /**
+     * 获取HNSW构建时的候选集大小efConstruction
+     * @param context 上下文
+     * @return efConstruction
+     */
+    public static int getHnswEfConstruction(Context context) {
+        return getInt(context, KEY_HNSW_EF_CONSTRUCTION, DEFAULT_HNSW_EF_CONSTRUCTION);
+    }
+    
+    /**
+     * 获取HNSW查询时的候选集大小ef
+     * @param context 上下文
+     * @return ef
+     */
+    public static int getHnswEfSearch(Context context) {
+        return getInt(context, KEY_HNSW_EF_SEARCH, DEFAULT_HNSW_EF_SEARCH);
+    }
+    
+    /**
+     * 获取IVF倒排列表数量nlist
+     * @param context 上下文
+     * @return nlist，0表示按数据量自动选择
+     */
+    public static int getIvfNlist(Context context) {
+        return getInt(context, KEY_IVF_NLIST, DEFAULT_IVF_NLIST);
+    }
+    
+    /**
+     * 获取IVF查询时扫描的列表数量nprobe
+     * @param context 上下文
+     * @return nprobe
+     */
+    public static int getIvfNprobe(Context context) {
+        return getInt(context, KEY_IVF_NPROBE, DEFAULT_IVF_NPROBE);
+    }
+    
+    /**
+     * 获取构建知识库时使用的向量量化方式
+     * @param context 上下文
+     * @return 量化方式，见 AppConstants.VectorQuantization
+     */
+    public static String getVectorQuantization(Context context) {
+        return getString(context, KEY_VECTOR_QUANTIZATION, DEFAULT_VECTOR_QUANTIZATION);
+    }
+    
+    /**
+     * 获取构建知识库时 embedding 列的存储精度
+     * @param context 上下文
+     * @return 存储精度，见 AppConstants.VectorEncoding
+     */
+    public static String getVectorEncoding(Context context) {
+        return getString(context, KEY_VECTOR_ENCODING, DEFAULT_VECTOR_ENCODING);
+    }
+    
+    /**
+     * 获取构建知识库时是否存储符号位签名（汉明距离预筛选）
+     * @param context 上下文
+     * @return 是否启用
+     */
+    public static boolean isBinarySignatureEnabled(Context context) {
+        return getBoolean(context, KEY_BINARY_SIGNATURE, DEFAULT_BINARY_SIGNATURE);
+    }
+    
+    /**
+     * 获取乘积量化子空间数量m
+     * @param context 上下文
+     * @return m
+     */
+    public static int getPqM(Context context) {
+        return getInt(context, KEY_PQ_M, DEFAULT_PQ_M);
+    }
+    
+    /**
+     * 获取乘积量化每个子空间的编码位数nbits
+     * @param context 上下文
+     * @return nbits
+     */
+    public static int getPqNbits(Context context) {
+        return getInt(context, KEY_PQ_NBITS, DEFAULT_PQ_NBITS);
+    }
+    
+    /**
+     * 获取新建知识库是否写入内存映射的向量文件
+     * @param context 上下文
+     * @return 是否在 vectorstore.db 旁写入 vectors.f32 供精确检索直接扫描
+     */
+    public static boolean isFlatVectorFileEnabled(Context context) {
+        return getBoolean(context, KEY_FLAT_VECTOR_FILE, DEFAULT_FLAT_VECTOR_FILE);
+    }
+    
+    /**
+     * 获取暴力检索的并行线程数
+     * 0表示自动：CPU核心数减去为ONNX/llama.cpp推理保留的线程数；显式配置时同样不超过剩余核心数
+     * @param context 上下文
+     * @return 检索线程数（包含调用线程）
+     */
+    public static int getSearchThreads(Context context) {
+        return getInt(context, KEY_SEARCH_THREADS, DEFAULT_SEARCH_THREADS);
+    }
+
+    /**
+     * 获取是否启用混合检索
+     * 向量检索与全文检索并行执行并按倒数排名融合，型号、错误码等精确词不会被向量检索漏掉
+     * @param context 上下文
+     * @return 是否启用混合检索
+     */
+    public static boolean isHybridSearchEnabled(Context context) {
+        return getBoolean(context, KEY_HYBRID_SEARCH, DEFAULT_HYBRID_SEARCH);
+    }
+
+    /**
+     * 设置是否启用混合检索
+     * @param context 上下文
+     * @param enabled 是否启用
+     */
+    public static void setHybridSearchEnabled(Context context, boolean enabled) {
+        setBoolean(context, KEY_HYBRID_SEARCH, enabled);
+    }
+
+    /**
+     * 获取查询向量缓存的最大条目数
+     * @param context 上下文
+     * @return 条目数，0表示禁用缓存
+     */
+    public static int getQueryEmbeddingCacheSize(Context context) {
+        return getInt(context, KEY_QUERY_EMBEDDING_CACHE_SIZE, DEFAULT_QUERY_EMBEDDING_CACHE_SIZE);
+    }
+
+    /**
+     * 获取查询向量缓存是否保存到磁盘
+     * @param context 上下文
+     * @return 是否在应用重启后保留缓存
+     */
+    public static boolean isQueryEmbeddingCachePersistent(Context context) {
+        return getBoolean(context, KEY_QUERY_EMBEDDING_CACHE_PERSIST, DEFAULT_QUERY_EMBEDDING_CACHE_PERSIST);
+    }
+
+    /**
+     * 获取文本块向量磁盘缓存的容量上限
+     * @param context 上下文
+     * @return 缓存目录中所有模型缓存文件的总上限（MB），0表示禁用缓存
+     */
+    public static int getChunkEmbeddingCacheSizeMb(Context context) {
+        return getInt(context, KEY_CHUNK_EMBEDDING_CACHE_SIZE_MB, DEFAULT_CHUNK_EMBEDDING_CACHE_SIZE_MB);
+    }
+
     /**
      * 获取最大输出token数
      * @param context 上下文
@@ -1849,6 +2088,24 @@ public class ConfigManager {
             // 搜索设置
             config.put(KEY_SEARCH_DEPTH, 10);
             config.put(KEY_RETRIEVAL_COUNT, 20);
+            config.put(KEY_RESIDENT_VECTOR_INDEX, DEFAULT_RESIDENT_VECTOR_INDEX);
+            config.put(KEY_VECTOR_INDEX_TYPE, DEFAULT_VECTOR_INDEX_TYPE);
+            config.put(KEY_HNSW_M, DEFAULT_HNSW_M);
+            config.put(KEY_HNSW_EF_CONSTRUCTION, DEFAULT_HNSW_EF_CONSTRUCTION);
+            config.put(KEY_HNSW_EF_SEARCH, DEFAULT_HNSW_EF_SEARCH);
+            config.put(KEY_IVF_NLIST, DEFAULT_IVF_NLIST);
+            config.put(KEY_IVF_NPROBE, DEFAULT_IVF_NPROBE);
+            config.put(KEY_VECTOR_QUANTIZATION, DEFAULT_VECTOR_QUANTIZATION);
+            config.put(KEY_VECTOR_ENCODING, DEFAULT_VECTOR_ENCODING);
+            config.put(KEY_BINARY_SIGNATURE, DEFAULT_BINARY_SIGNATURE);
+            config.put(KEY_PQ_M, DEFAULT_PQ_M);
+            config.put(KEY_PQ_NBITS, DEFAULT_PQ_NBITS);
+            config.put(KEY_FLAT_VECTOR_FILE, DEFAULT_FLAT_VECTOR_FILE);
+            config.put(KEY_SEARCH_THREADS, DEFAULT_SEARCH_THREADS);
+            config.put(KEY_HYBRID_SEARCH, DEFAULT_HYBRID_SEARCH);
+            config.put(KEY_QUERY_EMBEDDING_CACHE_SIZE, DEFAULT_QUERY_EMBEDDING_CACHE_SIZE);
+            config.put(KEY_QUERY_EMBEDDING_CACHE_PERSIST, DEFAULT_QUERY_EMBEDDING_CACHE_PERSIST);
+            config.put(KEY_CHUNK_EMBEDDING_CACHE_SIZE_MB, DEFAULT_CHUNK_EMBEDDING_CACHE_SIZE_MB);
             
             // 调试设置
             config.put(KEY_DEBUG_MODE, false); // 默认关闭调试模式
@@ -1859,6 +2116,7 @@ public class ConfigManager {
             config.put(KEY_API_URL, AppConstants.ApiUrl.LOCAL);
             config.put(KEY_MODEL_NAME, "deepseek-chat");
             config.put(KEY_KNOWLEDGE_BASE, "默认知识库");
+            config.put(KEY_FEDERATED_KNOWLEDGE_BASES, "");
             
             // API Keys
             JSONObject apiKeys = new JSONObject();
@@ -20,10 +20,9 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -42,10 +41,12 @@ import org.pytorch.Module;
 import org.pytorch.Tensor;
 
 import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
 import ai.onnxruntime.OnnxTensor;
 import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
 import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
 
 /**
  * 处理词嵌入模型的工具类，支持TorchScript和ONNX格式
@@ -76,6 +77,12 @@ public class EmbeddingModelHandler {
     private static final int MAX_SESSION_RETRY = 3;       // 最大重试次数
     private static final long SESSION_RETRY_DELAY_MS = 500; // 重试间隔
     
+    // 批量推理：每批最多文本数、每批补齐后的 token 总数上限
+    private static final int MAX_EMBEDDING_BATCH_SIZE = 32;
+    private static final int EMBEDDING_BATCH_TOKEN_BUDGET = 8192;
+    // 嵌入维度未知时估算输出张量大小使用的隐藏层维度
+    private static final int DEFAULT_HIDDEN_SIZE_ESTIMATE = 1024;
+    
     // 模型类型枚举
     public enum ModelType {
         TORCH_SCRIPT,
@@ -107,6 +114,37 @@ public class EmbeddingModelHandler {
     // 嵌入向量维度
     private int embeddingSize = 0;
     
+    // 第一个输出的维度（浮点二维或三维），0 表示只能通过 getValue() 提取；加载模型时确定
+    private volatile int outputRank = 0;
+    
+    // 模型是否接受 batch > 1 的输入，批量推理因输入形状被拒绝后置为 false
+    private volatile boolean batchInferenceSupported = true;
+    
+    /**
+     * 批量推理统计：有效 token 数、补齐后送入模型的 token 数和耗时（含分词）
+     * 由调用方创建并传给 generateEmbeddings，并发的调用各自累计，互不干扰
+     */
+    public static class BatchStats {
+        public long texts;
+        public long tokens;
+        public long paddedTokens;
+        public long elapsedMillis;
+        
+        /**
+         * 补齐位置占送入模型 token 的比例
+         */
+        public double getPaddingRatio() {
+            return paddedTokens > 0 ? (double) (paddedTokens - tokens) / paddedTokens : 0.0;
+        }
+        
+        /**
+         * 每秒处理的有效 token 数
+         */
+        public double getTokensPerSecond() {
+            return elapsedMillis > 0 ? tokens * 1000.0 / elapsedMillis : 0.0;
+        }
+    }
+    
     // 最大序列长度
     private int maxSequenceLength = 512;
     
@@ -635,6 +673,8 @@ public class EmbeddingModelHandler {
                     return false;
                 }
                 
+                inspectOutputLayout();
+                
             } catch (OrtException e) {
                 LogManager.logE(TAG, "加载ONNX模型失败: " + e.getMessage(), e);
                 e.printStackTrace();
@@ -1177,21 +1217,7 @@ public class EmbeddingModelHandler {
         long[] inputIds = tokenizeResult[0];
         
         // 限制序列长度
-        if (inputIds.length > maxSequenceLength) {
-            debugLog("输入序列长度超过最大限制，将被截断: " + inputIds.length + " -> " + maxSequenceLength);
-            long[] truncatedIds = new long[maxSequenceLength];
-            System.arraycopy(inputIds, 0, truncatedIds, 0, maxSequenceLength - 1);
-            truncatedIds[maxSequenceLength - 1] = 2; // [SEP] token
-            inputIds = truncatedIds;
-        }
-        
-        // 创建注意力掩码数组，全部填充为1
-        long[] attentionMask = new long[inputIds.length];
-        Arrays.fill(attentionMask, 1L);
-        
-        // 创建token_type_ids数组，对于单句文本全部填充为0
-        long[] tokenTypeIds = new long[inputIds.length];
-        Arrays.fill(tokenTypeIds, 0L);
+        inputIds = truncateInputIds(inputIds);
         
         // 记录输入张量形状和示例
         LogManager.logD(TAG, "输入张量形状: [1, " + inputIds.length + "]");
@@ -1202,32 +1228,9 @@ public class EmbeddingModelHandler {
         long startTime = System.currentTimeMillis();
         
         try {
-            // 将数组转换为LongBuffer (对应INT64类型)
-            LongBuffer inputIdsBuffer = LongBuffer.allocate(inputIds.length);
-            inputIdsBuffer.put(inputIds);
-            inputIdsBuffer.rewind();
-            
-            LongBuffer attentionMaskBuffer = LongBuffer.allocate(attentionMask.length);
-            attentionMaskBuffer.put(attentionMask);
-            attentionMaskBuffer.rewind();
-            
-            LongBuffer tokenTypeIdsBuffer = LongBuffer.allocate(tokenTypeIds.length);
-            tokenTypeIdsBuffer.put(tokenTypeIds);
-            tokenTypeIdsBuffer.rewind();
-            
-            // 设置输入形状
-            long[] inputShape = new long[]{1, inputIds.length};
-            
-            // 创建输入张量 - 确保使用INT64类型
-            OnnxTensor inputIdsTensor = OnnxTensor.createTensor(ortEnvironment, inputIdsBuffer, inputShape);
-            OnnxTensor attentionMaskTensor = OnnxTensor.createTensor(ortEnvironment, attentionMaskBuffer, inputShape);
-            OnnxTensor tokenTypeIdsTensor = OnnxTensor.createTensor(ortEnvironment, tokenTypeIdsBuffer, inputShape);
-            
-            // 记录输入张量信息
-            LogManager.logD(TAG, "输入张量类型 - input_ids: " + inputIdsTensor.getInfo().type + ", attention_mask: " + attentionMaskTensor.getInfo().type + ", token_type_ids: " + tokenTypeIdsTensor.getInfo().type);
-            
-            // 准备输入数据 - 根据模型实际需要的输入动态提供
-            Map<String, OnnxTensor> inputs = new HashMap<>();
+            // 使用线程内复用的直接内存张量，attention_mask 全部为1，token_type_ids 全部为0
+            OnnxInputBuffers.Inputs pooledInputs = OnnxInputBuffers.acquire(ortEnvironment, 1, inputIds.length);
+            pooledInputs.putRow(0, inputIds);
             
             // 获取模型实际需要的输入名称
             Map<String, NodeInfo> inputInfo = onnxSession.getInputInfo();
@@ -1243,21 +1246,8 @@ public class EmbeddingModelHandler {
             LogManager.logD(TAG, String.format("模型类型检测 - Qwen: %b, BERT-like: %b, 模型名称: %s", 
                 isQwenModel, isBertLikeModel, modelName));
             
-            // 根据模型实际需要的输入动态提供，而不是硬编码
-            if (inputInfo.containsKey("input_ids")) {
-                inputs.put("input_ids", inputIdsTensor);
-                LogManager.logD(TAG, "已添加input_ids输入");
-            }
-            
-            if (inputInfo.containsKey("attention_mask")) {
-                inputs.put("attention_mask", attentionMaskTensor);
-                LogManager.logD(TAG, "已添加attention_mask输入");
-            }
-            
-            if (inputInfo.containsKey("token_type_ids")) {
-                inputs.put("token_type_ids", tokenTypeIdsTensor);
-                LogManager.logD(TAG, "已添加token_type_ids输入");
-            }
+            // 准备输入数据 - 根据模型实际需要的输入动态提供，而不是硬编码
+            Map<String, OnnxTensor> inputs = pooledInputs.select(inputInfo.keySet());
             
             LogManager.logD(TAG, String.format("最终提供的输入: %s (模型需要: %s)", 
                 inputs.keySet().toString(), inputInfo.keySet().toString()));
@@ -1277,89 +1267,18 @@ public class EmbeddingModelHandler {
                 }
             }
             
-            // 执行模型推理
-            OrtSession.Result result = onnxSession.run(inputs);
-            
-            // 获取输出张量，通常是embedding
-            OnnxTensor outputTensor = (OnnxTensor) result.get(0);
-            
-            // 提取嵌入向量数据 - 处理不同维度的输出
-            Object outputValue = outputTensor.getValue();
+            // 执行模型推理，输出张量在提取向量后立即关闭
             float[] embedding;
-            
-            if (outputValue instanceof float[][][]) {
-                // 三维输出：[batch_size, sequence_length, hidden_size]
-                float[][][] embeddingData3D = (float[][][]) outputValue;
-                LogManager.logD(TAG, "检测到三维输出，形状: [" + embeddingData3D.length + ", " + 
-                    embeddingData3D[0].length + ", " + embeddingData3D[0][0].length + "]");
-                
-                // 智能选择向量提取策略
-                if (isQwenModel) {
-                    // Qwen模型：使用平均池化或最后一个有效token
-                    if (useMeanPooling) {
-                        // 计算所有token的平均值（排除padding）
-                        embedding = new float[embeddingData3D[0][0].length];
-                        int validTokens = Math.min(inputIds.length, embeddingData3D[0].length);
-                        for (int i = 0; i < validTokens; i++) {
-                            for (int j = 0; j < embedding.length; j++) {
-                                embedding[j] += embeddingData3D[0][i][j];
-                            }
-                        }
-                        for (int j = 0; j < embedding.length; j++) {
-                            embedding[j] /= validTokens;
-                        }
-                        LogManager.logD(TAG, "Qwen模型使用平均池化，有效token数: " + validTokens);
-                    } else {
-                        // 使用最后一个有效token
-                        int lastValidIndex = Math.min(inputIds.length - 1, embeddingData3D[0].length - 1);
-                        embedding = embeddingData3D[0][lastValidIndex];
-                        LogManager.logD(TAG, "Qwen模型使用最后一个有效token，索引: " + lastValidIndex);
-                    }
+            try (OrtSession.Result result = onnxSession.run(inputs)) {
+                // 获取输出张量，通常是embedding
+                OnnxTensor outputTensor = (OnnxTensor) result.get(0);
+                if (outputRank > 0) {
+                    // 浮点输出直接在输出缓冲区上池化，不复制为嵌套数组
+                    embedding = poolOutputRow(outputTensor.getFloatBuffer(), outputTensor.getInfo().getShape(), 0,
+                            inputIds.length, isQwenModel);
                 } else {
-                    // BERT类模型：使用[CLS] token（第一个token）
-                    embedding = embeddingData3D[0][0];
-                    LogManager.logD(TAG, "BERT类模型使用[CLS] token作为嵌入向量");
+                    embedding = extractEmbeddingFromValue(outputTensor.getValue(), inputIds.length, isQwenModel);
                 }
-                
-            } else if (outputValue instanceof float[][]) {
-                // 二维输出：[batch_size, hidden_size]
-                float[][] embeddingData2D = (float[][]) outputValue;
-                LogManager.logD(TAG, "检测到二维输出，形状: [" + embeddingData2D.length + ", " + 
-                    embeddingData2D[0].length + "]");
-                embedding = embeddingData2D[0]; // 获取第一个（也是唯一的）样本的向量
-                
-            } else if (outputValue instanceof byte[][][]) {
-                // 三维字节输出：[batch_size, sequence_length, hidden_size]
-                byte[][][] embeddingData3D = (byte[][][]) outputValue;
-                LogManager.logD(TAG, "检测到三维字节输出，形状: [" + embeddingData3D.length + ", " + 
-                    embeddingData3D[0].length + ", " + embeddingData3D[0][0].length + "]");
-                
-                // 转换字节数据为浮点数据
-                float[][] floatData = new float[embeddingData3D[0].length][];
-                for (int i = 0; i < embeddingData3D[0].length; i++) {
-                    floatData[i] = new float[embeddingData3D[0][i].length];
-                    for (int j = 0; j < embeddingData3D[0][i].length; j++) {
-                        floatData[i][j] = (float) embeddingData3D[0][i][j];
-                    }
-                }
-                
-                // 取第一个batch的第一个token（[CLS]）
-                embedding = floatData[0];
-                
-            } else if (outputValue instanceof byte[][]) {
-                // 二维字节输出：[batch_size, hidden_size]
-                byte[][] embeddingData2D = (byte[][]) outputValue;
-                LogManager.logD(TAG, "检测到二维字节输出，形状: [" + embeddingData2D.length + ", " + 
-                    embeddingData2D[0].length + "]");
-                
-                // 转换字节数据为浮点数据
-                embedding = new float[embeddingData2D[0].length];
-                for (int i = 0; i < embeddingData2D[0].length; i++) {
-                    embedding[i] = (float) embeddingData2D[0][i];
-                }
-                
-            } else {
-                throw new IllegalStateException("不支持的输出张量类型: " + outputValue.getClass().getName());
             }
             
             // 记录向量信息
@@ -1376,19 +1295,102 @@ public class EmbeddingModelHandler {
             LogManager.logD(TAG, "嵌入向量样例 (前5个值): " + 
                 Arrays.toString(Arrays.copyOfRange(embedding, 0, Math.min(5, embedding.length))));
             
-            // 创建一个副本，避免在关闭张量后访问其内存
-            float[] embeddingCopy = Arrays.copyOf(embedding, embedding.length);
-            
-            // 清空输入映射
-            inputs.clear();
-            
-            return embeddingCopy;
+            // 两种提取方式都返回新数组，不引用已关闭张量的内存
+            return embedding;
         } catch (Exception e) {
             LogManager.logE(TAG, "生成嵌入向量失败: " + e.getMessage(), e);
             throw e;
         }
     }
     
+    /**
+     * 从 getValue() 复制出的嵌套数组中提取嵌入向量
+     * 仅用于加载时无法确认为浮点二维/三维输出的模型（如字节输出）
+     * @param outputValue 输出张量的值
+     * @param tokenCount 有效 token 数
+     * @param isQwenModel 是否为 Qwen 模型
+     * @return 原始嵌入向量
+     */
+    private float[] extractEmbeddingFromValue(Object outputValue, int tokenCount, boolean isQwenModel) {
+        float[] embedding;
+    
+        if (outputValue instanceof float[][][]) {
+            // 三维输出：[batch_size, sequence_length, hidden_size]
+            float[][][] embeddingData3D = (float[][][]) outputValue;
+            LogManager.logD(TAG, "检测到三维输出，形状: [" + embeddingData3D.length + ", " + 
+                embeddingData3D[0].length + ", " + embeddingData3D[0][0].length + "]");
+        
+            // 智能选择向量提取策略
+            if (isQwenModel) {
+                // Qwen模型：使用平均池化或最后一个有效token
+                if (useMeanPooling) {
+                    // 计算所有token的平均值（排除padding）
+                    embedding = new float[embeddingData3D[0][0].length];
+                    int validTokens = Math.min(tokenCount, embeddingData3D[0].length);
+                    for (int i = 0; i < validTokens; i++) {
+                        for (int j = 0; j < embedding.length; j++) {
+                            embedding[j] += embeddingData3D[0][i][j];
+                        }
+                    }
+                    for (int j = 0; j < embedding.length; j++) {
+                        embedding[j] /= validTokens;
+                    }
+                    LogManager.logD(TAG, "Qwen模型使用平均池化，有效token数: " + validTokens);
+                } else {
+                    // 使用最后一个有效token
+                    int lastValidIndex = Math.min(tokenCount - 1, embeddingData3D[0].length - 1);
+                    embedding = embeddingData3D[0][lastValidIndex];
+                    LogManager.logD(TAG, "Qwen模型使用最后一个有效token，索引: " + lastValidIndex);
+                }
+            } else {
+                // BERT类模型：使用[CLS] token（第一个token）
+                embedding = embeddingData3D[0][0];
+                LogManager.logD(TAG, "BERT类模型使用[CLS] token作为嵌入向量");
+            }
+        
+        } else if (outputValue instanceof float[][]) {
+            // 二维输出：[batch_size, hidden_size]
+            float[][] embeddingData2D = (float[][]) outputValue;
+            LogManager.logD(TAG, "检测到二维输出，形状: [" + embeddingData2D.length + ", " + 
+                embeddingData2D[0].length + "]");
+            embedding = embeddingData2D[0]; // 获取第一个（也是唯一的）样本的向量
+        
+        } else if (outputValue instanceof byte[][][]) {
+            // 三维字节输出：[batch_size, sequence_length, hidden_size]
+            byte[][][] embeddingData3D = (byte[][][]) outputValue;
+            LogManager.logD(TAG, "检测到三维字节输出，形状: [" + embeddingData3D.length + ", " + 
+                embeddingData3D[0].length + ", " + embeddingData3D[0][0].length + "]");
+        
+            // 转换字节数据为浮点数据
+            float[][] floatData = new float[embeddingData3D[0].length][];
+            for (int i = 0; i < embeddingData3D[0].length; i++) {
+                floatData[i] = new float[embeddingData3D[0][i].length];
+                for (int j = 0; j < embeddingData3D[0][i].length; j++) {
+                    floatData[i][j] = (float) embeddingData3D[0][i][j];
+                }
+            }
+        
+            // 取第一个batch的第一个token（[CLS]）
+            embedding = floatData[0];
+        
+        } else if (outputValue instanceof byte[][]) {
+            // 二维字节输出：[batch_size, hidden_size]
+            byte[][] embeddingData2D = (byte[][]) outputValue;
+            LogManager.logD(TAG, "检测到二维字节输出，形状: [" + embeddingData2D.length + ", " + 
+                embeddingData2D[0].length + "]");
+        
+            // 转换字节数据为浮点数据
+            embedding = new float[embeddingData2D[0].length];
+            for (int i = 0; i < embeddingData2D[0].length; i++) {
+                embedding[i] = (float) embeddingData2D[0][i];
+            }
+        
+        } else {
+            throw new IllegalStateException("不支持的输出张量类型: " + outputValue.getClass().getName());
+        }
+        return embedding;
+    }
+    
     /**
      * 生成文本的嵌入向量
      * @param text 输入文本
@@ -1441,67 +1443,411 @@ public class EmbeddingModelHandler {
             long endTime = System.currentTimeMillis();
             LogManager.logD(TAG, "生成嵌入向量耗时: " + (endTime - startTime) + "ms");
             
-            // 智能归一化策略：根据模型类型和配置决定是否归一化
-            boolean shouldNormalize = true; // 默认启用
-            if (context != null) {
-                shouldNormalize = ConfigManager.getBoolean(context, 
-                    ConfigManager.KEY_LLAMACPP_NORMALIZE_EMBEDDINGS, 
-                    ConfigManager.DEFAULT_LLAMACPP_NORMALIZE_EMBEDDINGS);
+            return postProcessEmbedding(embedding);
+        } catch (Exception e) {
+            LogManager.logE(TAG, "生成嵌入向量失败: " + e.getMessage(), e);
+            throw e;
+        }
+    }
+    
+    /**
+     * 批量生成文本的嵌入向量
+     * 多个文本补齐到批内最长序列后一次推理（[B, maxLen] 的 input_ids/attention_mask/token_type_ids），
+     * 池化时按 attention_mask 排除补齐位置，结果与逐条生成一致；批大小随序列长度和可用内存调整。
+     * 先分词再按 token 数排序组批，长度相近的文本在同一批内，补齐浪费小；结果按输入顺序返回。
+     * 非 ONNX 模型或不支持批量输入的模型（导出时固定 batch=1）逐条生成
+     * @param texts 输入文本列表
+     * @return 与输入一一对应的嵌入向量，空文本对应空向量，生成失败的文本对应 null
+     * @throws Exception 如果用户停止或ONNX会话不可用
+     */
+    public List<float[]> generateEmbeddings(List<String> texts) throws Exception {
+        return generateEmbeddings(texts, null);
+    }
+    
+    /**
+     * 批量生成文本的嵌入向量，并把本次调用的统计累加到 stats
+     * @param texts 输入文本列表
+     * @param stats 调用方持有的统计，为 null 时不统计
+     * @return 与输入一一对应的嵌入向量，空文本对应空向量，生成失败的文本对应 null
+     * @throws Exception 如果用户停止或ONNX会话不可用
+     */
+    public List<float[]> generateEmbeddings(List<String> texts, BatchStats stats) throws Exception {
+        List<float[]> embeddings = new ArrayList<>(Collections.nCopies(texts.size(), (float[]) null));
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            if (text == null || text.isEmpty()) {
+                embeddings.set(i, new float[0]);
+            } else {
+                indexes.add(i);
+            }
+        }
+        if (indexes.isEmpty()) {
+            return embeddings;
+        }
+        // 批量池化只支持浮点二维/三维输出，其他输出逐条生成
+        if (modelType != ModelType.ONNX || !batchInferenceSupported || outputRank == 0) {
+            generateEachEmbedding(texts, indexes, embeddings);
+            return embeddings;
+        }
+        if (!checkAndRecoverOnnxSession()) {
+            LogManager.logE(TAG, "ONNX会话不可用，无法生成嵌入向量");
+            throw new RuntimeException("ONNX会话不可用");
+        }
+        
+        long startTime = System.currentTimeMillis();
+        long[][] tokenIds = new long[texts.size()][];
+        List<Integer> tokenized = new ArrayList<>();
+        for (int index : indexes) {
+            try {
+                long[] inputIds = tokenizeText(texts.get(index))[0];
+                if (inputIds.length > 0) {
+                    tokenIds[index] = truncateInputIds(inputIds);
+                    tokenized.add(index);
+                }
+            } catch (IOException e) {
+                LogManager.logE(TAG, "分词失败，文本序号 " + index + ": " + e.getMessage(), e);
+            }
+        }
+        
+        // Stable sort by token count, batches are formed over the sorted order
+        Collections.sort(tokenized, (a, b) -> Integer.compare(tokenIds[a].length, tokenIds[b].length));
+        
+        int batchCount = 0;
+        long tokens = 0;
+        long paddedTokens = 0;
+        int position = 0;
+        while (position < tokenized.size()) {
+            if (GlobalStopManager.isGlobalStopRequested()) {
+                LogManager.logD(TAG, "检测到全局停止标志，中断嵌入向量生成");
+                throw new InterruptedException("嵌入向量生成被用户停止");
             }
             
-            // 根据模型类型调整归一化策略
-            boolean isQwenModel = modelName != null && modelName.toLowerCase().contains("qwen");
-            boolean isBertLikeModel = modelName != null && (modelName.toLowerCase().contains("bge") || 
-                                                           modelName.toLowerCase().contains("bert") ||
-                                                           modelName.toLowerCase().contains("sentence"));
+            // 其他批次或其他线程已确认模型不支持批量输入，剩余文本逐条生成
+            if (!batchInferenceSupported) {
+                List<Integer> remaining = tokenized.subList(position, tokenized.size());
+                for (int index : remaining) {
+                    tokens += tokenIds[index].length;
+                    paddedTokens += tokenIds[index].length;
+                }
+                generateEachEmbedding(texts, remaining, embeddings);
+                break;
+            }
             
-            if (isQwenModel) {
-                // Qwen模型：强制启用归一化以确保向量质量
-                shouldNormalize = true;
-                LogManager.logD(TAG, "Qwen模型强制启用向量归一化以确保一致性");
-            } else if (isBertLikeModel) {
-                // BERT类模型：遵循配置设置
-                LogManager.logD(TAG, "BERT类模型使用配置的归一化设置: " + shouldNormalize);
-            } else {
-                // 未知模型类型：保守策略，启用归一化
-                shouldNormalize = true;
-                LogManager.logD(TAG, "未知模型类型，启用归一化作为保守策略");
+            // 按长度顺序取文本，直到补齐后的批次超出批大小
+            List<Integer> batch = new ArrayList<>();
+            int maxLength = 0;
+            while (position < tokenized.size()) {
+                int length = Math.max(maxLength, tokenIds[tokenized.get(position)].length);
+                if (!batch.isEmpty() && batch.size() + 1 > embeddingBatchSize(length)) {
+                    break;
+                }
+                batch.add(tokenized.get(position));
+                maxLength = length;
+                position++;
             }
             
-            // 执行归一化
-            if (shouldNormalize) {
-                embedding = normalizeVector(embedding);
-                LogManager.logD(TAG, "已完成向量归一化");
-            } else {
-                LogManager.logD(TAG, "已禁用向量归一化，保持原始向量");
+            int batchTokens = 0;
+            for (int index : batch) {
+                batchTokens += tokenIds[index].length;
             }
+            tokens += batchTokens;
             
-            // 打印前5个和后5个向量值，帮助调试
-            if (embedding != null && embedding.length > 10) {
-                StringBuilder sb = new StringBuilder("嵌入向量样例 (前5个值): ");
-                for (int i = 0; i < 5; i++) {
-                    sb.append(embedding[i]).append(", ");
-                }
-                sb.append(" ... (后5个值): ");
-                for (int i = embedding.length - 5; i < embedding.length; i++) {
-                    sb.append(embedding[i]).append(", ");
+            float[][] pooled;
+            try {
+                pooled = runEmbeddingBatch(tokenIds, batch, maxLength);
+                paddedTokens += (long) batch.size() * maxLength;
+            } catch (Exception e) {
+                if (batch.size() > 1 && isInputShapeError(e)) {
+                    // 模型的 batch 维度固定为 1，之后不再尝试批量推理
+                    batchInferenceSupported = false;
+                    LogManager.logW(TAG, "模型不接受批量输入，改为逐条生成: " + e.getMessage());
+                } else {
+                    // 内存不足等临时错误只影响本批
+                    LogManager.logW(TAG, "批量推理失败，本批改为逐条生成: " + e.getMessage());
                 }
-                LogManager.logD(TAG, sb.toString());
-                
-                // 计算向量范数，帮助确认归一化是否有效
-                double norm = 0.0;
-                for (float v : embedding) {
-                    norm += v * v;
+                generateEachEmbedding(texts, batch, embeddings);
+                paddedTokens += batchTokens;
+                continue;
+            }
+            for (int row = 0; row < batch.size(); row++) {
+                embeddings.set(batch.get(row), postProcessEmbedding(pooled[row]));
+            }
+            batchCount++;
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (stats != null) {
+            stats.texts += tokenized.size();
+            stats.tokens += tokens;
+            stats.paddedTokens += paddedTokens;
+            stats.elapsedMillis += elapsed;
+        }
+        LogManager.logD(TAG, "批量生成 " + tokenized.size() + " 个嵌入向量，共 " + batchCount + " 批，有效token " + tokens +
+                "，补齐后 " + paddedTokens + "，耗时: " + elapsed + "ms");
+        return embeddings;
+    }
+    
+    /**
+     * 推理错误是否由输入形状引起（导出时固定了 batch 维度）
+     * ONNX Runtime 以 INVALID_ARGUMENT 报告 "Got invalid dimensions for input"
+     */
+    private static boolean isInputShapeError(Exception e) {
+        if (e instanceof OrtException
+                && ((OrtException) e).getCode() == OrtException.OrtErrorCode.ORT_INVALID_ARGUMENT) {
+            return true;
+        }
+        String message = e.getMessage();
+        if (message == null) {
+            return false;
+        }
+        message = message.toLowerCase(Locale.ROOT);
+        return message.contains("dimension") || message.contains("shape");
+    }
+    
+    /**
+     * 逐条生成嵌入向量，单条失败不影响其他文本
+     * @param texts 输入文本列表
+     * @param indexes 需要生成的文本序号
+     * @param embeddings 结果列表，失败的序号保持 null
+     * @throws InterruptedException 如果用户停止
+     */
+    private void generateEachEmbedding(List<String> texts, List<Integer> indexes, List<float[]> embeddings)
+            throws InterruptedException {
+        for (int index : indexes) {
+            try {
+                embeddings.set(index, generateEmbedding(texts.get(index)));
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                LogManager.logE(TAG, "生成嵌入向量失败，文本序号 " + index + ": " + e.getMessage(), e);
+            }
+        }
+    }
+    
+    /**
+     * 批大小：每批补齐后的 token 总数不超过预算，输出张量（Java 副本和 ONNX Runtime 各一份）不超过可用内存的 1/4
+     * @param paddedLength 批内最长序列长度
+     * @return 批大小，至少为 1
+     */
+    private int embeddingBatchSize(int paddedLength) {
+        int byTokens = EMBEDDING_BATCH_TOKEN_BUDGET / Math.max(1, paddedLength);
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        int hiddenSize = embeddingSize > 0 ? embeddingSize : DEFAULT_HIDDEN_SIZE_ESTIMATE;
+        long bytesPerRow = (long) paddedLength * hiddenSize * 4 * 2;
+        long byMemory = available / 4 / Math.max(1, bytesPerRow);
+        return (int) Math.max(1, Math.min(MAX_EMBEDDING_BATCH_SIZE, Math.min(byTokens, byMemory)));
+    }
+    
+    /**
+     * 对一批文本执行一次推理并池化
+     * 序列右侧补齐：补齐位置的 input_ids 为 0、attention_mask 为 0；输入张量来自线程内的复用池
+     * @param tokenIds 各文本的 token ID（按文本序号）
+     * @param batch 本批文本序号
+     * @param maxLength 批内最长序列长度
+     * @return 每行的原始嵌入向量
+     * @throws OrtException 如果推理失败
+     */
+    private float[][] runEmbeddingBatch(long[][] tokenIds, List<Integer> batch, int maxLength) throws OrtException {
+        int batchSize = batch.size();
+        OnnxInputBuffers.Inputs pooledInputs = OnnxInputBuffers.acquire(ortEnvironment, batchSize, maxLength);
+        for (int row = 0; row < batchSize; row++) {
+            pooledInputs.putRow(row, tokenIds[batch.get(row)]);
+        }
+        LogManager.logD(TAG, "批量输入张量形状: [" + batchSize + ", " + maxLength + "]");
+        
+        // 根据模型实际需要的输入动态提供
+        Map<String, OnnxTensor> inputs = pooledInputs.select(onnxSession.getInputInfo().keySet());
+        try (OrtSession.Result result = onnxSession.run(inputs)) {
+            return poolBatchOutput((OnnxTensor) result.get(0), tokenIds, batch);
+        }
+    }
+    
+    /**
+     * 从批量输出中按行提取嵌入向量，提取策略与单条生成相同
+     * 三维输出：Qwen 模型对有效 token 平均池化或取最后一个有效 token，BERT 类模型取 [CLS]；二维输出直接取对应行
+     */
+    private float[][] poolBatchOutput(OnnxTensor outputTensor, long[][] tokenIds, List<Integer> batch) throws OrtException {
+        if (outputRank == 0) {
+            throw new IllegalStateException("批量推理只支持浮点二维/三维输出");
+        }
+        boolean isQwenModel = modelName != null && modelName.toLowerCase().contains("qwen");
+        // 整批输出只复制一次，各行按偏移池化
+        FloatBuffer output = outputTensor.getFloatBuffer();
+        long[] shape = outputTensor.getInfo().getShape();
+        float[][] pooled = new float[batch.size()][];
+        for (int row = 0; row < batch.size(); row++) {
+            pooled[row] = poolOutputRow(output, shape, row, tokenIds[batch.get(row)].length, isQwenModel);
+        }
+        return pooled;
+    }
+    
+    /**
+     * 在输出缓冲区上按行池化，不创建 [batch][seq][hidden] 嵌套数组
+     * 三维输出第 row 行第 t 个 token 位于 (row * seq + t) * hidden；序列右侧补齐，
+     * 平均池化只累加前 tokenCount 个位置（即 attention_mask 为 1 的位置）
+     * @param output 输出张量数据，行优先
+     * @param shape 输出张量形状，[batch, hidden] 或 [batch, seq, hidden]
+     * @param row 行号
+     * @param tokenCount 该行的有效 token 数
+     * @param isQwenModel 是否为 Qwen 模型
+     * @return 原始嵌入向量
+     */
+    private float[] poolOutputRow(FloatBuffer output, long[] shape, int row, int tokenCount, boolean isQwenModel) {
+        if (shape.length == 2) {
+            float[] embedding = new float[(int) shape[1]];
+            int offset = row * embedding.length;
+            for (int j = 0; j < embedding.length; j++) {
+                embedding[j] = output.get(offset + j);
+            }
+            return embedding;
+        }
+        int seqLength = (int) shape[1];
+        float[] embedding = new float[(int) shape[2]];
+        int hiddenSize = embedding.length;
+        int rowOffset = row * seqLength * hiddenSize;
+        int validTokens = Math.max(1, Math.min(tokenCount, seqLength));
+        if (isQwenModel && useMeanPooling) {
+            for (int i = 0; i < validTokens; i++) {
+                int offset = rowOffset + i * hiddenSize;
+                for (int j = 0; j < hiddenSize; j++) {
+                    embedding[j] += output.get(offset + j);
                 }
-                norm = Math.sqrt(norm);
-                LogManager.logD(TAG, "嵌入向量L2范数: " + norm + " (应接近1.0)");
             }
+            for (int j = 0; j < hiddenSize; j++) {
+                embedding[j] /= validTokens;
+            }
+        } else {
+            // Qwen 取最后一个有效 token，BERT 类模型取 [CLS]
+            int offset = rowOffset + (isQwenModel ? validTokens - 1 : 0) * hiddenSize;
+            for (int j = 0; j < hiddenSize; j++) {
+                embedding[j] = output.get(offset + j);
+            }
+        }
+        return embedding;
+    }
+    
+    /**
+     * 加载模型后检查第一个输出的类型和维度
+     * 浮点二维/三维输出在推理时直接按形状池化，其他输出回退到 getValue() 复制为数组
+     */
+    private void inspectOutputLayout() {
+        outputRank = 0;
+        try {
+            NodeInfo outputInfo = onnxSession.getOutputInfo().values().iterator().next();
+            if (outputInfo.getInfo() instanceof TensorInfo) {
+                TensorInfo tensorInfo = (TensorInfo) outputInfo.getInfo();
+                int rank = tensorInfo.getShape().length;
+                if (tensorInfo.type == OnnxJavaType.FLOAT && (rank == 2 || rank == 3)) {
+                    outputRank = rank;
+                }
+                LogManager.logD(TAG, "模型输出 " + outputInfo.getName() + ": " + tensorInfo.type + " " +
+                        Arrays.toString(tensorInfo.getShape()) + (outputRank > 0 ? "，直接池化" : "，使用数组提取"));
+            }
+        } catch (OrtException | RuntimeException e) {
+            LogManager.logW(TAG, "无法读取模型输出信息，使用数组提取: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 截断超过最大序列长度的输入，最后一个位置保留 [SEP]
+     */
+    private long[] truncateInputIds(long[] inputIds) {
+        if (inputIds.length <= maxSequenceLength) {
+            return inputIds;
+        }
+        debugLog("输入序列长度超过最大限制，将被截断: " + inputIds.length + " -> " + maxSequenceLength);
+        long[] truncatedIds = new long[maxSequenceLength];
+        System.arraycopy(inputIds, 0, truncatedIds, 0, maxSequenceLength - 1);
+        truncatedIds[maxSequenceLength - 1] = 2; // [SEP] token
+        return truncatedIds;
+    }
+    
+    /**
+     * 按模型类型和配置对原始向量做归一化
+     * @param embedding 模型输出的原始向量
+     * @return 处理后的向量
+     */
+    private float[] postProcessEmbedding(float[] embedding) {
+        // 智能归一化策略：根据模型类型和配置决定是否归一化
+        boolean shouldNormalize = true; // 默认启用
+        if (context != null) {
+            shouldNormalize = ConfigManager.getBoolean(context, 
+                ConfigManager.KEY_LLAMACPP_NORMALIZE_EMBEDDINGS, 
+                ConfigManager.DEFAULT_LLAMACPP_NORMALIZE_EMBEDDINGS);
+        }
+        
+        // 根据模型类型调整归一化策略
+        boolean isQwenModel = modelName != null && modelName.toLowerCase().contains("qwen");
+        boolean isBertLikeModel = modelName != null && (modelName.toLowerCase().contains("bge") || 
+                                                       modelName.toLowerCase().contains("bert") ||
+                                                       modelName.toLowerCase().contains("sentence"));
+        
+        if (isQwenModel) {
+            // Qwen模型：强制启用归一化以确保向量质量
+            shouldNormalize = true;
+            LogManager.logD(TAG, "Qwen模型强制启用向量归一化以确保一致性");
+        } else if (isBertLikeModel) {
+            // BERT类模型：遵循配置设置
+            LogManager.logD(TAG, "BERT类模型使用配置的归一化设置: " + shouldNormalize);
+        } else {
+            // 未知模型类型：保守策略，启用归一化
+            shouldNormalize = true;
+            LogManager.logD(TAG, "未知模型类型，启用归一化作为保守策略");
+        }
+        
+        // 执行归一化
+        if (shouldNormalize) {
+            embedding = normalizeVector(embedding);
+            LogManager.logD(TAG, "已完成向量归一化");
+        } else {
+            LogManager.logD(TAG, "已禁用向量归一化，保持原始向量");
+        }
+        
+        // 打印前5个和后5个向量值，帮助调试
+        if (embedding != null && embedding.length > 10) {
+            StringBuilder sb = new StringBuilder("嵌入向量样例 (前5个值): ");
+            for (int i = 0; i < 5; i++) {
+                sb.append(embedding[i]).append(", ");
+            }
+            sb.append(" ... (后5个值): ");
+            for (int i = embedding.length - 5; i < embedding.length; i++) {
+                sb.append(embedding[i]).append(", ");
+            }
+            LogManager.logD(TAG, sb.toString());
             
-            return embedding;
-        } catch (Exception e) {
-            LogManager.logE(TAG, "生成嵌入向量失败: " + e.getMessage(), e);
-            throw e;
+            // 计算向量范数，帮助确认归一化是否有效
+            double norm = 0.0;
+            for (float v : embedding) {
+                norm += v * v;
+            }
+            norm = Math.sqrt(norm);
+            LogManager.logD(TAG, "嵌入向量L2范数: " + norm + " (应接近1.0)");
         }
+        
+        return embedding;
+    }
+    
+    /**
+     * 生成查询文本的嵌入向量，优先使用查询向量缓存
+     * 只用于用户查询；构建知识库时的文本块不经过缓存，避免挤掉查询条目。
+     * 复用的输入张量留在查询线程上供下一次查询使用，由线程的所有者在线程退出前调用 OnnxInputBuffers.release()
+     * @param query 查询文本
+     * @return 嵌入向量（浮点数数组）
+     * @throws Exception 如果生成嵌入失败
+     */
+    public float[] generateQueryEmbedding(String query) throws Exception {
+        QueryEmbeddingCache cache = QueryEmbeddingCache.getInstance(context);
+        // 按模型标识而不是路径查找，同一路径上替换的模型文件或修改的归一化设置不会命中旧向量
+        String modelIdentity = getModelIdentity();
+        float[] cached = cache.get(modelIdentity, query);
+        if (cached != null) {
+            LogManager.logD(TAG, "查询向量缓存命中，跳过模型推理");
+            return cached;
+        }
+        float[] embedding = generateEmbedding(query);
+        cache.put(modelIdentity, query, embedding);
+        return embedding;
     }
     
     /**
@@ -1974,6 +2320,20 @@ public class EmbeddingModelHandler {
         return modelPath;
     }
     
+    /**
+     * 获取模型标识，用作文本块向量磁盘缓存的键
+     * 包含模型文件名、大小、修改时间以及影响输出向量的截断长度和归一化设置，任一变化都得到新的标识
+     * @return 模型标识
+     */
+    public String getModelIdentity() {
+        File modelFile = new File(modelPath != null ? modelPath : "");
+        boolean normalize = context == null || ConfigManager.getBoolean(context,
+                ConfigManager.KEY_LLAMACPP_NORMALIZE_EMBEDDINGS,
+                ConfigManager.DEFAULT_LLAMACPP_NORMALIZE_EMBEDDINGS);
+        return modelFile.getName() + '|' + modelFile.length() + '|' + modelFile.lastModified() + '|' +
+                modelName + '|' + maxSequenceLength + '|' + normalize;
+    }
+    
     /**
      * 检查ONNX会话状态并尝试恢复
      * @return 会话是否可用
@@ -0,0 +1,191 @@
+package com.example.starlocalrag;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Federated vector search across several knowledge bases
+ * 查询向量只计算一次，并行检索每个知识库的 topK，再按相似度合并为全局 topK；
+ * 只有嵌入维度和嵌入模型与主知识库一致的知识库参与检索（向量处于同一空间，相似度才可比较），
+ * 结果的 knowledgeBase 字段记录来源知识库名称；混合检索时各知识库的结果按名次融合，
+ * 而不是按相似度合并（全文检索命中的行相似度可能较低）
+ */
+public final class FederatedSearch {
+    private static final String TAG = "StarLocalRAG_FederatedSearch";
+
+    // 每个知识库一个扫描任务，任务内部再使用 ParallelScanner 的共享线程池，两者不能共用线程池，否则会互相等待
+    private static volatile ExecutorService executor;
+
+    private FederatedSearch() {
+    }
+
+    /**
+     * Search the primary knowledge base and every compatible additional one
+     * @param primary Handle of the primary knowledge base, its model defines the query vector space
+     * @param primaryName Name of the primary knowledge base
+     * @param additionalDirs Directories of the additional knowledge bases, the primary one is skipped if listed
+     * @param queryVector Query vector computed with the primary knowledge base's embedding model
+     * @param topK Number of results
+     * @return Merged results sorted by similarity in descending order, each carrying its knowledge base name
+     */
+    public static List<SQLiteVectorDatabaseHandler.SearchResult> search(SQLiteVectorDatabaseHandler primary,
+                                                                        String primaryName,
+                                                                        List<File> additionalDirs,
+                                                                        float[] queryVector, int topK) {
+        return search(primary, primaryName, additionalDirs, null, queryVector, topK);
+    }
+
+    /**
+     * Search the primary knowledge base and every compatible additional one, optionally with hybrid search
+     * @param primary Handle of the primary knowledge base, its model defines the query vector space
+     * @param primaryName Name of the primary knowledge base
+     * @param additionalDirs Directories of the additional knowledge bases, the primary one is skipped if listed
+     * @param queryText Query text for hybrid search, null for vector search only
+     * @param queryVector Query vector computed with the primary knowledge base's embedding model
+     * @param topK Number of results
+     * @return Merged results, each carrying its knowledge base name
+     */
+    public static List<SQLiteVectorDatabaseHandler.SearchResult> search(SQLiteVectorDatabaseHandler primary,
+                                                                        String primaryName,
+                                                                        List<File> additionalDirs,
+                                                                        String queryText,
+                                                                        float[] queryVector, int topK) {
+        VectorDatabaseRegistry registry = VectorDatabaseRegistry.getInstance();
+        List<SQLiteVectorDatabaseHandler> handlers = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        handlers.add(primary);
+        names.add(primaryName);
+
+        // 额外知识库的句柄由本方法获取和释放
+        List<SQLiteVectorDatabaseHandler> acquired = new ArrayList<>();
+        try {
+            File primaryDir = primary.getDatabaseDir();
+            for (File dir : additionalDirs) {
+                if (dir == null || dir.equals(primaryDir)) {
+                    continue;
+                }
+                SQLiteVectorDatabaseHandler handler = registry.acquire(dir);
+                if (handler == null) {
+                    LogManager.logW(TAG, "Skipping knowledge base that cannot be loaded: " + dir.getName());
+                    continue;
+                }
+                acquired.add(handler);
+                if (!isCompatible(primary, handler)) {
+                    LogManager.logW(TAG, "Skipping knowledge base with a different embedding model or dimension: " + dir.getName());
+                    continue;
+                }
+                handlers.add(handler);
+                names.add(dir.getName());
+            }
+
+            long startTime = System.currentTimeMillis();
+            List<SQLiteVectorDatabaseHandler.SearchResult> merged = searchAll(handlers, names, queryText, queryVector, topK);
+            LogManager.logD(TAG, "Federated search over " + handlers.size() + " knowledge bases returned " +
+                    merged.size() + " results, took " + (System.currentTimeMillis() - startTime) + "ms");
+            return merged;
+        } finally {
+            for (SQLiteVectorDatabaseHandler handler : acquired) {
+                registry.release(handler);
+            }
+        }
+    }
+
+    /**
+     * Whether two knowledge bases store vectors from the same embedding model
+     * 维度必须一致；两边都记录了模型目录时模型目录也必须一致
+     */
+    public static boolean isCompatible(SQLiteVectorDatabaseHandler primary, SQLiteVectorDatabaseHandler other) {
+        SQLiteVectorDatabaseHandler.DatabaseMetadata a = primary.getMetadata();
+        SQLiteVectorDatabaseHandler.DatabaseMetadata b = other.getMetadata();
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a.getEmbeddingDimension() <= 0 || a.getEmbeddingDimension() != b.getEmbeddingDimension()) {
+            return false;
+        }
+        String modelA = a.getModeldir();
+        String modelB = b.getModeldir();
+        if (modelA == null || modelA.isEmpty() || modelB == null || modelB.isEmpty()) {
+            return true;
+        }
+        return new File(modelA).getName().equals(new File(modelB).getName());
+    }
+
+    private static List<SQLiteVectorDatabaseHandler.SearchResult> searchAll(List<SQLiteVectorDatabaseHandler> handlers,
+                                                                            List<String> names, String queryText,
+                                                                            float[] queryVector, int topK) {
+        // 调用线程检索主知识库，其余知识库并行检索
+        List<Future<List<SQLiteVectorDatabaseHandler.SearchResult>>> futures = new ArrayList<>();
+        for (int i = 1; i < handlers.size(); i++) {
+            SQLiteVectorDatabaseHandler handler = handlers.get(i);
+            futures.add(getExecutor().submit(() -> searchOne(handler, queryText, queryVector, topK)));
+        }
+
+        List<SQLiteVectorDatabaseHandler.SearchResult> merged = new ArrayList<>();
+        Map<SQLiteVectorDatabaseHandler.SearchResult, Integer> ranks = new IdentityHashMap<>();
+        addAll(merged, ranks, searchOne(handlers.get(0), queryText, queryVector, topK), names.get(0));
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                addAll(merged, ranks, futures.get(i).get(), names.get(i + 1));
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Search failed in knowledge base " + names.get(i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+
+        if (queryText != null) {
+            // 混合检索的结果按融合名次排列，各知识库的同一名次交替进入全局 topK（稳定排序保持主知识库在前）
+            Collections.sort(merged, (x, y) -> Integer.compare(ranks.get(x), ranks.get(y)));
+        } else {
+            // 各知识库结果已按相似度降序，合并后取全局 topK
+            Collections.sort(merged, (x, y) -> Float.compare(y.similarity, x.similarity));
+        }
+        return merged.size() > topK ? new ArrayList<>(merged.subList(0, topK)) : merged;
+    }
+
+    private static List<SQLiteVectorDatabaseHandler.SearchResult> searchOne(SQLiteVectorDatabaseHandler handler,
+                                                                            String queryText,
+                                                                            float[] queryVector, int topK) {
+        return queryText != null ? handler.searchHybrid(queryText, queryVector, topK) : handler.searchSimilar(queryVector, topK);
+    }
+
+    private static void addAll(List<SQLiteVectorDatabaseHandler.SearchResult> merged,
+                               Map<SQLiteVectorDatabaseHandler.SearchResult, Integer> ranks,
+                               List<SQLiteVectorDatabaseHandler.SearchResult> results, String knowledgeBase) {
+        if (results == null) {
+            return;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            SQLiteVectorDatabaseHandler.SearchResult result = results.get(i);
+            result.knowledgeBase = knowledgeBase;
+            ranks.put(result, i);
+            merged.add(result);
+        }
+    }
+
+    private static ExecutorService getExecutor() {
+        ExecutorService current = executor;
+        if (current == null) {
+            synchronized (FederatedSearch.class) {
+                current = executor;
+                if (current == null) {
+                    AtomicInteger threadIndex = new AtomicInteger();
+                    current = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "StarLocalRAG-Federated-" + threadIndex.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.starlocalrag;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.LongPredicate;
+
+/**
+ * Flat memory-mapped vector file
+ * 向量以固定步长连续存放在 vectors.f32（每行 dimension 个 little-endian float32），行 ID 按相同顺序
+ * 存放在 vectors.ids（little-endian int64）；查询时直接扫描内存映射的 FloatBuffer，
+ * 不经过 CursorWindow、不复制 BLOB、不占用Java堆，操作系统页缓存在多次查询之间共享
+ *
+ * Crash safety: a row is written to vectors.f32 before its ID is written to vectors.ids, so a row
+ * only counts once both are complete; on open both files are truncated to the complete rows.
+ * Appends reach the disk when force() is called (the database calls it before saving its metadata),
+ * rows appended after the last force() may be lost and are appended again from the database on open.
+ */
+public class FlatVectorFile {
+    private static final String TAG = "StarLocalRAG_FlatVectors";
+
+    public static final String VECTORS_FILENAME = "vectors.f32";
+    public static final String IDS_FILENAME = "vectors.ids";
+
+    // 并行扫描的分块行数，每块之间检查全局停止标志
+    private static final int BLOCK_ROWS = 4096;
+
+    // 单个映射段的最大字节数，段大小取 BLOCK_ROWS 的整数倍，扫描块不会跨段
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private final int dimension;
+    private final int segmentRows;
+    private final RandomAccessFile vectorsAccess;
+    private final RandomAccessFile idsAccess;
+
+    // 以下字段只在持锁时修改
+    private int size;
+    private long maxRowId;
+
+    // 查询使用的映射快照，追加后在下次查询时重新映射
+    private volatile Mapping mapping;
+
+    /**
+     * Mapped view of the first rows of both files
+     */
+    private static final class Mapping {
+        final FloatBuffer[] segments;
+        final LongBuffer ids;
+        final int rows;
+
+        Mapping(FloatBuffer[] segments, LongBuffer ids, int rows) {
+            this.segments = segments;
+            this.ids = ids;
+            this.rows = rows;
+        }
+    }
+
+    private FlatVectorFile(int dimension, RandomAccessFile vectorsAccess, RandomAccessFile idsAccess,
+                           int size, long maxRowId) {
+        this.dimension = dimension;
+        this.vectorsAccess = vectorsAccess;
+        this.idsAccess = idsAccess;
+        this.size = size;
+        this.maxRowId = maxRowId;
+        long rowsPerSegment = SEGMENT_BYTES / ((long) dimension * 4L);
+        this.segmentRows = (int) Math.max(BLOCK_ROWS, rowsPerSegment / BLOCK_ROWS * BLOCK_ROWS);
+    }
+
+    /**
+     * Open the flat vector files of a knowledge base
+     * 两个文件长度不一致（写入中途崩溃）时截断到完整的行数
+     * @param directory Knowledge base directory
+     * @param dimension Vector dimension
+     * @return Opened file, or null if missing or unreadable
+     */
+    public static FlatVectorFile open(File directory, int dimension) {
+        File vectorsFile = new File(directory, VECTORS_FILENAME);
+        File idsFile = new File(directory, IDS_FILENAME);
+        if (dimension <= 0 || !vectorsFile.exists() || !idsFile.exists()) {
+            return null;
+        }
+        RandomAccessFile vectorsAccess = null;
+        RandomAccessFile idsAccess = null;
+        try {
+            vectorsAccess = new RandomAccessFile(vectorsFile, "rw");
+            idsAccess = new RandomAccessFile(idsFile, "rw");
+            long stride = (long) dimension * 4L;
+            long rows = Math.min(vectorsAccess.length() / stride, idsAccess.length() / 8L);
+            if (rows > Integer.MAX_VALUE) {
+                throw new IOException("Too many rows: " + rows);
+            }
+            if (vectorsAccess.length() != rows * stride || idsAccess.length() != rows * 8L) {
+                LogManager.logW(TAG, "Flat vector files have an incomplete tail, truncating to " + rows + " rows");
+                vectorsAccess.setLength(rows * stride);
+                idsAccess.setLength(rows * 8L);
+            }
+            long lastRowId = 0;
+            if (rows > 0) {
+                idsAccess.seek((rows - 1) * 8L);
+                lastRowId = Long.reverseBytes(idsAccess.readLong());
+            }
+            LogManager.logD(TAG, "Flat vector file opened: " + vectorsFile.getAbsolutePath() + ", rows: " + rows);
+            return new FlatVectorFile(dimension, vectorsAccess, idsAccess, (int) rows, lastRowId);
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to open flat vector file: " + e.getMessage(), e);
+            closeQuietly(vectorsAccess);
+            closeQuietly(idsAccess);
+            return null;
+        }
+    }
+
+    /**
+     * Write the flat vector files from a row source, replacing existing files
+     * 先写入临时文件再重命名，ID 文件最后替换
+     * @param directory Knowledge base directory
+     * @param dimension Vector dimension
+     * @param source Rows in ascending row ID order, vectors already normalized
+     * @return Opened file, or null on failure or abort
+     */
+    public static FlatVectorFile build(File directory, int dimension, IvfIndex.RowSource source) {
+        File vectorsFile = new File(directory, VECTORS_FILENAME);
+        File idsFile = new File(directory, IDS_FILENAME);
+        File vectorsTmp = new File(directory, VECTORS_FILENAME + ".tmp");
+        File idsTmp = new File(directory, IDS_FILENAME + ".tmp");
+        boolean completed;
+        try (FileOutputStream vectorsStream = new FileOutputStream(vectorsTmp);
+             FileOutputStream idsStream = new FileOutputStream(idsTmp);
+             BufferedOutputStream vectorsOut = new BufferedOutputStream(vectorsStream, 1 << 16);
+             BufferedOutputStream idsOut = new BufferedOutputStream(idsStream, 1 << 16)) {
+            ByteBuffer row = ByteBuffer.allocate(dimension * 4).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer id = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            IOException[] failure = new IOException[1];
+            completed = source.scan((rowId, vector) -> {
+                if (failure[0] != null || vector.length != dimension) {
+                    return;
+                }
+                row.clear();
+                for (float v : vector) {
+                    row.putFloat(v);
+                }
+                id.clear();
+                id.putLong(rowId);
+                try {
+                    vectorsOut.write(row.array());
+                    idsOut.write(id.array());
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            // Both files must be on disk before they replace the old ones
+            vectorsOut.flush();
+            idsOut.flush();
+            vectorsStream.getFD().sync();
+            idsStream.getFD().sync();
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to write flat vector file: " + e.getMessage(), e);
+            completed = false;
+        }
+        if (!completed) {
+            vectorsTmp.delete();
+            idsTmp.delete();
+            return null;
+        }
+
+        // The old ID file goes first: a crash in between leaves no ID file, open() then fails and the caller rebuilds
+        idsFile.delete();
+        if (!vectorsTmp.renameTo(vectorsFile) && !(vectorsFile.delete() && vectorsTmp.renameTo(vectorsFile))) {
+            LogManager.logE(TAG, "Failed to replace " + vectorsFile.getAbsolutePath());
+            return null;
+        }
+        if (!idsTmp.renameTo(idsFile)) {
+            LogManager.logE(TAG, "Failed to replace " + idsFile.getAbsolutePath());
+            return null;
+        }
+        return open(directory, dimension);
+    }
+
+    /**
+     * Delete the flat vector files of a knowledge base
+     * @param directory Knowledge base directory
+     */
+    public static void delete(File directory) {
+        new File(directory, IDS_FILENAME).delete();
+        new File(directory, VECTORS_FILENAME).delete();
+    }
+
+    /**
+     * Append a row, visible to searches started afterwards
+     * @param rowId Database row ID, greater than all existing IDs
+     * @param vector Normalized vector
+     * @return Whether the row was appended, false for a row ID that does not increase
+     */
+    public synchronized boolean append(long rowId, float[] vector) {
+        if (vector == null || vector.length != dimension) {
+            LogManager.logW(TAG, "Skipping vector with mismatched dimension for row " + rowId);
+            return false;
+        }
+        // getMaxRowId() and the catch-up on open rely on ascending IDs
+        if (size > 0 && rowId <= maxRowId) {
+            LogManager.logW(TAG, "Skipping out-of-order row " + rowId + ", last row is " + maxRowId);
+            return false;
+        }
+        try {
+            ByteBuffer row = ByteBuffer.allocate(dimension * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (float v : vector) {
+                row.putFloat(v);
+            }
+            row.flip();
+            vectorsAccess.getChannel().write(row, (long) size * dimension * 4L);
+            ByteBuffer id = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            id.putLong(rowId).flip();
+            idsAccess.getChannel().write(id, (long) size * 8L);
+            size++;
+            maxRowId = rowId;
+            return true;
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to append to flat vector file: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Scan all rows and keep the topK by dot product
+     * @param unitQuery L2-normalized query
+     * @param topK Number of results
+     * @param workers Number of scan workers including the calling thread
+     * @return Heap of row IDs and similarities, or null if aborted or unreadable
+     */
+    public TopKHeap search(float[] unitQuery, int topK, int workers) {
+        return search(unitQuery, topK, workers, null);
+    }
+
+    /**
+     * Scan all rows and keep the topK allowed rows by dot product
+     * @param unitQuery L2-normalized query
+     * @param topK Number of results
+     * @param workers Number of scan workers including the calling thread
+     * @param rowFilter Allowed row IDs, null allows all rows; rejected rows are not scored
+     * @return Heap of row IDs and similarities, or null if aborted or unreadable
+     */
+    public TopKHeap search(float[] unitQuery, int topK, int workers, LongPredicate rowFilter) {
+        if (unitQuery == null || unitQuery.length != dimension) {
+            LogManager.logE(TAG, "Query dimension mismatch: expected " + dimension + ", got " +
+                    (unitQuery == null ? 0 : unitQuery.length));
+            return new TopKHeap(topK);
+        }
+        Mapping current = currentMapping();
+        if (current == null) {
+            return null;
+        }
+        int blockCount = (current.rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        return ParallelScanner.scan(blockCount, workers, topK, (block, heap) -> {
+            int start = block * BLOCK_ROWS;
+            int end = Math.min(current.rows, start + BLOCK_ROWS);
+            FloatBuffer segment = current.segments[start / segmentRows];
+            int segmentStart = start / segmentRows * segmentRows;
+            for (int row = start; row < end; row++) {
+                long rowId = current.ids.get(row);
+                if (rowFilter != null && !rowFilter.test(rowId)) {
+                    continue;
+                }
+                float similarity = VectorMath.dot(unitQuery, segment, (row - segmentStart) * dimension);
+                heap.offer(rowId, similarity);
+            }
+            return true;
+        });
+    }
+
+    private Mapping currentMapping() {
+        Mapping current = mapping;
+        int rows;
+        synchronized (this) {
+            rows = size;
+        }
+        if (current != null && current.rows == rows) {
+            return current;
+        }
+        try {
+            FileChannel vectorsChannel = vectorsAccess.getChannel();
+            int segmentCount = (rows + segmentRows - 1) / segmentRows;
+            FloatBuffer[] segments = new FloatBuffer[segmentCount];
+            long stride = (long) dimension * 4L;
+            for (int s = 0; s < segmentCount; s++) {
+                int segmentRowCount = Math.min(segmentRows, rows - s * segmentRows);
+                segments[s] = vectorsChannel.map(FileChannel.MapMode.READ_ONLY, s * segmentRows * stride,
+                        segmentRowCount * stride).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            LongBuffer ids = idsAccess.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, rows * 8L)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            current = new Mapping(segments, ids, rows);
+            mapping = current;
+            return current;
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to map flat vector file: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Flush appended rows to disk, vectors before IDs
+     * @return Whether both files were forced
+     */
+    public synchronized boolean force() {
+        try {
+            vectorsAccess.getChannel().force(false);
+            idsAccess.getChannel().force(false);
+            return true;
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to force flat vector file: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Largest row ID in the file, 0 when empty
+     */
+    public synchronized long getMaxRowId() {
+        return maxRowId;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Close the file handles, mapped buffers stay valid until collected
+     */
+    public synchronized void close() {
+        mapping = null;
+        closeQuietly(vectorsAccess);
+        closeQuietly(idsAccess);
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
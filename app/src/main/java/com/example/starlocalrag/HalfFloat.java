@@ -0,0 +1,134 @@
+package com.example.starlocalrag;
+
+/**
+ * IEEE 754 half-precision (float16) storage of embedding vectors
+ * 体积为 float32 的一半，归一化向量各维度的相对误差约 5e-4，对检索排序几乎没有影响；
+ * 扫描时不解码整个向量，点积循环中逐维查表转换
+ *
+ * Blob layout: dimension little-endian float16 values
+ */
+public final class HalfFloat {
+
+    public static final int BYTES = 2;
+
+    private HalfFloat() {
+    }
+
+    /**
+     * Encode a vector
+     * @param vector Vector
+     * @return Blob of vector.length * 2 bytes
+     */
+    public static byte[] encode(float[] vector) {
+        byte[] blob = new byte[vector.length * BYTES];
+        for (int i = 0; i < vector.length; i++) {
+            short half = fromFloat(vector[i]);
+            blob[i * BYTES] = (byte) half;
+            blob[i * BYTES + 1] = (byte) (half >> 8);
+        }
+        return blob;
+    }
+
+    /**
+     * Decode a blob written by encode()
+     * @param blob Blob
+     * @return Vector
+     */
+    public static float[] decode(byte[] blob) {
+        float[] table = DecodeTable.VALUES;
+        float[] vector = new float[blob.length / BYTES];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = table[(blob[i * BYTES] & 0xFF) | (blob[i * BYTES + 1] & 0xFF) << 8];
+        }
+        return vector;
+    }
+
+    /**
+     * Dot product between a query and an encoded vector
+     * @param query Query vector
+     * @param blob Encoded vector of query.length values
+     * @return Dot product
+     */
+    public static float dot(float[] query, byte[] blob) {
+        float[] table = DecodeTable.VALUES;
+        float sum = 0.0f;
+        for (int i = 0; i < query.length; i++) {
+            sum += query[i] * table[(blob[i * BYTES] & 0xFF) | (blob[i * BYTES + 1] & 0xFF) << 8];
+        }
+        return sum;
+    }
+
+    /**
+     * Round a float to the nearest half-precision value (ties to even)
+     * 超出 ±65504 的值变为无穷大，NaN 保持为 NaN
+     * @param value Float value
+     * @return Half-precision bits
+     */
+    public static short fromFloat(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7FFFFFFF;
+        if (abs >= 0x7F800000) {
+            // Infinity, or NaN with a quiet mantissa bit
+            return (short) (sign | 0x7C00 | (abs > 0x7F800000 ? 0x200 : 0));
+        }
+        if (abs >= 0x477FF000) {
+            // Rounds above 65504
+            return (short) (sign | 0x7C00);
+        }
+        if (abs < 0x38800000) {
+            // Below 2^-14: subnormal half or zero
+            if (abs < 0x33000000) {
+                return (short) sign;
+            }
+            int exponent = abs >>> 23;
+            int mantissa = (abs & 0x7FFFFF) | 0x800000;
+            int shift = 126 - exponent;
+            int half = mantissa >>> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+            if (remainder > midpoint || (remainder == midpoint && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = ((abs >>> 23) - 112) << 10 | (abs & 0x7FFFFF) >>> 13;
+        int remainder = abs & 0x1FFF;
+        // A carry out of the mantissa correctly increments the exponent
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * Convert half-precision bits to a float (exact)
+     * @param half Half-precision bits
+     * @return Float value
+     */
+    public static float toFloat(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | mantissa << 13);
+        }
+        return Float.intBitsToFloat(sign | (exponent + 112) << 23 | mantissa << 13);
+    }
+
+    // 65536 项解码表（256KB），首次使用时创建
+    private static final class DecodeTable {
+        static final float[] VALUES = new float[1 << 16];
+
+        static {
+            for (int i = 0; i < VALUES.length; i++) {
+                VALUES[i] = toFloat((short) i);
+            }
+        }
+    }
+}
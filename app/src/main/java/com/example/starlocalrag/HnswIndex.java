@@ -0,0 +1,555 @@
+package com.example.starlocalrag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
+/**
+ * HNSW (Hierarchical Navigable Small World) approximate nearest neighbour index
+ * 基于余弦相似度的HNSW图索引，向量存放在 ResidentVectorIndex 中（节点编号即矩阵行号），
+ * 支持增量插入，并可持久化为知识库目录下的 sidecar 文件
+ */
+public class HnswIndex {
+    private static final String TAG = "StarLocalRAG_HnswIndex";
+
+    // 文件格式标识 "HNSW" 及版本
+    private static final int FILE_MAGIC = 0x484E5357;
+    private static final int FILE_VERSION = 1;
+
+    // 最大层数，避免极端随机值导致层数过高
+    private static final int MAX_LEVEL = 16;
+
+    // 默认构建/查询参数
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+
+    private final int dimension;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // 向量存储（节点编号 == 行号）
+    private final ResidentVectorIndex vectors;
+
+    // links[node][level] = 邻居数组，下标0存放邻居数量
+    private int[][][] links;
+    private int size;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private long maxRowId = -1;
+
+    /**
+     * Constructor
+     * @param dimension Vector dimension
+     * @param m Max connections per node on upper layers (layer 0 uses 2*M)
+     * @param efConstruction Candidate list size during construction
+     * @param expectedNodes Expected node count
+     */
+    public HnswIndex(int dimension, int m, int efConstruction, int expectedNodes) {
+        this.dimension = dimension;
+        this.m = Math.max(2, m);
+        this.maxM0 = this.m * 2;
+        this.efConstruction = Math.max(this.m, efConstruction);
+        this.levelMultiplier = 1.0 / Math.log(this.m);
+        this.vectors = new ResidentVectorIndex(dimension, expectedNodes);
+        this.links = new int[Math.max(16, expectedNodes)][][];
+        this.size = 0;
+    }
+
+    /**
+     * Insert a vector into the graph
+     * @param rowId Database row ID
+     * @param vector Embedding vector
+     * @return Whether the vector was inserted
+     */
+    public boolean add(long rowId, float[] vector) {
+        if (vector == null || vector.length != dimension) {
+            LogManager.logW(TAG, "Skipping vector with mismatched dimension for row " + rowId);
+            return false;
+        }
+        float[] unitVector = toUnitVector(vector);
+
+        lock.writeLock().lock();
+        try {
+            if (!vectors.add(rowId, vector)) {
+                return false;
+            }
+            int node = size;
+            int level = randomLevel();
+            ensureCapacity(node + 1);
+            links[node] = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                links[node][l] = new int[(l == 0 ? maxM0 : m) + 1];
+            }
+            size++;
+            maxRowId = Math.max(maxRowId, rowId);
+
+            if (entryPoint < 0) {
+                entryPoint = node;
+                maxLevel = level;
+                return true;
+            }
+
+            int current = entryPoint;
+            for (int l = maxLevel; l > level; l--) {
+                current = greedySearch(unitVector, current, l);
+            }
+
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                TopKHeap candidates = searchLayer(unitVector, current, efConstruction, l, new BitSet(size));
+                candidates.sortDescending();
+                int maxConnections = l == 0 ? maxM0 : m;
+                int[] selected = selectNeighbors(candidates, maxConnections, node);
+                int[] nodeLinks = links[node][l];
+                for (int neighbor : selected) {
+                    nodeLinks[++nodeLinks[0]] = neighbor;
+                    connect(neighbor, node, l);
+                }
+                if (!candidates.isEmpty()) {
+                    current = (int) candidates.getId(0);
+                }
+            }
+
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = node;
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search the graph for the nearest neighbours of a query
+     * @param queryVector Query vector
+     * @param topK Number of results
+     * @param efSearch Candidate list size, larger means higher recall and slower search
+     * @return Heap of database row IDs with cosine similarity scores
+     */
+    public TopKHeap search(float[] queryVector, int topK, int efSearch) {
+        return search(queryVector, topK, efSearch, null);
+    }
+
+    /**
+     * Approximate top-K search that skips rejected rows
+     * 被拒绝的节点仍参与图上的路由，只是不进入结果
+     * @param queryVector Query vector
+     * @param topK Number of results
+     * @param efSearch Candidate list size, larger means higher recall and slower search
+     * @param rowFilter Allowed row IDs, null allows all rows
+     * @return Heap of database row IDs with cosine similarity scores
+     */
+    public TopKHeap search(float[] queryVector, int topK, int efSearch, LongPredicate rowFilter) {
+        TopKHeap results = new TopKHeap(topK);
+        if (queryVector == null || queryVector.length != dimension) {
+            LogManager.logE(TAG, "Query dimension mismatch: expected " + dimension + ", got " +
+                    (queryVector == null ? 0 : queryVector.length));
+            return results;
+        }
+        float[] unitQuery = toUnitVector(queryVector);
+
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0) {
+                return results;
+            }
+            int current = entryPoint;
+            for (int l = maxLevel; l > 0; l--) {
+                current = greedySearch(unitQuery, current, l);
+            }
+            TopKHeap candidates = searchLayer(unitQuery, current, Math.max(efSearch, topK), 0, new BitSet(size));
+            for (int i = 0; i < candidates.size(); i++) {
+                long rowId = vectors.getRowId((int) candidates.getId(i));
+                if (rowFilter == null || rowFilter.test(rowId)) {
+                    results.offer(rowId, candidates.getScore(i));
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Greedy walk on an upper layer towards the query
+     */
+    private int greedySearch(float[] unitQuery, int entry, int level) {
+        int current = entry;
+        float currentScore = vectors.similarityToRow(current, unitQuery);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] neighbors = links[current][level];
+            for (int i = 1; i <= neighbors[0]; i++) {
+                int candidate = neighbors[i];
+                float score = vectors.similarityToRow(candidate, unitQuery);
+                if (score > currentScore) {
+                    currentScore = score;
+                    current = candidate;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search on one layer, returns up to ef nodes (node index as id)
+     */
+    private TopKHeap searchLayer(float[] unitQuery, int entry, int ef, int level, BitSet visited) {
+        TopKHeap results = new TopKHeap(ef);
+        CandidateQueue candidates = new CandidateQueue();
+
+        float entryScore = vectors.similarityToRow(entry, unitQuery);
+        visited.set(entry);
+        results.offer(entry, entryScore);
+        candidates.push(entry, entryScore);
+
+        while (!candidates.isEmpty()) {
+            float candidateScore = candidates.peekScore();
+            if (candidateScore < results.threshold()) {
+                break;
+            }
+            int candidate = candidates.pop();
+            int[][] candidateLinks = links[candidate];
+            if (level >= candidateLinks.length) {
+                continue;
+            }
+            int[] neighbors = candidateLinks[level];
+            for (int i = 1; i <= neighbors[0]; i++) {
+                int neighbor = neighbors[i];
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+                float score = vectors.similarityToRow(neighbor, unitQuery);
+                if (score > results.threshold()) {
+                    results.offer(neighbor, score);
+                    candidates.push(neighbor, score);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Neighbour selection heuristic: keep candidates closer to the base node than to any already
+     * selected neighbour, then fill remaining slots with the best pruned candidates
+     * @param sorted Candidates sorted in descending order of similarity to the base node
+     * @param maxCount Maximum neighbours
+     * @param exclude Node to exclude (the base node itself)
+     */
+    private int[] selectNeighbors(TopKHeap sorted, int maxCount, int exclude) {
+        int[] selected = new int[Math.min(maxCount, sorted.size())];
+        boolean[] taken = new boolean[sorted.size()];
+        int count = 0;
+
+        for (int i = 0; i < sorted.size() && count < selected.length; i++) {
+            int candidate = (int) sorted.getId(i);
+            if (candidate == exclude) {
+                taken[i] = true;
+                continue;
+            }
+            float score = sorted.getScore(i);
+            boolean keep = true;
+            for (int j = 0; j < count; j++) {
+                if (vectors.similarityBetweenRows(candidate, selected[j]) > score) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate;
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < sorted.size() && count < selected.length; i++) {
+            if (!taken[i]) {
+                selected[count++] = (int) sorted.getId(i);
+            }
+        }
+        return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * Add a back link from neighbor to node, shrinking the neighbour list if it overflows
+     */
+    private void connect(int neighbor, int node, int level) {
+        int[] neighborLinks = links[neighbor][level];
+        int maxConnections = level == 0 ? maxM0 : m;
+        int count = neighborLinks[0];
+        if (count < maxConnections) {
+            neighborLinks[count + 1] = node;
+            neighborLinks[0] = count + 1;
+            return;
+        }
+
+        TopKHeap candidates = new TopKHeap(count + 1);
+        for (int i = 1; i <= count; i++) {
+            candidates.offer(neighborLinks[i], vectors.similarityBetweenRows(neighbor, neighborLinks[i]));
+        }
+        candidates.offer(node, vectors.similarityBetweenRows(neighbor, node));
+        candidates.sortDescending();
+        int[] selected = selectNeighbors(candidates, maxConnections, neighbor);
+        neighborLinks[0] = selected.length;
+        System.arraycopy(selected, 0, neighborLinks, 1, selected.length);
+    }
+
+    private int randomLevel() {
+        double r = random.nextDouble();
+        int level = (int) (-Math.log(Math.max(r, 1e-12)) * levelMultiplier);
+        return Math.min(level, MAX_LEVEL);
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > links.length) {
+            links = Arrays.copyOf(links, Math.max(required, links.length + (links.length >> 1)));
+        }
+    }
+
+    private float[] toUnitVector(float[] vector) {
+        float[] unit = Arrays.copyOf(vector, vector.length);
+        VectorMath.sanitizeInPlace(unit);
+        float inverseNorm = VectorMath.inverseNorm(unit);
+        for (int i = 0; i < unit.length; i++) {
+            unit[i] *= inverseNorm;
+        }
+        return unit;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    /**
+     * Largest database row ID contained in the graph, rows above it are not indexed yet
+     */
+    public long getMaxRowId() {
+        lock.readLock().lock();
+        try {
+            return maxRowId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Save the index to a file (written to a temporary file first, then renamed)
+     * @param file Target file
+     * @return Whether saving was successful
+     */
+    public boolean save(File file) {
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        lock.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(dimension);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(size);
+            out.writeInt(maxLevel);
+            out.writeInt(entryPoint);
+
+            float[] row = new float[dimension];
+            ByteBuffer rowBytes = ByteBuffer.allocate(dimension * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int node = 0; node < size; node++) {
+                out.writeLong(vectors.getRowId(node));
+                vectors.copyRow(node, row);
+                rowBytes.clear();
+                rowBytes.asFloatBuffer().put(row);
+                out.write(rowBytes.array(), 0, rowBytes.capacity());
+
+                int[][] nodeLinks = links[node];
+                out.writeInt(nodeLinks.length - 1);
+                for (int[] levelLinks : nodeLinks) {
+                    out.writeInt(levelLinks[0]);
+                    for (int i = 1; i <= levelLinks[0]; i++) {
+                        out.writeInt(levelLinks[i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to save HNSW index: " + e.getMessage(), e);
+            tmpFile.delete();
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (file.exists() && !file.delete()) {
+            LogManager.logE(TAG, "Failed to replace existing HNSW index file: " + file.getAbsolutePath());
+            tmpFile.delete();
+            return false;
+        }
+        if (!tmpFile.renameTo(file)) {
+            LogManager.logE(TAG, "Failed to rename HNSW index file: " + tmpFile.getAbsolutePath());
+            return false;
+        }
+        LogManager.logD(TAG, "HNSW index saved: " + file.getAbsolutePath() + ", nodes: " + size);
+        return true;
+    }
+
+    /**
+     * Load an index from a file
+     * @param file Index file
+     * @return Loaded index, or null if the file is missing or invalid
+     */
+    public static HnswIndex load(File file) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != FILE_MAGIC) {
+                LogManager.logE(TAG, "Invalid HNSW index file: " + file.getAbsolutePath());
+                return null;
+            }
+            int version = in.readInt();
+            if (version != FILE_VERSION) {
+                LogManager.logW(TAG, "Unsupported HNSW index version: " + version);
+                return null;
+            }
+            int dimension = in.readInt();
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            int size = in.readInt();
+            int maxLevel = in.readInt();
+            int entryPoint = in.readInt();
+
+            HnswIndex index = new HnswIndex(dimension, m, efConstruction, size);
+            byte[] rowBytes = new byte[dimension * 4];
+            float[] row = new float[dimension];
+            for (int node = 0; node < size; node++) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting HNSW index loading");
+                    return null;
+                }
+                long rowId = in.readLong();
+                in.readFully(rowBytes);
+                ByteBuffer.wrap(rowBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(row);
+                index.vectors.add(rowId, row);
+                index.maxRowId = Math.max(index.maxRowId, rowId);
+
+                int level = in.readInt();
+                int[][] nodeLinks = new int[level + 1][];
+                for (int l = 0; l <= level; l++) {
+                    int count = in.readInt();
+                    int[] levelLinks = new int[(l == 0 ? index.maxM0 : index.m) + 1];
+                    levelLinks[0] = count;
+                    for (int i = 1; i <= count; i++) {
+                        levelLinks[i] = in.readInt();
+                    }
+                    nodeLinks[l] = levelLinks;
+                }
+                index.links[node] = nodeLinks;
+            }
+            index.size = size;
+            index.maxLevel = maxLevel;
+            index.entryPoint = entryPoint;
+            LogManager.logD(TAG, "HNSW index loaded: " + file.getAbsolutePath() + ", nodes: " + size +
+                    ", M: " + m + ", efConstruction: " + efConstruction);
+            return index;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to load HNSW index: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Growable max-heap of (node, score) used as the candidate frontier
+     */
+    private static final class CandidateQueue {
+        private int[] nodes = new int[64];
+        private float[] scores = new float[64];
+        private int size;
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (scores[parent] >= score) {
+                    break;
+                }
+                nodes[index] = nodes[parent];
+                scores[index] = scores[parent];
+                index = parent;
+            }
+            nodes[index] = node;
+            scores[index] = score;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            if (size > 0) {
+                int lastNode = nodes[size];
+                float lastScore = scores[size];
+                int index = 0;
+                while (true) {
+                    int child = (index << 1) + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && scores[child + 1] > scores[child]) {
+                        child++;
+                    }
+                    if (lastScore >= scores[child]) {
+                        break;
+                    }
+                    nodes[index] = nodes[child];
+                    scores[index] = scores[child];
+                    index = child;
+                }
+                nodes[index] = lastNode;
+                scores[index] = lastScore;
+            }
+            return top;
+        }
+
+        float peekScore() {
+            return scores[0];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
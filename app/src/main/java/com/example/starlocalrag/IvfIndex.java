@@ -0,0 +1,500 @@
+package com.example.starlocalrag;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.LongPredicate;
+
+/**
+ * Disk-resident IVF (inverted file) index with a k-means coarse quantizer
+ * 倒排索引：用球面k-means训练的质心对向量分区，倒排列表按质心顺序连续存放在文件中，
+ * 打开时把倒排列表区域内存映射一次，查询只读取最近的 nprobe 个列表（按需换页），
+ * 常驻堆内存只有质心和列表偏移表，与语料规模无关
+ *
+ * File layout (little-endian):
+ *   header:    magic, version, dimension, nlist, maxRowId(long), totalCount(long)
+ *   centroids: nlist * dimension float32 (unit length)
+ *   lists:     nlist * (offset long, count int)
+ *   records:   per list, count * (rowId long, dimension float32 unit vector)
+ */
+public class IvfIndex {
+    private static final String TAG = "StarLocalRAG_IvfIndex";
+
+    // 文件格式标识 "IVF1" 及版本
+    private static final int FILE_MAGIC = 0x49564631;
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_BYTES = 4 * 4 + 8 * 2;
+    private static final int LIST_ENTRY_BYTES = 8 + 4;
+
+    // 默认参数
+    public static final int DEFAULT_NPROBE = 8;
+    public static final int MIN_NLIST = 16;
+    public static final int MAX_NLIST = 4096;
+    private static final int KMEANS_ITERATIONS = 12;
+    private static final int SAMPLES_PER_CENTROID = 32;
+
+    // 训练样本最多占用的浮点数（约32MB）
+    private static final int MAX_SAMPLE_FLOATS = 8 * 1024 * 1024;
+
+    // 单个映射段的上限，连续的列表打包进同一段（ByteBuffer 的索引是 int）
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    /**
+     * Callback receiving one row during a scan
+     */
+    public interface RowConsumer {
+        void accept(long rowId, float[] vector);
+    }
+
+    /**
+     * Source of rows for building, must return rows in the same order on every scan
+     */
+    public interface RowSource {
+        /**
+         * @return Whether the scan completed (false if aborted)
+         */
+        boolean scan(RowConsumer consumer);
+    }
+
+    // 打开时映射，重建时新文件替换路径不影响仍在使用的旧映射；close() 后为 null
+    private volatile ByteBuffer[] segments;
+    // 每个列表所在的映射段和段内字节偏移
+    private final int[] listSegments;
+    private final int[] listSegmentOffsets;
+    private final int dimension;
+    private final int nlist;
+    private final long maxRowId;
+    private final long totalCount;
+    private final float[] centroids;
+    private final int[] listCounts;
+
+    private IvfIndex(ByteBuffer[] segments, int[] listSegments, int[] listSegmentOffsets, int dimension, int nlist,
+                     long maxRowId, long totalCount, float[] centroids, int[] listCounts) {
+        this.segments = segments;
+        this.listSegments = listSegments;
+        this.listSegmentOffsets = listSegmentOffsets;
+        this.dimension = dimension;
+        this.nlist = nlist;
+        this.maxRowId = maxRowId;
+        this.totalCount = totalCount;
+        this.centroids = centroids;
+        this.listCounts = listCounts;
+    }
+
+    /**
+     * Suggested number of lists for a corpus size
+     * @param rowCount Row count
+     * @return nlist around sqrt(rowCount), clamped
+     */
+    public static int suggestNlist(int rowCount) {
+        int nlist = (int) Math.round(Math.sqrt(Math.max(1, rowCount)));
+        return Math.max(MIN_NLIST, Math.min(MAX_NLIST, nlist));
+    }
+
+    /**
+     * Maximum number of training samples for a given list count and dimension
+     */
+    public static int trainingSampleSize(int nlist, int dimension) {
+        return Math.max(nlist, Math.min(nlist * SAMPLES_PER_CENTROID, MAX_SAMPLE_FLOATS / Math.max(1, dimension)));
+    }
+
+    /**
+     * Train centroids with spherical k-means
+     * @param samples Sample vectors (row-major, sampleCount * dimension), normalized in place
+     * @param sampleCount Number of samples
+     * @param dimension Vector dimension
+     * @param nlist Number of centroids
+     * @return Centroids (row-major, unit length), or null if aborted
+     */
+    public static float[] trainCentroids(float[] samples, int sampleCount, int dimension, int nlist) {
+        nlist = Math.min(nlist, sampleCount);
+        if (nlist <= 0) {
+            return null;
+        }
+        for (int i = 0; i < sampleCount; i++) {
+            VectorMath.sanitizeAndNormalizeInPlace(samples, i * dimension, dimension);
+        }
+
+        Random random = new Random(42);
+        float[] centroids = new float[nlist * dimension];
+        int[] order = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < nlist; i++) {
+            int j = i + random.nextInt(sampleCount - i);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+            System.arraycopy(samples, order[i] * dimension, centroids, i * dimension, dimension);
+        }
+
+        int[] assignment = new int[sampleCount];
+        int[] counts = new int[nlist];
+        float[] sums = new float[nlist * dimension];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            if (GlobalStopManager.isGlobalStopRequested()) {
+                LogManager.logD(TAG, "Global stop requested, aborting k-means training");
+                return null;
+            }
+            Arrays.fill(counts, 0);
+            Arrays.fill(sums, 0.0f);
+            int changed = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                int best = nearestCentroid(centroids, nlist, dimension, samples, i * dimension);
+                if (iteration == 0 || best != assignment[i]) {
+                    changed++;
+                }
+                assignment[i] = best;
+                counts[best]++;
+                int sumBase = best * dimension;
+                int sampleBase = i * dimension;
+                for (int d = 0; d < dimension; d++) {
+                    sums[sumBase + d] += samples[sampleBase + d];
+                }
+            }
+            for (int c = 0; c < nlist; c++) {
+                if (counts[c] == 0) {
+                    // 空簇：用随机样本重新初始化
+                    System.arraycopy(samples, random.nextInt(sampleCount) * dimension, centroids, c * dimension, dimension);
+                } else {
+                    System.arraycopy(sums, c * dimension, centroids, c * dimension, dimension);
+                    VectorMath.sanitizeAndNormalizeInPlace(centroids, c * dimension, dimension);
+                }
+            }
+            LogManager.logD(TAG, "k-means iteration " + (iteration + 1) + "/" + KMEANS_ITERATIONS + ", reassigned: " + changed);
+            if (iteration > 0 && changed == 0) {
+                break;
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Build the index file from a row source (two passes: assign, then write)
+     * @param file Target file
+     * @param centroids Trained centroids
+     * @param dimension Vector dimension
+     * @param source Row source
+     * @return Opened index, or null on failure
+     */
+    public static IvfIndex build(File file, float[] centroids, int dimension, RowSource source) {
+        final int nlist = centroids.length / dimension;
+        final int[][] assignments = {new int[1024]};
+        final int[] rowCount = {0};
+        final long[] maxRowId = {-1};
+        final int[] listCounts = new int[nlist];
+        final float[] unit = new float[dimension];
+
+        // Pass 1: assign every row to its nearest centroid
+        boolean completed = source.scan((rowId, vector) -> {
+            if (vector.length != dimension) {
+                return;
+            }
+            System.arraycopy(vector, 0, unit, 0, dimension);
+            VectorMath.sanitizeAndNormalizeInPlace(unit, 0, dimension);
+            int list = nearestCentroid(centroids, nlist, dimension, unit, 0);
+            if (rowCount[0] == assignments[0].length) {
+                assignments[0] = Arrays.copyOf(assignments[0], rowCount[0] * 2);
+            }
+            assignments[0][rowCount[0]++] = list;
+            listCounts[list]++;
+            maxRowId[0] = Math.max(maxRowId[0], rowId);
+        });
+        if (!completed) {
+            return null;
+        }
+
+        int stride = 8 + dimension * 4;
+        long[] listOffsets = new long[nlist];
+        long dataStart = HEADER_BYTES + (long) nlist * dimension * 4 + (long) nlist * LIST_ENTRY_BYTES;
+        long offset = dataStart;
+        for (int c = 0; c < nlist; c++) {
+            listOffsets[c] = offset;
+            offset += (long) listCounts[c] * stride;
+        }
+
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+
+            // Header, centroids and list table
+            ByteBuffer head = ByteBuffer.allocate((int) dataStart).order(ByteOrder.LITTLE_ENDIAN);
+            head.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(dimension).putInt(nlist);
+            head.putLong(maxRowId[0]).putLong(rowCount[0]);
+            head.asFloatBuffer().put(centroids);
+            head.position(head.position() + centroids.length * 4);
+            for (int c = 0; c < nlist; c++) {
+                head.putLong(listOffsets[c]).putInt(listCounts[c]);
+            }
+            head.flip();
+            channel.write(head, 0);
+
+            // Pass 2: write each row at its list cursor
+            final long[] cursors = Arrays.copyOf(listOffsets, nlist);
+            final int[] index = {0};
+            final ByteBuffer record = ByteBuffer.allocate(stride).order(ByteOrder.LITTLE_ENDIAN);
+            final IOException[] writeError = {null};
+            completed = source.scan((rowId, vector) -> {
+                if (writeError[0] != null || vector.length != dimension || rowId > maxRowId[0] || index[0] >= rowCount[0]) {
+                    return;
+                }
+                int list = assignments[0][index[0]++];
+                System.arraycopy(vector, 0, unit, 0, dimension);
+                VectorMath.sanitizeAndNormalizeInPlace(unit, 0, dimension);
+                record.clear();
+                record.putLong(rowId);
+                record.asFloatBuffer().put(unit);
+                record.position(stride);
+                record.flip();
+                try {
+                    channel.write(record, cursors[list]);
+                } catch (IOException e) {
+                    writeError[0] = e;
+                }
+                cursors[list] += stride;
+            });
+            if (writeError[0] != null) {
+                throw writeError[0];
+            }
+            if (!completed || index[0] != rowCount[0]) {
+                LogManager.logW(TAG, "IVF build aborted or rows changed during build (" + index[0] + "/" + rowCount[0] + ")");
+                tmpFile.delete();
+                return null;
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to write IVF index: " + e.getMessage(), e);
+            tmpFile.delete();
+            return null;
+        }
+
+        if (file.exists() && !file.delete()) {
+            LogManager.logE(TAG, "Failed to replace existing IVF index file: " + file.getAbsolutePath());
+            tmpFile.delete();
+            return null;
+        }
+        if (!tmpFile.renameTo(file)) {
+            LogManager.logE(TAG, "Failed to rename IVF index file: " + tmpFile.getAbsolutePath());
+            return null;
+        }
+        LogManager.logI(TAG, "IVF index written: " + file.getAbsolutePath() + ", lists: " + nlist + ", rows: " + rowCount[0]);
+        return open(file);
+    }
+
+    /**
+     * Open an index file, the header, centroids and list table are read into memory and the lists are mapped
+     * @param file Index file
+     * @return Index, or null if the file is missing or invalid
+     */
+    public static IvfIndex open(File file) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != FILE_MAGIC) {
+                LogManager.logE(TAG, "Invalid IVF index file: " + file.getAbsolutePath());
+                return null;
+            }
+            int version = header.getInt();
+            if (version != FILE_VERSION) {
+                LogManager.logW(TAG, "Unsupported IVF index version: " + version);
+                return null;
+            }
+            int dimension = header.getInt();
+            int nlist = header.getInt();
+            long maxRowId = header.getLong();
+            long totalCount = header.getLong();
+
+            int tableBytes = nlist * dimension * 4 + nlist * LIST_ENTRY_BYTES;
+            ByteBuffer table = ByteBuffer.allocate(tableBytes).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(table, HEADER_BYTES);
+            table.flip();
+            float[] centroids = new float[nlist * dimension];
+            table.asFloatBuffer().get(centroids);
+            table.position(centroids.length * 4);
+            long[] listOffsets = new long[nlist];
+            int[] listCounts = new int[nlist];
+            long expectedLength = HEADER_BYTES + tableBytes;
+            for (int c = 0; c < nlist; c++) {
+                listOffsets[c] = table.getLong();
+                listCounts[c] = table.getInt();
+                expectedLength += (long) listCounts[c] * (8 + dimension * 4);
+            }
+            if (channel.size() != expectedLength) {
+                LogManager.logE(TAG, "IVF index file truncated: expected " + expectedLength + " bytes, got " + channel.size());
+                return null;
+            }
+
+            // Lists are stored back to back, pack consecutive lists into mapped segments
+            int stride = 8 + dimension * 4;
+            int[] listSegments = new int[nlist];
+            int[] listSegmentOffsets = new int[nlist];
+            List<ByteBuffer> segments = new ArrayList<>();
+            long segmentStart = HEADER_BYTES + tableBytes;
+            long segmentEnd = segmentStart;
+            for (int c = 0; c < nlist; c++) {
+                long listBytes = (long) listCounts[c] * stride;
+                if (listBytes > MAX_SEGMENT_BYTES || listOffsets[c] != segmentEnd) {
+                    LogManager.logE(TAG, "Invalid IVF list table at list " + c + ": " + file.getAbsolutePath());
+                    return null;
+                }
+                if (segmentEnd + listBytes - segmentStart > MAX_SEGMENT_BYTES) {
+                    segments.add(mapSegment(channel, segmentStart, segmentEnd));
+                    segmentStart = segmentEnd;
+                }
+                listSegments[c] = segments.size();
+                listSegmentOffsets[c] = (int) (segmentEnd - segmentStart);
+                segmentEnd += listBytes;
+            }
+            segments.add(mapSegment(channel, segmentStart, segmentEnd));
+
+            LogManager.logD(TAG, "IVF index opened: " + file.getAbsolutePath() + ", lists: " + nlist + ", rows: " + totalCount +
+                    ", mapped segments: " + segments.size());
+            // The mappings stay valid after the file is closed
+            return new IvfIndex(segments.toArray(new ByteBuffer[0]), listSegments, listSegmentOffsets, dimension, nlist,
+                    maxRowId, totalCount, centroids, listCounts);
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to open IVF index: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static ByteBuffer mapSegment(FileChannel channel, long start, long end) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Drop the mapped lists, searches still running on this index finish on the mapping they started with
+     * 映射由垃圾回收释放
+     */
+    public void close() {
+        segments = null;
+    }
+
+    /**
+     * Search the nprobe lists closest to the query
+     * @param queryVector Query vector
+     * @param topK Number of results
+     * @param nprobe Number of lists to scan
+     * @return Heap of database row IDs with cosine similarity scores, or null if aborted
+     */
+    public TopKHeap search(float[] queryVector, int topK, int nprobe) {
+        return search(queryVector, topK, nprobe, null);
+    }
+
+    /**
+     * Scan the nprobe closest lists, skipping rejected rows
+     * @param queryVector Query vector
+     * @param topK Number of results
+     * @param nprobe Number of lists to scan
+     * @param rowFilter Allowed row IDs, null allows all rows
+     * @return Heap of database row IDs with cosine similarity scores, or null if aborted
+     */
+    public TopKHeap search(float[] queryVector, int topK, int nprobe, LongPredicate rowFilter) {
+        TopKHeap results = new TopKHeap(topK);
+        if (queryVector == null || queryVector.length != dimension) {
+            LogManager.logE(TAG, "Query dimension mismatch: expected " + dimension + ", got " +
+                    (queryVector == null ? 0 : queryVector.length));
+            return results;
+        }
+        float[] unitQuery = Arrays.copyOf(queryVector, dimension);
+        VectorMath.sanitizeAndNormalizeInPlace(unitQuery, 0, dimension);
+
+        // Select nprobe nearest centroids
+        TopKHeap probes = new TopKHeap(Math.max(1, Math.min(nprobe, nlist)));
+        for (int c = 0; c < nlist; c++) {
+            probes.offer(c, dotRow(unitQuery, centroids, c * dimension));
+        }
+
+        ByteBuffer[] mapped = segments;
+        if (mapped == null) {
+            LogManager.logW(TAG, "IVF index already closed");
+            return results;
+        }
+        int stride = 8 + dimension * 4;
+        for (int p = 0; p < probes.size(); p++) {
+            if (GlobalStopManager.isGlobalStopRequested()) {
+                LogManager.logD(TAG, "Global stop requested, aborting IVF search");
+                return null;
+            }
+            int list = (int) probes.getId(p);
+            int count = listCounts[list];
+            if (count == 0) {
+                continue;
+            }
+            // Absolute reads only, the shared mapping's position is never touched
+            ByteBuffer segment = mapped[listSegments[list]];
+            int listBase = listSegmentOffsets[list];
+            for (int i = 0; i < count; i++) {
+                int base = listBase + i * stride;
+                long rowId = segment.getLong(base);
+                if (rowFilter != null && !rowFilter.test(rowId)) {
+                    continue;
+                }
+                float sum = 0.0f;
+                for (int d = 0; d < dimension; d++) {
+                    sum += unitQuery[d] * segment.getFloat(base + 8 + d * 4);
+                }
+                results.offer(rowId, sum);
+            }
+        }
+        return results;
+    }
+
+    private static int nearestCentroid(float[] centroids, int nlist, int dimension, float[] vector, int offset) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < nlist; c++) {
+            int base = c * dimension;
+            float sum = 0.0f;
+            for (int d = 0; d < dimension; d++) {
+                sum += centroids[base + d] * vector[offset + d];
+            }
+            if (sum > bestScore) {
+                bestScore = sum;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static float dotRow(float[] query, float[] matrix, int offset) {
+        float sum = 0.0f;
+        for (int d = 0; d < query.length; d++) {
+            sum += query[d] * matrix[offset + d];
+        }
+        return sum;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getNlist() {
+        return nlist;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Largest database row ID contained in the index, newer rows must be scanned separately
+     */
+    public long getMaxRowId() {
+        return maxRowId;
+    }
+}
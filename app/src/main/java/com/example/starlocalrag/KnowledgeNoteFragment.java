@@ -302,8 +302,8 @@ public class KnowledgeNoteFragment extends Fragment {
                 String embeddingModelPath = null;
                 SQLiteVectorDatabaseHandler vectorDb = null;
                 try {
-                    vectorDb = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, "unknown");
-                    if (vectorDb.loadDatabase()) {
+                    vectorDb = VectorDatabaseRegistry.getInstance().acquire(knowledgeBaseDir);
+                    if (vectorDb != null) {
                         SQLiteVectorDatabaseHandler.DatabaseMetadata metadata = vectorDb.getMetadata();
                         if (metadata != null) {
                             String embeddingModel = metadata.getModeldir();
@@ -364,13 +364,7 @@ public class KnowledgeNoteFragment extends Fragment {
                 } catch (Exception e) {
                     LogManager.logE(TAG, "读取SQLite数据库失败", e);
                 } finally {
-                    if (vectorDb != null) {
-                        try {
-                            vectorDb.close();
-                        } catch (Exception e) {
-                            LogManager.logE(TAG, "关闭SQLite数据库失败", e);
-                        }
-                    }
+                    VectorDatabaseRegistry.getInstance().release(vectorDb);
                 }
                 
                 // 如果从SQLite数据库中获取失败，则尝试从ConfigManager中获取（兼容旧版本）
@@ -529,11 +523,12 @@ public class KnowledgeNoteFragment extends Fragment {
                 
                 // 使用SQLiteVectorDatabaseHandler添加笔记
                 updateProgress(getString(R.string.adding_note_to_kb));
-                SQLiteVectorDatabaseHandler noteVectorDb = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, "note");
+                // 与查询共享同一个句柄，写入的笔记对后续检索立即可见
+                SQLiteVectorDatabaseHandler noteVectorDb = VectorDatabaseRegistry.getInstance().acquire(knowledgeBaseDir);
                 
                 try {
                     // 加载数据库
-                    if (!noteVectorDb.loadDatabase()) {
+                    if (noteVectorDb == null) {
                         updateProgress(getString(R.string.error_load_sqlite_db));
                         enableAddButton();
                         
@@ -567,13 +562,27 @@ public class KnowledgeNoteFragment extends Fragment {
                         boolean success = true;
                         int addedCount = 0;
                         
+                        // 批量生成所有文本块的嵌入向量
+                        updateProgress(getString(R.string.generating_embedding_vector));
+                        List<float[]> chunkEmbeddings;
+                        try {
+                            chunkEmbeddings = embeddingHandler.generateEmbeddings(chunks);
+                        } finally {
+                            // 关闭本线程复用的ONNX输入张量
+                            OnnxInputBuffers.release();
+                        }
+                        
                         // 处理每个文本块
                         for (int i = 0; i < chunks.size(); i++) {
                             String chunk = chunks.get(i);
                             updateProgress(getString(R.string.adding_chunk_progress, (i + 1), chunks.size()));
                             
-                            // 生成嵌入向量
-                            float[] chunkEmbedding = embeddingHandler.generateEmbedding(chunk);
+                            float[] chunkEmbedding = chunkEmbeddings.get(i);
+                            if (chunkEmbedding == null) {
+                                success = false;
+                                updateProgress(getString(R.string.add_chunk_failed, i+1));
+                                continue;
+                            }
                             
                             // 向量异常处理
                             try {
@@ -629,7 +638,13 @@ public class KnowledgeNoteFragment extends Fragment {
                     } else {
                         // 直接生成嵌入向量
                         updateProgress(getString(R.string.generating_embedding_vector));
-                        float[] contentEmbedding = embeddingHandler.generateEmbedding(content);
+                        float[] contentEmbedding;
+                        try {
+                            contentEmbedding = embeddingHandler.generateEmbedding(content);
+                        } finally {
+                            // 关闭本线程复用的ONNX输入张量
+                            OnnxInputBuffers.release();
+                        }
                         
                         // 向量异常处理
                         try {
@@ -682,9 +697,6 @@ public class KnowledgeNoteFragment extends Fragment {
                     // 在关闭数据库之前检查文本块数量
                     boolean hasChunks = noteVectorDb.getChunkCount() > 0;
                     
-                    // 关闭数据库
-                    noteVectorDb.close();
-                    
                     // 标记模型使用结束
                     modelManager.markModelNotInUse();
                     updateProgress(getString(R.string.mark_model_end_use));
@@ -701,11 +713,11 @@ public class KnowledgeNoteFragment extends Fragment {
                 } catch (Exception e) {
                     LogManager.logE(TAG, "生成嵌入向量或添加笔记失败", e);
                     updateProgress(getString(R.string.error_message, e.getMessage()));
-                    if (noteVectorDb != null) {
-                        noteVectorDb.close();
-                    }
                     modelManager.markModelNotInUse();
                     updateProgress(getString(R.string.mark_model_end_use_error));
+                } finally {
+                    // 释放数据库句柄（只释放一次，acquire 失败时为 null 会被忽略）
+                    VectorDatabaseRegistry.getInstance().release(noteVectorDb);
                 }
             } catch (Exception e) {
                 LogManager.logE(TAG, "添加到知识库失败", e);
@@ -808,10 +820,10 @@ public class KnowledgeNoteFragment extends Fragment {
                 // 创建SQLite向量数据库处理器
                 LogManager.logI(TAG, "开始创建SQLite向量数据库处理器，知识库目录: " + knowledgeBaseDir.getAbsolutePath());
                 
-                vectorDb = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, "note");
                 LogManager.logI(TAG, "正在加载SQLite向量数据库...");
+                vectorDb = VectorDatabaseRegistry.getInstance().acquire(knowledgeBaseDir);
                 
-                if (vectorDb.loadDatabase()) {
+                if (vectorDb != null) {
                     // 更新嵌入模型路径
                     vectorDb.updateEmbeddingModel(embeddingModelPath);
                     LogManager.logD(TAG, "成功更新元数据");
@@ -820,8 +832,18 @@ public class KnowledgeNoteFragment extends Fragment {
                     LogManager.logE(TAG, "加载SQLite向量数据库失败");
                     updateProgress(getString(R.string.warning_sqlite_load_failed));
                     
-                    // 尝试创建新的元数据
-                    vectorDb.updateEmbeddingModel(embeddingModelPath);
+                    // 尝试创建新的元数据（注册表只管理可加载的知识库，这里独占目录使用临时句柄）
+                    VectorDatabaseRegistry.getInstance().beginExclusive(knowledgeBaseDir);
+                    try {
+                        SQLiteVectorDatabaseHandler newDb = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, "note");
+                        try {
+                            newDb.updateEmbeddingModel(embeddingModelPath);
+                        } finally {
+                            newDb.close();
+                        }
+                    } finally {
+                        VectorDatabaseRegistry.getInstance().endExclusive(knowledgeBaseDir);
+                    }
                     LogManager.logD(TAG, "创建了新的数据库元数据");
                     updateProgress(getString(R.string.progress_new_db_metadata_created));
                 }
@@ -829,15 +851,8 @@ public class KnowledgeNoteFragment extends Fragment {
                 LogManager.logE(TAG, "使用 SQLiteVectorDatabaseHandler 更新元数据失败", e);
                 updateProgress(getString(R.string.warning_update_db_metadata_failed, e.getMessage()));
             } finally {
-                // 确保关闭数据库
-                if (vectorDb != null) {
-                    try {
-                        vectorDb.close();
-                        LogManager.logD(TAG, "已关闭向量数据库");
-                    } catch (Exception e) {
-                        LogManager.logE(TAG, "关闭向量数据库失败", e);
-                    }
-                }
+                // 释放数据库句柄
+                VectorDatabaseRegistry.getInstance().release(vectorDb);
             }
             
             // 同时更新 metadata.json 文件以保持兼容性
@@ -0,0 +1,160 @@
+package com.example.starlocalrag;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Tokenizer for the full-text index
+ * SQLite 内置的 FTS 分词器按空白和标点切分，无法切分中日韩文本，因此写入全文索引前先在 Java 中分词，
+ * 以空格连接后交给 FTS 表：
+ * 字母数字串转小写后作为词；由 - _ . / : 连接的串（型号、错误码、版本号）同时保留各段和去掉连接符的整体，
+ * 查询 "ERR-1042" 时可精确命中；中日韩文字切为重叠的二元组，单字保留为一元。
+ * 建索引和查询使用同一套规则
+ */
+public final class LexicalTokenizer {
+    // Longest token kept, longer runs (base64, hashes) are truncated
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    // Query terms beyond this count are ignored
+    private static final int MAX_QUERY_TERMS = 64;
+
+    private LexicalTokenizer() {
+    }
+
+    /**
+     * Tokenize text for indexing
+     * @param text Chunk text
+     * @return Space separated tokens
+     */
+    public static String segment(String text) {
+        return String.join(" ", tokenize(text));
+    }
+
+    /**
+     * Build an FTS MATCH expression matching any query term
+     * @param query User query
+     * @return MATCH expression, or null if the query has no searchable terms
+     */
+    public static String toMatchQuery(String query) {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query));
+        if (terms.isEmpty()) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        int count = 0;
+        for (String term : terms) {
+            if (count++ == MAX_QUERY_TERMS) {
+                break;
+            }
+            if (match.length() > 0) {
+                match.append(" OR ");
+            }
+            // Tokens contain no quotes, quoting keeps FTS keywords such as AND/NOT literal
+            match.append('"').append(term).append('"');
+        }
+        return match.toString();
+    }
+
+    /**
+     * Split text into index terms
+     * @param text Text
+     * @return Terms in text order, with duplicates
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (isCjk(codePoint)) {
+                i = appendCjkRun(text, i, tokens);
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                i = appendWordRun(text, i, tokens);
+            } else {
+                i += Character.charCount(codePoint);
+            }
+        }
+        return tokens;
+    }
+
+    private static int appendCjkRun(String text, int start, List<String> tokens) {
+        List<Integer> run = new ArrayList<>();
+        int i = start;
+        while (i < text.length()) {
+            int codePoint = text.codePointAt(i);
+            if (!isCjk(codePoint)) {
+                break;
+            }
+            run.add(codePoint);
+            i += Character.charCount(codePoint);
+        }
+        if (run.size() == 1) {
+            tokens.add(new String(Character.toChars(run.get(0))));
+            return i;
+        }
+        for (int j = 0; j + 1 < run.size(); j++) {
+            StringBuilder bigram = new StringBuilder(4);
+            bigram.appendCodePoint(run.get(j)).appendCodePoint(run.get(j + 1));
+            tokens.add(bigram.toString());
+        }
+        return i;
+    }
+
+    private static int appendWordRun(String text, int start, List<String> tokens) {
+        List<String> parts = new ArrayList<>();
+        int i = start;
+        while (true) {
+            int partStart = i;
+            while (i < text.length()) {
+                int codePoint = text.codePointAt(i);
+                if (!Character.isLetterOrDigit(codePoint) || isCjk(codePoint)) {
+                    break;
+                }
+                i += Character.charCount(codePoint);
+            }
+            parts.add(text.substring(partStart, i).toLowerCase(Locale.ROOT));
+            // A single connector followed by another alphanumeric part continues the identifier
+            if (i + 1 < text.length() && isConnector(text.charAt(i))) {
+                int next = text.codePointAt(i + 1);
+                if (Character.isLetterOrDigit(next) && !isCjk(next)) {
+                    i++;
+                    continue;
+                }
+            }
+            break;
+        }
+        for (String part : parts) {
+            tokens.add(truncate(part));
+        }
+        if (parts.size() > 1) {
+            tokens.add(truncate(String.join("", parts)));
+        }
+        return i;
+    }
+
+    private static String truncate(String token) {
+        return token.length() > MAX_TOKEN_LENGTH ? token.substring(0, MAX_TOKEN_LENGTH) : token;
+    }
+
+    private static boolean isConnector(char c) {
+        return c == '-' || c == '_' || c == '.' || c == '/' || c == ':';
+    }
+
+    private static boolean isCjk(int codePoint) {
+        // The katakana prolonged sound mark belongs to the common script
+        if (codePoint == 0x30FC) {
+            return true;
+        }
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
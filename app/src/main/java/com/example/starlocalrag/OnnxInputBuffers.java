@@ -0,0 +1,238 @@
+package com.example.starlocalrag;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+
+/**
+ * Per-thread pool of ONNX input tensors (input_ids, attention_mask, token_type_ids)
+ * 三个输入各使用一块按本机字节序分配的直接内存，ONNX Runtime 直接在这块内存上创建张量而不复制；
+ * 每种 [batch, length] 形状的张量创建一次后缓存复用，同一线程上的推理每次只需写入 token，
+ * 稳态下每个文本块不再分配 LongBuffer、OnnxTensor 和输入 Map。
+ * 同一线程的所有形状共享同一块内存，因此一次只能有一组输入在使用中；
+ * 线程结束使用后调用 release() 关闭缓存的张量
+ */
+public final class OnnxInputBuffers {
+    private static final String TAG = "StarLocalRAG_OnnxInputBuffers";
+
+    public static final String INPUT_IDS = "input_ids";
+    public static final String ATTENTION_MASK = "attention_mask";
+    public static final String TOKEN_TYPE_IDS = "token_type_ids";
+
+    // 每个线程缓存的形状数，超出时关闭最久未使用的张量
+    private static final int MAX_CACHED_SHAPES = 32;
+
+    // Initial capacity in elements, grown to the largest batch * length seen
+    private static final int INITIAL_CAPACITY = 512;
+
+    private static final ThreadLocal<OnnxInputBuffers> POOL = new ThreadLocal<>();
+
+    private OrtEnvironment environment;
+    private LongBuffer inputIds;
+    private LongBuffer attentionMask;
+    private LongBuffer tokenTypeIds;
+    private final LinkedHashMap<Long, Inputs> shapes = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Input tensors of one shape, backed by the thread's pooled buffers
+     */
+    public static final class Inputs {
+        public final int batchSize;
+        public final int length;
+        private final LongBuffer inputIds;
+        private final LongBuffer attentionMask;
+        private final LongBuffer tokenTypeIds;
+        private final OnnxTensor inputIdsTensor;
+        private final OnnxTensor attentionMaskTensor;
+        private final OnnxTensor tokenTypeIdsTensor;
+        private Set<String> selectedNames;
+        private Map<String, OnnxTensor> selected;
+
+        private Inputs(OrtEnvironment environment, LongBuffer inputIds, LongBuffer attentionMask,
+                       LongBuffer tokenTypeIds, int batchSize, int length) throws OrtException {
+            this.batchSize = batchSize;
+            this.length = length;
+            this.inputIds = slice(inputIds, batchSize * length);
+            this.attentionMask = slice(attentionMask, batchSize * length);
+            this.tokenTypeIds = slice(tokenTypeIds, batchSize * length);
+            long[] shape = new long[]{batchSize, length};
+            OnnxTensor ids = null;
+            OnnxTensor mask = null;
+            try {
+                ids = OnnxTensor.createTensor(environment, this.inputIds, shape);
+                mask = OnnxTensor.createTensor(environment, this.attentionMask, shape);
+                this.tokenTypeIdsTensor = OnnxTensor.createTensor(environment, this.tokenTypeIds, shape);
+            } catch (OrtException | RuntimeException e) {
+                if (ids != null) {
+                    ids.close();
+                }
+                if (mask != null) {
+                    mask.close();
+                }
+                throw e;
+            }
+            this.inputIdsTensor = ids;
+            this.attentionMaskTensor = mask;
+        }
+
+        /**
+         * Write one row: token ids, attention mask 1 over the tokens, padding and token types 0
+         * @param row Row index
+         * @param tokens Token ids, at most length values
+         */
+        public void putRow(int row, long[] tokens) {
+            int offset = row * length;
+            int count = Math.min(tokens.length, length);
+            for (int i = 0; i < count; i++) {
+                inputIds.put(offset + i, tokens[i]);
+                attentionMask.put(offset + i, 1L);
+                tokenTypeIds.put(offset + i, 0L);
+            }
+            for (int i = count; i < length; i++) {
+                inputIds.put(offset + i, 0L);
+                attentionMask.put(offset + i, 0L);
+                tokenTypeIds.put(offset + i, 0L);
+            }
+        }
+
+        /**
+         * All three input tensors keyed by input name
+         */
+        public Map<String, OnnxTensor> all() {
+            return select(null);
+        }
+
+        /**
+         * Input tensors the model declares, keyed by input name
+         * 结果按输入名集合缓存，同一会话的重复调用不再创建 Map
+         * @param inputNames Input names of the session, null for all three
+         * @return Unmodifiable map of the matching tensors
+         */
+        public Map<String, OnnxTensor> select(Set<String> inputNames) {
+            if (selected != null && (inputNames == null ? selectedNames == null : inputNames.equals(selectedNames))) {
+                return selected;
+            }
+            Map<String, OnnxTensor> inputs = new HashMap<>();
+            if (inputNames == null || inputNames.contains(INPUT_IDS)) {
+                inputs.put(INPUT_IDS, inputIdsTensor);
+            }
+            if (inputNames == null || inputNames.contains(ATTENTION_MASK)) {
+                inputs.put(ATTENTION_MASK, attentionMaskTensor);
+            }
+            if (inputNames == null || inputNames.contains(TOKEN_TYPE_IDS)) {
+                inputs.put(TOKEN_TYPE_IDS, tokenTypeIdsTensor);
+            }
+            selectedNames = inputNames;
+            selected = Collections.unmodifiableMap(inputs);
+            return selected;
+        }
+
+        private void close() {
+            inputIdsTensor.close();
+            attentionMaskTensor.close();
+            tokenTypeIdsTensor.close();
+        }
+
+        private static LongBuffer slice(LongBuffer buffer, int size) {
+            LongBuffer view = buffer.duplicate();
+            view.clear();
+            view.limit(size);
+            return view.slice();
+        }
+    }
+
+    private OnnxInputBuffers() {
+    }
+
+    /**
+     * Input tensors of the given shape for the current thread
+     * 返回的张量归线程池所有，调用方不能关闭；在下一次 acquire() 前必须用完
+     * @param environment ONNX Runtime environment
+     * @param batchSize Number of rows
+     * @param length Padded sequence length
+     * @return Pooled inputs, rows must be written with putRow()
+     * @throws OrtException If a tensor cannot be created
+     */
+    public static Inputs acquire(OrtEnvironment environment, int batchSize, int length) throws OrtException {
+        if (batchSize <= 0 || length <= 0) {
+            throw new IllegalArgumentException("Invalid input shape: [" + batchSize + ", " + length + "]");
+        }
+        OnnxInputBuffers pool = POOL.get();
+        if (pool == null) {
+            pool = new OnnxInputBuffers();
+            POOL.set(pool);
+        }
+        return pool.get(environment, batchSize, length);
+    }
+
+    /**
+     * Close the current thread's cached tensors and drop its buffers
+     * 构建或查询结束后调用，保证原生内存不随线程增长
+     */
+    public static void release() {
+        OnnxInputBuffers pool = POOL.get();
+        if (pool != null) {
+            POOL.remove();
+            pool.closeShapes();
+        }
+    }
+
+    /**
+     * Drop the current thread's pool without closing its tensors
+     * 推理超时后仍在运行的原生调用可能还在读取这些张量，此时只能放弃而不能关闭
+     */
+    public static void abandon() {
+        POOL.remove();
+    }
+
+    private Inputs get(OrtEnvironment environment, int batchSize, int length) throws OrtException {
+        int size = Math.multiplyExact(batchSize, length);
+        if (environment != this.environment || inputIds == null || inputIds.capacity() < size) {
+            // 张量绑定环境和底层内存，环境变化或扩容后旧张量全部作废
+            closeShapes();
+            int capacity = inputIds != null ? inputIds.capacity() : INITIAL_CAPACITY;
+            while (capacity < size) {
+                capacity = capacity > Integer.MAX_VALUE / 2 ? size : capacity * 2;
+            }
+            inputIds = allocate(capacity);
+            attentionMask = allocate(capacity);
+            tokenTypeIds = allocate(capacity);
+            this.environment = environment;
+            LogManager.logD(TAG, "Allocated pooled input buffers of " + capacity + " tokens");
+        }
+
+        long key = (long) batchSize << 32 | length;
+        Inputs inputs = shapes.get(key);
+        if (inputs == null) {
+            inputs = new Inputs(environment, inputIds, attentionMask, tokenTypeIds, batchSize, length);
+            shapes.put(key, inputs);
+            Iterator<Inputs> iterator = shapes.values().iterator();
+            while (shapes.size() > MAX_CACHED_SHAPES && iterator.hasNext()) {
+                iterator.next().close();
+                iterator.remove();
+            }
+        }
+        return inputs;
+    }
+
+    private void closeShapes() {
+        for (Inputs inputs : shapes.values()) {
+            inputs.close();
+        }
+        shapes.clear();
+    }
+
+    private static LongBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.starlocalrag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel brute-force top-K scan over independent blocks
+ * 将扫描范围划分为若干块，由多个工作线程（含调用线程）动态领取，每个线程维护自己的 TopKHeap，
+ * 结束后合并；每领取一个块前检查全局停止标志，任一块失败则其余线程在块边界停止
+ */
+public final class ParallelScanner {
+    private static final String TAG = "StarLocalRAG_ParallelScan";
+
+    // Blocks per worker, more blocks balance uneven ranges at the cost of more queries
+    public static final int BLOCKS_PER_WORKER = 4;
+
+    // 共享线程池，按CPU核心数创建守护线程，检索结束后线程空闲等待
+    private static volatile ExecutorService executor;
+
+    private ParallelScanner() {
+    }
+
+    /**
+     * Scores one block into a worker-local heap
+     */
+    public interface BlockScorer {
+        /**
+         * @param block Block index in [0, blockCount)
+         * @param heap Heap owned by the calling worker
+         * @return Whether the block was scored, false aborts the scan
+         */
+        boolean scoreBlock(int block, TopKHeap heap);
+    }
+
+    /**
+     * Number of scan workers left after the inference threads are reserved
+     * 推理线程（ONNX嵌入/重排、llama.cpp）优先，检索只使用剩余的核心，至少1个
+     * @param configured Configured worker count, 0 or less means automatic
+     * @param reservedThreads Threads reserved for model inference
+     * @return Worker count including the calling thread
+     */
+    public static int resolveWorkerCount(int configured, int reservedThreads) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int budget = Math.max(1, cores - Math.max(0, reservedThreads));
+        return configured > 0 ? Math.min(configured, budget) : budget;
+    }
+
+    /**
+     * Scan all blocks and return the merged top-K heap
+     * @param blockCount Number of blocks
+     * @param workers Number of workers including the calling thread
+     * @param topK Heap capacity
+     * @param scorer Block scorer, called concurrently from several threads
+     * @return Merged heap (unsorted), or null if the scan was aborted or failed
+     */
+    public static TopKHeap scan(int blockCount, int workers, int topK, BlockScorer scorer) {
+        workers = Math.max(1, Math.min(workers, blockCount));
+        AtomicInteger nextBlock = new AtomicInteger();
+        AtomicBoolean aborted = new AtomicBoolean(false);
+
+        // 调用线程本身也是一个工作线程
+        List<Future<TopKHeap>> futures = new ArrayList<>(workers - 1);
+        try {
+            for (int i = 1; i < workers; i++) {
+                futures.add(getExecutor().submit(() -> runWorker(blockCount, topK, scorer, nextBlock, aborted)));
+            }
+        } catch (Exception e) {
+            LogManager.logW(TAG, "Failed to submit scan workers, continuing with " + (futures.size() + 1) + ": " + e.getMessage());
+        }
+
+        TopKHeap merged = runWorker(blockCount, topK, scorer, nextBlock, aborted);
+        for (Future<TopKHeap> future : futures) {
+            try {
+                merged.merge(future.get());
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Scan worker failed: " + e.getMessage(), e);
+                aborted.set(true);
+            }
+        }
+        return aborted.get() ? null : merged;
+    }
+
+    private static TopKHeap runWorker(int blockCount, int topK, BlockScorer scorer,
+                                      AtomicInteger nextBlock, AtomicBoolean aborted) {
+        TopKHeap heap = new TopKHeap(topK);
+        int block;
+        while (!aborted.get() && (block = nextBlock.getAndIncrement()) < blockCount) {
+            if (GlobalStopManager.isGlobalStopRequested()) {
+                LogManager.logD(TAG, "Global stop requested, aborting parallel scan");
+                aborted.set(true);
+                break;
+            }
+            try {
+                if (!scorer.scoreBlock(block, heap)) {
+                    aborted.set(true);
+                }
+            } catch (RuntimeException e) {
+                aborted.set(true);
+                throw e;
+            }
+        }
+        return heap;
+    }
+
+    private static ExecutorService getExecutor() {
+        ExecutorService current = executor;
+        if (current == null) {
+            synchronized (ParallelScanner.class) {
+                current = executor;
+                if (current == null) {
+                    AtomicInteger threadIndex = new AtomicInteger();
+                    current = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                        Thread thread = new Thread(runnable, "StarLocalRAG-Scan-" + threadIndex.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,414 @@
+package com.example.starlocalrag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Product quantizer with per-subspace k-means codebooks
+ * 将单位化后的向量切分为 m 个子向量，每个子空间训练 2^nbits 个质心，每个向量只存 m 字节编码；
+ * 查询时为每个子空间预先计算查询子向量与所有质心的内积（ADC查表），逐行打分只需 m 次查表相加
+ */
+public class ProductQuantizer {
+    private static final String TAG = "StarLocalRAG_PQ";
+
+    // 文件格式标识 "PQCB" 及版本
+    private static final int FILE_MAGIC = 0x50514342;
+    private static final int FILE_VERSION = 1;
+
+    public static final int DEFAULT_M = 32;
+    public static final int DEFAULT_NBITS = 8;
+    public static final int MAX_NBITS = 8;
+
+    private static final int KMEANS_ITERATIONS = 10;
+    private static final int SAMPLES_PER_CENTROID = 32;
+
+    // 训练样本最多占用的浮点数（约32MB）
+    private static final int MAX_SAMPLE_FLOATS = 8 * 1024 * 1024;
+
+    private final int dimension;
+    private final int m;
+    private final int nbits;
+    private final int ksub;
+    private final int dsub;
+
+    // codebooks[(j * ksub + c) * dsub + d]：第 j 个子空间第 c 个质心的第 d 维
+    private final float[] codebooks;
+
+    // 每个质心范数平方的一半，编码时复用
+    private final float[] halfNorms;
+
+    private ProductQuantizer(int dimension, int m, int nbits, float[] codebooks) {
+        this.dimension = dimension;
+        this.m = m;
+        this.nbits = nbits;
+        this.ksub = 1 << nbits;
+        this.dsub = dimension / m;
+        this.codebooks = codebooks;
+        this.halfNorms = new float[m * ksub];
+        float[] subspaceNorms = new float[ksub];
+        for (int j = 0; j < m; j++) {
+            computeHalfNorms(codebooks, j * ksub * dsub, ksub, dsub, subspaceNorms);
+            System.arraycopy(subspaceNorms, 0, halfNorms, j * ksub, ksub);
+        }
+    }
+
+    /**
+     * Largest number of subspaces not above the requested value that divides the dimension
+     * @param dimension Vector dimension
+     * @param requestedM Requested number of subspaces
+     * @return Usable m (at least 1)
+     */
+    public static int adjustM(int dimension, int requestedM) {
+        int m = Math.max(1, Math.min(requestedM, dimension));
+        while (dimension % m != 0) {
+            m--;
+        }
+        return m;
+    }
+
+    /**
+     * Number of training samples needed for a given nbits and dimension
+     */
+    public static int trainingSampleSize(int nbits, int dimension) {
+        int ksub = 1 << Math.max(1, Math.min(MAX_NBITS, nbits));
+        return Math.max(ksub, Math.min(ksub * SAMPLES_PER_CENTROID, MAX_SAMPLE_FLOATS / Math.max(1, dimension)));
+    }
+
+    /**
+     * Train codebooks
+     * @param samples Sample vectors (row-major, sampleCount * dimension), normalized in place
+     * @param sampleCount Number of samples
+     * @param dimension Vector dimension
+     * @param m Number of subspaces, must divide the dimension
+     * @param nbits Bits per sub-code (1..8)
+     * @return Trained quantizer, or null if aborted
+     */
+    public static ProductQuantizer train(float[] samples, int sampleCount, int dimension, int m, int nbits) {
+        if (m <= 0 || dimension % m != 0) {
+            throw new IllegalArgumentException("Subspace count " + m + " does not divide dimension " + dimension);
+        }
+        if (nbits < 1 || nbits > MAX_NBITS) {
+            throw new IllegalArgumentException("nbits must be between 1 and " + MAX_NBITS + ": " + nbits);
+        }
+        if (sampleCount <= 0) {
+            return null;
+        }
+        for (int i = 0; i < sampleCount; i++) {
+            VectorMath.sanitizeAndNormalizeInPlace(samples, i * dimension, dimension);
+        }
+
+        int ksub = 1 << nbits;
+        int dsub = dimension / m;
+        float[] codebooks = new float[m * ksub * dsub];
+        Random random = new Random(42);
+        int[] assignment = new int[sampleCount];
+        int[] counts = new int[ksub];
+        float[] sums = new float[ksub * dsub];
+        float[] halfNorms = new float[ksub];
+
+        for (int j = 0; j < m; j++) {
+            if (GlobalStopManager.isGlobalStopRequested()) {
+                LogManager.logD(TAG, "Global stop requested, aborting codebook training");
+                return null;
+            }
+            int subOffset = j * dsub;
+            int bookBase = j * ksub * dsub;
+
+            // 随机选取初始质心（样本不足时允许重复）
+            for (int c = 0; c < ksub; c++) {
+                int sample = c < sampleCount ? c : random.nextInt(sampleCount);
+                System.arraycopy(samples, sample * dimension + subOffset, codebooks, bookBase + c * dsub, dsub);
+            }
+
+            for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+                computeHalfNorms(codebooks, bookBase, ksub, dsub, halfNorms);
+                Arrays.fill(counts, 0);
+                Arrays.fill(sums, 0.0f);
+                int changed = 0;
+                for (int i = 0; i < sampleCount; i++) {
+                    int offset = i * dimension + subOffset;
+                    int best = nearest(codebooks, bookBase, ksub, dsub, halfNorms, 0, samples, offset);
+                    if (iteration == 0 || best != assignment[i]) {
+                        changed++;
+                    }
+                    assignment[i] = best;
+                    counts[best]++;
+                    for (int d = 0; d < dsub; d++) {
+                        sums[best * dsub + d] += samples[offset + d];
+                    }
+                }
+                for (int c = 0; c < ksub; c++) {
+                    int target = bookBase + c * dsub;
+                    if (counts[c] == 0) {
+                        // 空簇：用随机样本重新初始化
+                        System.arraycopy(samples, random.nextInt(sampleCount) * dimension + subOffset, codebooks, target, dsub);
+                    } else {
+                        float inverse = 1.0f / counts[c];
+                        for (int d = 0; d < dsub; d++) {
+                            codebooks[target + d] = sums[c * dsub + d] * inverse;
+                        }
+                    }
+                }
+                if (iteration > 0 && changed == 0) {
+                    break;
+                }
+            }
+        }
+        LogManager.logD(TAG, "PQ codebooks trained (m=" + m + ", nbits=" + nbits + ") on " + sampleCount + " samples");
+        return new ProductQuantizer(dimension, m, nbits, codebooks);
+    }
+
+    /**
+     * Encode a vector (normalized before encoding)
+     * @param vector Vector
+     * @return m-byte code, or null if the dimension does not match
+     */
+    public byte[] encode(float[] vector) {
+        if (vector == null || vector.length != dimension) {
+            return null;
+        }
+        float[] unit = Arrays.copyOf(vector, dimension);
+        VectorMath.sanitizeAndNormalizeInPlace(unit, 0, dimension);
+        byte[] code = new byte[m];
+        for (int j = 0; j < m; j++) {
+            code[j] = (byte) nearest(codebooks, j * ksub * dsub, ksub, dsub, halfNorms, j * ksub, unit, j * dsub);
+        }
+        return code;
+    }
+
+    /**
+     * Build the asymmetric-distance lookup table for a query
+     * @param query Query vector (normalized internally)
+     * @return Table of size m * ksub holding inner products between query sub-vectors and centroids
+     */
+    public float[] buildLookupTable(float[] query) {
+        float[] unit = Arrays.copyOf(query, dimension);
+        VectorMath.sanitizeAndNormalizeInPlace(unit, 0, dimension);
+        float[] table = new float[m * ksub];
+        for (int j = 0; j < m; j++) {
+            int bookBase = j * ksub * dsub;
+            int subOffset = j * dsub;
+            for (int c = 0; c < ksub; c++) {
+                int centroid = bookBase + c * dsub;
+                float sum = 0.0f;
+                for (int d = 0; d < dsub; d++) {
+                    sum += unit[subOffset + d] * codebooks[centroid + d];
+                }
+                table[j * ksub + c] = sum;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Approximate cosine similarity of a code using a lookup table
+     * @param table Lookup table from buildLookupTable
+     * @param code m-byte code
+     * @return Approximate similarity, or NEGATIVE_INFINITY if the code size does not match
+     */
+    public float score(float[] table, byte[] code) {
+        if (code == null || code.length != m) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        float sum = 0.0f;
+        for (int j = 0; j < m; j++) {
+            sum += table[j * ksub + (code[j] & 0xFF)];
+        }
+        return sum;
+    }
+
+    /**
+     * Save codebooks to a file
+     * @param file Target file
+     * @return Whether the save succeeded
+     */
+    public boolean save(File file) {
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(dimension);
+            out.writeInt(m);
+            out.writeInt(nbits);
+            for (float value : codebooks) {
+                out.writeFloat(value);
+            }
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to save PQ codebooks: " + e.getMessage(), e);
+            tmpFile.delete();
+            return false;
+        }
+        if (file.exists() && !file.delete()) {
+            LogManager.logE(TAG, "Failed to replace existing PQ codebook file: " + file.getAbsolutePath());
+            tmpFile.delete();
+            return false;
+        }
+        if (!tmpFile.renameTo(file)) {
+            LogManager.logE(TAG, "Failed to rename PQ codebook file: " + tmpFile.getAbsolutePath());
+            return false;
+        }
+        LogManager.logD(TAG, "PQ codebooks saved: " + file.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * Load codebooks from a file
+     * @param file Codebook file
+     * @return Quantizer, or null if the file is missing or invalid
+     */
+    public static ProductQuantizer load(File file) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                LogManager.logE(TAG, "Invalid PQ codebook file: " + file.getAbsolutePath());
+                return null;
+            }
+            int version = in.readInt();
+            if (version != FILE_VERSION) {
+                LogManager.logW(TAG, "Unsupported PQ codebook version: " + version);
+                return null;
+            }
+            int dimension = in.readInt();
+            int m = in.readInt();
+            int nbits = in.readInt();
+            if (m <= 0 || dimension % m != 0 || nbits < 1 || nbits > MAX_NBITS) {
+                LogManager.logE(TAG, "Invalid PQ parameters in " + file.getAbsolutePath());
+                return null;
+            }
+            float[] codebooks = new float[dimension << nbits];
+            for (int i = 0; i < codebooks.length; i++) {
+                codebooks[i] = in.readFloat();
+            }
+            return new ProductQuantizer(dimension, m, nbits, codebooks);
+        } catch (IOException e) {
+            LogManager.logE(TAG, "Failed to load PQ codebooks: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Measure recall of PQ ranking against exact cosine ranking
+     * @param base Base vectors (row-major)
+     * @param baseCount Number of base vectors
+     * @param queries Query vectors (row-major)
+     * @param queryCount Number of queries
+     * @param topK Number of neighbours compared
+     * @param rescoreCount Shortlist size re-scored with exact similarity during search
+     * @return {recall of PQ top-K, recall of PQ top-rescoreCount containing the exact top-K}
+     */
+    public float[] measureRecall(float[] base, int baseCount, float[] queries, int queryCount, int topK, int rescoreCount) {
+        byte[][] codes = new byte[baseCount][];
+        float[] inverseNorms = new float[baseCount];
+        float[] row = new float[dimension];
+        for (int i = 0; i < baseCount; i++) {
+            System.arraycopy(base, i * dimension, row, 0, dimension);
+            codes[i] = encode(row);
+            inverseNorms[i] = VectorMath.inverseNorm(row);
+        }
+
+        float[] query = new float[dimension];
+        long hits = 0;
+        long shortlistHits = 0;
+        long expected = 0;
+        for (int q = 0; q < queryCount; q++) {
+            System.arraycopy(queries, q * dimension, query, 0, dimension);
+            float queryInverseNorm = VectorMath.inverseNorm(query);
+            float[] table = buildLookupTable(query);
+            TopKHeap exact = new TopKHeap(topK);
+            TopKHeap approximate = new TopKHeap(topK);
+            TopKHeap shortlist = new TopKHeap(Math.max(topK, rescoreCount));
+            for (int i = 0; i < baseCount; i++) {
+                float dot = 0.0f;
+                int offset = i * dimension;
+                for (int d = 0; d < dimension; d++) {
+                    dot += query[d] * base[offset + d];
+                }
+                exact.offer(i, dot * inverseNorms[i] * queryInverseNorm);
+                float approx = score(table, codes[i]);
+                approximate.offer(i, approx);
+                shortlist.offer(i, approx);
+            }
+            Set<Long> truth = new HashSet<>();
+            for (int i = 0; i < exact.size(); i++) {
+                truth.add(exact.getId(i));
+            }
+            expected += truth.size();
+            for (int i = 0; i < approximate.size(); i++) {
+                if (truth.contains(approximate.getId(i))) {
+                    hits++;
+                }
+            }
+            for (int i = 0; i < shortlist.size(); i++) {
+                if (truth.contains(shortlist.getId(i))) {
+                    shortlistHits++;
+                }
+            }
+        }
+        if (expected == 0) {
+            return new float[]{0.0f, 0.0f};
+        }
+        return new float[]{(float) hits / expected, (float) shortlistHits / expected};
+    }
+
+    private static void computeHalfNorms(float[] codebooks, int bookBase, int ksub, int dsub, float[] out) {
+        for (int c = 0; c < ksub; c++) {
+            int base = bookBase + c * dsub;
+            float sum = 0.0f;
+            for (int d = 0; d < dsub; d++) {
+                sum += codebooks[base + d] * codebooks[base + d];
+            }
+            out[c] = 0.5f * sum;
+        }
+    }
+
+    // argmin ||x - c||^2 == argmax (x·c - ||c||^2 / 2)
+    private static int nearest(float[] codebooks, int bookBase, int ksub, int dsub, float[] halfNorms, int normBase,
+                               float[] vector, int offset) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < ksub; c++) {
+            int base = bookBase + c * dsub;
+            float sum = 0.0f;
+            for (int d = 0; d < dsub; d++) {
+                sum += vector[offset + d] * codebooks[base + d];
+            }
+            float score = sum - halfNorms[normBase + c];
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getNbits() {
+        return nbits;
+    }
+
+    /**
+     * Code size in bytes per vector
+     */
+    public int getCodeSize() {
+        return m;
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.starlocalrag;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded LRU cache of query embeddings
+ * 以“模型标识 + 规范化查询文本”为键（模型标识含模型文件大小、修改时间和归一化、最大序列长度设置，替换模型或改设置后旧向量不再命中），重复提问、重试和新对话中的相同问题直接返回缓存的向量，跳过分词和 ONNX 推理；
+ * 规范化只做 NFKC 和空白折叠，不改变大小写（区分大小写的模型会得到不同的向量）。
+ * 可选保存到应用私有目录，应用重启后继续命中
+ */
+public class QueryEmbeddingCache {
+    private static final String TAG = "StarLocalRAG_QueryEmbeddingCache";
+
+    private static final String CACHE_FILENAME = "query_embedding_cache.bin";
+    private static final int FILE_MAGIC = 0x51454332; // "QEC2", keyed by model identity
+
+    // writeUTF stores at most 65535 bytes, longer queries are kept in memory only
+    private static final int MAX_PERSISTED_KEY_CHARS = 20000;
+
+    private static QueryEmbeddingCache instance;
+
+    private final Context context;
+    private final LinkedHashMap<String, float[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hitCount;
+    private long missCount;
+    private boolean loaded;
+
+    // Disk writes are coalesced, at most one is pending
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "StarLocalRAG-QueryEmbeddingCache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean writePending = new AtomicBoolean();
+
+    private QueryEmbeddingCache(Context context) {
+        this.context = context;
+    }
+
+    public static synchronized QueryEmbeddingCache getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context != null ? context.getApplicationContext() : GlobalApplication.getAppContext();
+            instance = new QueryEmbeddingCache(appContext);
+        }
+        return instance;
+    }
+
+    /**
+     * Look up a query embedding
+     * @param modelIdentity Model identity, see EmbeddingModelHandler.getModelIdentity()
+     * @param query Query text
+     * @return Copy of the cached embedding, or null on a miss or when the cache is disabled
+     */
+    public synchronized float[] get(String modelIdentity, String query) {
+        int capacity = getCapacity();
+        if (capacity <= 0) {
+            return null;
+        }
+        ensureLoaded(capacity);
+        float[] embedding = entries.get(keyOf(modelIdentity, query));
+        if (embedding == null) {
+            missCount++;
+            LogManager.logD(TAG, "Query embedding cache miss (hits=" + hitCount + ", misses=" + missCount + ")");
+            return null;
+        }
+        hitCount++;
+        LogManager.logD(TAG, "Query embedding cache hit (hits=" + hitCount + ", misses=" + missCount + ")");
+        return embedding.clone();
+    }
+
+    /**
+     * Store a query embedding, evicting the least recently used entries beyond the capacity
+     * @param modelIdentity Model identity, see EmbeddingModelHandler.getModelIdentity()
+     * @param query Query text
+     * @param embedding Embedding vector, empty vectors are not cached
+     */
+    public synchronized void put(String modelIdentity, String query, float[] embedding) {
+        int capacity = getCapacity();
+        if (capacity <= 0 || embedding == null || embedding.length == 0) {
+            return;
+        }
+        ensureLoaded(capacity);
+        entries.put(keyOf(modelIdentity, query), embedding.clone());
+        trimTo(capacity);
+        if (isPersistent()) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Drop all entries, including the file on disk
+     */
+    public synchronized void clear() {
+        entries.clear();
+        hitCount = 0;
+        missCount = 0;
+        File file = getCacheFile();
+        if (file != null && file.exists() && !file.delete()) {
+            LogManager.logW(TAG, "Failed to delete query embedding cache file");
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Normalized cache key
+     * 折叠空白并做 NFKC 规范化，全角/半角和多余空格不同的相同问题命中同一条目
+     */
+    static String keyOf(String modelIdentity, String query) {
+        String normalized = Normalizer.normalize(query != null ? query : "", Normalizer.Form.NFKC)
+                .trim().replaceAll("\\s+", " ");
+        return (modelIdentity != null ? modelIdentity : "") + '\n' + normalized;
+    }
+
+    private void trimTo(int capacity) {
+        Iterator<Map.Entry<String, float[]>> iterator = entries.entrySet().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private int getCapacity() {
+        return context != null ? ConfigManager.getQueryEmbeddingCacheSize(context)
+                : ConfigManager.DEFAULT_QUERY_EMBEDDING_CACHE_SIZE;
+    }
+
+    private boolean isPersistent() {
+        return context != null && ConfigManager.isQueryEmbeddingCachePersistent(context);
+    }
+
+    private File getCacheFile() {
+        return context != null ? new File(context.getFilesDir(), CACHE_FILENAME) : null;
+    }
+
+    private void ensureLoaded(int capacity) {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = getCacheFile();
+        if (!isPersistent() || file == null || !file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                LogManager.logW(TAG, "Query embedding cache file has an unknown format, ignoring it");
+                return;
+            }
+            int count = in.readInt();
+            // Entries are stored from least to most recently used
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                float[] embedding = new float[in.readInt()];
+                for (int j = 0; j < embedding.length; j++) {
+                    embedding[j] = in.readFloat();
+                }
+                entries.put(key, embedding);
+            }
+            trimTo(capacity);
+            LogManager.logI(TAG, "Loaded " + entries.size() + " cached query embeddings");
+        } catch (IOException | RuntimeException e) {
+            LogManager.logW(TAG, "Failed to load query embedding cache: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    private void scheduleWrite() {
+        if (!writePending.compareAndSet(false, true)) {
+            return;
+        }
+        writer.execute(() -> {
+            writePending.set(false);
+            Map<String, float[]> snapshot;
+            synchronized (this) {
+                snapshot = new LinkedHashMap<>(entries);
+            }
+            writeFile(snapshot);
+        });
+    }
+
+    private void writeFile(Map<String, float[]> snapshot) {
+        File file = getCacheFile();
+        if (file == null) {
+            return;
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            List<Map.Entry<String, float[]>> persisted = new ArrayList<>();
+            for (Map.Entry<String, float[]> entry : snapshot.entrySet()) {
+                if (entry.getKey().length() <= MAX_PERSISTED_KEY_CHARS) {
+                    persisted.add(entry);
+                }
+            }
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(persisted.size());
+            for (Map.Entry<String, float[]> entry : persisted) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (float value : entry.getValue()) {
+                    out.writeFloat(value);
+                }
+            }
+        } catch (IOException e) {
+            LogManager.logW(TAG, "Failed to write query embedding cache: " + e.getMessage());
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            LogManager.logW(TAG, "Failed to replace query embedding cache file");
+            tmpFile.delete();
+        }
+    }
+}
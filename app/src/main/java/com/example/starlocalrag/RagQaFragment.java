@@ -25,6 +25,7 @@ import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
 import android.view.Menu;
+import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
@@ -47,8 +48,10 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.view.MenuProvider;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentTransaction;
+import androidx.lifecycle.Lifecycle;
 
 import com.android.volley.Request;
 import com.android.volley.toolbox.JsonObjectRequest;
@@ -79,6 +82,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 
@@ -166,6 +170,12 @@ public class RagQaFragment extends Fragment {
     // 主线程Handler
     private Handler mainHandler;
 
+    // 当前查询使用的知识库句柄（来自 VectorDatabaseRegistry，只释放不关闭）
+    private SQLiteVectorDatabaseHandler activeKnowledgeBase;
+
+    // 各知识库限定检索的来源文件（知识库名 -> 来源列表），只在本页面生命周期内有效，避免遗留的过滤条件悄悄缩小检索范围
+    private final Map<String, List<String>> sourceFilters = new ConcurrentHashMap<>();
+
     // 搜索结果文档
     private List<String> relevantDocuments;
     private String similarityInfo;
@@ -282,6 +292,12 @@ public class RagQaFragment extends Fragment {
             return false;
         });
         
+        // 长按知识库下拉框选择一起检索的其他知识库（与菜单中的联合检索知识库相同）
+        spinnerKnowledgeBase.setOnLongClickListener(v -> {
+            showFederatedKnowledgeBaseDialog();
+            return true;
+        });
+        
         // 为知识库Spinner添加选择监听器，保存选择的知识库
         spinnerKnowledgeBase.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
@@ -375,6 +391,29 @@ public class RagQaFragment extends Fragment {
         // 初始化主线程Handler
         mainHandler = new Handler(Looper.getMainLooper());
         
+        // 添加MenuProvider来处理菜单
+        requireActivity().addMenuProvider(new MenuProvider() {
+            @Override
+            public void onCreateMenu(@NonNull Menu menu, @NonNull MenuInflater menuInflater) {
+                menuInflater.inflate(R.menu.rag_qa_menu, menu);
+            }
+            
+            @Override
+            public boolean onMenuItemSelected(@NonNull MenuItem menuItem) {
+                int id = menuItem.getItemId();
+                
+                if (id == R.id.action_search_sources) {
+                    showSourceFilterDialog();
+                    return true;
+                } else if (id == R.id.action_federated_knowledge_bases) {
+                    showFederatedKnowledgeBaseDialog();
+                    return true;
+                }
+                
+                return false;
+            }
+        }, getViewLifecycleOwner(), Lifecycle.State.RESUMED);
+        
         // 初始Markdown渲染器，使用全功能插件支持
         LogManager.logD(TAG, "Initializing Markwon renderer");
         markwon = Markwon.builder(requireContext())
@@ -869,6 +908,102 @@ public class RagQaFragment extends Fragment {
         }
     }
     
+    // 选择与当前知识库一起检索的其他知识库
+    private void showFederatedKnowledgeBaseDialog() {
+        String knowledgeBasePath = ConfigManager.getString(requireContext(), ConfigManager.KEY_KNOWLEDGE_BASE_PATH, ConfigManager.DEFAULT_KNOWLEDGE_BASE_PATH);
+        File[] directories = new File(knowledgeBasePath).listFiles(File::isDirectory);
+        String current = ConfigManager.getKnowledgeBase(requireContext());
+        List<String> candidates = new ArrayList<>();
+        if (directories != null) {
+            for (File dir : directories) {
+                if (!dir.getName().equals(current)) {
+                    candidates.add(dir.getName());
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            Toast.makeText(requireContext(), getString(R.string.toast_no_other_knowledge_bases), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        List<String> selected = ConfigManager.getFederatedKnowledgeBases(requireContext());
+        String[] names = candidates.toArray(new String[0]);
+        boolean[] checked = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            checked[i] = selected.contains(names[i]);
+        }
+        new AlertDialog.Builder(requireContext())
+                .setTitle(R.string.dialog_title_federated_knowledge_bases)
+                .setMultiChoiceItems(names, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton(R.string.common_ok, (dialog, which) -> {
+                    List<String> chosen = new ArrayList<>();
+                    for (int i = 0; i < names.length; i++) {
+                        if (checked[i]) {
+                            chosen.add(names[i]);
+                        }
+                    }
+                    ConfigManager.setFederatedKnowledgeBases(requireContext(), chosen);
+                    LogManager.logD(TAG, "Saved federated knowledge bases: " + chosen);
+                })
+                .setNegativeButton(R.string.common_cancel, null)
+                .show();
+    }
+    
+    // 选择当前知识库中参与检索的来源文件，来源列表从知识库元数据读取
+    private void showSourceFilterDialog() {
+        String knowledgeBase = ConfigManager.getKnowledgeBase(requireContext());
+        if (knowledgeBase.isEmpty() || StateDisplayManager.isKnowledgeBaseStatusDisplayText(requireContext(), knowledgeBase)) {
+            return;
+        }
+        String knowledgeBasePath = ConfigManager.getString(requireContext(), ConfigManager.KEY_KNOWLEDGE_BASE_PATH, ConfigManager.DEFAULT_KNOWLEDGE_BASE_PATH);
+        File knowledgeBaseDir = new File(knowledgeBasePath, knowledgeBase);
+        
+        // 打开知识库可能较慢，在查询线程上获取句柄，下一次查询直接复用
+        ragQueryExecutor.execute(() -> {
+            SQLiteVectorDatabaseHandler vectorDb = acquireKnowledgeBase(knowledgeBaseDir);
+            List<String> sources = vectorDb != null ? new ArrayList<>(vectorDb.getMetadata().getSources()) : new ArrayList<>();
+            mainHandler.post(() -> {
+                if (!isAdded()) {
+                    return;
+                }
+                if (sources.isEmpty()) {
+                    Toast.makeText(requireContext(), getString(R.string.toast_no_sources_in_knowledge_base), Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                
+                List<String> selected = sourceFilters.getOrDefault(knowledgeBase, new ArrayList<>());
+                String[] names = sources.toArray(new String[0]);
+                boolean[] checked = new boolean[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    checked[i] = selected.contains(names[i]);
+                }
+                new AlertDialog.Builder(requireContext())
+                        .setTitle(R.string.dialog_title_search_sources)
+                        .setMultiChoiceItems(names, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                        .setPositiveButton(R.string.common_ok, (dialog, which) -> {
+                            List<String> chosen = new ArrayList<>();
+                            for (int i = 0; i < names.length; i++) {
+                                if (checked[i]) {
+                                    chosen.add(names[i]);
+                                }
+                            }
+                            if (chosen.isEmpty()) {
+                                sourceFilters.remove(knowledgeBase);
+                            } else {
+                                sourceFilters.put(knowledgeBase, chosen);
+                            }
+                            LogManager.logD(TAG, "Source filter of " + knowledgeBase + ": " + chosen);
+                        })
+                        .setNeutralButton(R.string.common_clear, (dialog, which) -> {
+                            sourceFilters.remove(knowledgeBase);
+                            LogManager.logD(TAG, "Source filter of " + knowledgeBase + " cleared");
+                        })
+                        .setNegativeButton(R.string.common_cancel, null)
+                        .show();
+            });
+        });
+    }
+    
     // 加载上次选择的知识库
     private void loadLastSelectedKnowledgeBase() {
         try {
@@ -1779,13 +1914,10 @@ public class RagQaFragment extends Fragment {
                 LogManager.logI(TAG, "Starting to create SQLite vector database handler, knowledge base directory: " + knowledgeBaseDir.getAbsolutePath());
                 
                 try {
-                    vectorDbRef[0] = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, "unknown");
-                    //updateProgressOnUiThread("正在加载SQLite向量数据库...");
-
-                    // 加载向量数据库
-                    //LogManager.logI(TAG, "Starting to load SQLite vector database...");
+                    // 从注册表获取共享句柄，已打开的知识库直接复用，无需重新加载索引
+                    vectorDbRef[0] = acquireKnowledgeBase(knowledgeBaseDir);
                     
-                    if (!vectorDbRef[0].loadDatabase()) {
+                    if (vectorDbRef[0] == null) {
                         String errorMsg = "Error: Failed to load SQLite vector database";
                         LogManager.logE(TAG, errorMsg);
                         updateProgressOnUiThread(errorMsg);
@@ -1795,9 +1927,7 @@ public class RagQaFragment extends Fragment {
                     String errorMsg = "Error occurred while creating or loading SQLite vector database: " + e.getMessage();
                     LogManager.logE(TAG, errorMsg, e);
                     updateProgressOnUiThread(errorMsg);
-                    if (vectorDbRef[0] != null) {
-                        vectorDbRef[0].closeDatabase();
-                    }
+                    releaseKnowledgeBase();
                     return relevantDocs;
                 }
 
@@ -1880,8 +2010,8 @@ public class RagQaFragment extends Fragment {
                         } else {
                             LogManager.logE(TAG, "No available model files found in embedding model directory");
                             updateProgressOnUiThread("Error: No available model files found in embedding model directory");
-                            // 关闭数据库连接
-                            vectorDbRef[0].closeDatabase();
+                            // 释放数据库句柄
+                            releaseKnowledgeBase();
                             return relevantDocs; // 提前返回，因为没有可用的模型
                         }
                     }
@@ -1930,10 +2060,10 @@ public class RagQaFragment extends Fragment {
                 modelManager.markModelNotInUse();
                 LogManager.logD(TAG, "Marked model usage end in exception case, allowing auto-unload");
                 
-                // 关闭数据库连接
+                // 释放数据库句柄
                 if (vectorDbRef[0] != null) {
-                    vectorDbRef[0].closeDatabase();
-                    LogManager.logD(TAG, "Closed database connection in exception case");
+                    releaseKnowledgeBase();
+                    LogManager.logD(TAG, "Released database handle in exception case");
                 }
                 
                 return relevantDocs;
@@ -2886,7 +3016,7 @@ public class RagQaFragment extends Fragment {
                 String userQuery = editTextUserPrompt.getText().toString().trim();
                 
                 // 生成向量
-                float[] queryVector = embeddingHandler.generateEmbedding(userQuery);
+                float[] queryVector = embeddingHandler.generateQueryEmbedding(userQuery);
                 
                 // 检查全局停止标志
                 if (GlobalStopManager.isGlobalStopRequested()) {
@@ -2918,7 +3048,7 @@ public class RagQaFragment extends Fragment {
                 int retrievalCount = Integer.parseInt(spinnerSearchDepth.getSelectedItem().toString());
                 
                 // 搜索相似文本块
-                List<SQLiteVectorDatabaseHandler.SearchResult> searchResults = vectorDb.searchSimilar(queryVector, retrievalCount);
+                List<SQLiteVectorDatabaseHandler.SearchResult> searchResults = searchKnowledgeBases(vectorDb, userQuery, queryVector, retrievalCount);
                 
                 // 检查全局停止标志
                 if (GlobalStopManager.isGlobalStopRequested()) {
@@ -2994,13 +3124,9 @@ public class RagQaFragment extends Fragment {
             LogManager.logE(TAG, errorMsg, e);
             updateProgressOnUiThread(errorMsg);
             
-            // 关闭数据库
-            try {
-                vectorDb.close();
-                LogManager.logD(TAG, "Vector database closed");
-            } catch (Exception ex) {
-                LogManager.logE(TAG, "Failed to close vector database: " + ex.getMessage(), ex);
-            }
+            // 释放数据库句柄
+            releaseKnowledgeBase();
+            LogManager.logD(TAG, "Vector database released");
         }
     }
     
@@ -3088,7 +3214,7 @@ public class RagQaFragment extends Fragment {
                     LogManager.logI(TAG, "Reranking successful, result count: " + rerankedResults.size());
                     
                     try {
-                        processRerankedResults(rerankedResults);
+                        processRerankedResults(rerankedResults, searchResults);
                     } catch (Exception e) {
                         LogManager.logE(TAG, "Failed to process reranked results: " + e.getMessage(), e);
                         updateProgressOnUiThread("Failed to process reranked results, using vector search results");
@@ -3113,6 +3239,47 @@ public class RagQaFragment extends Fragment {
         }
     }
     
+    /**
+     * Search the current knowledge base, plus the additional ones chosen for federated search
+     * 查询向量只计算一次；额外知识库与当前知识库的嵌入模型或维度不一致时跳过；
+     * 启用混合检索时同时按查询文本做全文检索并融合排序；在菜单中限定了来源文件时只检索当前知识库中这些来源的文本块
+     */
+    private List<SQLiteVectorDatabaseHandler.SearchResult> searchKnowledgeBases(SQLiteVectorDatabaseHandler vectorDb,
+                                                                             String queryText,
+                                                                             float[] queryVector, int topK) {
+        // 限定了来源文件时只在当前知识库内按来源过滤后做向量检索
+        List<String> sources = sourceFilters.get(vectorDb.getDatabaseDir().getName());
+        if (sources != null && !sources.isEmpty()) {
+            SearchFilter filter = new SearchFilter();
+            for (String source : sources) {
+                filter.addSource(source);
+            }
+            LogManager.logD(TAG, "Filtered search, sources: " + sources);
+            return vectorDb.searchSimilar(queryVector, topK, filter);
+        }
+        
+        String hybridQueryText = ConfigManager.isHybridSearchEnabled(requireContext()) ? queryText : null;
+        List<String> federated = ConfigManager.getFederatedKnowledgeBases(requireContext());
+        if (federated.isEmpty()) {
+            return hybridQueryText != null ? vectorDb.searchHybrid(hybridQueryText, queryVector, topK)
+                    : vectorDb.searchSimilar(queryVector, topK);
+        }
+        String knowledgeBasePath = ConfigManager.getString(requireContext(), ConfigManager.KEY_KNOWLEDGE_BASE_PATH, ConfigManager.DEFAULT_KNOWLEDGE_BASE_PATH);
+        List<File> dirs = new ArrayList<>();
+        for (String name : federated) {
+            dirs.add(new File(knowledgeBasePath, name));
+        }
+        LogManager.logD(TAG, "Federated search, additional knowledge bases: " + federated);
+        return FederatedSearch.search(vectorDb, vectorDb.getDatabaseDir().getName(), dirs, hybridQueryText, queryVector, topK);
+    }
+    
+    /**
+     * Text of a retrieved chunk as given to the prompt, labelled with its knowledge base in federated search
+     */
+    private static String documentText(SQLiteVectorDatabaseHandler.SearchResult result) {
+        return result.knowledgeBase != null ? "[" + result.knowledgeBase + "] " + result.text : result.text;
+    }
+    
     /**
      * 处理向量检索结果（不使用重排）
      */
@@ -3124,7 +3291,7 @@ public class RagQaFragment extends Fragment {
             
             for (int i = 0; i < searchResults.size(); i++) {
                 SQLiteVectorDatabaseHandler.SearchResult result = searchResults.get(i);
-                relevantDocs.add(result.text);
+                relevantDocs.add(documentText(result));
                 
                 // 记录详细信息到日志
                 String resultInfo = "Similarity: " + result.similarity + ", Text: " + result.text.substring(0, Math.min(50, result.text.length())) + "...";
@@ -3154,7 +3321,8 @@ public class RagQaFragment extends Fragment {
     /**
      * 处理重排结果
      */
-    private void processRerankedResults(List<RerankerModelHandler.RerankResult> rerankedResults) {
+    private void processRerankedResults(List<RerankerModelHandler.RerankResult> rerankedResults,
+                                        List<SQLiteVectorDatabaseHandler.SearchResult> searchResults) {
         try {
             // 详细打印重排结果 - 显示全部结果而不限制数量
             LogManager.logI(TAG, "=== Reranking Results Details ===");
@@ -3177,7 +3345,12 @@ public class RagQaFragment extends Fragment {
             
             for (int i = 0; i < actualResultCount; i++) {
                 RerankerModelHandler.RerankResult result = rerankedResults.get(i);
-                relevantDocs.add(result.text);
+                // 重排只看原文，知识库标注按原始下标取回
+                if (result.originalIndex >= 0 && result.originalIndex < searchResults.size()) {
+                    relevantDocs.add(documentText(searchResults.get(result.originalIndex)));
+                } else {
+                    relevantDocs.add(result.text);
+                }
 
                 // 添加到进度显示 - 显示重排序号和分数
                 similarityInfoBuilder.append("Rerank").append(i + 1).append(": ").append(String.format("%.4f", result.score));
@@ -3443,7 +3616,7 @@ public class RagQaFragment extends Fragment {
             String userQuery = editTextUserPrompt.getText().toString().trim();
             
             // 生成向量
-            float[] queryVector = modelHandler.generateEmbedding(userQuery);
+            float[] queryVector = modelHandler.generateQueryEmbedding(userQuery);
             
             // 查询向量异常处理
             if (queryVector != null && queryVector.length > 0) {
@@ -3488,14 +3661,14 @@ public class RagQaFragment extends Fragment {
             int retrievalCount = Integer.parseInt(spinnerSearchDepth.getSelectedItem().toString());
             
             // 搜索相似文本块
-            List<SQLiteVectorDatabaseHandler.SearchResult> searchResults = vectorDb.searchSimilar(queryVector, retrievalCount);
+            List<SQLiteVectorDatabaseHandler.SearchResult> searchResults = searchKnowledgeBases(vectorDb, userQuery, queryVector, retrievalCount);
             
             // 提取相关文档
             List<String> relevantDocs = new ArrayList<>();
             StringBuilder similarityInfoBuilder = new StringBuilder("Found similar text blocks:\n");
             for (int i = 0; i < searchResults.size(); i++) {
                 SQLiteVectorDatabaseHandler.SearchResult result = searchResults.get(i);
-                relevantDocs.add(result.text);
+                relevantDocs.add(documentText(result));
                 
                 // 记录详细信息到日志
                 String resultInfo = "Similarity: " + result.similarity + ", text: " + result.text.substring(0, Math.min(50, result.text.length())) + "...";
@@ -3564,8 +3737,8 @@ public class RagQaFragment extends Fragment {
             // 更新数据库元数据
             SQLiteVectorDatabaseHandler vectorDb = null;
             try {
-                vectorDb = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, "unknown");
-                if (vectorDb.loadDatabase()) {
+                vectorDb = VectorDatabaseRegistry.getInstance().acquire(knowledgeBaseDir);
+                if (vectorDb != null) {
                     // 获取选择的模型文件名
                     String selectedModelName = new File(selectedModel).getName();
                     
@@ -3588,13 +3761,7 @@ public class RagQaFragment extends Fragment {
             } catch (Exception e) {
                 LogManager.logE(TAG, "Failed to update database metadata", e);
             } finally {
-                if (vectorDb != null) {
-                    try {
-                        vectorDb.close();
-                    } catch (Exception e) {
-                        LogManager.logE(TAG, "Failed to close database", e);
-                    }
-                }
+                VectorDatabaseRegistry.getInstance().release(vectorDb);
             }
         } catch (Exception e) {
             LogManager.logE(TAG, "Failed to save model mapping", e);
@@ -3947,10 +4114,35 @@ public class RagQaFragment extends Fragment {
         }
     }
     
+    /**
+     * Acquire the knowledge base used by the current query from the registry
+     * 页面持有一个知识库句柄直到下一次查询或页面销毁，连续提问时复用已加载的索引
+     * @param knowledgeBaseDir Knowledge base directory
+     * @return Shared handle, or null if loading failed
+     */
+    private synchronized SQLiteVectorDatabaseHandler acquireKnowledgeBase(File knowledgeBaseDir) {
+        SQLiteVectorDatabaseHandler handler = VectorDatabaseRegistry.getInstance().acquire(knowledgeBaseDir);
+        // 先获取新句柄再释放旧句柄，同一知识库不会被关闭后重新加载
+        VectorDatabaseRegistry.getInstance().release(activeKnowledgeBase);
+        activeKnowledgeBase = handler;
+        return handler;
+    }
+    
+    /**
+     * Release the knowledge base handle held by this page
+     */
+    private synchronized void releaseKnowledgeBase() {
+        VectorDatabaseRegistry.getInstance().release(activeKnowledgeBase);
+        activeKnowledgeBase = null;
+    }
+    
     @Override
     public void onDestroy() {
         super.onDestroy();
         
+        // 释放知识库句柄，由注册表在空闲超时后关闭
+        releaseKnowledgeBase();
+        
         // 【重要修复】正确关闭两个线程池，避免资源泄漏
         LogManager.logD(TAG, "Shutting down thread pools...");
         
@@ -3960,6 +4152,8 @@ public class RagQaFragment extends Fragment {
         }
         
         if (ragQueryExecutor != null && !ragQueryExecutor.isShutdown()) {
+            // 查询线程在查询之间复用ONNX输入张量，排在已提交的查询之后关闭
+            ragQueryExecutor.execute(OnnxInputBuffers::release);
             ragQueryExecutor.shutdown();
             LogManager.logD(TAG, "RagQuery executor shutdown initiated");
         }
@@ -15,7 +15,6 @@ import java.io.File;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -52,13 +51,13 @@ public class RerankerModelHandler {
     private int sessionRetryCount = 0;                    // 当前重试次数
     private long lastSessionCheckTime = 0;                // 上次会话检查时间
     
+    // 推理线程，所有文档复用；推理超时后丢弃并在下次使用时重建
+    private java.util.concurrent.ExecutorService inferenceExecutor;
+    
     // TokenizerManager实例 - 不再缓存，每次动态获取
     // private TokenizerManager tokenizerManager; // 移除缓存的实例
     
-    // 模型输入输出名称（根据具体模型调整）
-    private static final String INPUT_IDS = "input_ids";
-    private static final String ATTENTION_MASK = "attention_mask";
-    private static final String TOKEN_TYPE_IDS = "token_type_ids";
+    // 模型输出名称（根据具体模型调整），输入名称见 OnnxInputBuffers
     private static final String OUTPUT_LOGITS = "logits";
     
     /**
@@ -385,6 +384,9 @@ public class RerankerModelHandler {
             }
             
             return convertToRerankResults(documents); // 返回原始顺序
+        } finally {
+            // 关闭本线程复用的输入张量
+            OnnxInputBuffers.release();
         }
     }
     
@@ -466,6 +468,7 @@ public class RerankerModelHandler {
                 continue;
             }
             
+            OrtSession.Result output = null;
             try {
                 // 运行推理
                 long inferenceStartTime = System.currentTimeMillis();
@@ -481,7 +484,7 @@ public class RerankerModelHandler {
                 LogManager.logI(TAG, "Inference timeout setting: 10 minutes");
                 
                 // 使用Future来实现超时机制
-                java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newSingleThreadExecutor();
+                java.util.concurrent.ExecutorService executor = getInferenceExecutor();
                 java.util.concurrent.Future<OrtSession.Result> future = executor.submit(() -> {
                     LogManager.logI(TAG, "⚡ Inference thread starting execution...");
                     //LogManager.logI(TAG, "Inference thread ID: " + Thread.currentThread().getId());
@@ -490,7 +493,6 @@ public class RerankerModelHandler {
                     return result;
                 });
                 
-                OrtSession.Result output;
                 try {
                     // 设置10分钟超时
                     output = future.get(600, java.util.concurrent.TimeUnit.SECONDS);
@@ -498,19 +500,17 @@ public class RerankerModelHandler {
                 } catch (java.util.concurrent.TimeoutException e) {
                     LogManager.logE(TAG, "⏰ Inference timeout (10 minutes), canceling task");
                     future.cancel(true);
-                    executor.shutdownNow();
+                    discardInferenceExecutor(executor);
                     continue; // 跳过这个文档
                 } catch (java.util.concurrent.ExecutionException e) {
                     LogManager.logE(TAG, "❌ Inference execution exception: " + e.getCause().getMessage(), e.getCause());
-                    executor.shutdownNow();
                     continue;
                 } catch (InterruptedException e) {
                     LogManager.logE(TAG, "🛑 Inference interrupted: " + e.getMessage());
                     Thread.currentThread().interrupt();
-                    executor.shutdownNow();
+                    future.cancel(true);
+                    discardInferenceExecutor(executor);
                     continue;
-                } finally {
-                    executor.shutdown();
                 }
                 
                 long inferenceTime = System.currentTimeMillis() - inferenceStartTime;
@@ -614,16 +614,13 @@ public class RerankerModelHandler {
                     LogManager.logE(TAG, "  3. Error occurred during inference");
                 }
                 
-                // 清理输出
-                output.close();
-                
                 long totalDocTime = System.currentTimeMillis() - docStartTime;
                 //LogManager.logI(TAG, "=== Document " + globalIndex + " total time: " + totalDocTime + "ms ===");
                 
             } finally {
-                // 清理输入张量
-                for (OnnxTensor tensor : inputs.values()) {
-                    tensor.close();
+                // 清理输出；输入张量属于线程内的复用池，不在这里关闭
+                if (output != null) {
+                    output.close();
                 }
             }
         }
@@ -695,45 +692,20 @@ public class RerankerModelHandler {
                 LogManager.logW(TAG, "  - Original length: " + actualLength);
                 LogManager.logW(TAG, "  - Maximum allowed: " + MAX_SEQUENCE_LENGTH);
                 LogManager.logW(TAG, "  - Performing truncation...");
-                long[][] truncatedTokenIds = new long[1][MAX_SEQUENCE_LENGTH];
-                System.arraycopy(tokenIds[0], 0, truncatedTokenIds[0], 0, MAX_SEQUENCE_LENGTH);
-                tokenIds = truncatedTokenIds;
+                // Only the first MAX_SEQUENCE_LENGTH tokens are written into the input tensor
                 actualLength = MAX_SEQUENCE_LENGTH;
                 LogManager.logI(TAG, "✅ Truncation completed, new length: " + actualLength);
             } else {
                 LogManager.logI(TAG, "✅ Sequence length meets requirements: " + actualLength + " <= " + MAX_SEQUENCE_LENGTH);
             }
             
-            // Create attention mask and token type ids
+            // Create ONNX tensors over the thread's pooled buffers
+            // Attention mask is 1 for every token, token type ids are 0 (for tagged input format, may need to set different token types based on [Q], [SEP], [D] positions)
             long tensorCreateTime = System.currentTimeMillis();
-            //LogManager.logI(TAG, "🎭 Creating attention mask and token type ids...");
-            
-            long[][] attentionMask = new long[1][actualLength];
-            long[][] tokenTypeIds = new long[1][actualLength];
-            
-            // Fill attention mask (all positions are 1, indicating valid tokens)
-            for (int i = 0; i < actualLength; i++) {
-                attentionMask[0][i] = 1;
-                tokenTypeIds[0][i] = 0; // For tagged input format, may need to set different token types based on [Q], [SEP], [D] positions
-            }
-            
-            //LogManager.logI(TAG, "  - attention mask length: " + actualLength);
-            //LogManager.logI(TAG, "  - All values set to: 1 (indicating all tokens need attention)");
-            //LogManager.logI(TAG, "  - token type IDs length: " + actualLength);
-            //LogManager.logI(TAG, "  - All values set to: 0 (indicating single sentence type)");
-            
-            // Create ONNX tensors
             LogManager.logI(TAG, "🔄 Converting to ONNX tensors...");
-            Map<String, OnnxTensor> inputs = new HashMap<>();
-            
-            //LogManager.logI(TAG, "  - Creating input_ids tensor: [1, " + actualLength + "]");
-            inputs.put(INPUT_IDS, OnnxTensor.createTensor(environment, tokenIds));
-            
-            //LogManager.logI(TAG, "  - Creating attention_mask tensor: [1, " + actualLength + "]");
-            inputs.put(ATTENTION_MASK, OnnxTensor.createTensor(environment, attentionMask));
-            
-            //LogManager.logI(TAG, "  - Creating token_type_ids tensor: [1, " + actualLength + "]");
-            inputs.put(TOKEN_TYPE_IDS, OnnxTensor.createTensor(environment, tokenTypeIds));
+            OnnxInputBuffers.Inputs pooledInputs = OnnxInputBuffers.acquire(environment, 1, actualLength);
+            pooledInputs.putRow(0, tokenIds[0]);
+            Map<String, OnnxTensor> inputs = pooledInputs.all();
             
             long tensorCreateDuration = System.currentTimeMillis() - tensorCreateTime;
             long totalDuration = System.currentTimeMillis() - startTime;
@@ -1230,10 +1202,42 @@ public class RerankerModelHandler {
         return false;
     }
     
+    /**
+     * 推理线程，首次使用时创建
+     */
+    private synchronized java.util.concurrent.ExecutorService getInferenceExecutor() {
+        if (inferenceExecutor == null) {
+            inferenceExecutor = java.util.concurrent.Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "StarLocalRAG-RerankInference");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return inferenceExecutor;
+    }
+    
+    /**
+     * 丢弃仍在运行超时推理的线程
+     * 原生推理无法中断，它可能还在读取本线程复用的输入张量，因此放弃这些张量而不是关闭后再复用
+     */
+    private synchronized void discardInferenceExecutor(java.util.concurrent.ExecutorService executor) {
+        executor.shutdownNow();
+        if (inferenceExecutor == executor) {
+            inferenceExecutor = null;
+        }
+        OnnxInputBuffers.abandon();
+    }
+    
     /**
      * 清理资源
      */
     public void cleanup() {
+        synchronized (this) {
+            if (inferenceExecutor != null) {
+                inferenceExecutor.shutdown();
+                inferenceExecutor = null;
+            }
+        }
         synchronized (sessionLock) {
             try {
                 if (session != null) {
@@ -0,0 +1,251 @@
+package com.example.starlocalrag;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * Resident in-memory vector matrix
+ * 常驻内存的向量矩阵：所有向量连续存放在一块 direct buffer 中（不占用Java堆），
+ * 并行维护 rowid 数组和预计算的范数倒数，查询时无需访问SQLite、无需解码BLOB、无逐行分配
+ */
+public class ResidentVectorIndex {
+    private static final String TAG = "StarLocalRAG_ResidentIndex";
+
+    // 扫描时每隔多少行检查一次全局停止标志，也是并行扫描的分块大小
+    private static final int STOP_CHECK_INTERVAL = 4096;
+
+    // 最小初始容量
+    private static final int MIN_CAPACITY = 256;
+
+    private final int dimension;
+
+    // 以下字段只在持锁时修改；查询时在锁内取快照，之后无锁扫描 [0, size)
+    private FloatBuffer matrix;
+    private long[] rowIds;
+    private float[] inverseNorms;
+    private int size;
+
+    /**
+     * Constructor
+     * @param dimension Vector dimension
+     * @param expectedRows Expected number of rows (used to size the initial buffer)
+     */
+    public ResidentVectorIndex(int dimension, int expectedRows) {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("Invalid vector dimension: " + dimension);
+        }
+        this.dimension = dimension;
+        int capacity = Math.max(MIN_CAPACITY, expectedRows);
+        this.matrix = allocateMatrix(capacity, dimension);
+        this.rowIds = new long[capacity];
+        this.inverseNorms = new float[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Estimate native memory needed for a matrix of the given size
+     * @param rows Row count
+     * @param dimension Vector dimension
+     * @return Estimated bytes
+     */
+    public static long estimateBytes(int rows, int dimension) {
+        // 向量数据 + rowid(8字节) + 范数倒数(4字节)
+        return (long) rows * dimension * 4L + (long) rows * 12L;
+    }
+
+    /**
+     * Whether a matrix of the given size fits in one direct buffer
+     * direct buffer 的容量是 int，超过 2GB 的矩阵无法常驻，调用方应回退到数据库扫描
+     * @param rows Row count
+     * @param dimension Vector dimension
+     * @return Whether the matrix can be allocated
+     */
+    public static boolean fitsInBuffer(long rows, int dimension) {
+        return rows * dimension * 4L <= Integer.MAX_VALUE;
+    }
+
+    private static FloatBuffer allocateMatrix(int rows, int dimension) {
+        long bytes = (long) rows * dimension * 4L;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Resident matrix of " + rows + " x " + dimension + " exceeds 2GB");
+        }
+        return ByteBuffer.allocateDirect((int) bytes)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    /**
+     * Append a vector to the matrix
+     * @param rowId Database row ID
+     * @param vector Embedding vector (copied, caller keeps ownership)
+     * @return Whether the vector was added
+     */
+    public synchronized boolean add(long rowId, float[] vector) {
+        if (vector == null || vector.length != dimension) {
+            LogManager.logW(TAG, "Skipping vector with mismatched dimension for row " + rowId +
+                    ": expected " + dimension + ", got " + (vector == null ? 0 : vector.length));
+            return false;
+        }
+        ensureCapacity(size + 1);
+
+        int base = size * dimension;
+        float sum = 0.0f;
+        for (int i = 0; i < dimension; i++) {
+            float v = vector[i];
+            if (Float.isNaN(v) || Float.isInfinite(v)) {
+                v = 0.0f;
+            }
+            matrix.put(base + i, v);
+            sum += v * v;
+        }
+        rowIds[size] = rowId;
+        inverseNorms[size] = sum <= 1e-6f ? 0.0f : (float) (1.0 / Math.sqrt(sum));
+        size++;
+        return true;
+    }
+
+    private void ensureCapacity(int required) {
+        int capacity = rowIds.length;
+        if (required <= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(required, capacity + (capacity >> 1));
+        if (!fitsInBuffer(newCapacity, dimension)) {
+            // 1.5 倍增长超过上限时只增长到所需大小
+            newCapacity = required;
+        }
+        LogManager.logD(TAG, "Growing resident matrix from " + capacity + " to " + newCapacity + " rows");
+
+        FloatBuffer newMatrix = allocateMatrix(newCapacity, dimension);
+        FloatBuffer source = matrix.duplicate();
+        source.position(0);
+        source.limit(size * dimension);
+        newMatrix.put(source);
+        newMatrix.clear();
+
+        matrix = newMatrix;
+        rowIds = Arrays.copyOf(rowIds, newCapacity);
+        inverseNorms = Arrays.copyOf(inverseNorms, newCapacity);
+    }
+
+    /**
+     * Scan the whole matrix and keep the topK rows by cosine similarity
+     * @param queryVector Query vector
+     * @param topK Number of results
+     * @return Heap with the best rows, or null if the search was aborted
+     */
+    public TopKHeap search(float[] queryVector, int topK) {
+        return search(queryVector, topK, 1);
+    }
+
+    /**
+     * Scan the whole matrix with several workers and keep the topK rows by cosine similarity
+     * 按 STOP_CHECK_INTERVAL 行分块并行扫描，行数较少时直接在调用线程扫描
+     * @param queryVector Query vector
+     * @param topK Number of results
+     * @param workers Number of scan workers including the calling thread
+     * @return Heap with the best rows, or null if the search was aborted
+     */
+    public TopKHeap search(float[] queryVector, int topK, int workers) {
+        return search(queryVector, topK, workers, null);
+    }
+
+    /**
+     * Scan the matrix and keep the topK allowed rows by cosine similarity
+     * 不满足过滤条件的行跳过点积计算
+     * @param queryVector Query vector
+     * @param topK Number of results
+     * @param workers Number of scan workers including the calling thread
+     * @param rowFilter Allowed row IDs, null allows all rows
+     * @return Heap with the best rows, or null if the search was aborted
+     */
+    public TopKHeap search(float[] queryVector, int topK, int workers, LongPredicate rowFilter) {
+        if (queryVector == null || queryVector.length != dimension) {
+            LogManager.logE(TAG, "Query dimension mismatch: expected " + dimension + ", got " +
+                    (queryVector == null ? 0 : queryVector.length));
+            return new TopKHeap(topK);
+        }
+
+        // 在锁内获取快照，后续扫描不持锁，写入只会追加到 size 之后或替换为新的缓冲区
+        FloatBuffer snapshotMatrix;
+        long[] snapshotIds;
+        float[] snapshotNorms;
+        int snapshotSize;
+        synchronized (this) {
+            snapshotMatrix = matrix;
+            snapshotIds = rowIds;
+            snapshotNorms = inverseNorms;
+            snapshotSize = size;
+        }
+
+        float queryInverseNorm = VectorMath.inverseNorm(queryVector);
+        if (queryInverseNorm == 0.0f) {
+            LogManager.logW(TAG, "Query vector norm too small, all similarities are zero");
+        }
+
+        int blockCount = (snapshotSize + STOP_CHECK_INTERVAL - 1) / STOP_CHECK_INTERVAL;
+        return ParallelScanner.scan(blockCount, workers, topK, (block, heap) -> {
+            int end = Math.min(snapshotSize, (block + 1) * STOP_CHECK_INTERVAL);
+            for (int row = block * STOP_CHECK_INTERVAL; row < end; row++) {
+                if (rowFilter != null && !rowFilter.test(snapshotIds[row])) {
+                    continue;
+                }
+                float similarity = VectorMath.dot(queryVector, snapshotMatrix, row * dimension)
+                        * snapshotNorms[row] * queryInverseNorm;
+                heap.offer(snapshotIds[row], similarity);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Cosine similarity between a stored row and a unit-length query
+     * 以下按行访问的方法不加锁，调用方需保证可见性（例如 HnswIndex 的读写锁）
+     * @param row Row index
+     * @param unitQuery L2-normalized query
+     * @return Similarity
+     */
+    float similarityToRow(int row, float[] unitQuery) {
+        return VectorMath.dot(unitQuery, matrix, row * dimension) * inverseNorms[row];
+    }
+
+    /**
+     * Cosine similarity between two stored rows
+     */
+    float similarityBetweenRows(int rowA, int rowB) {
+        int baseA = rowA * dimension;
+        int baseB = rowB * dimension;
+        float sum = 0.0f;
+        for (int i = 0; i < dimension; i++) {
+            sum += matrix.get(baseA + i) * matrix.get(baseB + i);
+        }
+        return sum * inverseNorms[rowA] * inverseNorms[rowB];
+    }
+
+    /**
+     * Database row ID of a stored row
+     */
+    long getRowId(int row) {
+        return rowIds[row];
+    }
+
+    /**
+     * Copy a stored row into the given array
+     */
+    void copyRow(int row, float[] out) {
+        FloatBuffer source = matrix.duplicate();
+        source.position(row * dimension);
+        source.get(out, 0, dimension);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
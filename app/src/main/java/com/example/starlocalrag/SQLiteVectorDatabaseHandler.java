@@ -4,11 +4,12 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import com.example.starlocalrag.LogManager;
 import com.example.starlocalrag.AppConstants;
-import android.util.Pair;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -21,18 +22,34 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
 
 /**
  * SQLite vector database handler class, compatible with Windows Python-generated database format
+ * Text and vectors are stored in separate chunks/vectors tables (schema v2), v1 databases are migrated
+ * on open and a documents view keeps the v1 layout readable for PC tools
  */
 public class SQLiteVectorDatabaseHandler {
     private static final String TAG = "StarLocalR...teVectorDB";
@@ -40,30 +57,178 @@ public class SQLiteVectorDatabaseHandler {
     // Database file names
     private static final String DB_FILENAME = "vectorstore.db";
     private static final String METADATA_FILENAME = "metadata.json";
+    private static final String HNSW_INDEX_FILENAME = "hnsw.index";
+    private static final String IVF_INDEX_FILENAME = "ivf.index";
+    private static final String PQ_CODEBOOK_FILENAME = "pq.codebook";
     
     // Database version
-    private static final int DATABASE_VERSION = 1;
+    // 1: single documents table (PC format)
+    // 2: chunks + vectors tables, documents kept as a view for PC tools
+    // 3: documents view writable through INSTEAD OF triggers, v1 rows copied in the background
+    private static final int DATABASE_VERSION = 3;
     
-    // Database table name
+    // Database table names
     private static final String TABLE_DOCUMENTS = "documents";
+    private static final String TABLE_DOCUMENTS_V1 = "documents_v1";
+    private static final String TABLE_CHUNKS = "chunks";
+    private static final String TABLE_VECTORS = "vectors";
+    private static final String TABLE_TOMBSTONES = "tombstones";
+    private static final String TABLE_LEXICAL = "chunks_fts";
+    private static final String TABLE_CHUNK_REFS = "chunk_refs";
     
     // Database column names
     private static final String COLUMN_ID = "id";
     private static final String COLUMN_COLLECTION = "collection";
+    private static final String COLUMN_SOURCE = "source";
+    private static final String COLUMN_FILE = "file";
+    private static final String COLUMN_CREATED_AT = "created_at";
     private static final String COLUMN_CONTENT = "content";
     private static final String COLUMN_METADATA = "metadata";
+    private static final String COLUMN_CONTENT_HASH = "content_hash";
     private static final String COLUMN_EMBEDDING = "embedding";
+    private static final String COLUMN_EMBEDDING_Q8 = "embedding_q8";
+    private static final String COLUMN_EMBEDDING_BITS = "embedding_bits";
+    private static final String COLUMN_EMBEDDING_PQ = "embedding_pq";
+    private static final String COLUMN_TOKENS = "tokens";
+    
+    // Unique per collection, so each distinct text is embedded and stored once
+    private static final String INDEX_CONTENT_HASH = "idx_chunks_content_hash";
+    
+    // insertChunk() result when the text is already stored and only a source reference was recorded
+    private static final long DUPLICATE_CHUNK = -2;
+    
+    // Full-text modules, FTS5 when the platform SQLite has it (bm25 ranking), otherwise FTS4 ranked in Java
+    private static final String LEXICAL_FTS5 = "fts5";
+    private static final String LEXICAL_FTS4 = "fts4";
+    
+    // Restricts a vectors query to the current collection through the chunks index, one argument
+    private static final String VECTORS_IN_COLLECTION = COLUMN_ID + " IN (SELECT " + COLUMN_ID + " FROM " +
+            TABLE_CHUNKS + " WHERE " + COLUMN_COLLECTION + "=?)";
+    
+    // Below this many rows the exact scan stays on the calling thread
+    private static final int PARALLEL_SCAN_MIN_ROWS = 5000;
+    
+    // Rows moved per transaction when migrating the v1 documents table
+    private static final int MIGRATION_PAGE_SIZE = 500;
+    
+    // Bulk insert group commit: at most this many rows or this many milliseconds per transaction
+    private static final int BULK_COMMIT_ROWS = 1000;
+    private static final long BULK_COMMIT_INTERVAL_MS = 2000;
+    
+    // Savepoint around each bulk row, a failed row is undone without losing the rest of its group
+    private static final String BULK_ROW_SAVEPOINT = "bulk_row";
+    
+    // Hybrid search: candidates per list, reciprocal rank fusion constant
+    private static final int HYBRID_CANDIDATE_FACTOR = 3;
+    private static final int RRF_K = 60;
+    
+    // FTS4 has no bm25(), matches are ranked in Java with these parameters
+    private static final float BM25_K1 = 1.2f;
+    private static final float BM25_B = 0.75f;
+    
+    // Chunks tokenized per transaction when catching up the full-text index in the background
+    private static final int LEXICAL_INDEX_PAGE_SIZE = 200;
+    
+    // Full-text queries of hybrid searches, run while the caller thread does the vector search
+    private static final int LEXICAL_THREADS = 2;
+    private static final ExecutorService LEXICAL_EXECUTOR = Executors.newFixedThreadPool(LEXICAL_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "StarLocalRAG-Lexical");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Compaction runs one knowledge base at a time in the background
+    private static final ExecutorService COMPACTION_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "StarLocalRAG-Compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Background upkeep of opened knowledge bases (v1 migration, code backfills), batched so foreground writes interleave
+    private static final ExecutorService MAINTENANCE_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "StarLocalRAG-Maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     // Database directory
     private final File databaseDir;
     private final Context context;
     
     // Database connection
-    private SQLiteDatabase database;
+    private volatile SQLiteDatabase database;
     
     // Database metadata cache
     private DatabaseMetadata metadata;
     
+    // Resident in-memory vector matrix (optional, null when disabled or not loaded)
+    private volatile ResidentVectorIndex residentIndex;
+    
+    // HNSW approximate nearest neighbour index (null when the knowledge base has none)
+    private volatile HnswIndex hnswIndex;
+    
+    // Whether the HNSW index has rows not yet persisted to its sidecar file
+    private volatile boolean hnswIndexDirty;
+    
+    // Largest row ID replayed into a graph rebuilt by compaction, later inserts at or below it are already indexed
+    private volatile long hnswReplayedRowId = -1;
+    
+    // Disk-resident IVF index (null when the knowledge base has none), rows newer than it are scanned exactly
+    private volatile IvfIndex ivfIndex;
+    
+    // Product quantizer codebooks (null unless the knowledge base uses PQ codes)
+    private volatile ProductQuantizer productQuantizer;
+    
+    // Memory-mapped copy of the float embeddings (null unless the knowledge base uses vectors.f32)
+    private volatile FlatVectorFile flatVectorFile;
+    
+    // Full-text module of chunks_fts (LEXICAL_FTS5/LEXICAL_FTS4), null when the database has no full-text index
+    private volatile String lexicalModule;
+    
+    // Whether chunks_fts is still missing rows that the background catch-up has not indexed yet
+    private volatile boolean lexicalIndexPending;
+    
+    // Whether chunks carry content_hash with its unique index (false for read-only databases without it)
+    private volatile boolean contentHashEnabled;
+    
+    // Row IDs deleted from the database but still present in the sidecar indexes until compaction (copy-on-write)
+    private volatile BitSet tombstones = new BitSet();
+    private volatile int tombstoneCount;
+    
+    // Whether v1 rows are still waiting in documents_v1, and the lock serializing their migration
+    private volatile boolean legacyRowsPending;
+    private final Object migrationLock = new Object();
+    
+    // Serializes source removal/replacement with compaction
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    
+    // Serializes incremental HNSW/flat file updates with compaction swapping in rebuilt copies
+    private final Object sidecarLock = new Object();
+    
+    // Whether the resident index was explicitly enabled/disabled (null means follow configuration)
+    private Boolean residentIndexEnabled;
+    
+    // Maximum number of bound parameters per IN (...) query, below SQLite's default limit of 999
+    private static final int MAX_SQL_VARIABLES = 500;
+    
+    // Only use up to this fraction of available memory for the resident matrix
+    private static final int RESIDENT_INDEX_MEMORY_FRACTION = 4;
+    
+    // Number of int8 candidates re-scored with full-precision floats (at least, or topK * factor)
+    private static final int QUANTIZED_RESCORE_MIN = 256;
+    private static final int QUANTIZED_RESCORE_FACTOR = 8;
+    
+    // Number of Hamming candidates re-scored with full-precision floats (at least, or topK * factor)
+    private static final int BINARY_SHORTLIST_MIN = 1000;
+    private static final int BINARY_SHORTLIST_FACTOR = 50;
+    
+    // Upper bound on sampled floats held in memory for PQ recall evaluation (~64MB)
+    private static final int PQ_EVALUATION_MAX_FLOATS = 16 * 1024 * 1024;
+    
+    // Rows per transaction when backfilling quantized codes
+    private static final int QUANTIZATION_BACKFILL_BATCH = 500;
+    
     /**
      * Database metadata class
      */
@@ -81,6 +246,20 @@ public class SQLiteVectorDatabaseHandler {
         private String vectorStoreType;
         private String modeldir;
         private String rerankerdir;
+        private int hnswM;
+        private int hnswEfConstruction;
+        private int hnswEfSearch;
+        private int ivfNlist;
+        private int ivfNprobe;
+        private String quantization;
+        private String vectorEncoding;
+        private boolean binarySignature;
+        private int pqM;
+        private int pqNbits;
+        private boolean vectorsNormalized;
+        private boolean flatVectors;
+        private boolean contentHashes;
+        private boolean float16Pending;
         
         public DatabaseMetadata(String embeddingModel) {
             this.embeddingModel = embeddingModel;
@@ -93,9 +272,24 @@ public class SQLiteVectorDatabaseHandler {
             this.lastModifiedTimestamp = this.creationTimestamp;
             this.collection = "";
             this.modelType = AppConstants.ApiUrl.LOCAL;
-            this.vectorStoreType = "sqlite";
+            this.vectorStoreType = AppConstants.VectorStoreType.SQLITE;
             this.modeldir = "";
             this.rerankerdir = "";
+            this.hnswM = 0;
+            this.hnswEfConstruction = 0;
+            this.hnswEfSearch = 0;
+            this.ivfNlist = 0;
+            this.ivfNprobe = 0;
+            this.quantization = AppConstants.VectorQuantization.NONE;
+            this.vectorEncoding = AppConstants.VectorEncoding.FLOAT32;
+            this.binarySignature = false;
+            this.pqM = 0;
+            this.pqNbits = 0;
+            // 新建的知识库在写入时即归一化
+            this.vectorsNormalized = true;
+            this.flatVectors = false;
+            this.contentHashes = false;
+            this.float16Pending = false;
         }
         
         public String getEmbeddingModel() {
@@ -124,6 +318,11 @@ public class SQLiteVectorDatabaseHandler {
             this.lastModifiedTimestamp = System.currentTimeMillis();
         }
         
+        public void decreaseChunkCount(int count) {
+            this.chunkCount = Math.max(0, this.chunkCount - count);
+            this.lastModifiedTimestamp = System.currentTimeMillis();
+        }
+        
         public List<String> getSources() {
             return sources;
         }
@@ -135,6 +334,12 @@ public class SQLiteVectorDatabaseHandler {
             }
         }
         
+        public void removeSource(String source) {
+            if (sources.remove(source)) {
+                this.lastModifiedTimestamp = System.currentTimeMillis();
+            }
+        }
+        
         public List<String> getFiles() {
             return files;
         }
@@ -147,6 +352,13 @@ public class SQLiteVectorDatabaseHandler {
             }
         }
         
+        public void removeFile(String file) {
+            if (files.remove(file)) {
+                this.fileCount = Math.max(0, this.fileCount - 1);
+                this.lastModifiedTimestamp = System.currentTimeMillis();
+            }
+        }
+        
         public int getFileCount() {
             return fileCount;
         }
@@ -198,6 +410,119 @@ public class SQLiteVectorDatabaseHandler {
         public void setRerankerdir(String rerankerdir) {
             this.rerankerdir = rerankerdir;
         }
+        
+        public int getHnswM() {
+            return hnswM;
+        }
+        
+        public int getHnswEfConstruction() {
+            return hnswEfConstruction;
+        }
+        
+        public void setHnswBuildParams(int m, int efConstruction) {
+            this.hnswM = m;
+            this.hnswEfConstruction = efConstruction;
+        }
+        
+        public int getHnswEfSearch() {
+            return hnswEfSearch;
+        }
+        
+        public void setHnswEfSearch(int efSearch) {
+            this.hnswEfSearch = efSearch;
+        }
+        
+        public int getIvfNlist() {
+            return ivfNlist;
+        }
+        
+        public void setIvfNlist(int nlist) {
+            this.ivfNlist = nlist;
+        }
+        
+        public int getIvfNprobe() {
+            return ivfNprobe;
+        }
+        
+        public void setIvfNprobe(int nprobe) {
+            this.ivfNprobe = nprobe;
+        }
+        
+        public String getQuantization() {
+            return quantization;
+        }
+        
+        public void setQuantization(String quantization) {
+            this.quantization = quantization;
+        }
+        
+        public String getVectorEncoding() {
+            return vectorEncoding;
+        }
+        
+        public void setVectorEncoding(String vectorEncoding) {
+            this.vectorEncoding = vectorEncoding;
+        }
+        
+        public boolean isFloat16() {
+            return AppConstants.VectorEncoding.FLOAT16.equals(vectorEncoding);
+        }
+        
+        /**
+         * Whether float32 rows written before float16 was enabled are still being converted
+         */
+        public boolean isFloat16Pending() {
+            return float16Pending;
+        }
+        
+        public void setFloat16Pending(boolean float16Pending) {
+            this.float16Pending = float16Pending;
+        }
+        
+        public boolean hasBinarySignature() {
+            return binarySignature;
+        }
+        
+        public void setBinarySignature(boolean binarySignature) {
+            this.binarySignature = binarySignature;
+        }
+        
+        public boolean isVectorsNormalized() {
+            return vectorsNormalized;
+        }
+        
+        public void setVectorsNormalized(boolean vectorsNormalized) {
+            this.vectorsNormalized = vectorsNormalized;
+        }
+        
+        public boolean hasContentHashes() {
+            return contentHashes;
+        }
+        
+        public void setContentHashes(boolean contentHashes) {
+            this.contentHashes = contentHashes;
+        }
+        
+        public boolean hasFlatVectors() {
+            return flatVectors;
+        }
+        
+        public void setFlatVectors(boolean flatVectors) {
+            this.flatVectors = flatVectors;
+        }
+        
+        public int getPqM() {
+            return pqM;
+        }
+        
+        public int getPqNbits() {
+            return pqNbits;
+        }
+        
+        public void setPqParams(int m, int nbits) {
+            this.pqM = m;
+            this.pqNbits = nbits;
+        }
     }
     
     /**
@@ -207,6 +532,10 @@ public class SQLiteVectorDatabaseHandler {
         public String text;
         public String source;
         public float similarity;
+        // Knowledge base name, set by federated search (null for single knowledge base queries)
+        public String knowledgeBase;
+        // Chunk row ID
+        public long id;
         
         public SearchResult(String text, String source, float similarity) {
             this.text = text;
@@ -226,17 +555,19 @@ public class SQLiteVectorDatabaseHandler {
         
         @Override
         public void onCreate(SQLiteDatabase db) {
+            // Databases built by the PC tool have no user_version and arrive here with a v1 documents table,
+            // errors propagate so the helper's transaction rolls back
+            if (isTable(db, TABLE_DOCUMENTS)) {
+                LogManager.logI(TAG, "Found v1 documents table in new database, migrating");
+                prepareMigrationV2(db);
+                createLexicalTable(db);
+                return;
+            }
             LogManager.logD(TAG, "Creating database tables...");
             try {
-                // Create documents table
-                String createTableSql = "CREATE TABLE IF NOT EXISTS " + TABLE_DOCUMENTS + " (" +
-                        COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                        COLUMN_COLLECTION + " TEXT, " +
-                        COLUMN_CONTENT + " TEXT, " +
-                        COLUMN_METADATA + " TEXT, " +
-                        COLUMN_EMBEDDING + " BLOB)";
-                db.execSQL(createTableSql);
-                LogManager.logD(TAG, "Successfully created database table: " + TABLE_DOCUMENTS);
+                createSchemaV2(db);
+                createLexicalTable(db);
+                LogManager.logD(TAG, "Successfully created database tables: " + TABLE_CHUNKS + ", " + TABLE_VECTORS);
             } catch (Exception e) {
                 LogManager.logE(TAG, "Failed to create database table: " + e.getMessage() + "\nStack trace: " + Log.getStackTraceString(e));
             }
@@ -245,7 +576,12 @@ public class SQLiteVectorDatabaseHandler {
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             LogManager.logD(TAG, "Upgrading database, old version: " + oldVersion + ", new version: " + newVersion);
-            // No operations for now, keep existing data
+            if (oldVersion < 2) {
+                // Runs inside the helper's transaction, a failure leaves the v1 table untouched
+                prepareMigrationV2(db);
+            } else if (oldVersion < 3) {
+                createDocumentsTriggers(db);
+            }
         }
         
         @Override
@@ -326,6 +662,9 @@ public class SQLiteVectorDatabaseHandler {
             this.metadata.setEmbeddingDimension(embeddingDimension);
             saveMetadata();
         }
+        if (database != null) {
+            ensureContentHashes();
+        }
     }
     
     /**
@@ -383,6 +722,8 @@ public class SQLiteVectorDatabaseHandler {
             
             LogManager.logI(TAG, "Opening database using context: " + appContext.getPackageName());
             VectorDatabaseHelper helper = new VectorDatabaseHelper(appContext, dbPath);
+            // WAL模式：构建知识库或添加笔记写入时，共享句柄上的查询仍可并发读取
+            helper.setWriteAheadLoggingEnabled(true);
             
             try {
                 LogManager.logI(TAG, "Attempting to open database in writable mode...");
@@ -399,6 +740,10 @@ public class SQLiteVectorDatabaseHandler {
                     LogManager.logE(TAG, "Failed to get read-only database as well: " + e2.getMessage() + "\nStack trace: " + Log.getStackTraceString(e2));
                 }
             }
+            if (database != null) {
+                lexicalModule = detectLexicalModule(database);
+                legacyRowsPending = isTable(database, TABLE_DOCUMENTS_V1);
+            }
         } catch (Exception e) {
             LogManager.logE(TAG, "Failed to open database: " + e.getMessage() + "\nStack trace: " + Log.getStackTraceString(e));
         }
@@ -409,6 +754,11 @@ public class SQLiteVectorDatabaseHandler {
      */
     public final void closeDatabase() {
         try {
+            residentIndex = null;
+            hnswIndex = null;
+            closeIvfIndex();
+            productQuantizer = null;
+            closeFlatVectorFile();
             if (database != null && database.isOpen()) {
                 LogManager.logI(TAG, "Closing database connection");
                 database.close();
@@ -422,11 +772,22 @@ public class SQLiteVectorDatabaseHandler {
     
     /**
      * 关闭数据库连接
+     * 先清空 database，后台任务比较自己取到的连接后停止；再等待正在进行的压缩走完当前步骤，
+     * 关闭返回后不会再有本句柄的任务写入 sidecar 文件或 metadata.json
      */
     public void close() {
-        if (database != null && database.isOpen()) {
-            database.close();
-            LogManager.logD(TAG, "Database connection closed");
+        SQLiteDatabase db = database;
+        database = null;
+        synchronized (compactionLock) {
+            residentIndex = null;
+            hnswIndex = null;
+            closeIvfIndex();
+            productQuantizer = null;
+            closeFlatVectorFile();
+            if (db != null && db.isOpen()) {
+                db.close();
+                LogManager.logD(TAG, "Database connection closed");
+            }
         }
     }
     
@@ -434,8 +795,42 @@ public class SQLiteVectorDatabaseHandler {
      * Save database
      */
     public boolean saveDatabase() {
+        // Appended flat vectors must be on disk before the metadata that lists the file
+        FlatVectorFile flatFile = flatVectorFile;
+        boolean success = flatFile == null || flatFile.force();
+        
         // Save metadata
-        return saveMetadata();
+        success &= saveMetadata();
+        
+        // Persist incremental HNSW inserts
+        HnswIndex index = hnswIndex;
+        if (index != null && hnswIndexDirty) {
+            if (index.save(new File(databaseDir, HNSW_INDEX_FILENAME))) {
+                hnswIndexDirty = false;
+            } else {
+                success = false;
+            }
+        }
+        checkpointWal();
+        return success;
+    }
+    
+    /**
+     * Merge the WAL file back into the database file
+     * 保存后的 vectorstore.db 单独拷贝即可在PC端或导出时使用；有读者时只合并到读者之前的部分
+     */
+    private void checkpointWal() {
+        SQLiteDatabase db = database;
+        if (db == null || !db.isOpen() || db.isReadOnly() || !db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        try (Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null)) {
+            if (cursor.moveToFirst() && cursor.getInt(0) != 0) {
+                LogManager.logD(TAG, "WAL checkpoint incomplete, readers are active");
+            }
+        } catch (Exception e) {
+            LogManager.logW(TAG, "WAL checkpoint failed: " + e.getMessage());
+        }
     }
     
     /**
@@ -506,6 +901,60 @@ public class SQLiteVectorDatabaseHandler {
                 metadata.rerankerdir = json.getString("rerankerdir");
             }
             
+            if (json.has("hnsw_m")) {
+                metadata.hnswM = json.getInt("hnsw_m");
+            }
+            
+            if (json.has("hnsw_ef_construction")) {
+                metadata.hnswEfConstruction = json.getInt("hnsw_ef_construction");
+            }
+            
+            if (json.has("hnsw_ef_search")) {
+                metadata.hnswEfSearch = json.getInt("hnsw_ef_search");
+            }
+            
+            if (json.has("ivf_nlist")) {
+                metadata.ivfNlist = json.getInt("ivf_nlist");
+            }
+            
+            if (json.has("ivf_nprobe")) {
+                metadata.ivfNprobe = json.getInt("ivf_nprobe");
+            }
+            
+            if (json.has("quantization")) {
+                metadata.quantization = json.getString("quantization");
+            }
+            
+            // PC-built metadata has no encoding, its embeddings are float32
+            if (json.has("vector_encoding")) {
+                metadata.vectorEncoding = json.getString("vector_encoding");
+            }
+            metadata.float16Pending = json.optBoolean("float16_pending", false);
+            
+            if (json.has("binary_signature")) {
+                metadata.binarySignature = json.getBoolean("binary_signature");
+            }
+            
+            if (json.has("flat_vectors")) {
+                metadata.flatVectors = json.getBoolean("flat_vectors");
+            }
+            
+            // Set once every chunk has been hashed, PC-built metadata has no flag
+            if (json.has("content_hashes")) {
+                metadata.contentHashes = json.getBoolean("content_hashes");
+            }
+            
+            // PC-built metadata has no flag, its vectors are normalized on first open
+            metadata.vectorsNormalized = json.has("vectors_normalized") && json.getBoolean("vectors_normalized");
+            
+            if (json.has("pq_m")) {
+                metadata.pqM = json.getInt("pq_m");
+            }
+            
+            if (json.has("pq_nbits")) {
+                metadata.pqNbits = json.getInt("pq_nbits");
+            }
+            
             // Parse creation time
             if (json.has("created_at")) {
                 String createdAtStr = json.getString("created_at");
@@ -604,6 +1053,47 @@ public class SQLiteVectorDatabaseHandler {
                 json.put("embedding_dimension", metadata.getEmbeddingDimension());
             }
             
+            // Add HNSW parameters when the knowledge base has an ANN index
+            if (metadata.hnswM > 0) {
+                json.put("hnsw_m", metadata.hnswM);
+                json.put("hnsw_ef_construction", metadata.hnswEfConstruction);
+                json.put("hnsw_ef_search", metadata.hnswEfSearch);
+            }
+            
+            // Add IVF parameters when the knowledge base has an inverted-file index
+            if (metadata.ivfNlist > 0) {
+                json.put("ivf_nlist", metadata.ivfNlist);
+                json.put("ivf_nprobe", metadata.ivfNprobe);
+            }
+            
+            // Add quantization only when enabled, PC-built databases have no quantized column
+            if (!AppConstants.VectorQuantization.NONE.equals(metadata.quantization)) {
+                json.put("quantization", metadata.quantization);
+            }
+            if (AppConstants.VectorQuantization.PQ.equals(metadata.quantization)) {
+                json.put("pq_m", metadata.pqM);
+                json.put("pq_nbits", metadata.pqNbits);
+            }
+            // PC tools reading the documents view must decode embeddings as half precision when this is float16
+            if (metadata.isFloat16()) {
+                json.put("vector_encoding", metadata.vectorEncoding);
+                if (metadata.float16Pending) {
+                    json.put("float16_pending", true);
+                }
+            }
+            if (metadata.binarySignature) {
+                json.put("binary_signature", true);
+            }
+            if (metadata.vectorsNormalized) {
+                json.put("vectors_normalized", true);
+            }
+            if (metadata.flatVectors) {
+                json.put("flat_vectors", true);
+            }
+            if (metadata.contentHashes) {
+                json.put("content_hashes", true);
+            }
+            
             // Add source info, ensure PC compatibility
             if (metadata.sources != null && !metadata.sources.isEmpty()) {
                 json.put("sources", new JSONArray(metadata.sources));
@@ -630,10 +1120,14 @@ public class SQLiteVectorDatabaseHandler {
     
     /**
      * Convert embedding vector to binary data
+     * float16 知识库写入半精度，其余写入 float32
      * @param vector Vector
      * @return Binary data
      */
     private byte[] vectorToBlob(float[] vector) {
+        if (metadata != null && metadata.isFloat16()) {
+            return HalfFloat.encode(vector);
+        }
         // Use little-endian, consistent with PC
         byte[] embeddingBytes = new byte[vector.length * 4]; // Each float takes 4 bytes
         ByteBuffer buffer = ByteBuffer.wrap(embeddingBytes).order(ByteOrder.LITTLE_ENDIAN);
@@ -649,6 +1143,18 @@ public class SQLiteVectorDatabaseHandler {
      * @return Vector
      */
     private float[] blobToVector(byte[] blob) {
+        if (isHalfBlob(blob)) {
+            return HalfFloat.decode(blob);
+        }
+        return float32BlobToVector(blob);
+    }
+    
+    /**
+     * Convert float32 binary data to vector, v1 rows and rows written by PC tools are always float32
+     * @param blob Binary data
+     * @return Vector
+     */
+    private static float[] float32BlobToVector(byte[] blob) {
         // Use little-endian, consistent with PC
         float[] vector = new float[blob.length / 4];
         ByteBuffer.wrap(blob)
@@ -659,99 +1165,574 @@ public class SQLiteVectorDatabaseHandler {
     }
     
     /**
-     * Add text chunk to database
-     * @param text Text content
-     * @param source Source information
-     * @param embedding Embedding vector
-     * @return Whether addition was successful
+     * Whether a stored embedding is float16
+     * 按元数据中的 vector_encoding 判断；只有 float32 行尚未转换完（float16_pending）时才按长度区分，此时维度必然已知
      */
-    public boolean addChunk(String text, String source, float[] embedding) {
-        if (database == null || !database.isOpen()) {
-            LogManager.logE(TAG, "Database not open, cannot add text chunks");
-            return false;
-        }
-        
-        if (text == null || text.isEmpty()) {
-            LogManager.logE(TAG, "Text content is empty, cannot add text chunk");
+    private boolean isHalfBlob(byte[] blob) {
+        DatabaseMetadata current = metadata;
+        if (current == null || !current.isFloat16()) {
             return false;
         }
-        
-        if (embedding == null || embedding.length == 0) {
-            LogManager.logE(TAG, "Embedding vector is empty, cannot add text chunk");
-            return false;
+        return !current.isFloat16Pending() || blob.length != current.getEmbeddingDimension() * 4;
+    }
+    
+    /**
+     * Convert an embedding written through the documents view to vector
+     * PC 工具写入 float32；float16 知识库中只改了文本的行仍是原来的半精度向量，按维度区分
+     * @param blob Binary data
+     * @return Vector
+     */
+    private float[] externalBlobToVector(byte[] blob) {
+        int dimension = metadata.getEmbeddingDimension();
+        if (metadata.isFloat16() && dimension > 0 && blob.length == dimension * HalfFloat.BYTES) {
+            return HalfFloat.decode(blob);
         }
-        
-        try {
-            // Begin transaction
-            database.beginTransaction();
-            
-            // Convert embedding vector to byte array - use little-endian, consistent with PC
-            byte[] embeddingBytes = vectorToBlob(embedding);
-            
-            // Create metadata JSON
-            JSONObject metadataJson = new JSONObject();
-            metadataJson.put("source", source != null ? source : "unknown");
-            metadataJson.put("created_at", System.currentTimeMillis());
-            
-            // Prepare insert data
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_COLLECTION, metadata.getCollection());
-            values.put(COLUMN_CONTENT, text);
-            values.put(COLUMN_METADATA, metadataJson.toString());
-            values.put(COLUMN_EMBEDDING, embeddingBytes);
-            
-            // Insert data
-            long rowId = database.insert(TABLE_DOCUMENTS, null, values);
-            
-            if (rowId == -1) {
-                LogManager.logE(TAG, "Failed to insert text chunk");
-                return false;
-            }
-            
-            // Update metadata
-            if (metadata != null) {
-                // Update chunk count
-                metadata.incrementChunkCount();
-                
-                // If source not in list, add to source list
-                if (source != null && !source.isEmpty() && !metadata.sources.contains(source)) {
-                    metadata.addSource(source);
-                }
-                
-                // If embedding dimension not set, set embedding dimension
-                if (metadata.getEmbeddingDimension() == 0) {
-                    metadata.setEmbeddingDimension(embedding.length);
+        return float32BlobToVector(blob);
+    }
+    
+    /**
+     * Cosine similarity of the query with a stored embedding, half-precision rows are scored without a float copy
+     * @param queryVector Query vector (already repaired, unit length when the store is normalized)
+     * @param embeddingBlob Stored embedding
+     * @param normalized Whether stored vectors are unit length
+     */
+    private float blobSimilarity(float[] queryVector, byte[] embeddingBlob, boolean normalized) {
+        return normalized && isHalfBlob(embeddingBlob)
+                ? HalfFloat.dot(queryVector, embeddingBlob)
+                : storedSimilarity(queryVector, blobToVector(embeddingBlob), normalized);
+    }
+    
+    /**
+     * Whether a stored embedding holds a vector of the given dimension in either encoding
+     */
+    private boolean hasDimension(byte[] blob, int dimension) {
+        return blob.length == dimension * (isHalfBlob(blob) ? HalfFloat.BYTES : 4);
+    }
+    
+    /**
+     * Whether a table has a column
+     */
+    private static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return true;
                 }
             }
-            
-            // Commit transaction
-            database.setTransactionSuccessful();
-            
-            LogManager.logD(TAG, "Successfully added text chunk, ID: " + rowId);
-            return true;
-        } catch (Exception e) {
-            LogManager.logE(TAG, "Failed to add text chunk: " + e.getMessage(), e);
-            return false;
-        } finally {
-            if (database.inTransaction()) {
-                database.endTransaction();
-            }
         }
+        return false;
     }
     
     /**
-     * Load all text chunks from database
-     * @return Whether loading was successful
+     * Whether a table (not a view) with the given name exists
      */
-    public boolean loadDatabase() {
-        if (databaseDir == null) {
-            LogManager.logE(TAG, "Database directory is null, cannot load database");
-            return false;
+    private static boolean isTable(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?", new String[]{name});
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
         }
-        
+    }
+    
+    /**
+     * Create the v2 schema
+     * 文本与向量分表：chunks 保存文本及可索引的 source/file/created_at 列，vectors 只保存向量相关列，
+     * 向量扫描只需读取 vectors 表的页面；小的编码列放在 embedding 之前，扫描编码时无需读取浮点向量的溢出页
+     */
+    private static void createSchemaV2(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_CHUNKS + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_COLLECTION + " TEXT, " +
+                COLUMN_SOURCE + " TEXT, " +
+                COLUMN_FILE + " TEXT, " +
+                COLUMN_CREATED_AT + " INTEGER, " +
+                COLUMN_CONTENT + " TEXT, " +
+                COLUMN_METADATA + " TEXT, " +
+                COLUMN_CONTENT_HASH + " TEXT)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_chunks_collection ON " + TABLE_CHUNKS + "(" + COLUMN_COLLECTION + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_chunks_source ON " + TABLE_CHUNKS + "(" + COLUMN_SOURCE + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_chunks_file ON " + TABLE_CHUNKS + "(" + COLUMN_FILE + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_chunks_created_at ON " + TABLE_CHUNKS + "(" + COLUMN_CREATED_AT + ")");
+        
+        // id is the chunk id
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_VECTORS + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY, " +
+                COLUMN_EMBEDDING_BITS + " BLOB, " +
+                COLUMN_EMBEDDING_Q8 + " BLOB, " +
+                COLUMN_EMBEDDING_PQ + " BLOB, " +
+                COLUMN_EMBEDDING + " BLOB)");
+        
+        // View with the v1 layout so PC tools can still read and write the database,
+        // embeddings of float16 knowledge bases are returned as stored (see vector_encoding in metadata.json)
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + TABLE_DOCUMENTS + " AS SELECT " +
+                "c." + COLUMN_ID + " AS " + COLUMN_ID + ", " +
+                "c." + COLUMN_COLLECTION + " AS " + COLUMN_COLLECTION + ", " +
+                "c." + COLUMN_CONTENT + " AS " + COLUMN_CONTENT + ", " +
+                "c." + COLUMN_METADATA + " AS " + COLUMN_METADATA + ", " +
+                "v." + COLUMN_EMBEDDING + " AS " + COLUMN_EMBEDDING +
+                " FROM " + TABLE_CHUNKS + " c LEFT JOIN " + TABLE_VECTORS + " v ON v." + COLUMN_ID + " = c." + COLUMN_ID);
+        createDocumentsTriggers(db);
+    }
+    
+    /**
+     * Make the documents view writable for PC tools
+     * INSERT/UPDATE/DELETE 拆分写入 chunks 与 vectors；写入的行 source 为空，打开知识库时由 adoptExternalRows()
+     * 补写 source/file/created_at 并按本库的存储方式重写向量；向量变化时清空派生编码，由后台补写
+     */
+    private static void createDocumentsTriggers(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_DOCUMENTS + "_insert INSTEAD OF INSERT ON " + TABLE_DOCUMENTS +
+                " BEGIN" +
+                " INSERT INTO " + TABLE_CHUNKS + " (" + COLUMN_ID + ", " + COLUMN_COLLECTION + ", " + COLUMN_CONTENT + ", " +
+                COLUMN_METADATA + ") VALUES (NEW." + COLUMN_ID + ", NEW." + COLUMN_COLLECTION + ", NEW." + COLUMN_CONTENT +
+                ", NEW." + COLUMN_METADATA + ");" +
+                " INSERT INTO " + TABLE_VECTORS + " (" + COLUMN_ID + ", " + COLUMN_EMBEDDING + ") VALUES (last_insert_rowid(), NEW." +
+                COLUMN_EMBEDDING + ");" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_DOCUMENTS + "_update INSTEAD OF UPDATE ON " + TABLE_DOCUMENTS +
+                " BEGIN" +
+                " UPDATE " + TABLE_CHUNKS + " SET " + COLUMN_COLLECTION + " = NEW." + COLUMN_COLLECTION + ", " +
+                COLUMN_CONTENT + " = NEW." + COLUMN_CONTENT + ", " + COLUMN_METADATA + " = NEW." + COLUMN_METADATA + ", " +
+                COLUMN_SOURCE + " = NULL, " + COLUMN_CONTENT_HASH + " = CASE WHEN NEW." + COLUMN_CONTENT + " IS OLD." +
+                COLUMN_CONTENT + " THEN " + COLUMN_CONTENT_HASH + " END WHERE " + COLUMN_ID + " = OLD." + COLUMN_ID + ";" +
+                " UPDATE " + TABLE_VECTORS + " SET " + COLUMN_EMBEDDING + " = NEW." + COLUMN_EMBEDDING + ", " +
+                COLUMN_EMBEDDING_BITS + " = NULL, " + COLUMN_EMBEDDING_Q8 + " = NULL, " + COLUMN_EMBEDDING_PQ + " = NULL" +
+                " WHERE " + COLUMN_ID + " = OLD." + COLUMN_ID + " AND NEW." + COLUMN_EMBEDDING + " IS NOT OLD." + COLUMN_EMBEDDING + ";" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_DOCUMENTS + "_delete INSTEAD OF DELETE ON " + TABLE_DOCUMENTS +
+                " BEGIN" +
+                " DELETE FROM " + TABLE_VECTORS + " WHERE " + COLUMN_ID + " = OLD." + COLUMN_ID + ";" +
+                " DELETE FROM " + TABLE_CHUNKS + " WHERE " + COLUMN_ID + " = OLD." + COLUMN_ID + ";" +
+                " END");
+    }
+    
+    /**
+     * Switch a v1 database to the v2 schema without copying rows
+     * 在 onCreate/onUpgrade 的事务中只重命名旧表并创建新表，行由 migrateLegacyRows() 在打开后分批迁移；
+     * chunks 的自增序列从旧表最大 id 开始，迁移期间新写入的行不会与待迁移的 id 冲突
+     */
+    private static void prepareMigrationV2(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_DOCUMENTS + " RENAME TO " + TABLE_DOCUMENTS_V1);
+        createSchemaV2(db);
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + TABLE_CHUNKS + "', MAX(" + COLUMN_ID + ") FROM " +
+                TABLE_DOCUMENTS_V1 + " HAVING MAX(" + COLUMN_ID + ") IS NOT NULL");
+        LogManager.logI(TAG, "Prepared schema v2, v1 rows will be migrated in the background");
+    }
+    
+    /**
+     * Move the rows of documents_v1 into the v2 tables
+     * 每批 MIGRATION_PAGE_SIZE 行在一个事务中复制并从旧表删除，额外磁盘占用不超过一批；中途停止或关闭时
+     * 已迁移的行保留，下次打开继续。从 metadata JSON 中解析出 source/file/created_at，已有的编码列原样复制，
+     * 迁移的行同时写入全文索引并加入已加载的内存索引；旧表为空时删除
+     * @return Whether no v1 rows remain
+     */
+    private boolean migrateLegacyRows() {
+        synchronized (migrationLock) {
+            SQLiteDatabase db = database;
+            if (!legacyRowsPending) {
+                return true;
+            }
+            if (db == null || !db.isOpen() || db.isReadOnly()) {
+                return false;
+            }
+            
+            // Code columns only exist if they were added to the v1 table
+            List<String> codeColumns = new ArrayList<>();
+            try (Cursor columnCursor = db.rawQuery("PRAGMA table_info(" + TABLE_DOCUMENTS_V1 + ")", null)) {
+                int nameIndex = columnCursor.getColumnIndex("name");
+                while (columnCursor.moveToNext()) {
+                    String column = columnCursor.getString(nameIndex);
+                    if (COLUMN_EMBEDDING_Q8.equals(column) || COLUMN_EMBEDDING_BITS.equals(column) || COLUMN_EMBEDDING_PQ.equals(column)) {
+                        codeColumns.add(column);
+                    }
+                }
+            }
+            String[] columns = new String[5 + codeColumns.size()];
+            columns[0] = COLUMN_ID;
+            columns[1] = COLUMN_COLLECTION;
+            columns[2] = COLUMN_CONTENT;
+            columns[3] = COLUMN_METADATA;
+            columns[4] = COLUMN_EMBEDDING;
+            for (int i = 0; i < codeColumns.size(); i++) {
+                columns[5 + i] = codeColumns.get(i);
+            }
+            
+            long startTime = System.currentTimeMillis();
+            int migrated = 0;
+            while (true) {
+                if (GlobalStopManager.isGlobalStopRequested() || database != db || !db.isOpen()) {
+                    LogManager.logD(TAG, "Schema v2 migration paused after " + migrated + " rows");
+                    return false;
+                }
+                List<Long> rowIds = new ArrayList<>();
+                List<float[]> embeddings = new ArrayList<>();
+                String lexical = lexicalModule;
+                boolean hashes = contentHashEnabled;
+                int pageRows = 0;
+                db.beginTransaction();
+                try {
+                    long lastRowId = Long.MIN_VALUE;
+                    try (Cursor cursor = db.query(TABLE_DOCUMENTS_V1, columns, null, null,
+                            null, null, COLUMN_ID, String.valueOf(MIGRATION_PAGE_SIZE))) {
+                        while (cursor.moveToNext()) {
+                            lastRowId = cursor.getLong(0);
+                            String content = cursor.getString(2);
+                            String metadataJson = cursor.getString(3);
+                            
+                            ContentValues chunkValues = new ContentValues();
+                            chunkValues.put(COLUMN_ID, lastRowId);
+                            chunkValues.put(COLUMN_COLLECTION, cursor.getString(1));
+                            chunkValues.put(COLUMN_CONTENT, content);
+                            chunkValues.put(COLUMN_METADATA, metadataJson);
+                            putMetadataColumns(chunkValues, metadataJson);
+                            db.insertOrThrow(TABLE_CHUNKS, null, chunkValues);
+                            
+                            byte[] embeddingBlob = cursor.getBlob(4);
+                            float[] embedding = null;
+                            if (embeddingBlob != null && embeddingBlob.length > 0) {
+                                embedding = float32BlobToVector(embeddingBlob);
+                                if (metadata.isVectorsNormalized()) {
+                                    embedding = normalizeForStorage(embedding);
+                                    embeddingBlob = vectorToBlob(embedding);
+                                } else {
+                                    if (metadata.isFloat16()) {
+                                        embeddingBlob = vectorToBlob(embedding);
+                                    }
+                                    VectorMath.sanitizeInPlace(embedding);
+                                    VectorMath.normalizeInPlace(embedding);
+                                }
+                            }
+                            ContentValues vectorValues = new ContentValues();
+                            vectorValues.put(COLUMN_ID, lastRowId);
+                            vectorValues.put(COLUMN_EMBEDDING, embeddingBlob);
+                            for (int i = 0; i < codeColumns.size(); i++) {
+                                vectorValues.put(codeColumns.get(i), cursor.getBlob(5 + i));
+                            }
+                            db.insertOrThrow(TABLE_VECTORS, null, vectorValues);
+                            
+                            if (lexical != null) {
+                                ContentValues lexicalValues = new ContentValues();
+                                lexicalValues.put("rowid", lastRowId);
+                                lexicalValues.put(COLUMN_TOKENS, LexicalTokenizer.segment(content));
+                                db.insert(TABLE_LEXICAL, null, lexicalValues);
+                            }
+                            // Duplicate texts keep their own row without a hash, as in ensureContentHashes()
+                            if (hashes && content != null && !content.isEmpty()) {
+                                db.execSQL("UPDATE OR IGNORE " + TABLE_CHUNKS + " SET " + COLUMN_CONTENT_HASH + "=? WHERE " +
+                                        COLUMN_ID + "=?", new Object[]{contentHash(content), lastRowId});
+                            }
+                            if (embedding != null) {
+                                rowIds.add(lastRowId);
+                                embeddings.add(embedding);
+                            }
+                            pageRows++;
+                        }
+                    }
+                    if (pageRows > 0) {
+                        db.delete(TABLE_DOCUMENTS_V1, COLUMN_ID + "<=?", new String[]{String.valueOf(lastRowId)});
+                    }
+                    db.setTransactionSuccessful();
+                } catch (Exception e) {
+                    LogManager.logE(TAG, "Failed to migrate v1 rows: " + e.getMessage(), e);
+                    return false;
+                } finally {
+                    db.endTransaction();
+                }
+                
+                // In-memory indexes only see the rows once they are committed
+                for (int i = 0; i < rowIds.size(); i++) {
+                    onVectorInserted(rowIds.get(i), embeddings.get(i));
+                }
+                migrated += pageRows;
+                if (pageRows < MIGRATION_PAGE_SIZE) {
+                    break;
+                }
+                LogManager.logD(TAG, "Migrated " + migrated + " rows to schema v2...");
+            }
+            
+            try {
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_DOCUMENTS_V1);
+            } catch (Exception e) {
+                LogManager.logW(TAG, "Failed to drop migrated v1 table: " + e.getMessage());
+            }
+            legacyRowsPending = false;
+            LogManager.logI(TAG, "Migrated " + migrated + " rows to schema v2, took " + (System.currentTimeMillis() - startTime) + "ms");
+            return true;
+        }
+    }
+    
+    /**
+     * Finish the v1 migration in the background
+     */
+    private void scheduleLegacyMigration() {
+        if (!legacyRowsPending || database == null || database.isReadOnly()) {
+            return;
+        }
+        MAINTENANCE_EXECUTOR.execute(() -> {
+            try {
+                migrateLegacyRows();
+            } catch (Exception e) {
+                LogManager.logW(TAG, "Background schema v2 migration stopped: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Fill in rows written by PC tools through the documents view
+     * 触发器写入的行 source 为空（经 idx_chunks_source 查找，没有这类行时开销可忽略）：补写
+     * source/file/created_at，并按本库的存储方式（归一化、float16）重写向量，派生编码由后台补写
+     * @return Number of adopted rows
+     */
+    private int adoptExternalRows() {
+        if (database == null || database.isReadOnly() || metadata == null) {
+            return 0;
+        }
+        int adopted = 0;
+        try {
+            while (true) {
+                int pageRows = 0;
+                database.beginTransaction();
+                try (Cursor cursor = database.rawQuery("SELECT c." + COLUMN_ID + ", c." + COLUMN_METADATA + ", v." +
+                        COLUMN_EMBEDDING + " FROM " + TABLE_CHUNKS + " c LEFT JOIN " + TABLE_VECTORS + " v ON v." +
+                        COLUMN_ID + " = c." + COLUMN_ID + " WHERE c." + COLUMN_SOURCE + " IS NULL LIMIT " +
+                        MIGRATION_PAGE_SIZE, null)) {
+                    while (cursor.moveToNext()) {
+                        String rowId = String.valueOf(cursor.getLong(0));
+                        ContentValues chunkValues = new ContentValues();
+                        putMetadataColumns(chunkValues, cursor.getString(1));
+                        database.update(TABLE_CHUNKS, chunkValues, COLUMN_ID + "=?", new String[]{rowId});
+                        byte[] embeddingBlob = cursor.getBlob(2);
+                        if (embeddingBlob != null && embeddingBlob.length > 0
+                                && (metadata.isVectorsNormalized() || metadata.isFloat16())) {
+                            float[] embedding = externalBlobToVector(embeddingBlob);
+                            if (metadata.isVectorsNormalized()) {
+                                embedding = normalizeForStorage(embedding);
+                            }
+                            ContentValues vectorValues = new ContentValues();
+                            vectorValues.put(COLUMN_EMBEDDING, vectorToBlob(embedding));
+                            database.update(TABLE_VECTORS, vectorValues, COLUMN_ID + "=?", new String[]{rowId});
+                        }
+                        pageRows++;
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                adopted += pageRows;
+                if (pageRows < MIGRATION_PAGE_SIZE) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            LogManager.logW(TAG, "Failed to adopt rows written through the documents view: " + e.getMessage());
+        }
+        if (adopted > 0) {
+            LogManager.logI(TAG, "Adopted " + adopted + " rows written through the documents view");
+        }
+        return adopted;
+    }
+    
+    /**
+     * Fill the typed source/file/created_at columns from a chunk's metadata JSON
+     * @param values Values for the chunks table
+     * @param metadataJson Metadata JSON string
+     */
+    private static void putMetadataColumns(ContentValues values, String metadataJson) {
+        JSONObject json = null;
+        if (metadataJson != null && !metadataJson.isEmpty()) {
+            try {
+                json = new JSONObject(metadataJson);
+            } catch (JSONException e) {
+                LogManager.logW(TAG, "Failed to parse metadata: " + e.getMessage());
+            }
+        }
+        MetadataColumns columns = new MetadataColumns(json);
+        values.put(COLUMN_SOURCE, columns.source);
+        values.put(COLUMN_FILE, columns.file);
+        if (columns.createdAt != null) {
+            values.put(COLUMN_CREATED_AT, columns.createdAt);
+        } else {
+            values.putNull(COLUMN_CREATED_AT);
+        }
+    }
+    
+    /**
+     * Typed source/file/created_at values taken from a chunk's metadata JSON
+     */
+    private static final class MetadataColumns {
+        final String source;
+        final String file;
+        final Long createdAt;
+        
+        MetadataColumns(JSONObject json) {
+            String source = "unknown";
+            String file = null;
+            Long createdAt = null;
+            if (json != null) {
+                source = json.optString("source", source);
+                file = json.optString("fileName", json.optString("file", source));
+                long created = json.optLong("created_at", -1);
+                if (created >= 0) {
+                    createdAt = created;
+                }
+            }
+            this.source = source;
+            this.file = file != null ? file : source;
+            this.createdAt = createdAt;
+        }
+    }
+    
+    /**
+     * Insert one chunk and its vector, must be called inside a transaction
+     * 相同文本已存在时不再插入，只为已有行记录来源引用
+     * @param text Text content
+     * @param metadataJson Chunk metadata, source/file/created_at are also stored as columns
+     * @param embedding Embedding vector
+     * @return Chunk ID, DUPLICATE_CHUNK if the text is already stored, or -1 on failure
+     */
+    private long insertChunk(String text, JSONObject metadataJson, float[] embedding) {
+        String metadataStr = metadataJson.toString();
+        String hash = contentHashEnabled ? contentHash(text) : null;
+        if (hash != null && recordDuplicate(hash, new MetadataColumns(metadataJson))) {
+            return DUPLICATE_CHUNK;
+        }
+        ContentValues chunkValues = new ContentValues();
+        chunkValues.put(COLUMN_COLLECTION, metadata.getCollection());
+        chunkValues.put(COLUMN_CONTENT, text);
+        chunkValues.put(COLUMN_METADATA, metadataStr);
+        if (hash != null) {
+            chunkValues.put(COLUMN_CONTENT_HASH, hash);
+        }
+        putMetadataColumns(chunkValues, metadataStr);
+        long rowId = database.insert(TABLE_CHUNKS, null, chunkValues);
+        if (rowId == -1) {
+            return -1;
+        }
+        
+        ContentValues vectorValues = new ContentValues();
+        vectorValues.put(COLUMN_ID, rowId);
+        // Use little-endian, consistent with PC
+        vectorValues.put(COLUMN_EMBEDDING, vectorToBlob(embedding));
+        if (isInt8Quantized()) {
+            vectorValues.put(COLUMN_EMBEDDING_Q8, ScalarQuantizer.encode(embedding));
+        }
+        if (metadata.hasBinarySignature()) {
+            vectorValues.put(COLUMN_EMBEDDING_BITS, BinarySignature.encodeToBlob(embedding));
+        }
+        ProductQuantizer quantizer = productQuantizer;
+        if (quantizer != null) {
+            vectorValues.put(COLUMN_EMBEDDING_PQ, quantizer.encode(embedding));
+        }
+        if (database.insert(TABLE_VECTORS, null, vectorValues) == -1) {
+            return -1;
+        }
+        if (lexicalModule != null) {
+            ContentValues lexicalValues = new ContentValues();
+            lexicalValues.put("rowid", rowId);
+            lexicalValues.put(COLUMN_TOKENS, LexicalTokenizer.segment(text));
+            if (database.insert(TABLE_LEXICAL, null, lexicalValues) == -1) {
+                return -1;
+            }
+        }
+        return rowId;
+    }
+    
+    /**
+     * Add text chunk to database
+     * @param text Text content
+     * @param source Source information
+     * @param embedding Embedding vector
+     * @return Whether addition was successful
+     */
+    public boolean addChunk(String text, String source, float[] embedding) {
+        if (database == null || !database.isOpen()) {
+            LogManager.logE(TAG, "Database not open, cannot add text chunks");
+            return false;
+        }
+        
+        if (text == null || text.isEmpty()) {
+            LogManager.logE(TAG, "Text content is empty, cannot add text chunk");
+            return false;
+        }
+        
+        if (embedding == null || embedding.length == 0) {
+            LogManager.logE(TAG, "Embedding vector is empty, cannot add text chunk");
+            return false;
+        }
+        
+        try {
+            embedding = normalizeForStorage(embedding);
+            
+            // Begin transaction
+            database.beginTransaction();
+            
+            // Create metadata JSON
+            JSONObject metadataJson = new JSONObject();
+            metadataJson.put("source", source != null ? source : "unknown");
+            metadataJson.put("created_at", System.currentTimeMillis());
+            
+            // Insert data
+            long rowId = insertChunk(text, metadataJson, embedding);
+            
+            if (rowId == -1) {
+                LogManager.logE(TAG, "Failed to insert text chunk");
+                return false;
+            }
+            if (rowId == DUPLICATE_CHUNK) {
+                database.setTransactionSuccessful();
+                addDuplicateSource(source);
+                LogManager.logD(TAG, "Text chunk already stored, recorded source reference only");
+                return true;
+            }
+            
+            // Update metadata
+            if (metadata != null) {
+                // Update chunk count
+                metadata.incrementChunkCount();
+                
+                // If source not in list, add to source list
+                if (source != null && !source.isEmpty() && !metadata.sources.contains(source)) {
+                    metadata.addSource(source);
+                }
+                
+                // If embedding dimension not set, set embedding dimension
+                if (metadata.getEmbeddingDimension() == 0) {
+                    metadata.setEmbeddingDimension(embedding.length);
+                }
+            }
+            
+            // Commit transaction, in-memory indexes only see the row once it is committed
+            database.setTransactionSuccessful();
+            database.endTransaction();
+            onVectorInserted(rowId, embedding);
+            
+            LogManager.logD(TAG, "Successfully added text chunk, ID: " + rowId);
+            return true;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to add text chunk: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (database.inTransaction()) {
+                database.endTransaction();
+            }
+        }
+    }
+    
+    /**
+     * Load all text chunks from database
+     * @return Whether loading was successful
+     */
+    public boolean loadDatabase() {
+        if (databaseDir == null) {
+            LogManager.logE(TAG, "Database directory is null, cannot load database");
+            return false;
+        }
+        
         // If database is already open and metadata loaded, return success directly
         if (database != null && database.isOpen() && metadata != null) {
             LogManager.logI(TAG, "Database already open and metadata loaded, no need to reload");
+            loadSearchIndexes(getChunkCount());
             return true;
         }
         
@@ -799,34 +1780,31 @@ public class SQLiteVectorDatabaseHandler {
                 return false;
             }
             
-            // Check if document table exists
-            LogManager.logI(TAG, "Checking if document table exists: " + TABLE_DOCUMENTS);
-            Cursor cursor = database.rawQuery(
-                    "SELECT name FROM sqlite_master WHERE type='table' AND name=?",
-                    new String[]{TABLE_DOCUMENTS});
-            
-            boolean tableExists = cursor.getCount() > 0;
-            cursor.close();
-            
-            if (!tableExists) {
-                LogManager.logE(TAG, "Document table does not exist: " + TABLE_DOCUMENTS);
+            // Check if chunk and vector tables exist
+            LogManager.logI(TAG, "Checking if tables exist: " + TABLE_CHUNKS + ", " + TABLE_VECTORS);
+            if (!isTable(database, TABLE_CHUNKS) || !isTable(database, TABLE_VECTORS)) {
+                LogManager.logE(TAG, "Chunk or vector table does not exist");
                 closeDatabase(); // Close database connection
                 return false;
             }
+            ensureContentHashes();
             
-            LogManager.logI(TAG, "Document table exists: " + TABLE_DOCUMENTS);
+            LogManager.logI(TAG, "Tables exist: " + TABLE_CHUNKS + ", " + TABLE_VECTORS);
             
             // Check table structure
             try {
                 LogManager.logI(TAG, "Checking table structure...");
-                Cursor columnCursor = database.rawQuery("PRAGMA table_info(" + TABLE_DOCUMENTS + ")", null);
                 StringBuilder columnsInfo = new StringBuilder("Table structure info:\n");
-                while (columnCursor.moveToNext()) {
-                    String columnName = columnCursor.getString(1);
-                    String columnType = columnCursor.getString(2);
-                    columnsInfo.append("Column: ").append(columnName).append(", Type: ").append(columnType).append("\n");
+                for (String table : new String[]{TABLE_CHUNKS, TABLE_VECTORS}) {
+                    Cursor columnCursor = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+                    while (columnCursor.moveToNext()) {
+                        String columnName = columnCursor.getString(1);
+                        String columnType = columnCursor.getString(2);
+                        columnsInfo.append("Table: ").append(table).append(", Column: ").append(columnName)
+                                .append(", Type: ").append(columnType).append("\n");
+                    }
+                    columnCursor.close();
                 }
-                columnCursor.close();
                 LogManager.logI(TAG, columnsInfo.toString());
             } catch (Exception e) {
                 LogManager.logW(TAG, "Failed to get table structure info: " + e.getMessage());
@@ -834,13 +1812,19 @@ public class SQLiteVectorDatabaseHandler {
             
             // Check text chunk count
             LogManager.logI(TAG, "Checking text chunk count...");
-            cursor = database.rawQuery("SELECT COUNT(*) FROM " + TABLE_DOCUMENTS, null);
+            Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + TABLE_CHUNKS, null);
             cursor.moveToFirst();
             int count = cursor.getInt(0);
             cursor.close();
             
             LogManager.logI(TAG, "Database loaded successfully, total " + count + " text chunks");
             
+            // Rows written by PC tools through the documents view get their typed columns before indexes load
+            adoptExternalRows();
+            
+            // Load ANN index or resident vector matrix once, subsequent searches no longer scan SQLite
+            loadSearchIndexes(count);
+            
             return true;
         } catch (Exception e) {
             LogManager.logE(TAG, "Failed to load database: " + e.getMessage() + "\nStack trace: " + Log.getStackTraceString(e));
@@ -860,7 +1844,7 @@ public class SQLiteVectorDatabaseHandler {
         }
         
         try {
-            Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + TABLE_DOCUMENTS, null);
+            Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " + TABLE_CHUNKS, null);
             cursor.moveToFirst();
             int count = cursor.getInt(0);
             cursor.close();
@@ -881,104 +1865,106 @@ public class SQLiteVectorDatabaseHandler {
     }
     
     /**
-     * Calculate cosine similarity between two vectors
-     * @param vec1 Vector 1
-     * @param vec2 Vector 2
-     * @return Cosine similarity value, range [-1, 1]
+     * Get knowledge base directory
+     * @return Knowledge base directory
      */
-    private float cosineSimilarity(float[] vec1, float[] vec2) {
-        if (vec1.length != vec2.length) {
-            LogManager.logE(TAG, "Vector dimensions do not match: vec1 length=" + vec1.length + ", vec2 length=" + vec2.length);
-            throw new IllegalArgumentException("Vector dimensions do not match");
-        }
-        
-        // 1. 向量异常检测和修复
-        VectorAnomalyHandler.AnomalyResult anomaly1 = VectorAnomalyHandler.detectAnomalies(vec1, -1);
-        VectorAnomalyHandler.AnomalyResult anomaly2 = VectorAnomalyHandler.detectAnomalies(vec2, -1);
+    public File getDatabaseDir() {
+        return databaseDir;
+    }
+    
+    /**
+     * Search for text chunks most similar to query vector
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by similarity in descending order
+     */
+    public List<SearchResult> searchSimilar(float[] queryVector, int topK) {
+        List<SearchResult> results = new ArrayList<>();
         
-        float[] processedVec1 = vec1;
-        float[] processedVec2 = vec2;
+        if (database == null || !database.isOpen()) {
+            LogManager.logE(TAG, "Database not open, cannot search");
+            return results;
+        }
         
-        // 修复第一个向量的异常
-        if (anomaly1.isAnomalous) {
-            LogManager.logW(TAG, String.format("Vector 1 anomaly detected in similarity calculation: %s (severity: %.2f)", 
-                    anomaly1.type.name(), anomaly1.severity));
-            processedVec1 = VectorAnomalyHandler.repairVector(vec1, anomaly1.type);
-            if (processedVec1 == null) {
-                LogManager.logE(TAG, "Failed to repair vector 1 anomaly, using original vector");
-                processedVec1 = vec1;
-            }
+        if (queryVector == null || queryVector.length == 0) {
+            LogManager.logE(TAG, "Query vector is empty, cannot search");
+            return results;
         }
         
-        // 修复第二个向量的异常
-        if (anomaly2.isAnomalous) {
-            LogManager.logW(TAG, String.format("Vector 2 anomaly detected in similarity calculation: %s (severity: %.2f)", 
-                    anomaly2.type.name(), anomaly2.severity));
-            processedVec2 = VectorAnomalyHandler.repairVector(vec2, anomaly2.type);
-            if (processedVec2 == null) {
-                LogManager.logE(TAG, "Failed to repair vector 2 anomaly, using original vector");
-                processedVec2 = vec2;
-            }
+        // HNSW path: approximate search on the graph, then fetch text only for the winners
+        HnswIndex annIndex = hnswIndex;
+        if (annIndex != null) {
+            return searchHnswIndex(annIndex, queryVector, topK);
         }
         
-        // 2. 计算余弦相似度
-        float dotProduct = 0.0f;
-        float normA = 0.0f;
-        float normB = 0.0f;
+        // IVF path: scan the closest inverted lists from disk plus rows added after the index was built
+        IvfIndex invertedIndex = ivfIndex;
+        if (invertedIndex != null) {
+            return searchIvfIndex(invertedIndex, queryVector, topK);
+        }
         
-        for (int i = 0; i < processedVec1.length; i++) {
-            float val1 = processedVec1[i];
-            float val2 = processedVec2[i];
-            
-            // 检查单个值的异常
-            if (Float.isNaN(val1) || Float.isInfinite(val1)) {
-                LogManager.logW(TAG, String.format("Anomalous value in vector 1 at index %d: %f", i, val1));
-                val1 = 0.0f;
-            }
-            if (Float.isNaN(val2) || Float.isInfinite(val2)) {
-                LogManager.logW(TAG, String.format("Anomalous value in vector 2 at index %d: %f", i, val2));
-                val2 = 0.0f;
-            }
-            
-            dotProduct += val1 * val2;
-            normA += val1 * val1;
-            normB += val2 * val2;
+        // Flat file path: score straight out of the memory-mapped vectors.f32
+        FlatVectorFile flatFile = flatVectorFile;
+        if (flatFile != null) {
+            return searchFlatVectors(flatFile, queryVector, topK);
         }
         
-        // 3. 检查范数异常
-        if (normA <= 1e-6f || normB <= 1e-6f) {
-            LogManager.logW(TAG, String.format("Vector norm too small: normA=%.2e, normB=%.2e, returning zero similarity", normA, normB));
-            return 0.0f;
+        // Resident matrix path: score in memory, then fetch text only for the winners
+        ResidentVectorIndex index = residentIndex;
+        if (index != null) {
+            return searchResidentIndex(index, queryVector, topK);
         }
         
-        // 4. 计算最终相似度
-        float similarity = dotProduct / (float)(Math.sqrt(normA) * Math.sqrt(normB));
+        // Binary path: Hamming shortlist on sign-bit signatures, re-score the shortlist with float vectors
+        if (metadata.hasBinarySignature()) {
+            return searchBinary(queryVector, topK);
+        }
         
-        // 5. 检查相似度结果异常
-        if (Float.isNaN(similarity) || Float.isInfinite(similarity)) {
-            LogManager.logW(TAG, String.format("Anomalous similarity result: %f, returning zero", similarity));
-            return 0.0f;
+        // Quantized path: rank by int8 codes, re-score the best candidates with float vectors
+        if (isInt8Quantized()) {
+            return searchQuantized(queryVector, topK);
         }
         
-        // 6. 钳制相似度到合理范围 [-1, 1]
-        if (similarity > 1.0f) {
-            LogManager.logW(TAG, String.format("Similarity > 1.0: %f, clamping to 1.0", similarity));
-            similarity = 1.0f;
-        } else if (similarity < -1.0f) {
-            LogManager.logW(TAG, String.format("Similarity < -1.0: %f, clamping to -1.0", similarity));
-            similarity = -1.0f;
+        // PQ path: rank by lookup-table scores of m-byte codes, re-score the best candidates with float vectors
+        ProductQuantizer quantizer = productQuantizer;
+        if (quantizer != null) {
+            return searchProductQuantized(quantizer, queryVector, topK);
         }
         
-        return similarity;
+        // Exact path in two phases: score only (rowid, embedding) into a bounded heap,
+        // then fetch content and source for the winners with a single IN (...) query
+        try {
+            float[] query = prepareQueryVector(queryVector);
+            AtomicInteger scanned = new AtomicInteger();
+            TopKHeap heap = scanCollection(query, topK, scanned);
+            if (heap == null) {
+                return results;
+            }
+            heap.sortDescending();
+            
+            results = fetchSearchResults(heap);
+            LogManager.logD(TAG, "Search completed, scanned " + scanned.get() + " vectors, found " + results.size() + " similar text chunks");
+            return results;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to search similar text chunks: " + e.getMessage(), e);
+            return results;
+        }
     }
     
     /**
-     * Search for text chunks most similar to query vector
+     * Search similar text chunks among the chunks matching a filter
+     * 过滤条件先在 chunks 表的索引列上求出允许的行ID，再只对这些行打分，不会先取 topK 再过滤：
+     * 有平铺向量文件或常驻矩阵时按位图跳过其余行，否则按主键分批读取允许行的向量。
+     * HNSW/IVF 与量化路径不参与过滤检索，过滤后的子集上直接精确检索
      * @param queryVector Query vector
      * @param topK Maximum number of results to return
+     * @param filter Metadata filter, null or empty searches all chunks
      * @return Search result list, sorted by similarity in descending order
      */
-    public List<SearchResult> searchSimilar(float[] queryVector, int topK) {
+    public List<SearchResult> searchSimilar(float[] queryVector, int topK, SearchFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return searchSimilar(queryVector, topK);
+        }
         List<SearchResult> results = new ArrayList<>();
         
         if (database == null || !database.isOpen()) {
@@ -992,176 +1978,2672 @@ public class SQLiteVectorDatabaseHandler {
         }
         
         try {
-            // Get documents from current knowledge base
-            String collection = metadata.getCollection();
-            Cursor cursor = database.query(
-                    TABLE_DOCUMENTS,
-                    new String[]{COLUMN_ID, COLUMN_CONTENT, COLUMN_METADATA, COLUMN_EMBEDDING},
-                    COLUMN_COLLECTION + "=?",
-                    new String[]{collection},
-                    null, null, null);
+            long startTime = System.currentTimeMillis();
+            long[] allowedRows = selectFilteredRows(filter);
+            if (allowedRows == null) {
+                return results;
+            }
+            if (allowedRows.length == 0) {
+                LogManager.logD(TAG, "No chunks match " + filter);
+                return results;
+            }
             
-            // Create result list to store similarity and corresponding text chunks
-            List<Pair<Float, SearchResult>> similarityResults = new ArrayList<>();
+            float[] query = prepareQueryVector(queryVector);
+            TopKHeap heap;
+            FlatVectorFile flatFile = flatVectorFile;
+            ResidentVectorIndex index = residentIndex;
+            if (flatFile != null) {
+                heap = flatFile.search(query, topK, getSearchWorkers(), toRowFilter(allowedRows));
+            } else if (index != null) {
+                heap = index.search(query, topK, getSearchWorkers(), toRowFilter(allowedRows));
+            } else {
+                heap = scanRows(allowedRows, query, topK);
+            }
+            if (heap == null) {
+                return results;
+            }
+            heap.sortDescending();
             
-            // Iterate through all text chunks
+            results = fetchSearchResults(heap);
+            LogManager.logD(TAG, "Filtered search completed, " + filter + " allowed " + allowedRows.length +
+                    " chunks, found " + results.size() + " similar text chunks, took " +
+                    (System.currentTimeMillis() - startTime) + "ms");
+            return results;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to search with filter: " + e.getMessage(), e);
+            return results;
+        }
+    }
+    
+    /**
+     * Row IDs of the chunks in the current collection matching a filter
+     * @param filter Metadata filter
+     * @return Row IDs in ascending order, or null on failure
+     */
+    private long[] selectFilteredRows(SearchFilter filter) {
+        StringBuilder selection = new StringBuilder(COLUMN_COLLECTION + "=?");
+        List<String> args = new ArrayList<>();
+        args.add(metadata.getCollection());
+        filter.appendSelection(selection, args);
+        
+        // 自定义元数据键没有索引列，在SQL选出的候选行上逐行比较
+        boolean checkMetadata = filter.hasMetadataConditions();
+        String[] columns = checkMetadata ? new String[]{COLUMN_ID, COLUMN_METADATA} : new String[]{COLUMN_ID};
+        long[] rowIds = new long[256];
+        int count = 0;
+        try (Cursor cursor = database.query(TABLE_CHUNKS, columns, selection.toString(),
+                args.toArray(new String[0]), null, null, COLUMN_ID)) {
             while (cursor.moveToNext()) {
-                // Check global stop flag
-                if (GlobalStopManager.isGlobalStopRequested()) {
-                    LogManager.logD(TAG, "Global stop requested, aborting database search");
-                    cursor.close();
-                    return results;
-                }
-                
-                int contentIndex = cursor.getColumnIndex(COLUMN_CONTENT);
-                int metadataIndex = cursor.getColumnIndex(COLUMN_METADATA);
-                int embeddingIndex = cursor.getColumnIndex(COLUMN_EMBEDDING);
-                
-                // Check if column indices are valid
-                if (contentIndex == -1 || metadataIndex == -1 || embeddingIndex == -1) {
-                    LogManager.logE(TAG, "Database table structure mismatch, missing required columns");
+                if (checkMetadata && !filter.matchesMetadata(parseMetadataJson(cursor.getString(1)))) {
                     continue;
                 }
-                
-                String content = cursor.getString(contentIndex);
-                String metadataJson = cursor.getString(metadataIndex);
-                byte[] embeddingBlob = cursor.getBlob(embeddingIndex);
-                
-                // Parse metadata
-                String source = "unknown";
+                if (count == rowIds.length) {
+                    rowIds = Arrays.copyOf(rowIds, count * 2);
+                }
+                rowIds[count++] = cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to select filtered rows: " + e.getMessage(), e);
+            return null;
+        }
+        return Arrays.copyOf(rowIds, count);
+    }
+    
+    private static JSONObject parseMetadataJson(String metadataJson) {
+        if (metadataJson == null || metadataJson.isEmpty()) {
+            return null;
+        }
+        try {
+            return new JSONObject(metadataJson);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Bitmap membership test over allowed row IDs
+     * @param sortedRowIds Allowed row IDs in ascending order
+     */
+    private static LongPredicate toRowFilter(long[] sortedRowIds) {
+        long maxRowId = sortedRowIds[sortedRowIds.length - 1];
+        if (sortedRowIds[0] < 0 || maxRowId >= Integer.MAX_VALUE) {
+            return rowId -> Arrays.binarySearch(sortedRowIds, rowId) >= 0;
+        }
+        BitSet allowed = new BitSet((int) maxRowId + 1);
+        for (long rowId : sortedRowIds) {
+            allowed.set((int) rowId);
+        }
+        return rowId -> rowId >= 0 && rowId <= maxRowId && allowed.get((int) rowId);
+    }
+    
+    /**
+     * Exact scan of the given rows, read by primary key in batches scored in parallel when worthwhile
+     * @param rowIds Row IDs to score
+     * @param query Query vector (already normalized)
+     * @param topK Number of results to keep
+     * @return Heap of the best rows, or null if the scan failed or was aborted
+     */
+    private TopKHeap scanRows(long[] rowIds, float[] query, int topK) {
+        int blockCount = (rowIds.length + MAX_SQL_VARIABLES - 1) / MAX_SQL_VARIABLES;
+        int workers = rowIds.length < PARALLEL_SCAN_MIN_ROWS ? 1 : getSearchWorkers();
+        return ParallelScanner.scan(blockCount, workers, topK, (block, heap) -> {
+            int start = block * MAX_SQL_VARIABLES;
+            int end = Math.min(rowIds.length, start + MAX_SQL_VARIABLES);
+            StringBuilder placeholders = new StringBuilder();
+            String[] args = new String[end - start];
+            for (int i = start; i < end; i++) {
+                placeholders.append(i == start ? "?" : ",?");
+                args[i - start] = String.valueOf(rowIds[i]);
+            }
+            return scanEmbeddings(heap, query, COLUMN_ID + " IN (" + placeholders + ")", args) >= 0;
+        });
+    }
+    
+    /**
+     * Hybrid search: vector search and full-text (BM25) search fused with reciprocal rank fusion
+     * 两路检索并行执行，各取 topK * HYBRID_CANDIDATE_FACTOR 个候选，按 Σ 1/(RRF_K + 名次) 合并后取 topK，
+     * 向量检索漏掉的型号、错误码等精确词也能进入候选；结果按融合分数排序，similarity 仍为与查询向量的余弦相似度。
+     * 知识库没有全文索引或查询没有可检索的词时等同于 searchSimilar
+     * @param queryText Query text
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by fused rank
+     */
+    public List<SearchResult> searchHybrid(String queryText, float[] queryVector, int topK) {
+        String matchQuery = LexicalTokenizer.toMatchQuery(queryText);
+        if (lexicalModule == null || lexicalIndexPending || matchQuery == null || database == null || !database.isOpen()) {
+            return searchSimilar(queryVector, topK);
+        }
+        if (queryVector == null || queryVector.length == 0) {
+            LogManager.logE(TAG, "Query vector is empty, cannot search");
+            return new ArrayList<>();
+        }
+        
+        long startTime = System.currentTimeMillis();
+        int candidates = topK * HYBRID_CANDIDATE_FACTOR;
+        Future<long[]> lexicalFuture = LEXICAL_EXECUTOR.submit(() -> searchLexicalRows(matchQuery, candidates));
+        List<SearchResult> vectorResults = searchSimilar(queryVector, candidates);
+        long[] lexicalRows;
+        try {
+            lexicalRows = lexicalFuture.get();
+        } catch (Exception e) {
+            LogManager.logW(TAG, "Full-text search failed, using vector results only: " + e.getMessage());
+            lexicalRows = new long[0];
+        }
+        
+        Map<Long, SearchResult> resultsById = new HashMap<>();
+        long[] vectorRows = new long[vectorResults.size()];
+        for (int i = 0; i < vectorRows.length; i++) {
+            SearchResult result = vectorResults.get(i);
+            vectorRows[i] = result.id;
+            resultsById.put(result.id, result);
+        }
+        long[] ranked = fuseRankings(vectorRows, lexicalRows, topK);
+        
+        // Rows found only by full-text search are scored against the query vector for their similarity
+        List<Long> missing = new ArrayList<>();
+        for (long rowId : ranked) {
+            if (!resultsById.containsKey(rowId)) {
+                missing.add(rowId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long[] rowIds = new long[missing.size()];
+            for (int i = 0; i < rowIds.length; i++) {
+                rowIds[i] = missing.get(i);
+            }
+            TopKHeap heap = scanRows(rowIds, prepareQueryVector(queryVector), rowIds.length);
+            if (heap != null) {
+                for (SearchResult result : fetchSearchResults(heap)) {
+                    resultsById.put(result.id, result);
+                }
+            }
+        }
+        
+        List<SearchResult> results = new ArrayList<>(ranked.length);
+        for (long rowId : ranked) {
+            SearchResult result = resultsById.get(rowId);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        LogManager.logD(TAG, "Hybrid search completed: " + vectorResults.size() + " vector and " + lexicalRows.length +
+                " full-text candidates (" + missing.size() + " full-text only), returned " + results.size() +
+                ", took " + (System.currentTimeMillis() - startTime) + "ms");
+        return results;
+    }
+    
+    /**
+     * Reciprocal rank fusion of two rankings
+     * 每行得分为 Σ 1/(RRF_K + 名次)，名次从 1 开始；得分相同时保持首次出现的顺序（先向量后全文）
+     * @param vectorRows Row IDs from vector search, best first
+     * @param lexicalRows Row IDs from full-text search, best first
+     * @param topK Maximum number of rows
+     * @return Fused row IDs, best first
+     */
+    static long[] fuseRankings(long[] vectorRows, long[] lexicalRows, int topK) {
+        Map<Long, Float> fusedScores = new LinkedHashMap<>();
+        for (int i = 0; i < vectorRows.length; i++) {
+            fusedScores.merge(vectorRows[i], 1.0f / (RRF_K + i + 1), Float::sum);
+        }
+        for (int i = 0; i < lexicalRows.length; i++) {
+            fusedScores.merge(lexicalRows[i], 1.0f / (RRF_K + i + 1), Float::sum);
+        }
+        // List.sort is stable, equal scores keep their insertion order
+        List<Map.Entry<Long, Float>> entries = new ArrayList<>(fusedScores.entrySet());
+        entries.sort((a, b) -> Float.compare(b.getValue(), a.getValue()));
+        long[] ranked = new long[Math.max(0, Math.min(topK, entries.size()))];
+        for (int i = 0; i < ranked.length; i++) {
+            ranked[i] = entries.get(i).getKey();
+        }
+        return ranked;
+    }
+    
+    /**
+     * Full-text search ranked by BM25
+     * @param matchQuery FTS MATCH expression
+     * @param limit Maximum number of rows
+     * @return Row IDs, best match first
+     */
+    private long[] searchLexicalRows(String matchQuery, int limit) {
+        String collectionFilter = "rowid IN (SELECT " + COLUMN_ID + " FROM " + TABLE_CHUNKS + " WHERE " +
+                COLUMN_COLLECTION + "=?)";
+        String[] args = {matchQuery, metadata.getCollection()};
+        if (LEXICAL_FTS5.equals(lexicalModule)) {
+            // FTS5 rank is bm25(), smaller is better
+            try (Cursor cursor = database.rawQuery("SELECT rowid FROM " + TABLE_LEXICAL + " WHERE " + TABLE_LEXICAL +
+                    " MATCH ? AND " + collectionFilter + " ORDER BY rank LIMIT " + limit, args)) {
+                long[] rowIds = new long[cursor.getCount()];
+                int count = 0;
+                while (cursor.moveToNext()) {
+                    rowIds[count++] = cursor.getLong(0);
+                }
+                return Arrays.copyOf(rowIds, count);
+            }
+        }
+        
+        // FTS4: matchinfo 'pcnalx' gives phrase count, column count, row count, average and row token counts,
+        // and per phrase the hits in this row, total hits and matching rows. Every match is scored so the
+        // best rows are kept whatever order FTS4 returns them in
+        TopKHeap heap = new TopKHeap(limit);
+        try (Cursor cursor = database.rawQuery("SELECT rowid, matchinfo(" + TABLE_LEXICAL + ", 'pcnalx') FROM " +
+                TABLE_LEXICAL + " WHERE " + TABLE_LEXICAL + " MATCH ? AND " + collectionFilter, args)) {
+            while (cursor.moveToNext()) {
+                heap.offer(cursor.getLong(0), bm25FromMatchInfo(cursor.getBlob(1)));
+            }
+        }
+        heap.sortDescending();
+        long[] rowIds = new long[heap.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = heap.getId(i);
+        }
+        return rowIds;
+    }
+    
+    /**
+     * BM25 score of one row from an FTS4 matchinfo('pcnalx') blob with a single column
+     */
+    private static float bm25FromMatchInfo(byte[] matchInfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt(0);
+        int columns = buffer.getInt(4);
+        float rows = buffer.getInt(8) & 0xFFFFFFFFL;
+        float averageLength = Math.max(1, buffer.getInt(12));
+        float rowLength = buffer.getInt((3 + columns) * 4);
+        int hitsBase = (3 + 2 * columns) * 4;
+        float score = 0.0f;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            int offset = hitsBase + phrase * columns * 12;
+            float termFrequency = buffer.getInt(offset);
+            if (termFrequency == 0) {
+                continue;
+            }
+            float matchingRows = buffer.getInt(offset + 8);
+            float idf = (float) Math.log(1.0 + (rows - matchingRows + 0.5) / (matchingRows + 0.5));
+            score += idf * termFrequency * (BM25_K1 + 1) /
+                    (termFrequency + BM25_K1 * (1 - BM25_B + BM25_B * rowLength / averageLength));
+        }
+        return score;
+    }
+    
+    /**
+     * Create the full-text table, FTS5 if available, otherwise FTS4
+     * 分词在 Java 中完成（LexicalTokenizer），表中保存以空格分隔的词
+     * @return Module used, or null if neither is available
+     */
+    private static String createLexicalTable(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_LEXICAL + " USING fts5(" + COLUMN_TOKENS + ")");
+            return LEXICAL_FTS5;
+        } catch (SQLiteException e) {
+            LogManager.logD(TAG, "FTS5 not available, using FTS4: " + e.getMessage());
+        }
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_LEXICAL + " USING fts4(" + COLUMN_TOKENS + ")");
+            return LEXICAL_FTS4;
+        } catch (SQLiteException e) {
+            LogManager.logW(TAG, "Full-text search not available: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Full-text module of an existing chunks_fts table
+     * @return LEXICAL_FTS5, LEXICAL_FTS4, or null if there is no usable table
+     */
+    private static String detectLexicalModule(SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='table' AND name=?",
+                new String[]{TABLE_LEXICAL})) {
+            if (!cursor.moveToFirst() || cursor.getString(0) == null) {
+                return null;
+            }
+            String sql = cursor.getString(0).toLowerCase(Locale.ROOT);
+            if (sql.contains("fts5")) {
+                return LEXICAL_FTS5;
+            }
+            return sql.contains("fts4") ? LEXICAL_FTS4 : null;
+        } catch (Exception e) {
+            LogManager.logW(TAG, "Failed to detect full-text table: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Create the full-text table if missing and index chunks added without it in the background
+     * 旧知识库、PC端构建或迁移的知识库在首次加载时补建索引；补建完成前混合检索退回纯向量检索
+     */
+    private void loadLexicalIndex() {
+        if (database.isReadOnly()) {
+            return;
+        }
+        if (lexicalModule == null) {
+            lexicalModule = createLexicalTable(database);
+            if (lexicalModule == null) {
+                return;
+            }
+        }
+        
+        long lastRowId;
+        boolean missing;
+        try (Cursor cursor = database.rawQuery("SELECT MAX(rowid) FROM " + TABLE_LEXICAL, null)) {
+            lastRowId = cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        }
+        try (Cursor cursor = database.rawQuery("SELECT 1 FROM " + TABLE_CHUNKS + " WHERE " + COLUMN_ID + ">? LIMIT 1",
+                new String[]{String.valueOf(lastRowId)})) {
+            missing = cursor.moveToFirst();
+        }
+        if (!missing) {
+            return;
+        }
+        
+        lexicalIndexPending = true;
+        SQLiteDatabase db = database;
+        long firstRowId = lastRowId;
+        MAINTENANCE_EXECUTOR.execute(() -> {
+            try {
+                catchUpLexicalIndex(db, firstRowId);
+            } catch (Exception e) {
+                LogManager.logW(TAG, "Background full-text indexing stopped: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Tokenize chunks newer than the full-text index, one transaction per LEXICAL_INDEX_PAGE_SIZE rows
+     * 新写入的行已由写入路径加入索引，按 rowid 跳过
+     * @param db Database the catch-up was scheduled for
+     * @param lastRowId Largest row ID already in the full-text index when scheduled
+     */
+    private void catchUpLexicalIndex(SQLiteDatabase db, long lastRowId) {
+        long startTime = System.currentTimeMillis();
+        int indexed = 0;
+        while (true) {
+            if (database != db || !db.isOpen() || GlobalStopManager.isGlobalStopRequested()) {
+                LogManager.logD(TAG, "Full-text catch-up paused after " + indexed + " chunks, resumes on next open");
+                return;
+            }
+            int page = 0;
+            db.beginTransaction();
+            try (Cursor cursor = db.query(TABLE_CHUNKS, new String[]{COLUMN_ID, COLUMN_CONTENT},
+                    COLUMN_ID + ">? AND " + COLUMN_ID + " NOT IN (SELECT rowid FROM " + TABLE_LEXICAL + " WHERE rowid>?)",
+                    new String[]{String.valueOf(lastRowId), String.valueOf(lastRowId)},
+                    null, null, COLUMN_ID, String.valueOf(LEXICAL_INDEX_PAGE_SIZE))) {
+                while (cursor.moveToNext()) {
+                    lastRowId = cursor.getLong(0);
+                    ContentValues values = new ContentValues();
+                    values.put("rowid", lastRowId);
+                    values.put(COLUMN_TOKENS, LexicalTokenizer.segment(cursor.getString(1)));
+                    db.insert(TABLE_LEXICAL, null, values);
+                    page++;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            indexed += page;
+            if (page < LEXICAL_INDEX_PAGE_SIZE) {
+                break;
+            }
+        }
+        lexicalIndexPending = false;
+        LogManager.logI(TAG, "Full-text index (" + lexicalModule + ") caught up " + indexed + " chunks, took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+    }
+    
+    /**
+     * Add content_hash with its unique index and the chunk_refs table if missing
+     * 旧知识库首次打开时只加列和索引，哈希在后台按 id 分页回填，全部回填后在元数据中记录，之后打开不再检查；
+     * 回填完成前未回填的行不参与去重，已有的重复文本保留原行，哈希留空
+     */
+    private void ensureContentHashes() {
+        if (metadata != null && metadata.hasContentHashes()) {
+            contentHashEnabled = true;
+            return;
+        }
+        if (!isTable(database, TABLE_CHUNKS)) {
+            contentHashEnabled = false;
+            return;
+        }
+        boolean indexed;
+        try (Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND name=?",
+                new String[]{INDEX_CONTENT_HASH})) {
+            indexed = cursor.getCount() > 0;
+        }
+        if (database.isReadOnly()) {
+            contentHashEnabled = indexed && isTable(database, TABLE_CHUNK_REFS);
+            return;
+        }
+        
+        try {
+            database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_CHUNK_REFS + " (" +
+                    COLUMN_ID + " INTEGER NOT NULL, " +
+                    COLUMN_SOURCE + " TEXT NOT NULL, " +
+                    COLUMN_FILE + " TEXT NOT NULL, " +
+                    "PRIMARY KEY (" + COLUMN_ID + ", " + COLUMN_SOURCE + ", " + COLUMN_FILE + "))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS idx_chunk_refs_source ON " + TABLE_CHUNK_REFS + "(" + COLUMN_SOURCE + ")");
+            if (!indexed) {
+                if (!hasColumn(database, TABLE_CHUNKS, COLUMN_CONTENT_HASH)) {
+                    database.execSQL("ALTER TABLE " + TABLE_CHUNKS + " ADD COLUMN " + COLUMN_CONTENT_HASH + " TEXT");
+                }
+                database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_CONTENT_HASH + " ON " + TABLE_CHUNKS +
+                        "(" + COLUMN_COLLECTION + ", " + COLUMN_CONTENT_HASH + ")");
+            }
+            contentHashEnabled = true;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to add content hashes, duplicate chunks will not be detected: " + e.getMessage(), e);
+            contentHashEnabled = false;
+            return;
+        }
+        
+        SQLiteDatabase db = database;
+        MAINTENANCE_EXECUTOR.execute(() -> {
+            try {
+                if (backfillContentHashes(db) && database == db && metadata != null) {
+                    metadata.setContentHashes(true);
+                    saveMetadata();
+                }
+            } catch (Exception e) {
+                LogManager.logW(TAG, "Background content hash backfill stopped: " + e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Hash chunks that have no content_hash, one transaction per MIGRATION_PAGE_SIZE rows
+     * @param db Database the backfill was scheduled for
+     * @return Whether every chunk was visited, false if the database was closed or a stop was requested
+     */
+    private boolean backfillContentHashes(SQLiteDatabase db) {
+        long startTime = System.currentTimeMillis();
+        int hashed = 0;
+        SQLiteStatement update = db.compileStatement("UPDATE OR IGNORE " + TABLE_CHUNKS +
+                " SET " + COLUMN_CONTENT_HASH + "=? WHERE " + COLUMN_ID + "=?");
+        try {
+            long lastRowId = 0;
+            while (true) {
+                if (database != db || !db.isOpen() || GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Content hash backfill paused after " + hashed + " chunks, resumes on next open");
+                    return false;
+                }
+                int page = 0;
+                db.beginTransaction();
+                try (Cursor cursor = db.query(TABLE_CHUNKS, new String[]{COLUMN_ID, COLUMN_CONTENT},
+                        COLUMN_ID + ">? AND " + COLUMN_CONTENT_HASH + " IS NULL", new String[]{String.valueOf(lastRowId)},
+                        null, null, COLUMN_ID, String.valueOf(MIGRATION_PAGE_SIZE))) {
+                    while (cursor.moveToNext()) {
+                        lastRowId = cursor.getLong(0);
+                        page++;
+                        String content = cursor.getString(1);
+                        if (content == null || content.isEmpty()) {
+                            continue;
+                        }
+                        update.bindString(1, contentHash(content));
+                        update.bindLong(2, lastRowId);
+                        hashed += update.executeUpdateDelete();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (page < MIGRATION_PAGE_SIZE) {
+                    break;
+                }
+            }
+        } finally {
+            update.close();
+        }
+        if (hashed > 0) {
+            LogManager.logI(TAG, "Content hashes added to " + hashed + " chunks, took " +
+                    (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return true;
+    }
+    
+    /**
+     * SHA-256 of a chunk's text as lowercase hex
+     */
+    static String contentHash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform must provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Record a reference to an already stored chunk with the same text
+     * 同一来源同一文件内的重复文本（页眉页脚）直接跳过；其他来源记入 chunk_refs，
+     * 删除拥有该行的来源时行转给引用它的来源，而不是被删除
+     * @param hash Content hash of the text
+     * @param columns Source and file of the new chunk
+     * @return Whether a chunk with the same text exists in this collection
+     */
+    private boolean recordDuplicate(String hash, MetadataColumns columns) {
+        long rowId;
+        String ownerSource;
+        String ownerFile;
+        try (Cursor cursor = database.query(TABLE_CHUNKS, new String[]{COLUMN_ID, COLUMN_SOURCE, COLUMN_FILE},
+                COLUMN_COLLECTION + "=? AND " + COLUMN_CONTENT_HASH + "=?",
+                new String[]{metadata.getCollection(), hash}, null, null, null, "1")) {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            rowId = cursor.getLong(0);
+            ownerSource = cursor.getString(1);
+            ownerFile = cursor.getString(2);
+        }
+        if (!columns.source.equals(ownerSource) || !columns.file.equals(ownerFile)) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_ID, rowId);
+            values.put(COLUMN_SOURCE, columns.source);
+            values.put(COLUMN_FILE, columns.file);
+            database.insertWithOnConflict(TABLE_CHUNK_REFS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+        return true;
+    }
+    
+    /**
+     * List the source of a duplicate chunk, its text is stored under another row
+     */
+    private void addDuplicateSource(String source) {
+        if (metadata != null && source != null && !source.isEmpty()) {
+            metadata.addSource(source);
+        }
+    }
+    
+    /**
+     * Hand the chunks of a source that other sources still reference over to one of them
+     * 先删除该来源自己的引用；被转移的行保留向量和索引，只改写 source/file 列和 metadata 中的来源
+     * @param source Source being removed or replaced
+     */
+    private void promoteReferencedChunks(String source) throws JSONException {
+        String collection = metadata.getCollection();
+        database.delete(TABLE_CHUNK_REFS, COLUMN_SOURCE + "=?", new String[]{source});
+        
+        Map<Long, String[]> promotions = new HashMap<>();
+        Map<Long, String> metadataById = new HashMap<>();
+        try (Cursor cursor = database.rawQuery("SELECT c." + COLUMN_ID + ", c." + COLUMN_METADATA + ", r." + COLUMN_SOURCE +
+                ", r." + COLUMN_FILE + " FROM " + TABLE_CHUNKS + " c JOIN " + TABLE_CHUNK_REFS + " r ON r." + COLUMN_ID +
+                " = c." + COLUMN_ID + " WHERE c." + COLUMN_COLLECTION + "=? AND c." + COLUMN_SOURCE + "=? ORDER BY r.rowid",
+                new String[]{collection, source})) {
+            while (cursor.moveToNext()) {
+                long rowId = cursor.getLong(0);
+                if (!promotions.containsKey(rowId)) {
+                    promotions.put(rowId, new String[]{cursor.getString(2), cursor.getString(3)});
+                    metadataById.put(rowId, cursor.getString(1));
+                }
+            }
+        }
+        for (Map.Entry<Long, String[]> promotion : promotions.entrySet()) {
+            String[] owner = promotion.getValue();
+            String rowIdArg = String.valueOf(promotion.getKey());
+            JSONObject json;
+            try {
+                String metadataStr = metadataById.get(promotion.getKey());
+                json = metadataStr != null ? new JSONObject(metadataStr) : new JSONObject();
+            } catch (JSONException e) {
+                json = new JSONObject();
+            }
+            json.put("source", owner[0]);
+            json.put("fileName", owner[1]);
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_SOURCE, owner[0]);
+            values.put(COLUMN_FILE, owner[1]);
+            values.put(COLUMN_METADATA, json.toString());
+            database.update(TABLE_CHUNKS, values, COLUMN_ID + "=?", new String[]{rowIdArg});
+            database.delete(TABLE_CHUNK_REFS, COLUMN_ID + "=? AND " + COLUMN_SOURCE + "=? AND " + COLUMN_FILE + "=?",
+                    new String[]{rowIdArg, owner[0], owner[1]});
+        }
+        if (!promotions.isEmpty()) {
+            LogManager.logD(TAG, "Source " + source + ": " + promotions.size() + " shared chunks handed over to referencing sources");
+        }
+    }
+    
+    /**
+     * Whether the resident vector matrix should be used for this handler
+     * @return Explicit setting if present, otherwise the configuration value
+     */
+    private boolean isResidentIndexRequested() {
+        if (residentIndexEnabled != null) {
+            return residentIndexEnabled;
+        }
+        Context appContext = context != null ? context : GlobalApplication.getAppContext();
+        return appContext != null && ConfigManager.isResidentVectorIndexEnabled(appContext);
+    }
+    
+    /**
+     * Enable or disable the resident vector matrix, overriding the configuration
+     * 启用后在下次 loadDatabase() 时加载；禁用会立即释放矩阵
+     * @param enabled Whether to keep all vectors resident in memory
+     */
+    public void setResidentIndexEnabled(boolean enabled) {
+        this.residentIndexEnabled = enabled;
+        if (!enabled) {
+            residentIndex = null;
+        }
+    }
+    
+    /**
+     * Whether searches are currently served by the resident vector matrix
+     */
+    public boolean isResidentIndexLoaded() {
+        return residentIndex != null;
+    }
+    
+    /**
+     * Load all vectors of the current collection into the resident matrix
+     * @param expectedRows Expected row count, used to size the matrix
+     * @return Whether the resident matrix is available
+     */
+    private boolean loadResidentIndex(int expectedRows) {
+        if (database == null || !database.isOpen() || metadata == null) {
+            return false;
+        }
+        
+        int dimension = metadata.getEmbeddingDimension();
+        if (dimension <= 0) {
+            LogManager.logW(TAG, "Embedding dimension unknown, resident vector index disabled");
+            return false;
+        }
+        
+        // A direct buffer holds at most 2GB, larger corpora are searched from disk
+        if (!ResidentVectorIndex.fitsInBuffer(expectedRows, dimension)) {
+            LogManager.logW(TAG, "Resident vector index of " + expectedRows + " x " + dimension +
+                    " vectors exceeds the 2GB buffer limit, falling back to database scan");
+            return false;
+        }
+        
+        // Check memory budget before allocating the matrix
+        long requiredMB = ResidentVectorIndex.estimateBytes(expectedRows, dimension) / (1024 * 1024);
+        long availableMB = GlobalApplication.getAvailableMemoryMB();
+        if (availableMB > 0 && requiredMB > availableMB / RESIDENT_INDEX_MEMORY_FRACTION) {
+            LogManager.logW(TAG, "Resident vector index needs " + requiredMB + "MB but only " + availableMB +
+                    "MB available, falling back to database scan");
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        ResidentVectorIndex index = new ResidentVectorIndex(dimension, expectedRows);
+        Cursor cursor = null;
+        try {
+            cursor = database.query(
+                    TABLE_VECTORS,
+                    new String[]{COLUMN_ID, COLUMN_EMBEDDING},
+                    VECTORS_IN_COLLECTION,
+                    new String[]{metadata.getCollection()},
+                    null, null, null);
+            
+            while (cursor.moveToNext()) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting resident vector index loading");
+                    return false;
+                }
+                byte[] embeddingBlob = cursor.getBlob(1);
+                if (embeddingBlob == null || embeddingBlob.length == 0) {
+                    continue;
+                }
+                index.add(cursor.getLong(0), blobToVector(embeddingBlob));
+            }
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to load resident vector index: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        residentIndex = index;
+        LogManager.logI(TAG, "Resident vector index loaded: " + index.size() + " vectors, dimension " + dimension +
+                ", ~" + requiredMB + "MB, took " + (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Reflect a newly inserted row in the in-memory indexes
+     * @param rowId Inserted row ID
+     * @param embedding Embedding vector of the row
+     */
+    private void onVectorInserted(long rowId, float[] embedding) {
+        ResidentVectorIndex index = residentIndex;
+        if (index != null) {
+            try {
+                index.add(rowId, embedding);
+            } catch (IllegalStateException e) {
+                // The matrix cannot grow past the buffer limit, searches fall back to the database scan
+                LogManager.logW(TAG, "Dropping resident vector index: " + e.getMessage());
+                residentIndex = null;
+            }
+        }
+        synchronized (sidecarLock) {
+            // A rebuilt graph may already hold this row from its catch-up scan
+            HnswIndex annIndex = hnswIndex;
+            if (annIndex != null && rowId > hnswReplayedRowId && annIndex.add(rowId, embedding)) {
+                hnswIndexDirty = true;
+            }
+            // A failed append leaves the file short, loadFlatVectorFile() catches up on the next open
+            FlatVectorFile flatFile = flatVectorFile;
+            if (flatFile != null) {
+                flatFile.append(rowId, embedding);
+            }
+        }
+    }
+    
+    /**
+     * Search using the resident vector matrix
+     * @param index Resident matrix
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by similarity in descending order
+     */
+    private List<SearchResult> searchResidentIndex(ResidentVectorIndex index, float[] queryVector, int topK) {
+        try {
+            TopKHeap heap = index.search(prepareQueryVector(queryVector), topK, getSearchWorkers(), liveRowFilter());
+            if (heap == null) {
+                return new ArrayList<>();
+            }
+            heap.sortDescending();
+            
+            List<SearchResult> results = fetchSearchResults(heap);
+            LogManager.logD(TAG, "Resident index search completed, scanned " + index.size() +
+                    " vectors, found " + results.size() + " similar text chunks");
+            return results;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to search resident vector index: " + e.getMessage(), e);
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Search using the HNSW index
+     * @param index HNSW index
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by similarity in descending order
+     */
+    private List<SearchResult> searchHnswIndex(HnswIndex index, float[] queryVector, int topK) {
+        try {
+            int efSearch = metadata.getHnswEfSearch() > 0 ? metadata.getHnswEfSearch() : HnswIndex.DEFAULT_EF_SEARCH;
+            LongPredicate rowFilter = liveRowFilter();
+            if (rowFilter != null) {
+                // Removed nodes still occupy candidate slots until compaction, widen the list to keep recall
+                efSearch += Math.min(tombstoneCount, efSearch);
+            }
+            TopKHeap heap = index.search(prepareQueryVector(queryVector), topK, efSearch, rowFilter);
+            heap.sortDescending();
+            
+            List<SearchResult> results = fetchSearchResults(heap);
+            LogManager.logD(TAG, "HNSW search completed (ef=" + efSearch + ", nodes=" + index.size() +
+                    "), found " + results.size() + " similar text chunks");
+            return results;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to search HNSW index: " + e.getMessage(), e);
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Detect and repair anomalies of the query vector once per search
+     * @param queryVector Query vector
+     * @return Repaired and L2-normalized copy of the query
+     */
+    private float[] prepareQueryVector(float[] queryVector) {
+        return repairAndNormalize(queryVector, "Query");
+    }
+    
+    /**
+     * Validate, repair and L2-normalize an embedding once before it is stored
+     * 写入时一次性完成异常检测、修复与归一化，检索时只需计算点积
+     * @param embedding Embedding vector
+     * @return Normalized copy of the embedding
+     */
+    private float[] normalizeForStorage(float[] embedding) {
+        return repairAndNormalize(embedding, "Embedding");
+    }
+    
+    /**
+     * Repair anomalies of a vector and return a unit-length copy
+     * @param vector Vector
+     * @param label Vector kind used in log messages
+     * @return Normalized copy, a zero vector stays zero
+     */
+    private float[] repairAndNormalize(float[] vector, String label) {
+        float[] result = vector;
+        VectorAnomalyHandler.AnomalyResult anomaly = VectorAnomalyHandler.detectAnomalies(vector, -1);
+        if (anomaly.isAnomalous) {
+            LogManager.logW(TAG, String.format("%s vector anomaly detected: %s (severity: %.2f)",
+                    label, anomaly.type.name(), anomaly.severity));
+            float[] repaired = VectorAnomalyHandler.repairVector(vector, anomaly.type);
+            if (repaired != null) {
+                result = repaired;
+            }
+        }
+        result = result == vector ? vector.clone() : result;
+        VectorMath.sanitizeInPlace(result);
+        VectorMath.normalizeInPlace(result);
+        return result;
+    }
+    
+    /**
+     * Exact similarity between a normalized query and a stored embedding
+     * 库内向量已归一化时即为点积；旧库（含PC端生成的库）不在打开时重写，读取时逐行清洗并计算范数
+     * @param unitQuery L2-normalized query
+     * @param embedding Stored embedding
+     * @param normalized Whether stored embeddings are normalized
+     * @return Cosine similarity
+     */
+    private static float storedSimilarity(float[] unitQuery, float[] embedding, boolean normalized) {
+        return normalized ? VectorMath.dot(unitQuery, embedding) : VectorMath.cosineToUnit(unitQuery, embedding);
+    }
+    
+    /**
+     * Load in-memory search structures after the database is opened
+     * @param rowCount Current row count
+     */
+    private void loadSearchIndexes(int rowCount) {
+        loadTombstones();
+        loadLexicalIndex();
+        // Databases copied from elsewhere may carry code metadata without the columns
+        if (isInt8Quantized() && !ensureColumn(COLUMN_EMBEDDING_Q8)) {
+            metadata.setQuantization(AppConstants.VectorQuantization.NONE);
+        }
+        if (metadata.hasBinarySignature() && !ensureColumn(COLUMN_EMBEDDING_BITS)) {
+            metadata.setBinarySignature(false);
+        }
+        if (AppConstants.VectorQuantization.PQ.equals(metadata.getQuantization()) && productQuantizer == null) {
+            ProductQuantizer quantizer = ProductQuantizer.load(new File(databaseDir, PQ_CODEBOOK_FILENAME));
+            if (quantizer != null && quantizer.getDimension() == metadata.getEmbeddingDimension()
+                    && ensureColumn(COLUMN_EMBEDDING_PQ)) {
+                productQuantizer = quantizer;
+            } else {
+                LogManager.logW(TAG, "PQ codebooks missing or invalid, falling back to exact search");
+                metadata.setQuantization(AppConstants.VectorQuantization.NONE);
+            }
+        }
+        if (hnswIndex == null) {
+            loadHnswIndex(rowCount);
+        }
+        if (hnswIndex == null && ivfIndex == null) {
+            loadIvfIndex(rowCount);
+        }
+        if (metadata.hasFlatVectors() && flatVectorFile == null) {
+            loadFlatVectorFile();
+        }
+        // The resident matrix is only needed when there is no ANN index or mapped file to serve searches
+        if (hnswIndex == null && ivfIndex == null && flatVectorFile == null && residentIndex == null
+                && isResidentIndexRequested()) {
+            loadResidentIndex(rowCount);
+        }
+        scheduleLegacyMigration();
+        scheduleCodeBackfill();
+        // Compaction rebuilds whichever indexes are attached, so it must start after they are loaded
+        if (tombstoneCount > 0) {
+            requestCompaction();
+        }
+    }
+    
+    /**
+     * Write missing int8 codes, signatures and PQ codes in the background
+     * PC 端写入的行或构建中途停止留下的空编码在后台分批补写；补写完成前，这些行在查询时退回浮点向量
+     */
+    private void scheduleCodeBackfill() {
+        SQLiteDatabase db = database;
+        if (db == null || db.isReadOnly() || metadata == null) {
+            return;
+        }
+        List<String> columns = new ArrayList<>();
+        List<Function<float[], byte[]>> encoders = new ArrayList<>();
+        if (isInt8Quantized()) {
+            columns.add(COLUMN_EMBEDDING_Q8);
+            encoders.add(ScalarQuantizer::encode);
+        }
+        if (metadata.hasBinarySignature()) {
+            columns.add(COLUMN_EMBEDDING_BITS);
+            encoders.add(BinarySignature::encodeToBlob);
+        }
+        ProductQuantizer quantizer = productQuantizer;
+        if (quantizer != null) {
+            columns.add(COLUMN_EMBEDDING_PQ);
+            encoders.add(quantizer::encode);
+        }
+        if (columns.isEmpty()) {
+            return;
+        }
+        
+        MAINTENANCE_EXECUTOR.execute(() -> {
+            for (int i = 0; i < columns.size(); i++) {
                 try {
-                    JSONObject metadataObj = new JSONObject(metadataJson);
-                    if (metadataObj.has("source")) {
-                        source = metadataObj.getString("source");
+                    if (database != db || !db.isOpen()) {
+                        return;
+                    }
+                    int backfilled = backfillColumn(columns.get(i), encoders.get(i));
+                    if (backfilled > 0) {
+                        LogManager.logI(TAG, "Backfilled " + backfilled + " missing " + columns.get(i) + " codes");
+                    }
+                } catch (Exception e) {
+                    LogManager.logW(TAG, "Background " + columns.get(i) + " backfill stopped: " + e.getMessage());
+                    return;
+                }
+            }
+        });
+    }
+    
+    /**
+     * Load the HNSW sidecar file if present and index rows added after it was saved
+     * @param rowCount Current row count
+     * @return Whether the HNSW index is available
+     */
+    private boolean loadHnswIndex(int rowCount) {
+        File indexFile = new File(databaseDir, HNSW_INDEX_FILENAME);
+        if (!indexFile.exists()) {
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        HnswIndex index = HnswIndex.load(indexFile);
+        if (index == null) {
+            LogManager.logW(TAG, "HNSW index file could not be loaded, falling back to exact search");
+            return false;
+        }
+        if (metadata.getEmbeddingDimension() > 0 && index.getDimension() != metadata.getEmbeddingDimension()) {
+            LogManager.logW(TAG, "HNSW index dimension " + index.getDimension() + " does not match database dimension " +
+                    metadata.getEmbeddingDimension() + ", ignoring index");
+            return false;
+        }
+        // Removed rows stay in the graph until compaction
+        if (index.size() > rowCount + tombstoneCount) {
+            LogManager.logW(TAG, "HNSW index has " + index.size() + " nodes but database has " + rowCount +
+                    " rows and " + tombstoneCount + " tombstones, index is stale and will be ignored");
+            return false;
+        }
+        
+        int added = indexPendingRows(index);
+        if (added > 0) {
+            hnswIndexDirty = true;
+        }
+        hnswIndex = index;
+        LogManager.logI(TAG, "HNSW index ready: " + index.size() + " nodes (" + added + " caught up), took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Insert rows that are newer than the index's largest row ID
+     * @param index HNSW index
+     * @return Number of inserted rows, or -1 on failure
+     */
+    private int indexPendingRows(HnswIndex index) {
+        int added = 0;
+        Cursor cursor = null;
+        try {
+            cursor = database.query(
+                    TABLE_VECTORS,
+                    new String[]{COLUMN_ID, COLUMN_EMBEDDING},
+                    VECTORS_IN_COLLECTION + " AND " + COLUMN_ID + ">?",
+                    new String[]{metadata.getCollection(), String.valueOf(index.getMaxRowId())},
+                    null, null, COLUMN_ID);
+            while (cursor.moveToNext()) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting HNSW index update");
+                    break;
+                }
+                byte[] embeddingBlob = cursor.getBlob(1);
+                if (embeddingBlob != null && embeddingBlob.length > 0
+                        && index.add(cursor.getLong(0), blobToVector(embeddingBlob))) {
+                    added++;
+                }
+            }
+            return added;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to index pending rows: " + e.getMessage(), e);
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+    
+    /**
+     * Enable the HNSW index for this knowledge base
+     * 若已存在 sidecar 文件则加载并补齐新行，否则根据现有数据构建；之后 addVector 等写入会增量更新图，
+     * saveDatabase() 时持久化
+     * @param m Max connections per node
+     * @param efConstruction Candidate list size during construction
+     * @param efSearch Candidate list size during search
+     * @return Whether the index is available
+     */
+    public boolean enableHnswIndex(int m, int efConstruction, int efSearch) {
+        if (database == null || !database.isOpen() || metadata == null) {
+            LogManager.logE(TAG, "Database not open, cannot enable HNSW index");
+            return false;
+        }
+        
+        metadata.setHnswEfSearch(efSearch);
+        if (hnswIndex != null) {
+            return true;
+        }
+        
+        int rowCount = getChunkCount();
+        if (loadHnswIndex(rowCount) && hnswIndex.getM() == m) {
+            metadata.setHnswBuildParams(hnswIndex.getM(), hnswIndex.getEfConstruction());
+            metadata.setVectorStoreType(AppConstants.VectorStoreType.SQLITE_HNSW);
+            return true;
+        }
+        hnswIndex = null;
+        
+        int dimension = metadata.getEmbeddingDimension();
+        if (dimension <= 0) {
+            LogManager.logW(TAG, "Embedding dimension unknown, cannot create HNSW index");
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        HnswIndex index = new HnswIndex(dimension, m, efConstruction, Math.max(rowCount, 1024));
+        int added = indexPendingRows(index);
+        if (added < 0) {
+            return false;
+        }
+        hnswIndex = index;
+        hnswIndexDirty = true;
+        residentIndex = null;
+        metadata.setHnswBuildParams(index.getM(), index.getEfConstruction());
+        metadata.setVectorStoreType(AppConstants.VectorStoreType.SQLITE_HNSW);
+        LogManager.logI(TAG, "HNSW index created (M=" + index.getM() + ", efConstruction=" + index.getEfConstruction() +
+                ", efSearch=" + efSearch + ") with " + added + " existing rows, took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Search using the IVF index
+     * @param index IVF index
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by similarity in descending order
+     */
+    private List<SearchResult> searchIvfIndex(IvfIndex index, float[] queryVector, int topK) {
+        try {
+            float[] query = prepareQueryVector(queryVector);
+            int nprobe = metadata.getIvfNprobe() > 0 ? metadata.getIvfNprobe() : IvfIndex.DEFAULT_NPROBE;
+            TopKHeap heap = index.search(query, topK, nprobe, liveRowFilter());
+            if (heap == null) {
+                return new ArrayList<>();
+            }
+            
+            // Rows inserted after the index was built are not in any list, score them exactly
+            int tailRows = scanEmbeddings(heap, query,
+                    VECTORS_IN_COLLECTION + " AND " + COLUMN_ID + ">?",
+                    new String[]{metadata.getCollection(), String.valueOf(index.getMaxRowId())});
+            if (tailRows < 0) {
+                return new ArrayList<>();
+            }
+            heap.sortDescending();
+            
+            List<SearchResult> results = fetchSearchResults(heap);
+            LogManager.logD(TAG, "IVF search completed (nprobe=" + nprobe + "/" + index.getNlist() + ", tail rows=" +
+                    tailRows + "), found " + results.size() + " similar text chunks");
+            return results;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to search IVF index: " + e.getMessage(), e);
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Score the embeddings of the selected rows exactly and offer them to a heap
+     * @param heap Heap receiving (rowId, cosine similarity)
+     * @param queryVector Query vector (already repaired)
+     * @param selection WHERE clause
+     * @param selectionArgs WHERE arguments
+     * @return Number of scanned rows, or -1 if the scan failed or was aborted
+     */
+    private int scanEmbeddings(TopKHeap heap, float[] queryVector, String selection, String[] selectionArgs) {
+        boolean normalized = metadata.isVectorsNormalized();
+        int scanned = 0;
+        Cursor cursor = null;
+        try {
+            cursor = database.query(
+                    TABLE_VECTORS,
+                    new String[]{COLUMN_ID, COLUMN_EMBEDDING},
+                    selection,
+                    selectionArgs,
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting embedding scan");
+                    return -1;
+                }
+                byte[] embeddingBlob = cursor.getBlob(1);
+                if (embeddingBlob == null || !hasDimension(embeddingBlob, queryVector.length)) {
+                    continue;
+                }
+                heap.offer(cursor.getLong(0), blobSimilarity(queryVector, embeddingBlob, normalized));
+                scanned++;
+            }
+            return scanned;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to scan embeddings: " + e.getMessage(), e);
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+    
+    /**
+     * Exact scan of the whole collection, split into id ranges scored in parallel when worthwhile
+     * 按 id 区间分块，每个工作线程用自己的游标和 TopKHeap 扫描，最后合并
+     * @param query Query vector (already normalized)
+     * @param topK Number of results to keep
+     * @param scanned Receives the number of scanned rows
+     * @return Heap of the best rows, or null if the scan failed or was aborted
+     */
+    private TopKHeap scanCollection(float[] query, int topK, AtomicInteger scanned) {
+        String collection = metadata.getCollection();
+        int workers = getSearchWorkers();
+        long minRowId = 0;
+        long maxRowId = 0;
+        int rowCount = 0;
+        if (workers > 1) {
+            Cursor cursor = database.rawQuery(
+                    "SELECT MIN(" + COLUMN_ID + "), MAX(" + COLUMN_ID + "), COUNT(*) FROM " + TABLE_VECTORS +
+                    " WHERE " + VECTORS_IN_COLLECTION,
+                    new String[]{collection});
+            try {
+                if (cursor.moveToFirst()) {
+                    minRowId = cursor.getLong(0);
+                    maxRowId = cursor.getLong(1);
+                    rowCount = cursor.getInt(2);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        
+        if (workers <= 1 || rowCount < PARALLEL_SCAN_MIN_ROWS) {
+            TopKHeap heap = new TopKHeap(topK);
+            int rows = scanEmbeddings(heap, query, VECTORS_IN_COLLECTION, new String[]{collection});
+            if (rows < 0) {
+                return null;
+            }
+            scanned.set(rows);
+            return heap;
+        }
+        
+        int blockCount = workers * ParallelScanner.BLOCKS_PER_WORKER;
+        long step = (maxRowId - minRowId + blockCount) / blockCount;
+        long firstRowId = minRowId;
+        long lastRowId = maxRowId;
+        String selection = VECTORS_IN_COLLECTION + " AND " + COLUMN_ID + ">? AND " + COLUMN_ID + "<=?";
+        TopKHeap heap = ParallelScanner.scan(blockCount, workers, topK, (block, blockHeap) -> {
+            long low = firstRowId - 1 + block * step;
+            long high = block == blockCount - 1 ? lastRowId : Math.min(lastRowId, low + step);
+            if (low >= high) {
+                return true;
+            }
+            int rows = scanEmbeddings(blockHeap, query, selection,
+                    new String[]{collection, String.valueOf(low), String.valueOf(high)});
+            if (rows < 0) {
+                return false;
+            }
+            scanned.addAndGet(rows);
+            return true;
+        });
+        LogManager.logD(TAG, "Parallel scan used " + workers + " workers over " + blockCount + " id ranges");
+        return heap;
+    }
+    
+    /**
+     * Number of workers for brute-force scans
+     * 为推理保留的线程：llama.cpp 与 ONNX 生成使用 threads 配置，嵌入模型使用一半核心（构建知识库时与检索并发）
+     * @return Worker count including the calling thread, at least 1
+     */
+    private int getSearchWorkers() {
+        Context appContext = context != null ? context : GlobalApplication.getAppContext();
+        if (appContext == null) {
+            return 1;
+        }
+        int reserved = Math.max(ConfigManager.getThreads(appContext), Runtime.getRuntime().availableProcessors() / 2);
+        return ParallelScanner.resolveWorkerCount(ConfigManager.getSearchThreads(appContext), reserved);
+    }
+    
+    /**
+     * Open the IVF sidecar file if present
+     * @param rowCount Current row count
+     * @return Whether the IVF index is available
+     */
+    private boolean loadIvfIndex(int rowCount) {
+        File indexFile = new File(databaseDir, IVF_INDEX_FILENAME);
+        if (!indexFile.exists()) {
+            return false;
+        }
+        
+        IvfIndex index = IvfIndex.open(indexFile);
+        if (index == null) {
+            LogManager.logW(TAG, "IVF index file could not be opened, falling back to exact search");
+            return false;
+        }
+        if (metadata.getEmbeddingDimension() > 0 && index.getDimension() != metadata.getEmbeddingDimension()) {
+            LogManager.logW(TAG, "IVF index dimension " + index.getDimension() + " does not match database dimension " +
+                    metadata.getEmbeddingDimension() + ", ignoring index");
+            return false;
+        }
+        if (index.getTotalCount() > rowCount + tombstoneCount) {
+            LogManager.logW(TAG, "IVF index has " + index.getTotalCount() + " rows but database has " + rowCount +
+                    " rows and " + tombstoneCount + " tombstones, index is stale and will be ignored");
+            return false;
+        }
+        ivfIndex = index;
+        LogManager.logI(TAG, "IVF index ready: " + index.getNlist() + " lists, " + index.getTotalCount() +
+                " indexed rows, " + tombstoneCount + " tombstones");
+        return true;
+    }
+    
+    /**
+     * Train and write the IVF index for this knowledge base
+     * 在全部向量写入后调用：先对随机样本做k-means训练质心，再两遍流式扫描数据库写出 ivf.index，
+     * 构建和查询的内存占用只与质心数量有关，适用于超出内存的大知识库；之后新增的行在查询时精确扫描
+     * @param nlist Number of inverted lists, 0 to choose from the row count
+     * @param nprobe Number of lists scanned per query
+     * @return Whether the index is available
+     */
+    public boolean buildIvfIndex(int nlist, int nprobe) {
+        if (database == null || !database.isOpen() || metadata == null) {
+            LogManager.logE(TAG, "Database not open, cannot build IVF index");
+            return false;
+        }
+        int dimension = metadata.getEmbeddingDimension();
+        if (dimension <= 0) {
+            LogManager.logW(TAG, "Embedding dimension unknown, cannot build IVF index");
+            return false;
+        }
+        int rowCount = getChunkCount();
+        if (rowCount <= 0) {
+            LogManager.logW(TAG, "Knowledge base is empty, skipping IVF index");
+            return false;
+        }
+        if (nlist <= 0) {
+            nlist = IvfIndex.suggestNlist(rowCount);
+        }
+        nlist = Math.min(nlist, rowCount);
+        
+        long startTime = System.currentTimeMillis();
+        
+        // Sample training vectors
+        float[] samples = sampleEmbeddings(Math.min(rowCount, IvfIndex.trainingSampleSize(nlist, dimension)), dimension);
+        if (samples == null) {
+            return false;
+        }
+        int sampleCount = samples.length / dimension;
+        String collection = metadata.getCollection();
+        
+        float[] centroids = IvfIndex.trainCentroids(samples, sampleCount, dimension, nlist);
+        samples = null;
+        if (centroids == null) {
+            LogManager.logW(TAG, "IVF training failed or was aborted");
+            return false;
+        }
+        LogManager.logD(TAG, "IVF centroids trained on " + sampleCount + " samples, took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        
+        // Fix the row range before the first pass so both passes see the same rows
+        long maxRowId;
+        try (Cursor maxCursor = database.rawQuery(
+                "SELECT MAX(" + COLUMN_ID + ") FROM " + TABLE_VECTORS + " WHERE " + VECTORS_IN_COLLECTION,
+                new String[]{collection})) {
+            maxRowId = maxCursor.moveToFirst() ? maxCursor.getLong(0) : 0;
+        }
+        final String rangeMax = String.valueOf(maxRowId);
+        
+        IvfIndex index = IvfIndex.build(new File(databaseDir, IVF_INDEX_FILENAME), centroids, dimension, consumer -> {
+            Cursor rowCursor = null;
+            try {
+                rowCursor = database.query(
+                        TABLE_VECTORS,
+                        new String[]{COLUMN_ID, COLUMN_EMBEDDING},
+                        VECTORS_IN_COLLECTION + " AND " + COLUMN_ID + "<=?",
+                        new String[]{collection, rangeMax},
+                        null, null, COLUMN_ID);
+                while (rowCursor.moveToNext()) {
+                    if (GlobalStopManager.isGlobalStopRequested()) {
+                        LogManager.logD(TAG, "Global stop requested, aborting IVF index build");
+                        return false;
+                    }
+                    byte[] embeddingBlob = rowCursor.getBlob(1);
+                    if (embeddingBlob != null && embeddingBlob.length > 0) {
+                        consumer.accept(rowCursor.getLong(0), blobToVector(embeddingBlob));
+                    }
+                }
+                return true;
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Failed to scan rows for IVF index: " + e.getMessage(), e);
+                return false;
+            } finally {
+                if (rowCursor != null) {
+                    rowCursor.close();
+                }
+            }
+        });
+        if (index == null) {
+            return false;
+        }
+        
+        // The old index keeps its own file handle, searches already running on it finish normally
+        IvfIndex oldIndex = ivfIndex;
+        ivfIndex = index;
+        if (oldIndex != null) {
+            oldIndex.close();
+        }
+        residentIndex = null;
+        metadata.setIvfNlist(index.getNlist());
+        metadata.setIvfNprobe(nprobe > 0 ? nprobe : IvfIndex.DEFAULT_NPROBE);
+        metadata.setVectorStoreType(AppConstants.VectorStoreType.SQLITE_IVF);
+        LogManager.logI(TAG, "IVF index built (nlist=" + index.getNlist() + ", nprobe=" + metadata.getIvfNprobe() +
+                ") over " + index.getTotalCount() + " rows, took " + (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Keep a memory-mapped copy of the float embeddings in vectors.f32 for this knowledge base
+     * SQLite 中的 embedding 列仍是权威数据（documents 视图与各类索引构建依赖它），
+     * vectors.f32 是可随时从数据库重建的副本，之后的写入会同步追加
+     * @return Whether the flat vector file is available
+     */
+    public boolean enableFlatVectorFile() {
+        if (database == null || !database.isOpen() || metadata == null) {
+            LogManager.logE(TAG, "Database not open, cannot enable flat vector file");
+            return false;
+        }
+        if (metadata.getEmbeddingDimension() <= 0) {
+            LogManager.logW(TAG, "Embedding dimension unknown, cannot enable flat vector file");
+            return false;
+        }
+        if (!rebuildFlatVectorFile()) {
+            return false;
+        }
+        metadata.setFlatVectors(true);
+        residentIndex = null;
+        return true;
+    }
+    
+    /**
+     * Open vectors.f32 and validate it against the database
+     * 文件行数少于数据库时补写 ID 更大的行（追加后未落盘），仍不一致或文件损坏时从数据库重建；
+     * 已删除但尚未压缩的行仍在文件中，查询时按 tombstones 跳过
+     * @return Whether the flat vector file is available
+     */
+    private boolean loadFlatVectorFile() {
+        int dimension = metadata.getEmbeddingDimension();
+        if (dimension <= 0) {
+            return false;
+        }
+        int storedRows = countStoredVectors();
+        if (storedRows < 0) {
+            return false;
+        }
+        
+        FlatVectorFile flatFile = FlatVectorFile.open(databaseDir, dimension);
+        if (flatFile != null && flatFile.size() < storedRows + tombstoneCount) {
+            int appended = appendMissingFlatVectors(flatFile);
+            if (appended > 0) {
+                LogManager.logI(TAG, "Flat vector file was behind the database, appended " + appended + " rows");
+            }
+        }
+        if (flatFile != null && flatFile.size() >= storedRows && flatFile.size() <= storedRows + tombstoneCount) {
+            flatVectorFile = flatFile;
+            LogManager.logI(TAG, "Flat vector file ready: " + flatFile.size() + " rows, " +
+                    (flatFile.size() - storedRows) + " removed");
+            return true;
+        }
+        
+        if (flatFile != null) {
+            LogManager.logW(TAG, "Flat vector file has " + flatFile.size() + " rows but database has " + storedRows +
+                    ", rebuilding");
+            flatFile.close();
+        } else {
+            LogManager.logW(TAG, "Flat vector file missing or unreadable, rebuilding");
+        }
+        if (database.isReadOnly()) {
+            // Rebuilding only writes sidecar files, but a read-only open usually means the directory is not writable either
+            LogManager.logW(TAG, "Database is read-only, searching without flat vector file");
+            return false;
+        }
+        return rebuildFlatVectorFile();
+    }
+    
+    /**
+     * Write vectors.f32 from the database and open it
+     * @return Whether the flat vector file is available
+     */
+    private boolean rebuildFlatVectorFile() {
+        // Renaming the new files into place leaves the open handles of the current file valid,
+        // so searches and appends keep using it until the swap below
+        long startTime = System.currentTimeMillis();
+        FlatVectorFile flatFile = FlatVectorFile.build(databaseDir, metadata.getEmbeddingDimension(),
+                consumer -> streamEmbeddings(VECTORS_IN_COLLECTION, new String[]{metadata.getCollection()}, consumer));
+        if (flatFile == null) {
+            LogManager.logW(TAG, "Failed to build flat vector file");
+            return false;
+        }
+        FlatVectorFile oldFile;
+        synchronized (sidecarLock) {
+            // Rows committed while building went to the old file only
+            appendMissingFlatVectors(flatFile);
+            oldFile = flatVectorFile;
+            flatVectorFile = flatFile;
+        }
+        if (oldFile != null) {
+            oldFile.close();
+        }
+        LogManager.logI(TAG, "Flat vector file built: " + flatFile.size() + " rows, took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Append database rows newer than the last row of the flat file
+     * @param flatFile Flat vector file
+     * @return Number of appended rows, or -1 on failure
+     */
+    private int appendMissingFlatVectors(FlatVectorFile flatFile) {
+        int[] appended = new int[1];
+        boolean completed = streamEmbeddings(VECTORS_IN_COLLECTION + " AND " + COLUMN_ID + ">?",
+                new String[]{metadata.getCollection(), String.valueOf(flatFile.getMaxRowId())},
+                (rowId, vector) -> {
+                    if (flatFile.append(rowId, vector)) {
+                        appended[0]++;
+                    }
+                });
+        return completed ? appended[0] : -1;
+    }
+    
+    /**
+     * Stream non-empty embeddings in row ID order, normalized
+     * @param selection WHERE clause on the vectors table
+     * @param selectionArgs WHERE arguments
+     * @param consumer Row consumer
+     * @return Whether the scan completed
+     */
+    private boolean streamEmbeddings(String selection, String[] selectionArgs, IvfIndex.RowConsumer consumer) {
+        Cursor cursor = null;
+        try {
+            cursor = database.query(
+                    TABLE_VECTORS,
+                    new String[]{COLUMN_ID, COLUMN_EMBEDDING},
+                    selection,
+                    selectionArgs,
+                    null, null, COLUMN_ID);
+            while (cursor.moveToNext()) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting embedding stream");
+                    return false;
+                }
+                byte[] embeddingBlob = cursor.getBlob(1);
+                if (embeddingBlob == null || embeddingBlob.length == 0) {
+                    continue;
+                }
+                float[] embedding = blobToVector(embeddingBlob);
+                if (!metadata.isVectorsNormalized()) {
+                    VectorMath.sanitizeInPlace(embedding);
+                    VectorMath.normalizeInPlace(embedding);
+                }
+                consumer.accept(cursor.getLong(0), embedding);
+            }
+            return true;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to stream embeddings: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+    
+    /**
+     * Number of rows with an embedding in the current collection
+     * @return Row count, or -1 on failure
+     */
+    private int countStoredVectors() {
+        try (Cursor cursor = database.rawQuery(
+                "SELECT COUNT(*) FROM " + TABLE_VECTORS + " WHERE " + VECTORS_IN_COLLECTION +
+                " AND LENGTH(" + COLUMN_EMBEDDING + ")>0",
+                new String[]{metadata.getCollection()})) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to count stored vectors: " + e.getMessage(), e);
+            return -1;
+        }
+    }
+    
+    private void closeFlatVectorFile() {
+        FlatVectorFile flatFile = flatVectorFile;
+        flatVectorFile = null;
+        if (flatFile != null) {
+            flatFile.close();
+        }
+    }
+    
+    private void closeIvfIndex() {
+        IvfIndex index = ivfIndex;
+        ivfIndex = null;
+        if (index != null) {
+            index.close();
+        }
+    }
+    
+    /**
+     * Search the memory-mapped flat vector file
+     * @param flatFile Flat vector file
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by similarity in descending order
+     */
+    private List<SearchResult> searchFlatVectors(FlatVectorFile flatFile, float[] queryVector, int topK) {
+        try {
+            TopKHeap heap = flatFile.search(prepareQueryVector(queryVector), topK, getSearchWorkers(), liveRowFilter());
+            if (heap == null) {
+                return new ArrayList<>();
+            }
+            heap.sortDescending();
+            
+            List<SearchResult> results = fetchSearchResults(heap);
+            LogManager.logD(TAG, "Flat vector search completed, scanned " + flatFile.size() +
+                    " vectors, found " + results.size() + " similar text chunks");
+            return results;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to search flat vector file: " + e.getMessage(), e);
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Whether this knowledge base stores int8 codes next to the float embeddings
+     */
+    private boolean isInt8Quantized() {
+        return metadata != null && AppConstants.VectorQuantization.INT8.equals(metadata.getQuantization());
+    }
+    
+    /**
+     * Add a BLOB column for derived vector codes if the table does not have it yet
+     * @param column Column name
+     * @return Whether the column exists
+     */
+    private boolean ensureColumn(String column) {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("PRAGMA table_info(" + TABLE_VECTORS + ")", null);
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return true;
+                }
+            }
+            cursor.close();
+            cursor = null;
+            
+            database.execSQL("ALTER TABLE " + TABLE_VECTORS + " ADD COLUMN " + column + " BLOB");
+            LogManager.logI(TAG, "Added column " + column + " to table " + TABLE_VECTORS);
+            return true;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to add column " + column + ": " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+    
+    /**
+     * Enable int8 quantized storage for this knowledge base
+     * 新增 embedding_q8 列并为已有行补写量化编码（按批次提交，中断后再次调用会继续），
+     * 之后的写入会同时写入量化编码。int8 编码只用于加速扫描和筛选候选，不替代 embedding 列：
+     * 原始向量保留用于候选重排序、侧车索引重建及 PC 端读取，因此库文件会增加约 dimension 字节/行
+     * （需要缩小体积时可配合 float16 存储）
+     * @return Whether quantization is enabled
+     */
+    public boolean enableInt8Quantization() {
+        if (database == null || !database.isOpen() || metadata == null) {
+            LogManager.logE(TAG, "Database not open, cannot enable quantization");
+            return false;
+        }
+        if (!ensureColumn(COLUMN_EMBEDDING_Q8)) {
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        int backfilled = backfillColumn(COLUMN_EMBEDDING_Q8, ScalarQuantizer::encode);
+        if (backfilled < 0) {
+            return false;
+        }
+        metadata.setQuantization(AppConstants.VectorQuantization.INT8);
+        LogManager.logI(TAG, "Int8 quantization enabled, backfilled " + backfilled + " rows, took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Store embeddings as IEEE half precision for this knowledge base
+     * 之后写入的行使用 float16；已有的 float32 行分批转换，转换期间元数据记录 float16_pending，按长度区分两种行，
+     * 中途停止或失败时剩余行保持 float32，仍可正常读取，再次调用时继续转换。
+     * vectors.f32、常驻矩阵和 HNSW 图中的向量仍为 float32。documents 视图原样返回半精度 blob，
+     * PC 端需按 metadata.json 的 vector_encoding 解码
+     * @return Whether all embeddings are stored as float16
+     */
+    public boolean enableFloat16Storage() {
+        if (database == null || !database.isOpen() || metadata == null) {
+            LogManager.logE(TAG, "Database not open, cannot enable float16 storage");
+            return false;
+        }
+        if (metadata.isFloat16() && !metadata.isFloat16Pending()) {
+            return true;
+        }
+        int dimension = metadata.getEmbeddingDimension();
+        if (dimension <= 0) {
+            // Without a dimension the two encodings cannot be told apart, so only an empty store can switch
+            if (countStoredVectors() != 0) {
+                LogManager.logW(TAG, "Embedding dimension unknown, keeping float32 storage");
+                return false;
+            }
+            metadata.setVectorEncoding(AppConstants.VectorEncoding.FLOAT16);
+            LogManager.logI(TAG, "Float16 storage enabled");
+            return true;
+        }
+        // Persisted before converting so an interrupted conversion is still read by row length
+        metadata.setVectorEncoding(AppConstants.VectorEncoding.FLOAT16);
+        metadata.setFloat16Pending(true);
+        saveMetadata();
+        
+        long startTime = System.currentTimeMillis();
+        int converted = 0;
+        long lastRowId = 0;
+        while (true) {
+            if (GlobalStopManager.isGlobalStopRequested()) {
+                LogManager.logD(TAG, "Global stop requested, remaining rows stay float32");
+                return false;
+            }
+            int pageRows = 0;
+            database.beginTransaction();
+            try (Cursor cursor = database.query(TABLE_VECTORS, new String[]{COLUMN_ID, COLUMN_EMBEDDING},
+                    COLUMN_ID + ">? AND length(" + COLUMN_EMBEDDING + ")=?",
+                    new String[]{String.valueOf(lastRowId), String.valueOf(dimension * 4)},
+                    null, null, COLUMN_ID, String.valueOf(QUANTIZATION_BACKFILL_BATCH))) {
+                ContentValues values = new ContentValues();
+                while (cursor.moveToNext()) {
+                    lastRowId = cursor.getLong(0);
+                    pageRows++;
+                    values.put(COLUMN_EMBEDDING, HalfFloat.encode(float32BlobToVector(cursor.getBlob(1))));
+                    database.update(TABLE_VECTORS, values, COLUMN_ID + "=?", new String[]{String.valueOf(lastRowId)});
+                }
+                database.setTransactionSuccessful();
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Failed to convert embeddings to float16: " + e.getMessage(), e);
+                return false;
+            } finally {
+                database.endTransaction();
+            }
+            converted += pageRows;
+            if (pageRows < QUANTIZATION_BACKFILL_BATCH) {
+                break;
+            }
+        }
+        metadata.setFloat16Pending(false);
+        saveMetadata();
+        LogManager.logI(TAG, "Float16 storage enabled, converted " + converted + " rows, took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Write derived codes for rows that do not have them
+     * @param column Code column
+     * @param encoder Computes the code from the float embedding
+     * @return Number of updated rows, or -1 on failure or abort
+     */
+    private int backfillColumn(String column, Function<float[], byte[]> encoder) {
+        int updated = 0;
+        long lastRowId = 0;
+        while (true) {
+            if (GlobalStopManager.isGlobalStopRequested()) {
+                LogManager.logD(TAG, "Global stop requested, aborting " + column + " backfill");
+                return -1;
+            }
+            
+            List<Long> rowIds = new ArrayList<>();
+            List<byte[]> codes = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                cursor = database.query(
+                        TABLE_VECTORS,
+                        new String[]{COLUMN_ID, COLUMN_EMBEDDING},
+                        column + " IS NULL AND " + COLUMN_ID + ">?",
+                        new String[]{String.valueOf(lastRowId)},
+                        null, null, COLUMN_ID, String.valueOf(QUANTIZATION_BACKFILL_BATCH));
+                while (cursor.moveToNext()) {
+                    lastRowId = cursor.getLong(0);
+                    byte[] embeddingBlob = cursor.getBlob(1);
+                    if (embeddingBlob == null || embeddingBlob.length == 0) {
+                        continue;
+                    }
+                    rowIds.add(lastRowId);
+                    codes.add(encoder.apply(blobToVector(embeddingBlob)));
+                }
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Failed to read rows for " + column + " backfill: " + e.getMessage(), e);
+                return -1;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            if (rowIds.isEmpty()) {
+                return updated;
+            }
+            
+            database.beginTransaction();
+            try {
+                for (int i = 0; i < rowIds.size(); i++) {
+                    ContentValues values = new ContentValues();
+                    values.put(column, codes.get(i));
+                    database.update(TABLE_VECTORS, values, COLUMN_ID + "=?", new String[]{String.valueOf(rowIds.get(i))});
+                }
+                database.setTransactionSuccessful();
+                updated += rowIds.size();
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Failed to write " + column + " codes: " + e.getMessage(), e);
+                return -1;
+            } finally {
+                database.endTransaction();
+            }
+        }
+    }
+    
+    /**
+     * Search using int8 codes, then re-score the best candidates with the float embeddings
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by similarity in descending order
+     */
+    private List<SearchResult> searchQuantized(float[] queryVector, int topK) {
+        float[] query = prepareQueryVector(queryVector);
+        float querySum = ScalarQuantizer.sum(query);
+        float queryInverseNorm = VectorMath.inverseNorm(query);
+        boolean normalized = metadata.isVectorsNormalized();
+        TopKHeap candidates = new TopKHeap(Math.max(QUANTIZED_RESCORE_MIN, topK * QUANTIZED_RESCORE_FACTOR));
+        
+        Cursor cursor = null;
+        int scanned = 0;
+        try {
+            // Float embeddings are only read for rows that have no code yet
+            cursor = database.rawQuery(
+                    "SELECT " + COLUMN_ID + ", " + COLUMN_EMBEDDING_Q8 +
+                    ", CASE WHEN " + COLUMN_EMBEDDING_Q8 + " IS NULL THEN " + COLUMN_EMBEDDING + " END" +
+                    " FROM " + TABLE_VECTORS + " WHERE " + VECTORS_IN_COLLECTION,
+                    new String[]{metadata.getCollection()});
+            while (cursor.moveToNext()) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting quantized search");
+                    return new ArrayList<>();
+                }
+                byte[] code = cursor.getBlob(1);
+                float similarity;
+                if (code != null) {
+                    similarity = ScalarQuantizer.similarity(query, querySum, queryInverseNorm, code);
+                } else {
+                    byte[] embeddingBlob = cursor.getBlob(2);
+                    if (embeddingBlob == null || !hasDimension(embeddingBlob, query.length)) {
+                        continue;
+                    }
+                    similarity = blobSimilarity(query, embeddingBlob, normalized);
+                }
+                candidates.offer(cursor.getLong(0), similarity);
+                scanned++;
+            }
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to scan quantized embeddings: " + e.getMessage(), e);
+            return new ArrayList<>();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        TopKHeap heap = rescoreCandidates(candidates, query, topK);
+        if (heap == null) {
+            return new ArrayList<>();
+        }
+        heap.sortDescending();
+        
+        List<SearchResult> results = fetchSearchResults(heap);
+        LogManager.logD(TAG, "Quantized search completed, scanned " + scanned + " codes, re-scored " +
+                candidates.size() + " candidates, found " + results.size() + " similar text chunks");
+        return results;
+    }
+    
+    /**
+     * Re-score candidate rows with their full-precision float embeddings
+     * @param candidates Candidate row IDs
+     * @param query Query vector (already repaired)
+     * @param topK Number of results to keep
+     * @return Heap of the best candidates by exact cosine similarity, or null on failure
+     */
+    private TopKHeap rescoreCandidates(TopKHeap candidates, float[] query, int topK) {
+        TopKHeap heap = new TopKHeap(topK);
+        for (int start = 0; start < candidates.size(); start += MAX_SQL_VARIABLES) {
+            int end = Math.min(candidates.size(), start + MAX_SQL_VARIABLES);
+            StringBuilder placeholders = new StringBuilder();
+            String[] args = new String[end - start];
+            for (int i = start; i < end; i++) {
+                placeholders.append(i == start ? "?" : ",?");
+                args[i - start] = String.valueOf(candidates.getId(i));
+            }
+            if (scanEmbeddings(heap, query, COLUMN_ID + " IN (" + placeholders + ")", args) < 0) {
+                return null;
+            }
+        }
+        return heap;
+    }
+    
+    /**
+     * Enable sign-bit signatures for this knowledge base
+     * 新增 embedding_bits 列并为已有行补写签名，之后的写入会同时写入签名，查询时先按汉明距离筛选候选
+     * @return Whether signatures are enabled
+     */
+    public boolean enableBinarySignatures() {
+        if (database == null || !database.isOpen() || metadata == null) {
+            LogManager.logE(TAG, "Database not open, cannot enable binary signatures");
+            return false;
+        }
+        if (!ensureColumn(COLUMN_EMBEDDING_BITS)) {
+            return false;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        int backfilled = backfillColumn(COLUMN_EMBEDDING_BITS, BinarySignature::encodeToBlob);
+        if (backfilled < 0) {
+            return false;
+        }
+        metadata.setBinarySignature(true);
+        LogManager.logI(TAG, "Binary signatures enabled, backfilled " + backfilled + " rows, took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Shortlist rows by Hamming distance between sign-bit signatures, then re-score with float embeddings
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by similarity in descending order
+     */
+    private List<SearchResult> searchBinary(float[] queryVector, int topK) {
+        float[] query = prepareQueryVector(queryVector);
+        long[] querySignature = BinarySignature.encode(query);
+        TopKHeap candidates = new TopKHeap(Math.max(BINARY_SHORTLIST_MIN, topK * BINARY_SHORTLIST_FACTOR));
+        
+        Cursor cursor = null;
+        int scanned = 0;
+        try {
+            // Float embeddings are only read for rows that have no signature yet
+            cursor = database.rawQuery(
+                    "SELECT " + COLUMN_ID + ", " + COLUMN_EMBEDDING_BITS +
+                    ", CASE WHEN " + COLUMN_EMBEDDING_BITS + " IS NULL THEN " + COLUMN_EMBEDDING + " END" +
+                    " FROM " + TABLE_VECTORS + " WHERE " + VECTORS_IN_COLLECTION,
+                    new String[]{metadata.getCollection()});
+            while (cursor.moveToNext()) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting binary search");
+                    return new ArrayList<>();
+                }
+                byte[] signature = cursor.getBlob(1);
+                int distance;
+                if (signature != null) {
+                    distance = BinarySignature.hammingDistance(querySignature, signature);
+                } else {
+                    byte[] embeddingBlob = cursor.getBlob(2);
+                    if (embeddingBlob == null || !hasDimension(embeddingBlob, query.length)) {
+                        continue;
+                    }
+                    distance = BinarySignature.hammingDistance(querySignature,
+                            BinarySignature.encode(blobToVector(embeddingBlob)));
+                }
+                if (distance == Integer.MAX_VALUE) {
+                    continue;
+                }
+                // Smaller distance is better, the heap keeps the largest scores
+                candidates.offer(cursor.getLong(0), -distance);
+                scanned++;
+            }
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to scan binary signatures: " + e.getMessage(), e);
+            return new ArrayList<>();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        TopKHeap heap = rescoreCandidates(candidates, query, topK);
+        if (heap == null) {
+            return new ArrayList<>();
+        }
+        heap.sortDescending();
+        
+        List<SearchResult> results = fetchSearchResults(heap);
+        LogManager.logD(TAG, "Binary search completed, scanned " + scanned + " signatures, re-scored " +
+                candidates.size() + " candidates, found " + results.size() + " similar text chunks");
+        return results;
+    }
+    
+    /**
+     * Read a random sample of embeddings from the current collection
+     * @param limit Maximum number of rows
+     * @param dimension Expected dimension, rows of other sizes are skipped
+     * @return Row-major vectors (length is a multiple of dimension), or null on failure
+     */
+    private float[] sampleEmbeddings(int limit, int dimension) {
+        float[] samples = new float[limit * dimension];
+        int sampleCount = 0;
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(
+                    "SELECT " + COLUMN_EMBEDDING + " FROM " + TABLE_VECTORS +
+                    " WHERE " + COLUMN_ID + " IN (SELECT " + COLUMN_ID + " FROM " + TABLE_CHUNKS +
+                    " WHERE " + COLUMN_COLLECTION + "=? ORDER BY RANDOM() LIMIT ?)",
+                    new String[]{metadata.getCollection(), String.valueOf(limit)});
+            while (cursor.moveToNext() && sampleCount < limit) {
+                byte[] embeddingBlob = cursor.getBlob(0);
+                if (embeddingBlob == null || !hasDimension(embeddingBlob, dimension)) {
+                    continue;
+                }
+                float[] embedding = blobToVector(embeddingBlob);
+                System.arraycopy(embedding, 0, samples, sampleCount * dimension, dimension);
+                sampleCount++;
+            }
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to sample embeddings: " + e.getMessage(), e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return sampleCount == limit ? samples : Arrays.copyOf(samples, sampleCount * dimension);
+    }
+    
+    /**
+     * Enable product quantization for this knowledge base
+     * 在全部向量写入后调用：用随机样本训练码本并保存为 pq.codebook，再为所有行写入 m 字节编码；
+     * 之后的写入会同时写入编码。原始 float32 列保留用于候选重排序及 PC 端兼容
+     * @param m Number of subspaces (bytes per code), adjusted down to a divisor of the dimension
+     * @param nbits Bits per sub-code (1..8)
+     * @return Whether PQ is enabled
+     */
+    public boolean enableProductQuantization(int m, int nbits) {
+        if (database == null || !database.isOpen() || metadata == null) {
+            LogManager.logE(TAG, "Database not open, cannot enable PQ");
+            return false;
+        }
+        int dimension = metadata.getEmbeddingDimension();
+        int rowCount = getChunkCount();
+        if (dimension <= 0 || rowCount <= 0) {
+            LogManager.logW(TAG, "Knowledge base is empty or dimension unknown, cannot train PQ codebooks");
+            return false;
+        }
+        m = ProductQuantizer.adjustM(dimension, m);
+        nbits = Math.max(1, Math.min(ProductQuantizer.MAX_NBITS, nbits));
+        
+        long startTime = System.currentTimeMillis();
+        float[] samples = sampleEmbeddings(Math.min(rowCount, ProductQuantizer.trainingSampleSize(nbits, dimension)), dimension);
+        if (samples == null) {
+            return false;
+        }
+        ProductQuantizer quantizer = ProductQuantizer.train(samples, samples.length / dimension, dimension, m, nbits);
+        if (quantizer == null) {
+            LogManager.logW(TAG, "PQ training failed or was aborted");
+            return false;
+        }
+        if (!quantizer.save(new File(databaseDir, PQ_CODEBOOK_FILENAME)) || !ensureColumn(COLUMN_EMBEDDING_PQ)) {
+            return false;
+        }
+        
+        // Codes written with previous codebooks are no longer valid
+        try {
+            database.execSQL("UPDATE " + TABLE_VECTORS + " SET " + COLUMN_EMBEDDING_PQ + "=NULL");
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to reset PQ codes: " + e.getMessage(), e);
+            return false;
+        }
+        productQuantizer = quantizer;
+        int backfilled = backfillColumn(COLUMN_EMBEDDING_PQ, quantizer::encode);
+        if (backfilled < 0) {
+            productQuantizer = null;
+            return false;
+        }
+        metadata.setQuantization(AppConstants.VectorQuantization.PQ);
+        metadata.setPqParams(m, nbits);
+        LogManager.logI(TAG, "PQ enabled (m=" + m + ", nbits=" + nbits + "), encoded " + backfilled +
+                " rows, code size " + quantizer.getCodeSize() + " bytes vs " + (dimension * 4) + " bytes float32, took " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        return true;
+    }
+    
+    /**
+     * Search using PQ codes with asymmetric-distance lookup tables, then re-score the best candidates
+     * @param quantizer Product quantizer
+     * @param queryVector Query vector
+     * @param topK Maximum number of results to return
+     * @return Search result list, sorted by similarity in descending order
+     */
+    private List<SearchResult> searchProductQuantized(ProductQuantizer quantizer, float[] queryVector, int topK) {
+        float[] query = prepareQueryVector(queryVector);
+        boolean normalized = metadata.isVectorsNormalized();
+        float[] table = quantizer.buildLookupTable(query);
+        TopKHeap candidates = new TopKHeap(Math.max(QUANTIZED_RESCORE_MIN, topK * QUANTIZED_RESCORE_FACTOR));
+        
+        Cursor cursor = null;
+        int scanned = 0;
+        try {
+            // Float embeddings are only read for rows that have no code yet
+            cursor = database.rawQuery(
+                    "SELECT " + COLUMN_ID + ", " + COLUMN_EMBEDDING_PQ +
+                    ", CASE WHEN " + COLUMN_EMBEDDING_PQ + " IS NULL THEN " + COLUMN_EMBEDDING + " END" +
+                    " FROM " + TABLE_VECTORS + " WHERE " + VECTORS_IN_COLLECTION,
+                    new String[]{metadata.getCollection()});
+            while (cursor.moveToNext()) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting PQ search");
+                    return new ArrayList<>();
+                }
+                byte[] code = cursor.getBlob(1);
+                float similarity;
+                if (code != null) {
+                    similarity = quantizer.score(table, code);
+                } else {
+                    byte[] embeddingBlob = cursor.getBlob(2);
+                    if (embeddingBlob == null || !hasDimension(embeddingBlob, query.length)) {
+                        continue;
                     }
-                } catch (JSONException e) {
-                    LogManager.logW(TAG, "Failed to parse metadata: " + e.getMessage());
+                    similarity = blobSimilarity(query, embeddingBlob, normalized);
+                }
+                candidates.offer(cursor.getLong(0), similarity);
+                scanned++;
+            }
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Failed to scan PQ codes: " + e.getMessage(), e);
+            return new ArrayList<>();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        
+        TopKHeap heap = rescoreCandidates(candidates, query, topK);
+        if (heap == null) {
+            return new ArrayList<>();
+        }
+        heap.sortDescending();
+        
+        List<SearchResult> results = fetchSearchResults(heap);
+        LogManager.logD(TAG, "PQ search completed, scanned " + scanned + " codes, re-scored " +
+                candidates.size() + " candidates, found " + results.size() + " similar text chunks");
+        return results;
+    }
+    
+    /**
+     * Report PQ recall against exact search for candidate parameters on this knowledge base
+     * 从知识库随机抽样，留出一部分作为查询，对每组 (m, nbits) 训练码本并统计 recall@topK，
+     * 以及按搜索时的候选数量重排序后的召回率，用于为每个知识库选择参数
+     * @param mValues Candidate subspace counts
+     * @param nbitsValues Candidate bits per sub-code
+     * @param queryCount Number of held-out queries
+     * @param topK Number of neighbours compared
+     * @return Report text, one line per parameter combination
+     */
+    public String evaluateProductQuantization(int[] mValues, int[] nbitsValues, int queryCount, int topK) {
+        StringBuilder report = new StringBuilder();
+        if (database == null || !database.isOpen() || metadata == null) {
+            return report.append("Database not open").toString();
+        }
+        int dimension = metadata.getEmbeddingDimension();
+        int rowCount = getChunkCount();
+        if (dimension <= 0 || rowCount <= 0) {
+            return report.append("Knowledge base is empty or dimension unknown").toString();
+        }
+        
+        float[] samples = sampleEmbeddings(Math.min(rowCount, PQ_EVALUATION_MAX_FLOATS / dimension), dimension);
+        if (samples == null) {
+            return report.append("Failed to sample embeddings").toString();
+        }
+        int sampleCount = samples.length / dimension;
+        int queries = Math.min(queryCount, Math.max(1, sampleCount / 10));
+        int baseCount = sampleCount - queries;
+        if (baseCount < topK) {
+            return report.append("Not enough rows for evaluation: ").append(sampleCount).toString();
+        }
+        float[] queryVectors = Arrays.copyOfRange(samples, baseCount * dimension, sampleCount * dimension);
+        int rescoreCount = Math.max(QUANTIZED_RESCORE_MIN, topK * QUANTIZED_RESCORE_FACTOR);
+        
+        report.append(String.format(Locale.US, "PQ recall vs exact: %d base rows, %d queries, top %d, dimension %d%n",
+                baseCount, queries, topK, dimension));
+        for (int requestedM : mValues) {
+            for (int nbits : nbitsValues) {
+                if (GlobalStopManager.isGlobalStopRequested()) {
+                    LogManager.logD(TAG, "Global stop requested, aborting PQ evaluation");
+                    return report.toString();
+                }
+                int m = ProductQuantizer.adjustM(dimension, requestedM);
+                int bits = Math.max(1, Math.min(ProductQuantizer.MAX_NBITS, nbits));
+                int trainCount = Math.min(baseCount, ProductQuantizer.trainingSampleSize(bits, dimension));
+                long startTime = System.currentTimeMillis();
+                ProductQuantizer quantizer = ProductQuantizer.train(
+                        Arrays.copyOf(samples, trainCount * dimension), trainCount, dimension, m, bits);
+                if (quantizer == null) {
+                    return report.toString();
+                }
+                float[] recall = quantizer.measureRecall(samples, baseCount, queryVectors, queries, topK, rescoreCount);
+                String line = String.format(Locale.US,
+                        "m=%d nbits=%d code=%dB (%.1fx smaller) recall@%d=%.3f recall@%d after re-scoring %d=%.3f (%dms)",
+                        m, bits, quantizer.getCodeSize(), (dimension * 4f) / quantizer.getCodeSize(),
+                        topK, recall[0], topK, rescoreCount, recall[1], System.currentTimeMillis() - startTime);
+                LogManager.logI(TAG, line);
+                report.append(line).append('\n');
+            }
+        }
+        return report.toString();
+    }
+    
+    /**
+     * Fetch content and source for the rows kept in a sorted heap
+     * @param heap Heap sorted in descending order
+     * @return Search results in heap order
+     */
+    private List<SearchResult> fetchSearchResults(TopKHeap heap) {
+        List<SearchResult> results = new ArrayList<>(heap.size());
+        if (heap.isEmpty()) {
+            return results;
+        }
+        
+        Map<Long, String[]> rows = new HashMap<>();
+        for (int start = 0; start < heap.size(); start += MAX_SQL_VARIABLES) {
+            int end = Math.min(heap.size(), start + MAX_SQL_VARIABLES);
+            StringBuilder placeholders = new StringBuilder();
+            String[] args = new String[end - start];
+            for (int i = start; i < end; i++) {
+                placeholders.append(i == start ? "?" : ",?");
+                args[i - start] = String.valueOf(heap.getId(i));
+            }
+            
+            Cursor cursor = database.query(
+                    TABLE_CHUNKS,
+                    new String[]{COLUMN_ID, COLUMN_CONTENT, COLUMN_SOURCE},
+                    COLUMN_ID + " IN (" + placeholders + ")",
+                    args,
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    rows.put(cursor.getLong(0), new String[]{cursor.getString(1), cursor.getString(2)});
                 }
+            } finally {
+                cursor.close();
+            }
+        }
+        
+        for (int i = 0; i < heap.size(); i++) {
+            String[] row = rows.get(heap.getId(i));
+            if (row == null) {
+                continue;
+            }
+            // Rounding can push a dot product of unit vectors slightly past 1
+            float similarity = Math.max(-1.0f, Math.min(1.0f, heap.getScore(i)));
+            SearchResult result = new SearchResult(row[0], row[1] != null ? row[1] : "unknown", similarity);
+            result.id = heap.getId(i);
+            results.add(result);
+        }
+        return results;
+    }
+    
+    /**
+     * Batch add text chunks to database
+     * @param texts List of text content
+     * @param sources List of source information
+     * @param embeddings List of embedding vectors
+     * @return Whether addition was successful
+     */
+    public boolean addChunks(List<String> texts, List<String> sources, List<float[]> embeddings) {
+        if (database == null || !database.isOpen()) {
+            LogManager.logE(TAG, "Database not open, cannot add text chunk");
+            return false;
+        }
+        
+        if (texts == null || texts.isEmpty()) {
+            LogManager.logE(TAG, "Text content list is empty, cannot add text chunks");
+            return false;
+        }
+        
+        if (embeddings == null || embeddings.isEmpty()) {
+            LogManager.logE(TAG, "Embedding vector list is empty, cannot add text chunks");
+            return false;
+        }
+        
+        if (texts.size() != embeddings.size()) {
+            LogManager.logE(TAG, "Text content list and embedding vector list length mismatch");
+            return false;
+        }
+        
+        if (sources != null && sources.size() != texts.size()) {
+            LogManager.logE(TAG, "Source information list and text content list length mismatch");
+            return false;
+        }
+        
+        try {
+            // Begin transaction
+            database.beginTransaction();
+            
+            // Row IDs are applied to in-memory indexes only after the transaction succeeds
+            long[] insertedRowIds = new long[texts.size()];
+            float[][] storedEmbeddings = new float[texts.size()][];
+            
+            for (int i = 0; i < texts.size(); i++) {
+                String text = texts.get(i);
+                String source = (sources != null && i < sources.size()) ? sources.get(i) : "unknown";
+                float[] embedding = normalizeForStorage(embeddings.get(i));
+                storedEmbeddings[i] = embedding;
                 
-                // Convert byte array to float array - use little-endian, consistent with PC
-                float[] embedding = blobToVector(embeddingBlob);
+                // Create metadata JSON
+                JSONObject metadataJson = new JSONObject();
+                metadataJson.put("source", source);
+                metadataJson.put("created_at", System.currentTimeMillis());
                 
-                // Calculate cosine similarity
-                float similarity = cosineSimilarity(queryVector, embedding);
+                // Insert data
+                long rowId = insertChunk(text, metadataJson, embedding);
+                
+                if (rowId == -1) {
+                    LogManager.logE(TAG, "Failed to insert text chunk");
+                    return false;
+                }
+                insertedRowIds[i] = rowId;
+                if (rowId == DUPLICATE_CHUNK) {
+                    addDuplicateSource(source);
+                    continue;
+                }
                 
-                // Add to result list
-                similarityResults.add(new Pair<>(similarity, new SearchResult(content, source, similarity)));
+                // Update metadata
+                if (metadata != null) {
+                    // Update text chunk count
+                    metadata.incrementChunkCount();
+                    
+                    // If source is not in list, add to source list
+                    if (source != null && !source.isEmpty() && !metadata.sources.contains(source)) {
+                        metadata.addSource(source);
+                    }
+                    
+                    // If embedding dimension is not set, set embedding dimension
+                    if (metadata.getEmbeddingDimension() == 0 && embedding.length > 0) {
+                        metadata.setEmbeddingDimension(embedding.length);
+                    }
+                }
             }
             
-            cursor.close();
-            
-            // Sort by similarity in descending order
-            Collections.sort(similarityResults, (a, b) -> Float.compare(b.first, a.first));
+            // Commit transaction, in-memory indexes only see the rows once they are committed
+            database.setTransactionSuccessful();
+            database.endTransaction();
+            for (int i = 0; i < insertedRowIds.length; i++) {
+                if (insertedRowIds[i] == DUPLICATE_CHUNK) {
+                    continue;
+                }
+                onVectorInserted(insertedRowIds[i], storedEmbeddings[i]);
+            }
             
-            // Take top K results
-            int resultCount = Math.min(topK, similarityResults.size());
-            for (int i = 0; i < resultCount; i++) {
-                results.add(similarityResults.get(i).second);
+            LogManager.logD(TAG, "Successfully batch added " + texts.size() + " text chunks");
+            return true;
+        } catch (Exception e) {
+            LogManager.logE(TAG, "Batch adding text chunks failed: " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (database.inTransaction()) {
+                database.endTransaction();
+            }
+        }
+    }
+    
+    /**
+     * Remove all chunks of a source
+     * 数据库中的行立即删除，检索结果不再包含它们；侧车索引（vectors.f32、HNSW、IVF）和常驻矩阵中的旧行
+     * 记入 tombstones 表，检索时跳过，由后台压缩重建索引并 VACUUM 后清除
+     * @param source Source of the chunks
+     * @return Number of removed chunks, or -1 on failure
+     */
+    public int removeSource(String source) {
+        return replaceSourceChunks(source, null, null, null);
+    }
+    
+    /**
+     * Replace all chunks of a source with new ones in a single transaction
+     * 查询要么看到全部旧内容，要么看到全部新内容；旧行的处理与 removeSource 相同
+     * @param source Source of the chunks
+     * @param texts New text chunks
+     * @param embeddings Embedding vectors of the new chunks
+     * @param metadataList Metadata (JSON string) of the new chunks, null to record only source and creation time
+     * @return Whether replacement was successful
+     */
+    public boolean replaceSource(String source, List<String> texts, List<float[]> embeddings, List<String> metadataList) {
+        if (texts == null || embeddings == null || texts.size() != embeddings.size()) {
+            LogManager.logE(TAG, "Text content list and embedding vector list length mismatch");
+            return false;
+        }
+        if (metadataList != null && metadataList.size() != texts.size()) {
+            LogManager.logE(TAG, "Metadata list and text content list length mismatch");
+            return false;
+        }
+        return replaceSourceChunks(source, texts, embeddings, metadataList) >= 0;
+    }
+    
+    /**
+     * Delete the chunks of a source and insert the given ones in one transaction
+     * @return Number of removed chunks, or -1 on failure
+     */
+    private int replaceSourceChunks(String source, List<String> texts, List<float[]> embeddings, List<String> metadataList) {
+        if (database == null || !database.isOpen() || metadata == null) {
+            LogManager.logE(TAG, "Database not open, cannot remove source");
+            return -1;
+        }
+        if (database.isReadOnly()) {
+            LogManager.logE(TAG, "Database is read-only, cannot remove source");
+            return -1;
+        }
+        if (source == null || source.isEmpty()) {
+            LogManager.logE(TAG, "Source is empty, cannot remove source");
+            return -1;
+        }
+        
+        // Un-migrated v1 rows have no source column yet, they are moved first so none of the source is left behind
+        if (!migrateLegacyRows()) {
+            LogManager.logE(TAG, "Schema v2 migration incomplete, cannot remove source");
+            return -1;
+        }
+        
+        int newCount = texts != null ? texts.size() : 0;
+        String[] sourceArgs = {metadata.getCollection(), source};
+        long[] removedRowIds;
+        Set<String> removedFiles = new HashSet<>();
+        long[] insertedRowIds = new long[newCount];
+        float[][] storedEmbeddings = new float[newCount][];
+        
+        synchronized (compactionLock) {
+            database.beginTransaction();
+            try {
+                if (contentHashEnabled) {
+                    promoteReferencedChunks(source);
+                }
+                
+                List<Long> rowIds = new ArrayList<>();
+                try (Cursor cursor = database.query(TABLE_CHUNKS, new String[]{COLUMN_ID, COLUMN_FILE},
+                        COLUMN_COLLECTION + "=? AND " + COLUMN_SOURCE + "=?", sourceArgs, null, null, COLUMN_ID)) {
+                    while (cursor.moveToNext()) {
+                        rowIds.add(cursor.getLong(0));
+                        if (!cursor.isNull(1)) {
+                            removedFiles.add(cursor.getString(1));
+                        }
+                    }
+                }
+                removedRowIds = new long[rowIds.size()];
+                for (int i = 0; i < removedRowIds.length; i++) {
+                    removedRowIds[i] = rowIds.get(i);
+                }
+                
+                if (removedRowIds.length > 0) {
+                    database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_TOMBSTONES + " (" + COLUMN_ID + " INTEGER PRIMARY KEY)");
+                    SQLiteStatement insertTombstone = database.compileStatement(
+                            "INSERT OR IGNORE INTO " + TABLE_TOMBSTONES + " (" + COLUMN_ID + ") VALUES (?)");
+                    try {
+                        for (long rowId : removedRowIds) {
+                            insertTombstone.bindLong(1, rowId);
+                            insertTombstone.executeInsert();
+                        }
+                    } finally {
+                        insertTombstone.close();
+                    }
+                    database.delete(TABLE_VECTORS, COLUMN_ID + " IN (SELECT " + COLUMN_ID + " FROM " + TABLE_CHUNKS +
+                            " WHERE " + COLUMN_COLLECTION + "=? AND " + COLUMN_SOURCE + "=?)", sourceArgs);
+                    if (lexicalModule != null) {
+                        database.delete(TABLE_LEXICAL, "rowid IN (SELECT " + COLUMN_ID + " FROM " + TABLE_CHUNKS +
+                                " WHERE " + COLUMN_COLLECTION + "=? AND " + COLUMN_SOURCE + "=?)", sourceArgs);
+                    }
+                    database.delete(TABLE_CHUNKS, COLUMN_COLLECTION + "=? AND " + COLUMN_SOURCE + "=?", sourceArgs);
+                }
+                
+                for (int i = 0; i < newCount; i++) {
+                    float[] embedding = normalizeForStorage(embeddings.get(i));
+                    storedEmbeddings[i] = embedding;
+                    String metadataStr = metadataList != null ? metadataList.get(i) : null;
+                    JSONObject chunkMetadata = buildChunkMetadata(metadataStr != null ? metadataStr : "{}", source);
+                    // The new rows must be found by the next removal of this source
+                    chunkMetadata.put("source", source);
+                    long rowId = insertChunk(texts.get(i), chunkMetadata, embedding);
+                    if (rowId == -1) {
+                        LogManager.logE(TAG, "Failed to insert text chunk, source " + source + " unchanged");
+                        return -1;
+                    }
+                    // Text stored by another source only gains a reference to this one
+                    insertedRowIds[i] = rowId;
+                }
+                database.setTransactionSuccessful();
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Failed to replace source " + source + ": " + e.getMessage(), e);
+                return -1;
+            } finally {
+                database.endTransaction();
             }
             
-            LogManager.logD(TAG, "Search completed, found " + results.size() + " similar text chunks");
-            return results;
+            addTombstones(removedRowIds);
+            
+            // Update metadata
+            metadata.decreaseChunkCount(removedRowIds.length);
+            for (int i = 0; i < newCount; i++) {
+                if (insertedRowIds[i] == DUPLICATE_CHUNK) {
+                    continue;
+                }
+                metadata.incrementChunkCount();
+                onVectorInserted(insertedRowIds[i], storedEmbeddings[i]);
+            }
+            if (newCount > 0) {
+                metadata.addSource(source);
+                if (metadata.getEmbeddingDimension() == 0 && storedEmbeddings[0].length > 0) {
+                    metadata.setEmbeddingDimension(storedEmbeddings[0].length);
+                }
+            } else {
+                metadata.removeSource(source);
+            }
+            for (String file : removedFiles) {
+                if (!hasChunksOfFile(file)) {
+                    metadata.removeFile(file);
+                }
+            }
+            saveMetadata();
+        }
+        
+        LogManager.logI(TAG, "Source " + source + ": removed " + removedRowIds.length + " chunks, added " + newCount);
+        if (removedRowIds.length > 0) {
+            requestCompaction();
+        }
+        return removedRowIds.length;
+    }
+    
+    private boolean hasChunksOfFile(String file) {
+        try (Cursor cursor = database.rawQuery("SELECT 1 FROM " + TABLE_CHUNKS + " WHERE " + COLUMN_COLLECTION +
+                "=? AND " + COLUMN_FILE + "=? LIMIT 1", new String[]{metadata.getCollection(), file})) {
+            return cursor.moveToFirst();
         } catch (Exception e) {
-            LogManager.logE(TAG, "Failed to search similar text chunks: " + e.getMessage(), e);
-            return results;
+            LogManager.logW(TAG, "Failed to check file " + file + ": " + e.getMessage());
+            return true;
+        }
+    }
+    
+    /**
+     * Read the tombstones left by removals that were not compacted yet
+     */
+    private void loadTombstones() {
+        BitSet removed = new BitSet();
+        if (isTable(database, TABLE_TOMBSTONES)) {
+            try (Cursor cursor = database.rawQuery("SELECT " + COLUMN_ID + " FROM " + TABLE_TOMBSTONES, null)) {
+                while (cursor.moveToNext()) {
+                    long rowId = cursor.getLong(0);
+                    if (rowId >= 0 && rowId <= Integer.MAX_VALUE) {
+                        removed.set((int) rowId);
+                    }
+                }
+            } catch (Exception e) {
+                LogManager.logW(TAG, "Failed to load tombstones: " + e.getMessage());
+            }
+        }
+        tombstones = removed;
+        tombstoneCount = removed.cardinality();
+        if (tombstoneCount > 0) {
+            LogManager.logI(TAG, tombstoneCount + " removed rows pending compaction");
+        }
+    }
+    
+    private void addTombstones(long[] rowIds) {
+        if (rowIds.length == 0) {
+            return;
+        }
+        BitSet removed = (BitSet) tombstones.clone();
+        for (long rowId : rowIds) {
+            if (rowId >= 0 && rowId <= Integer.MAX_VALUE) {
+                removed.set((int) rowId);
+            }
         }
+        tombstones = removed;
+        tombstoneCount = removed.cardinality();
     }
     
     /**
-     * Batch add text chunks to database
-     * @param texts List of text content
-     * @param sources List of source information
-     * @param embeddings List of embedding vectors
-     * @return Whether addition was successful
+     * Filter excluding removed rows from sidecar index results
+     * @return Row filter, or null when nothing was removed since the last compaction
      */
-    public boolean addChunks(List<String> texts, List<String> sources, List<float[]> embeddings) {
-        if (database == null || !database.isOpen()) {
-            LogManager.logE(TAG, "Database not open, cannot add text chunk");
-            return false;
-        }
-        
-        if (texts == null || texts.isEmpty()) {
-            LogManager.logE(TAG, "Text content list is empty, cannot add text chunks");
-            return false;
-        }
-        
-        if (embeddings == null || embeddings.isEmpty()) {
-            LogManager.logE(TAG, "Embedding vector list is empty, cannot add text chunks");
-            return false;
-        }
-        
-        if (texts.size() != embeddings.size()) {
-            LogManager.logE(TAG, "Text content list and embedding vector list length mismatch");
-            return false;
+    private LongPredicate liveRowFilter() {
+        BitSet removed = tombstones;
+        if (removed.isEmpty()) {
+            return null;
         }
-        
-        if (sources != null && sources.size() != texts.size()) {
-            LogManager.logE(TAG, "Source information list and text content list length mismatch");
-            return false;
+        return rowId -> rowId < 0 || rowId > Integer.MAX_VALUE || !removed.get((int) rowId);
+    }
+    
+    /**
+     * Schedule a background compaction unless one is already pending
+     */
+    public void requestCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            COMPACTION_EXECUTOR.execute(() -> {
+                compactionScheduled.set(false);
+                compact();
+            });
         }
-        
-        try {
-            // Begin transaction
-            database.beginTransaction();
+    }
+    
+    /**
+     * Rebuild the sidecar indexes without removed rows, then VACUUM the database
+     * 新索引在旧索引之外构建完成后再替换引用，期间查询继续使用旧索引并跳过 tombstones，
+     * 替换前补齐构建期间写入的行；VACUUM 前先合并 WAL，避免 VACUUM 把整库再写一遍到 WAL 中
+     * @return Whether compaction completed
+     */
+    public boolean compact() {
+        synchronized (compactionLock) {
+            SQLiteDatabase db = database;
+            if (db == null || !db.isOpen() || db.isReadOnly() || metadata == null) {
+                return false;
+            }
             
-            for (int i = 0; i < texts.size(); i++) {
-                String text = texts.get(i);
-                String source = (sources != null && i < sources.size()) ? sources.get(i) : "unknown";
-                float[] embedding = embeddings.get(i);
-                
-                // Convert embedding vector to byte array - use little-endian, consistent with PC
-                byte[] embeddingBytes = vectorToBlob(embedding);
-                
-                // Create metadata JSON
-                JSONObject metadataJson = new JSONObject();
-                metadataJson.put("source", source);
-                metadataJson.put("created_at", System.currentTimeMillis());
-                
-                // Prepare insert data
-                ContentValues values = new ContentValues();
-                values.put(COLUMN_COLLECTION, metadata.getCollection());
-                values.put(COLUMN_CONTENT, text);
-                values.put(COLUMN_METADATA, metadataJson.toString());
-                values.put(COLUMN_EMBEDDING, embeddingBytes);
-                
-                // Insert data
-                long rowId = database.insert(TABLE_DOCUMENTS, null, values);
-                
-                if (rowId == -1) {
-                    LogManager.logE(TAG, "Failed to insert text chunk");
+            // Removals wait on the lock, so every tombstone is covered by this run
+            int compacted = tombstoneCount;
+            if (compacted == 0) {
+                return true;
+            }
+            long startTime = System.currentTimeMillis();
+            try {
+                int rowCount = getChunkCount();
+                if (flatVectorFile != null && !rebuildFlatVectorFile()) {
+                    LogManager.logW(TAG, "Compaction aborted, flat vector file could not be rebuilt");
                     return false;
                 }
-                
-                // Update metadata
-                if (metadata != null) {
-                    // Update text chunk count
-                    metadata.incrementChunkCount();
-                    
-                    // If source is not in list, add to source list
-                    if (source != null && !source.isEmpty() && !metadata.sources.contains(source)) {
-                        metadata.addSource(source);
-                    }
-                    
-                    // If embedding dimension is not set, set embedding dimension
-                    if (metadata.getEmbeddingDimension() == 0 && embedding.length > 0) {
-                        metadata.setEmbeddingDimension(embedding.length);
-                    }
+                // close() waits for this lock, stop between steps once the handle is being closed
+                if (database != db) {
+                    return false;
                 }
+                if (hnswIndex != null && !rebuildHnswIndex(rowCount)) {
+                    LogManager.logW(TAG, "Compaction aborted, HNSW index could not be rebuilt");
+                    return false;
+                }
+                if (database != db) {
+                    return false;
+                }
+                // A failed build keeps the current index
+                if (ivfIndex != null && !buildIvfIndex(metadata.getIvfNlist(), metadata.getIvfNprobe())) {
+                    LogManager.logW(TAG, "Compaction aborted, IVF index could not be rebuilt");
+                    return false;
+                }
+                if (database != db) {
+                    return false;
+                }
+                if (residentIndex != null) {
+                    loadResidentIndex(rowCount);
+                }
+                
+                clearTombstones();
+                checkpointWal();
+                db.execSQL("VACUUM");
+                checkpointWal();
+                LogManager.logI(TAG, "Compaction dropped " + compacted + " removed rows, took " +
+                        (System.currentTimeMillis() - startTime) + "ms");
+                return true;
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Compaction failed: " + e.getMessage(), e);
+                return false;
             }
-            
-            // Commit transaction
-            database.setTransactionSuccessful();
-            
-            LogManager.logD(TAG, "Successfully batch added " + texts.size() + " text chunks");
-            return true;
-        } catch (Exception e) {
-            LogManager.logE(TAG, "Batch adding text chunks failed: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Build a new HNSW graph from the database rows and replace the current one
+     * @param rowCount Current row count
+     * @return Whether the new graph is in use
+     */
+    private boolean rebuildHnswIndex(int rowCount) {
+        HnswIndex oldIndex = hnswIndex;
+        HnswIndex index = new HnswIndex(oldIndex.getDimension(), oldIndex.getM(), oldIndex.getEfConstruction(),
+                Math.max(rowCount, 1024));
+        if (indexPendingRows(index) < 0 || GlobalStopManager.isGlobalStopRequested()) {
             return false;
-        } finally {
-            if (database.inTransaction()) {
-                database.endTransaction();
+        }
+        if (!index.save(new File(databaseDir, HNSW_INDEX_FILENAME))) {
+            return false;
+        }
+        synchronized (sidecarLock) {
+            // Rows committed while building were only added to the old graph, the next save persists them
+            int replayed = indexPendingRows(index);
+            if (replayed < 0) {
+                return false;
             }
+            hnswIndex = index;
+            hnswIndexDirty = replayed > 0;
+            hnswReplayedRowId = index.getMaxRowId();
         }
+        return true;
+    }
+    
+    private void clearTombstones() {
+        database.delete(TABLE_TOMBSTONES, null, null);
+        tombstones = new BitSet();
+        tombstoneCount = 0;
     }
     
     /**
@@ -1189,42 +4671,32 @@ public class SQLiteVectorDatabaseHandler {
         }
         
         try {
-            // Convert embedding vector to byte array - use little-endian, consistent with PC
-            byte[] embeddingBytes = vectorToBlob(embedding);
+            embedding = normalizeForStorage(embedding);
             
             // Create metadata JSON
-            JSONObject finalMetadata;
-            try {
-                // Try to parse the passed metadata string
-                finalMetadata = new JSONObject(metadataStr);
-            } catch (JSONException e) {
-                // If parsing fails, create new metadata object
-                finalMetadata = new JSONObject();
-                LogManager.logW(TAG, "Failed to parse metadata string, creating new metadata object: " + e.getMessage());
-            }
+            JSONObject finalMetadata = buildChunkMetadata(metadataStr, source);
             
-            // Add basic metadata
-            if (!finalMetadata.has("source") && source != null && !source.isEmpty()) {
-                finalMetadata.put("source", source);
-            }
-            if (!finalMetadata.has("created_at")) {
-                finalMetadata.put("created_at", System.currentTimeMillis());
+            // Insert chunk and vector rows atomically
+            long rowId;
+            database.beginTransaction();
+            try {
+                rowId = insertChunk(text, finalMetadata, embedding);
+                if (rowId != -1) {
+                    database.setTransactionSuccessful();
+                }
+            } finally {
+                database.endTransaction();
             }
             
-            // Prepare insert data
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_COLLECTION, metadata.getCollection());
-            values.put(COLUMN_CONTENT, text);
-            values.put(COLUMN_METADATA, finalMetadata.toString());
-            values.put(COLUMN_EMBEDDING, embeddingBytes);
-            
-            // Insert data
-            long rowId = database.insert(TABLE_DOCUMENTS, null, values);
-            
             if (rowId == -1) {
                 LogManager.logE(TAG, "Failed to insert text chunk");
                 return false;
             }
+            if (rowId == DUPLICATE_CHUNK) {
+                addDuplicateSource(source);
+                LogManager.logD(TAG, "Text chunk already stored, recorded source reference only");
+                return true;
+            }
             
             // Update metadata
             if (metadata != null) {
@@ -1242,6 +4714,8 @@ public class SQLiteVectorDatabaseHandler {
                 }
             }
             
+            onVectorInserted(rowId, embedding);
+            
             LogManager.logD(TAG, "Successfully added text chunk: " + (text.length() > 30 ? text.substring(0, 30) + "..." : text));
             return true;
         } catch (Exception e) {
@@ -1250,6 +4724,409 @@ public class SQLiteVectorDatabaseHandler {
         }
     }
     
+    /**
+     * Parse a chunk's metadata string and add the source and creation time if missing
+     * @param metadataStr Metadata (JSON string)
+     * @param source Source information
+     * @return Chunk metadata
+     */
+    private static JSONObject buildChunkMetadata(String metadataStr, String source) throws JSONException {
+        JSONObject finalMetadata;
+        try {
+            // Try to parse the passed metadata string
+            finalMetadata = new JSONObject(metadataStr);
+        } catch (JSONException e) {
+            // If parsing fails, create new metadata object
+            finalMetadata = new JSONObject();
+            LogManager.logW(TAG, "Failed to parse metadata string, creating new metadata object: " + e.getMessage());
+        }
+        
+        // Add basic metadata
+        if (!finalMetadata.has("source") && source != null && !source.isEmpty()) {
+            finalMetadata.put("source", source);
+        }
+        if (!finalMetadata.has("created_at")) {
+            finalMetadata.put("created_at", System.currentTimeMillis());
+        }
+        return finalMetadata;
+    }
+    
+    /**
+     * Open a bulk writer for ingesting many chunks, e.g. while building a knowledge base
+     * 与逐条 addVector 相比：使用预编译的 INSERT 语句绑定参数，多行合并为一个事务提交，
+     * 元数据计数只在内存中累加，每次提交后保存一次
+     * @return Bulk writer, must be closed on the same thread, or null if the database is not open
+     */
+    public BulkWriter beginBulkInsert() {
+        if (database == null || !database.isOpen()) {
+            LogManager.logE(TAG, "Database not open, cannot start bulk insert");
+            return null;
+        }
+        return new BulkWriter();
+    }
+    
+    /**
+     * Bulk chunk writer with compiled insert statements and group commit
+     * 事务在 BULK_COMMIT_ROWS 行或 BULK_COMMIT_INTERVAL_MS 毫秒后提交；行在提交成功后才加入内存索引和元数据，
+     * 提交失败时整组回滚，元数据不会多计。close() 会提交剩余的行
+     */
+    public final class BulkWriter implements AutoCloseable {
+        private final SQLiteStatement insertChunkStatement;
+        private final SQLiteStatement insertVectorStatement;
+        // Null when the database has no full-text index
+        private final SQLiteStatement insertLexicalStatement;
+        
+        // Rows inserted in the open transaction
+        private final List<Long> pendingRowIds = new ArrayList<>();
+        private final List<float[]> pendingEmbeddings = new ArrayList<>();
+        private final List<String> pendingSources = new ArrayList<>();
+        private int pendingDuplicates;
+        
+        private boolean inTransaction;
+        private long transactionStartTime;
+        private int committedRows;
+        private int duplicateRows;
+        private int failedRows;
+        private boolean commitFailed;
+        private boolean closed;
+        
+        private BulkWriter() {
+            insertChunkStatement = database.compileStatement("INSERT INTO " + TABLE_CHUNKS + " (" +
+                    COLUMN_COLLECTION + ", " + COLUMN_SOURCE + ", " + COLUMN_FILE + ", " + COLUMN_CREATED_AT + ", " +
+                    COLUMN_CONTENT + ", " + COLUMN_METADATA +
+                    (contentHashEnabled ? ", " + COLUMN_CONTENT_HASH + ") VALUES (?, ?, ?, ?, ?, ?, ?)" : ") VALUES (?, ?, ?, ?, ?, ?)"));
+            insertVectorStatement = database.compileStatement("INSERT INTO " + TABLE_VECTORS + " (" +
+                    COLUMN_ID + ", " + COLUMN_EMBEDDING_BITS + ", " + COLUMN_EMBEDDING_Q8 + ", " +
+                    COLUMN_EMBEDDING_PQ + ", " + COLUMN_EMBEDDING + ") VALUES (?, ?, ?, ?, ?)");
+            insertLexicalStatement = lexicalModule != null ? database.compileStatement("INSERT INTO " + TABLE_LEXICAL +
+                    " (rowid, " + COLUMN_TOKENS + ") VALUES (?, ?)") : null;
+        }
+        
+        /**
+         * Add a text chunk, committing the group when it is full or old enough
+         * @param text Text content
+         * @param embedding Embedding vector
+         * @param source Source information
+         * @param metadataStr Metadata (JSON string)
+         * @return Whether the chunk was inserted (and its group committed if a commit was due)
+         */
+        public boolean add(String text, float[] embedding, String source, String metadataStr) {
+            return add(text, contentHashOf(text), embedding, source, metadataStr);
+        }
+        
+        /**
+         * Add a text chunk whose hash was already computed for isStored
+         * @param text Text content
+         * @param contentHash Hash from contentHashOf(text)
+         * @param embedding Embedding vector
+         * @param source Source information
+         * @param metadataStr Metadata (JSON string)
+         * @return Whether the chunk was inserted (and its group committed if a commit was due)
+         */
+        public boolean add(String text, String contentHash, float[] embedding, String source, String metadataStr) {
+            if (closed) {
+                LogManager.logE(TAG, "Bulk writer already closed");
+                failedRows++;
+                return false;
+            }
+            if (text == null || text.isEmpty()) {
+                LogManager.logE(TAG, "Text content is empty, cannot add text chunk");
+                failedRows++;
+                return false;
+            }
+            if (embedding == null || embedding.length == 0) {
+                LogManager.logE(TAG, "Embedding vector is empty, cannot add text chunk");
+                failedRows++;
+                return false;
+            }
+            
+            try {
+                embedding = normalizeForStorage(embedding);
+                JSONObject chunkMetadata = buildChunkMetadata(metadataStr, source);
+                
+                beginGroup();
+                
+                long rowId = insertBound(text, contentHash, chunkMetadata, embedding);
+                if (rowId == -1) {
+                    LogManager.logE(TAG, "Failed to insert text chunk");
+                    failedRows++;
+                    return false;
+                }
+                if (rowId == DUPLICATE_CHUNK) {
+                    duplicateRows++;
+                    pendingDuplicates++;
+                    addDuplicateSource(source);
+                    return true;
+                }
+                pendingRowIds.add(rowId);
+                pendingEmbeddings.add(embedding);
+                pendingSources.add(source);
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Failed to add text chunk: " + e.getMessage(), e);
+                failedRows++;
+                return false;
+            }
+            return commitIfDue();
+        }
+        
+        /**
+         * Hash of a chunk's text for isStored, addReference and add, computed once per chunk
+         * @param text Text content
+         * @return Content hash, or null when the knowledge base does not deduplicate
+         */
+        public String contentHashOf(String text) {
+            return contentHashEnabled && text != null && !text.isEmpty() ? contentHash(text) : null;
+        }
+        
+        /**
+         * Whether a chunk with the same text is already stored
+         * 在生成嵌入向量之前调用，只读查询，不开启写事务，推理期间不阻塞其他写入；
+         * 本写入器尚未提交的行在同一连接上也能命中
+         * @param contentHash Hash from contentHashOf(), null is never stored
+         * @return Whether the text is stored, true means addReference instead of embedding and add
+         */
+        public boolean isStored(String contentHash) {
+            if (closed || contentHash == null) {
+                return false;
+            }
+            try (Cursor cursor = database.query(TABLE_CHUNKS, new String[]{COLUMN_ID},
+                    COLUMN_COLLECTION + "=? AND " + COLUMN_CONTENT_HASH + "=?",
+                    new String[]{metadata.getCollection(), contentHash}, null, null, null, "1")) {
+                return cursor.moveToFirst();
+            } catch (RuntimeException e) {
+                LogManager.logW(TAG, "Duplicate check failed, chunk will be embedded: " + e.getMessage());
+                return false;
+            }
+        }
+        
+        /**
+         * Record a source reference to a stored chunk in the open group instead of a new row
+         * 在 isStored 返回 true 的文本块写入时调用，与同组的新行在同一个写事务中提交
+         * @param contentHash Hash from contentHashOf()
+         * @param source Source information
+         * @param metadataStr Metadata (JSON string)
+         * @return Whether the reference was recorded, false if the stored chunk was removed in between
+         */
+        public boolean addReference(String contentHash, String source, String metadataStr) {
+            if (closed || contentHash == null) {
+                LogManager.logE(TAG, "Bulk writer already closed or chunk has no content hash");
+                failedRows++;
+                return false;
+            }
+            try {
+                beginGroup();
+                if (!recordDuplicate(contentHash, new MetadataColumns(buildChunkMetadata(metadataStr, source)))) {
+                    LogManager.logW(TAG, "Stored chunk was removed before its source reference was recorded");
+                    failedRows++;
+                    return false;
+                }
+            } catch (Exception e) {
+                LogManager.logE(TAG, "Failed to record source reference: " + e.getMessage(), e);
+                failedRows++;
+                return false;
+            }
+            duplicateRows++;
+            pendingDuplicates++;
+            addDuplicateSource(source);
+            return commitIfDue();
+        }
+        
+        private void beginGroup() {
+            if (!inTransaction) {
+                database.beginTransaction();
+                inTransaction = true;
+                transactionStartTime = System.currentTimeMillis();
+            }
+        }
+        
+        private boolean commitIfDue() {
+            if (pendingRowIds.size() + pendingDuplicates >= BULK_COMMIT_ROWS ||
+                    System.currentTimeMillis() - transactionStartTime >= BULK_COMMIT_INTERVAL_MS) {
+                return commit();
+            }
+            return true;
+        }
+        
+        /**
+         * Insert one row inside the open group, undoing its partial writes if any insert fails
+         * @return Row ID, DUPLICATE_CHUNK, or -1 on failure
+         */
+        private long insertBound(String text, String hash, JSONObject chunkMetadata, float[] embedding) {
+            database.execSQL("SAVEPOINT " + BULK_ROW_SAVEPOINT);
+            boolean inserted = false;
+            try {
+                long rowId = insertBoundRow(text, hash, chunkMetadata, embedding);
+                inserted = rowId != -1;
+                return rowId;
+            } finally {
+                if (!inserted) {
+                    database.execSQL("ROLLBACK TO " + BULK_ROW_SAVEPOINT);
+                }
+                database.execSQL("RELEASE " + BULK_ROW_SAVEPOINT);
+            }
+        }
+        
+        private long insertBoundRow(String text, String hash, JSONObject chunkMetadata, float[] embedding) {
+            MetadataColumns columns = new MetadataColumns(chunkMetadata);
+            if (hash != null && recordDuplicate(hash, columns)) {
+                return DUPLICATE_CHUNK;
+            }
+            insertChunkStatement.clearBindings();
+            bindNullable(insertChunkStatement, 1, metadata.getCollection());
+            insertChunkStatement.bindString(2, columns.source);
+            insertChunkStatement.bindString(3, columns.file);
+            if (columns.createdAt != null) {
+                insertChunkStatement.bindLong(4, columns.createdAt);
+            } else {
+                insertChunkStatement.bindNull(4);
+            }
+            insertChunkStatement.bindString(5, text);
+            insertChunkStatement.bindString(6, chunkMetadata.toString());
+            if (hash != null) {
+                insertChunkStatement.bindString(7, hash);
+            }
+            long rowId = insertChunkStatement.executeInsert();
+            if (rowId == -1) {
+                return -1;
+            }
+            
+            ProductQuantizer quantizer = productQuantizer;
+            insertVectorStatement.clearBindings();
+            insertVectorStatement.bindLong(1, rowId);
+            bindNullable(insertVectorStatement, 2, metadata.hasBinarySignature() ? BinarySignature.encodeToBlob(embedding) : null);
+            bindNullable(insertVectorStatement, 3, isInt8Quantized() ? ScalarQuantizer.encode(embedding) : null);
+            bindNullable(insertVectorStatement, 4, quantizer != null ? quantizer.encode(embedding) : null);
+            // Use little-endian, consistent with PC
+            insertVectorStatement.bindBlob(5, vectorToBlob(embedding));
+            if (insertVectorStatement.executeInsert() == -1) {
+                return -1;
+            }
+            if (insertLexicalStatement != null) {
+                insertLexicalStatement.bindLong(1, rowId);
+                insertLexicalStatement.bindString(2, LexicalTokenizer.segment(text));
+                if (insertLexicalStatement.executeInsert() == -1) {
+                    return -1;
+                }
+            }
+            return rowId;
+        }
+        
+        /**
+         * Commit the open group, then apply its rows to the in-memory indexes and persist the metadata
+         * @return Whether the group was committed, false means its rows were rolled back
+         */
+        public boolean commit() {
+            if (!inTransaction) {
+                return true;
+            }
+            boolean success;
+            try {
+                database.setTransactionSuccessful();
+                database.endTransaction();
+                success = true;
+            } catch (RuntimeException e) {
+                LogManager.logE(TAG, "Failed to commit bulk insert of " + pendingRowIds.size() + " rows: " + e.getMessage(), e);
+                if (database.inTransaction()) {
+                    database.endTransaction();
+                }
+                success = false;
+            }
+            inTransaction = false;
+            
+            if (success) {
+                for (int i = 0; i < pendingRowIds.size(); i++) {
+                    float[] embedding = pendingEmbeddings.get(i);
+                    String source = pendingSources.get(i);
+                    metadata.incrementChunkCount();
+                    if (source != null && !source.isEmpty() && !metadata.sources.contains(source)) {
+                        metadata.addSource(source);
+                    }
+                    if (metadata.getEmbeddingDimension() == 0) {
+                        metadata.setEmbeddingDimension(embedding.length);
+                    }
+                    onVectorInserted(pendingRowIds.get(i), embedding);
+                }
+                committedRows += pendingRowIds.size();
+                saveMetadata();
+                LogManager.logD(TAG, "Bulk insert committed " + pendingRowIds.size() + " rows, " + committedRows + " in total");
+            } else {
+                // Source references recorded in the group were rolled back with it
+                failedRows += pendingRowIds.size() + pendingDuplicates;
+                duplicateRows -= pendingDuplicates;
+                commitFailed = true;
+            }
+            pendingDuplicates = 0;
+            pendingRowIds.clear();
+            pendingEmbeddings.clear();
+            pendingSources.clear();
+            return success;
+        }
+        
+        /**
+         * Number of rows committed so far
+         */
+        public int getCommittedRows() {
+            return committedRows;
+        }
+        
+        /**
+         * Number of chunks skipped because their text was already stored
+         */
+        public int getDuplicateRows() {
+            return duplicateRows;
+        }
+        
+        /**
+         * Number of chunks that are not stored: rejected or failed rows and rows of groups that failed to commit
+         */
+        public int getFailedRows() {
+            return failedRows;
+        }
+        
+        /**
+         * Whether any group failed to commit, its rows are counted in getFailedRows()
+         */
+        public boolean hasFailedCommit() {
+            return commitFailed;
+        }
+        
+        /**
+         * Commit the remaining rows and release the compiled statements
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            try {
+                commit();
+            } finally {
+                closed = true;
+                insertChunkStatement.close();
+                insertVectorStatement.close();
+                if (insertLexicalStatement != null) {
+                    insertLexicalStatement.close();
+                }
+            }
+        }
+    }
+    
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+    
+    private static void bindNullable(SQLiteStatement statement, int index, byte[] value) {
+        if (value != null) {
+            statement.bindBlob(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+    
     /**
      * Add file to metadata
      * @param fileName File name
@@ -0,0 +1,100 @@
+package com.example.starlocalrag;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Per-vector int8 scalar quantization
+ * 每个向量单独计算 scale/offset，将各维度线性映射到 [0, 255] 后以有符号字节存储，
+ * 体积约为 float32 的 1/4，用于第一轮粗排，最终结果仍以原始浮点向量重新打分
+ *
+ * Code layout (little-endian): scale float32, offset float32, inverseNorm float32, dimension int8 codes
+ */
+public final class ScalarQuantizer {
+
+    // 头部：scale + offset + 原始向量范数倒数
+    public static final int HEADER_BYTES = 12;
+
+    private static final int LEVELS = 255;
+
+    private ScalarQuantizer() {
+    }
+
+    /**
+     * Encode a vector
+     * @param vector Vector (NaN/Infinity are treated as 0)
+     * @return Code bytes
+     */
+    public static byte[] encode(float[] vector) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        float squaredNorm = 0.0f;
+        for (float value : vector) {
+            float v = sanitize(value);
+            if (v < min) {
+                min = v;
+            }
+            if (v > max) {
+                max = v;
+            }
+            squaredNorm += v * v;
+        }
+        if (vector.length == 0) {
+            min = 0.0f;
+            max = 0.0f;
+        }
+        float scale = (max - min) / LEVELS;
+        float inverseScale = scale > 0.0f ? 1.0f / scale : 0.0f;
+        float inverseNorm = squaredNorm <= 1e-6f ? 0.0f : (float) (1.0 / Math.sqrt(squaredNorm));
+
+        byte[] code = new byte[HEADER_BYTES + vector.length];
+        ByteBuffer buffer = ByteBuffer.wrap(code).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putFloat(scale).putFloat(min).putFloat(inverseNorm);
+        for (int i = 0; i < vector.length; i++) {
+            int level = Math.round((sanitize(vector[i]) - min) * inverseScale);
+            level = Math.max(0, Math.min(LEVELS, level));
+            code[HEADER_BYTES + i] = (byte) (level - 128);
+        }
+        return code;
+    }
+
+    /**
+     * Approximate cosine similarity between a query and an encoded vector
+     * 点积展开为 offset*Σq + scale*Σq·level，逐维只需一次乘加
+     * @param query Query vector
+     * @param querySum Sum of the query components
+     * @param queryInverseNorm Inverse L2 norm of the query
+     * @param code Encoded vector
+     * @return Approximate similarity, or NEGATIVE_INFINITY if the code does not match the query dimension
+     */
+    public static float similarity(float[] query, float querySum, float queryInverseNorm, byte[] code) {
+        if (code == null || code.length != HEADER_BYTES + query.length) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        ByteBuffer header = ByteBuffer.wrap(code, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        float scale = header.getFloat();
+        float offset = header.getFloat();
+        float inverseNorm = header.getFloat();
+
+        float sum = 0.0f;
+        for (int i = 0; i < query.length; i++) {
+            sum += query[i] * (code[HEADER_BYTES + i] + 128);
+        }
+        return (offset * querySum + scale * sum) * inverseNorm * queryInverseNorm;
+    }
+
+    /**
+     * Sum of the vector components, precomputed once per query
+     */
+    public static float sum(float[] vector) {
+        float sum = 0.0f;
+        for (float v : vector) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    private static float sanitize(float v) {
+        return Float.isNaN(v) || Float.isInfinite(v) ? 0.0f : v;
+    }
+}
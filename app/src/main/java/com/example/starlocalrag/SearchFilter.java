@@ -0,0 +1,151 @@
+package com.example.starlocalrag;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Predicate on chunk metadata applied before vector scoring
+ * 来源、文件名和创建时间条件下推为 chunks 表索引列上的 SQL 条件；自定义元数据键在 SQL 选出的候选行上按 JSON 比较。
+ * 各条件之间为 AND，同一条件的多个取值之间为 OR
+ */
+public class SearchFilter {
+    private final Set<String> sources = new LinkedHashSet<>();
+    private final Set<String> files = new LinkedHashSet<>();
+    private Long createdFrom;
+    private Long createdTo;
+    private final Map<String, String> metadataEquals = new LinkedHashMap<>();
+
+    /**
+     * Allow chunks from a source
+     */
+    public SearchFilter addSource(String source) {
+        if (source != null && !source.isEmpty()) {
+            sources.add(source);
+        }
+        return this;
+    }
+
+    /**
+     * Allow chunks from a file name
+     */
+    public SearchFilter addFile(String file) {
+        if (file != null && !file.isEmpty()) {
+            files.add(file);
+        }
+        return this;
+    }
+
+    /**
+     * Allow chunks created in [from, to)
+     * @param from Inclusive lower bound in milliseconds, null for none
+     * @param to Exclusive upper bound in milliseconds, null for none
+     */
+    public SearchFilter setCreatedRange(Long from, Long to) {
+        this.createdFrom = from;
+        this.createdTo = to;
+        return this;
+    }
+
+    /**
+     * Require a metadata key to have the given value (compared as strings)
+     */
+    public SearchFilter putMetadata(String key, String value) {
+        if (key != null && !key.isEmpty()) {
+            metadataEquals.put(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * Whether the filter allows every chunk
+     */
+    public boolean isEmpty() {
+        return sources.isEmpty() && files.isEmpty() && createdFrom == null && createdTo == null && metadataEquals.isEmpty();
+    }
+
+    /**
+     * Whether custom metadata keys must be checked on each candidate row
+     */
+    boolean hasMetadataConditions() {
+        return !metadataEquals.isEmpty();
+    }
+
+    /**
+     * Append the SQL conditions on the indexed chunk columns
+     * @param selection Receives " AND ..." clauses
+     * @param args Receives the bound arguments
+     */
+    void appendSelection(StringBuilder selection, List<String> args) {
+        appendIn(selection, args, "source", sources);
+        appendIn(selection, args, "file", files);
+        if (createdFrom != null) {
+            selection.append(" AND created_at>=?");
+            args.add(String.valueOf(createdFrom));
+        }
+        if (createdTo != null) {
+            selection.append(" AND created_at<?");
+            args.add(String.valueOf(createdTo));
+        }
+    }
+
+    private static void appendIn(StringBuilder selection, List<String> args, String column, Set<String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        selection.append(" AND ").append(column).append(" IN (");
+        boolean first = true;
+        for (String value : values) {
+            selection.append(first ? "?" : ",?");
+            args.add(value);
+            first = false;
+        }
+        selection.append(')');
+    }
+
+    /**
+     * Check the custom metadata conditions against a chunk's metadata JSON
+     * @param json Parsed metadata, null if missing or unparsable
+     */
+    boolean matchesMetadata(JSONObject json) {
+        if (metadataEquals.isEmpty()) {
+            return true;
+        }
+        if (json == null) {
+            return false;
+        }
+        for (Map.Entry<String, String> condition : metadataEquals.entrySet()) {
+            if (!json.has(condition.getKey())) {
+                return false;
+            }
+            String value = json.optString(condition.getKey(), null);
+            if (condition.getValue() == null ? !json.isNull(condition.getKey()) : !condition.getValue().equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (!sources.isEmpty()) {
+            parts.add("sources=" + sources);
+        }
+        if (!files.isEmpty()) {
+            parts.add("files=" + files);
+        }
+        if (createdFrom != null || createdTo != null) {
+            parts.add("created=[" + createdFrom + ", " + createdTo + ")");
+        }
+        if (!metadataEquals.isEmpty()) {
+            parts.add("metadata=" + metadataEquals);
+        }
+        return "SearchFilter{" + String.join(", ", parts) + "}";
+    }
+}
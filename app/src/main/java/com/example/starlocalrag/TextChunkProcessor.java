@@ -16,7 +16,12 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -48,6 +53,10 @@ public class TextChunkProcessor {
     // 中间文件名
     private static final String INTERMEDIATE_FILE_NAME = "intermediate_chunks.json";
     
+    // 每组交给嵌入模型的文本块数量，模型在组内按 token 数排序后再按序列长度和内存拆分批次，
+    // 组越大长度分桶越充分，进度更新越稀疏
+    private static final int EMBEDDING_GROUP_SIZE = 256;
+    
     /**
      * Text chunk class
      */
@@ -127,7 +136,7 @@ public class TextChunkProcessor {
      * @param chunkSize Chunk size
      * @param chunkOverlap Chunk overlap size
      * @param embeddingModel Embedding model
-     * @param vectorDB Vector database
+     * @param vectorDB Vector database, the caller holds VectorDatabaseRegistry.beginExclusive for its directory
      * @return Whether successful
      */
     public boolean processFiles(String knowledgeBasePath, List<Uri> files, int chunkSize, int chunkOverlap, 
@@ -499,6 +508,8 @@ public class TextChunkProcessor {
             
             // Get EmbeddingModelManager instance to mark model usage status
             EmbeddingModelManager modelManager = EmbeddingModelManager.getInstance(context);
+            SQLiteVectorDatabaseHandler.BulkWriter bulkWriter = null;
+            ChunkEmbeddingCache embeddingCache = null;
             
             try {
                 // Mark model as in use
@@ -510,12 +521,91 @@ public class TextChunkProcessor {
                 StringBuilder progressLog = new StringBuilder(vectorizationProgress);
                 int lastPercentage = 0;
                 
+                // Build the HNSW index incrementally as vectors are added, it is saved with the database
+                if (AppConstants.VectorIndexType.HNSW.equals(ConfigManager.getVectorIndexType(context))) {
+                    int hnswM = ConfigManager.getHnswM(context);
+                    int efConstruction = ConfigManager.getHnswEfConstruction(context);
+                    int efSearch = ConfigManager.getHnswEfSearch(context);
+                    if (vectorDB.enableHnswIndex(hnswM, efConstruction, efSearch)) {
+                        LogManager.logD(TAG, "HNSW index enabled, M=" + hnswM + ", efConstruction=" + efConstruction + ", efSearch=" + efSearch);
+                    } else {
+                        LogManager.logW(TAG, "Failed to enable HNSW index, knowledge base will use exact search");
+                    }
+                }
+                
+                // Store embeddings as half precision when selected, halving database size and scan I/O
+                if (AppConstants.VectorEncoding.FLOAT16.equals(ConfigManager.getVectorEncoding(context))) {
+                    if (vectorDB.enableFloat16Storage()) {
+                        LogManager.logD(TAG, "Float16 storage enabled");
+                    } else {
+                        LogManager.logW(TAG, "Failed to enable float16 storage");
+                    }
+                }
+                
+                // Store int8 codes next to float embeddings when quantization is selected
+                if (AppConstants.VectorQuantization.INT8.equals(ConfigManager.getVectorQuantization(context))) {
+                    if (vectorDB.enableInt8Quantization()) {
+                        LogManager.logD(TAG, "Int8 quantization enabled");
+                    } else {
+                        LogManager.logW(TAG, "Failed to enable int8 quantization, knowledge base will store float vectors only");
+                    }
+                }
+                
+                // Store sign-bit signatures for the Hamming prefilter when selected
+                if (ConfigManager.isBinarySignatureEnabled(context)) {
+                    if (vectorDB.enableBinarySignatures()) {
+                        LogManager.logD(TAG, "Binary signatures enabled");
+                    } else {
+                        LogManager.logW(TAG, "Failed to enable binary signatures");
+                    }
+                }
+                
+                // Mirror embeddings into a memory-mapped vectors.f32 for zero-copy exact search
+                if (ConfigManager.isFlatVectorFileEnabled(context)) {
+                    if (vectorDB.enableFlatVectorFile()) {
+                        LogManager.logD(TAG, "Flat vector file enabled");
+                    } else {
+                        LogManager.logW(TAG, "Failed to enable flat vector file");
+                    }
+                }
+                
                 // First send initial progress log
                 if (progressCallback != null) {
                     progressCallback.onLog(progressLog.toString());
                 }
                 
-                // Process all text chunks
+                // 追加到已有知识库时，重新添加的文件先删除旧的文本块，避免新旧内容同时被检索到
+                if (vectorDB.getChunkCount() > 0) {
+                    Set<String> sources = new LinkedHashSet<>();
+                    for (TextChunk chunk : chunks) {
+                        if (chunk.source != null && !chunk.source.isEmpty()) {
+                            sources.add(chunk.source);
+                        }
+                    }
+                    for (String source : sources) {
+                        int removed = vectorDB.removeSource(source);
+                        if (removed > 0) {
+                            logMessage("Replacing " + removed + " existing chunks of " + source);
+                        } else if (removed < 0) {
+                            logError("Failed to remove existing chunks of " + source, null);
+                            return false;
+                        }
+                    }
+                }
+                
+                // Insert through compiled statements with group commit instead of one transaction per chunk
+                bulkWriter = vectorDB.beginBulkInsert();
+                if (bulkWriter == null) {
+                    logError("Failed to start bulk insert", null);
+                    return false;
+                }
+                
+                // Chunks embedded by an earlier build with the same model are read back instead of re-embedded
+                embeddingCache = ChunkEmbeddingCache.open(context, model.getModelIdentity());
+                
+                // Process text chunks in groups, the new texts of each group are embedded with batched inference
+                EmbeddingModelHandler.BatchStats embeddingStats = new EmbeddingModelHandler.BatchStats();
+                EmbeddingGroup group = null;
                 for (int i = 0; i < totalChunks; i++) {
                     // Check if task is cancelled
                     if (isTaskCancelled.get()) {
@@ -523,8 +613,14 @@ public class TextChunkProcessor {
                         return false;
                     }
                     
+                    if (group == null || i >= group.end) {
+                        // Commit the stored group first, no write transaction stays open during inference
+                        bulkWriter.commit();
+                        group = embedGroup(chunks, i, Math.min(totalChunks, i + EMBEDDING_GROUP_SIZE),
+                                model, embeddingStats, bulkWriter, embeddingCache);
+                    }
+                    
                     TextChunk chunk = chunks.get(i);
-                    String text = chunk.text;
                     String source = chunk.source;
                     JSONObject metadata = chunk.metadata;
                     
@@ -556,11 +652,33 @@ public class TextChunkProcessor {
                                   ", Source file: " + source);
                         }
                         
-                        // Generate vector
-                        float[] embedding = model.generateEmbedding(text);
+                        // Update progress
+                        float percentage = (float) (i + 1) / totalChunks * 100;
+                        if (progressCallback != null) {
+                            progressCallback.onVectorizationProgress(i + 1, totalChunks, percentage);
+                        }
+                        
+                        // Notify progress update
+                        if (notificationProgressCallback != null) {
+                            notificationProgressCallback.onNotificationProgressUpdate(i + 1, totalChunks, percentage);
+                        }
+                        
+                        // Text already stored before this group only records a source reference
+                        int offset = i - group.start;
+                        if (group.referenced[offset]) {
+                            if (!bulkWriter.addReference(group.hashes[offset], source, metadata.toString())) {
+                                LogManager.logW(TAG, "Failed to store text chunk " + (i + 1) + "/" + totalChunks);
+                            }
+                            continue;
+                        }
+                        float[] embedding = group.embeddings[offset];
+                        if (embedding == null) {
+                            logError("Vectorization failed for text chunk " + (i + 1) + "/" + totalChunks, null);
+                            continue;
+                        }
                         
                         // 向量异常处理
-                        if (embedding != null && embedding.length > 0) {
+                        if (embedding.length > 0) {
                             // 检测向量异常
                             VectorAnomalyHandler.AnomalyResult anomalyResult = VectorAnomalyHandler.detectAnomalies(embedding, -1);
                             
@@ -589,24 +707,62 @@ public class TextChunkProcessor {
                             }
                         }
                         
-                        // Add to database
-                        vectorDB.addVector(text, embedding, source, metadata.toString());
-                        
-                        // Update progress
-                        float percentage = (float) (i + 1) / totalChunks * 100;
-                        if (progressCallback != null) {
-                            progressCallback.onVectorizationProgress(i + 1, totalChunks, percentage);
-                        }
-                        
-                        // Notify progress update
-                        if (notificationProgressCallback != null) {
-                            notificationProgressCallback.onNotificationProgressUpdate(i + 1, totalChunks, percentage);
+                        // Add to database, a repeat within the group becomes a source reference here.
+                        // A failed group commit is reported after the loop
+                        if (!bulkWriter.add(chunk.text, group.hashes[offset], embedding, source, metadata.toString())) {
+                            LogManager.logW(TAG, "Failed to store text chunk " + (i + 1) + "/" + totalChunks);
                         }
                     } catch (Exception e) {
                         logError("Vectorization failed: " + e.getMessage(), e);
                     }
                 }
                 
+                // Commit the last group before the indexes read the stored vectors
+                bulkWriter.commit();
+                bulkWriter.close();
+                LogManager.logD(TAG, "Bulk insert finished, committed " + bulkWriter.getCommittedRows() + " text chunks");
+                if (bulkWriter.getFailedRows() > 0) {
+                    logError(bulkWriter.getFailedRows() + "/" + totalChunks + " text chunks could not be stored", null);
+                }
+                if (bulkWriter.hasFailedCommit()) {
+                    logError("Failed to commit text chunks to the knowledge base", null);
+                    return false;
+                }
+                if (bulkWriter.getDuplicateRows() > 0) {
+                    logMessage("Deduplication: " + bulkWriter.getDuplicateRows() + "/" + totalChunks +
+                            " text chunks already stored, embedding skipped");
+                }
+                if (embeddingCache != null && embeddingCache.getHitCount() > 0) {
+                    logMessage("Embedding cache: " + embeddingCache.getHitCount() + " text chunks reused from earlier builds");
+                }
+                if (embeddingStats.tokens > 0) {
+                    logMessage(String.format(Locale.ROOT, "Embedding: %d tokens in %d text chunks, padding waste %.1f%%, %.0f tokens/s",
+                            embeddingStats.tokens, embeddingStats.texts, embeddingStats.getPaddingRatio() * 100,
+                            embeddingStats.getTokensPerSecond()));
+                }
+                
+                // The IVF index is trained on the finished corpus, so it is built once after all vectors are stored
+                if (AppConstants.VectorIndexType.IVF.equals(ConfigManager.getVectorIndexType(context))) {
+                    int nlist = ConfigManager.getIvfNlist(context);
+                    int nprobe = ConfigManager.getIvfNprobe(context);
+                    if (vectorDB.buildIvfIndex(nlist, nprobe)) {
+                        LogManager.logD(TAG, "IVF index built, nlist=" + vectorDB.getMetadata().getIvfNlist() + ", nprobe=" + nprobe);
+                    } else {
+                        LogManager.logW(TAG, "Failed to build IVF index, knowledge base will use exact search");
+                    }
+                }
+                
+                // PQ codebooks are trained on the finished corpus, existing rows are encoded afterwards
+                if (AppConstants.VectorQuantization.PQ.equals(ConfigManager.getVectorQuantization(context))) {
+                    int pqM = ConfigManager.getPqM(context);
+                    int pqNbits = ConfigManager.getPqNbits(context);
+                    if (vectorDB.enableProductQuantization(pqM, pqNbits)) {
+                        LogManager.logD(TAG, "PQ enabled, m=" + vectorDB.getMetadata().getPqM() + ", nbits=" + pqNbits);
+                    } else {
+                        LogManager.logW(TAG, "Failed to enable PQ, knowledge base will use exact search");
+                    }
+                }
+                
                 // Save database
                 vectorDB.saveDatabase();
                 logMessage("Vectorization processing completed");
@@ -617,11 +773,22 @@ public class TextChunkProcessor {
                     progressCallback.onVectorizationComplete(totalChunks);
                 }
             } finally {
+                // Chunks added before a cancel or failure are still committed
+                if (bulkWriter != null) {
+                    bulkWriter.close();
+                }
+                
+                // Close the ONNX input tensors this thread reused across batches
+                OnnxInputBuffers.release();
+                if (embeddingCache != null) {
+                    embeddingCache.close();
+                }
+                
                 // Whether successful or failed, finally mark model as not in use
                 modelManager.markModelNotInUse();
                 LogManager.logD(TAG, "Batch vectorization processing completed, marked model as not in use");
                 
-                // Close database
+                // Close database, the next query reopens it through the registry
                 vectorDB.close();
                 LogManager.logD(TAG, "Vector database closed");
             }
@@ -633,6 +800,89 @@ public class TextChunkProcessor {
         }
     }
     
+    /**
+     * Embeddings of one group of text chunks, indexed from start
+     */
+    private static final class EmbeddingGroup {
+        final int start;
+        final int end;
+        // Content hashes, null when the knowledge base does not deduplicate
+        final String[] hashes;
+        // Whether the text is already stored and is written as a source reference
+        final boolean[] referenced;
+        // Null for referenced chunks and failed embeddings, repeats within the group share one vector
+        final float[][] embeddings;
+        
+        EmbeddingGroup(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.hashes = new String[end - start];
+            this.referenced = new boolean[end - start];
+            this.embeddings = new float[end - start][];
+        }
+    }
+    
+    /**
+     * Embed the new texts of chunks [start, end)
+     * 已存储的文本（只读查询，不开启写事务）不推理，写入时记为来源引用；组内重复的文本只推理一次，写入时由 BulkWriter 记为引用；
+     * 其余文本先查嵌入缓存，剩下的一次交给模型批量推理
+     */
+    private EmbeddingGroup embedGroup(List<TextChunk> chunks, int start, int end,
+                                      EmbeddingModelHandler model, EmbeddingModelHandler.BatchStats embeddingStats,
+                                      SQLiteVectorDatabaseHandler.BulkWriter bulkWriter, ChunkEmbeddingCache embeddingCache) {
+        EmbeddingGroup group = new EmbeddingGroup(start, end);
+        Map<String, Integer> firstByHash = new HashMap<>();
+        int[] sameAs = new int[end - start];
+        List<String> uncachedTexts = new ArrayList<>();
+        List<Integer> uncachedOffsets = new ArrayList<>();
+        for (int offset = 0; offset < end - start; offset++) {
+            TextChunk chunk = chunks.get(start + offset);
+            String hash = bulkWriter.contentHashOf(chunk.text);
+            group.hashes[offset] = hash;
+            sameAs[offset] = offset;
+            if (bulkWriter.isStored(hash)) {
+                group.referenced[offset] = true;
+                continue;
+            }
+            if (hash != null) {
+                Integer first = firstByHash.putIfAbsent(hash, offset);
+                if (first != null) {
+                    sameAs[offset] = first;
+                    continue;
+                }
+            }
+            // Take cached vectors first, only the remaining texts go through the model
+            float[] cached = embeddingCache != null ? embeddingCache.get(chunk.text) : null;
+            if (cached != null) {
+                group.embeddings[offset] = cached;
+            } else {
+                uncachedTexts.add(chunk.text);
+                uncachedOffsets.add(offset);
+            }
+        }
+        
+        // Generate vectors
+        try {
+            List<float[]> generated = model.generateEmbeddings(uncachedTexts, embeddingStats);
+            for (int j = 0; j < generated.size(); j++) {
+                float[] embedding = generated.get(j);
+                group.embeddings[uncachedOffsets.get(j)] = embedding;
+                if (embeddingCache != null) {
+                    embeddingCache.put(uncachedTexts.get(j), embedding);
+                }
+            }
+        } catch (Exception e) {
+            logError("Vectorization failed: " + e.getMessage(), e);
+        }
+        
+        for (int offset = 0; offset < end - start; offset++) {
+            if (sameAs[offset] != offset) {
+                group.embeddings[offset] = group.embeddings[sameAs[offset]];
+            }
+        }
+        return group;
+    }
+    
     /**
      * Save intermediate text chunks to file
      */
@@ -805,112 +1055,55 @@ public class TextChunkProcessor {
                 logMessage("Debug mode enabled, will output detailed tokenization and processing logs");
             }
             
-            // Initialize vector database
-            SQLiteVectorDatabaseHandler vectorDB = new SQLiteVectorDatabaseHandler(
-                    new File(fullKnowledgeBasePath), model.getEmbeddingModel(), embeddingDimension);
-            
-            // Set embedding model directory to metadata
-            vectorDB.getMetadata().setModeldir(embeddingModel);
-            logMessage("Set embedding model directory: " + embeddingModel);
-            
-            // Set reranker model information to metadata
-            String valueNone = context.getString(R.string.common_none);
-            if (rerankerModel != null && !rerankerModel.isEmpty() && !valueNone.equals(rerankerModel)) {
-                vectorDB.getMetadata().setRerankerdir(rerankerModel);
-                logMessage("Set reranker model: " + rerankerModel);
-            }
-            
-            // Extract text and chunk
-            List<TextChunk> chunks = extractTextFromFiles(fullKnowledgeBasePath, files, chunkSize, chunkOverlap);
-            
-            // Check if cancelled
-            if (isTaskCancelled.get()) {
-                logMessage("Task cancelled");
-                vectorDB.close();
-                return false;
-            }
-            
-            // 通知文本提取完成
-            if (progressCallback != null) {
-                progressCallback.onTextExtractionComplete(chunks.size());
-            }
-            
-            // Get model manager instance
-            EmbeddingModelManager modelManager = EmbeddingModelManager.getInstance(context);
-            
-            // Mark model as in use before vectorization processing starts to prevent automatic unloading during vectorization
-            modelManager.markModelInUse();
-            LogManager.logD(TAG, "Starting batch vectorization processing, marked model as in use to prevent automatic unloading");
-            
+            // The build's handle is the only open handle of this knowledge base, a shared one held by a query page is closed first
+            SQLiteVectorDatabaseHandler vectorDB = null;
+            VectorDatabaseRegistry.getInstance().beginExclusive(knowledgeBaseDir);
             try {
-                // Generate vectors and add to database
-                int totalChunks = chunks.size();
-                logMessage("Starting vectorization processing, total " + totalChunks + " text chunks");
+                // Initialize vector database
+                vectorDB = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, model.getEmbeddingModel(), embeddingDimension);
                 
-                // Vectorization processing
-                for (int i = 0; i < totalChunks; i++) {
-                    // Check if task is cancelled
-                    if (isTaskCancelled.get()) {
-                        logMessage("Task cancelled");
-                        LogManager.logD(TAG, "Vectorization processing interrupted: task cancelled, processed " + i + "/" + totalChunks + " text chunks");
-                        vectorDB.close();
-                        return false;
-                    }
-                    
-                    TextChunk chunk = chunks.get(i);
-                    String text = chunk.text;
-                    String source = chunk.source;
-                    JSONObject metadata = chunk.metadata;
-                    
-                    try {
-                        // Log every 100 text chunks
-                        if (i % 100 == 0 || i == totalChunks - 1) {
-                            LogManager.logD(TAG, "Vectorization progress: " + i + "/" + totalChunks + 
-                                  ", Thread ID: " + Thread.currentThread().getId() + 
-                                  ", Source file: " + source);
-                        }
-                        
-                        // Generate vector
-                        float[] embedding = model.generateEmbedding(text);
-                        
-                        // Add to database
-                        vectorDB.addVector(text, embedding, source, metadata.toString());
-                        
-                        // Update progress
-                        float percentage = (float) (i + 1) / totalChunks * 100;
-                        if (progressCallback != null) {
-                            progressCallback.onVectorizationProgress(i + 1, totalChunks, percentage);
-                        }
-                        
-                        // Notify progress update
-                        if (notificationProgressCallback != null) {
-                            notificationProgressCallback.onNotificationProgressUpdate(i + 1, totalChunks, percentage);
-                        }
-                    } catch (Exception e) {
-                        logError("Vectorization failed: " + e.getMessage(), e);
-                    }
+                // Set embedding model directory to metadata
+                vectorDB.getMetadata().setModeldir(embeddingModel);
+                logMessage("Set embedding model directory: " + embeddingModel);
+                
+                // Set reranker model information to metadata
+                String valueNone = context.getString(R.string.common_none);
+                if (rerankerModel != null && !rerankerModel.isEmpty() && !valueNone.equals(rerankerModel)) {
+                    vectorDB.getMetadata().setRerankerdir(rerankerModel);
+                    logMessage("Set reranker model: " + rerankerModel);
                 }
                 
-                // Save database
-                vectorDB.saveDatabase();
-                logMessage("Vectorization processing completed");
-                LogManager.logD(TAG, "Vectorization processing fully completed, processed " + totalChunks + " text chunks, Thread ID: " + Thread.currentThread().getId());
+                // Extract text and chunk
+                List<TextChunk> chunks = extractTextFromFiles(fullKnowledgeBasePath, files, chunkSize, chunkOverlap);
                 
-                // Notify vectorization processing completed
+                // Check if cancelled
+                if (isTaskCancelled.get()) {
+                    logMessage("Task cancelled");
+                    return false;
+                }
+                
+                // 通知文本提取完成
                 if (progressCallback != null) {
-                    progressCallback.onVectorizationComplete(totalChunks);
+                    progressCallback.onTextExtractionComplete(chunks.size());
                 }
-            } finally {
-                // Whether successful or failed, finally mark model as not in use
-                modelManager.markModelNotInUse();
-                LogManager.logD(TAG, "Batch vectorization processing completed, marked model as not in use");
                 
-                // Close database
-                vectorDB.close();
-                LogManager.logD(TAG, "Vector database closed");
+                if (chunks.isEmpty()) {
+                    logMessage("No text chunks extracted, saving empty knowledge base");
+                    vectorDB.saveDatabase();
+                    if (progressCallback != null) {
+                        progressCallback.onVectorizationComplete(0);
+                    }
+                    return !isTaskCancelled.get();
+                }
+                
+                // Generate vectors and add to database (marks model usage and closes the database when done)
+                return processChunksToVectors(chunks, model, vectorDB);
+            } finally {
+                if (vectorDB != null) {
+                    vectorDB.close();
+                }
+                VectorDatabaseRegistry.getInstance().endExclusive(knowledgeBaseDir);
             }
-            
-            return !isTaskCancelled.get();
         } catch (Exception e) {
             logError("Failed to process knowledge base: " + e.getMessage(), e);
             return false;
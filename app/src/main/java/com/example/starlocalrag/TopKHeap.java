@@ -0,0 +1,154 @@
+package com.example.starlocalrag;
+
+/**
+ * Bounded top-K collector over (rowid, score) pairs
+ * 固定容量的最小堆，向量扫描时只保留得分最高的K个行ID，避免为每一行分配对象和全量排序
+ */
+public class TopKHeap {
+    private final int capacity;
+    private final long[] ids;
+    private final float[] scores;
+    private int size;
+    private boolean sorted;
+
+    /**
+     * Constructor
+     * @param capacity Maximum number of entries to keep (topK)
+     */
+    public TopKHeap(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.ids = new long[this.capacity];
+        this.scores = new float[this.capacity];
+        this.size = 0;
+        this.sorted = false;
+    }
+
+    /**
+     * Offer a candidate to the heap
+     * @param id Row ID
+     * @param score Similarity score
+     * @return Whether the candidate was kept
+     */
+    public boolean offer(long id, float score) {
+        if (sorted) {
+            throw new IllegalStateException("Heap already sorted, cannot accept new candidates");
+        }
+        if (size < capacity) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size);
+            size++;
+            return true;
+        }
+        if (capacity == 0 || score <= scores[0]) {
+            return false;
+        }
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Minimum score a candidate must exceed to enter the heap
+     * @return Current admission threshold
+     */
+    public float threshold() {
+        return size < capacity ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Merge all entries of another heap into this one
+     * @param other Other heap (e.g. from another worker or another index)
+     */
+    public void merge(TopKHeap other) {
+        if (other == null) {
+            return;
+        }
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ids[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Sort entries by score in descending order (in place)
+     * 排序后堆不再接受新元素，可通过 getId/getScore 顺序读取
+     */
+    public void sortDescending() {
+        if (sorted) {
+            return;
+        }
+        // Heap sort on a min-heap moves the smallest element to the tail each round,
+        // so the array ends up in descending order
+        int n = size;
+        while (n > 1) {
+            n--;
+            swap(0, n);
+            siftDown(0, n);
+        }
+        sorted = true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    public float getScore(int index) {
+        return scores[index];
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[index] >= scores[parent]) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        siftDown(index, size);
+    }
+
+    private void siftDown(int index, int limit) {
+        while (true) {
+            int left = (index << 1) + 1;
+            if (left >= limit) {
+                break;
+            }
+            int smallest = left;
+            int right = left + 1;
+            if (right < limit && scores[right] < scores[left]) {
+                smallest = right;
+            }
+            if (scores[index] <= scores[smallest]) {
+                break;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
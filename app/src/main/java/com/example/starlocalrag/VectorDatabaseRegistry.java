@@ -0,0 +1,250 @@
+package com.example.starlocalrag;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Process-wide registry of open knowledge base handles
+ * 每个知识库只保持一个已加载的 SQLiteVectorDatabaseHandler（含常驻矩阵、HNSW 等内存索引），
+ * 调用方 acquire/release 共享同一个句柄，引用计数归零且空闲超过 IDLE_TIMEOUT_MS 后关闭；
+ * 数据库以 WAL 模式打开，添加笔记写入时查询仍可并发读取；
+ * 构建或覆盖知识库时用 beginExclusive/endExclusive 独占该目录，构建句柄是该知识库唯一打开的句柄
+ */
+public class VectorDatabaseRegistry {
+    private static final String TAG = "StarLocalRAG_VectorDbRegistry";
+
+    private static final String DB_FILENAME = "vectorstore.db";
+
+    // 空闲句柄关闭超时 - 5分钟
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    // 空闲检查间隔
+    private static final long EVICTION_CHECK_INTERVAL_MS = 60 * 1000;
+
+    private static VectorDatabaseRegistry instance;
+
+    // 按知识库目录规范路径索引
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    // 按句柄索引，包含已被 evict 但仍有引用的句柄
+    private final Map<SQLiteVectorDatabaseHandler, Entry> entriesByHandler = new IdentityHashMap<>();
+
+    // 正在独占构建或覆盖的知识库及其嵌套次数，期间 acquire 返回 null
+    private final Map<String, Integer> exclusiveKeys = new HashMap<>();
+
+    private Timer evictionTimer;
+
+    /**
+     * One knowledge base handle and its references
+     */
+    private static final class Entry {
+        final String key;
+        // 只在持有 Entry 锁时加载
+        SQLiteVectorDatabaseHandler handler;
+        // 以下字段只在持有注册表锁时修改
+        int refCount;
+        long lastReleaseTime;
+        boolean retired;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private VectorDatabaseRegistry() {
+    }
+
+    public static synchronized VectorDatabaseRegistry getInstance() {
+        if (instance == null) {
+            instance = new VectorDatabaseRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the shared, loaded handle of a knowledge base, opening it on first use
+     * 每次成功的 acquire 都必须对应一次 release，调用方不能关闭返回的句柄
+     * @param knowledgeBaseDir Knowledge base directory
+     * @return Loaded handle, or null if the knowledge base does not exist, is being built or cannot be loaded
+     */
+    public SQLiteVectorDatabaseHandler acquire(File knowledgeBaseDir) {
+        if (knowledgeBaseDir == null || !new File(knowledgeBaseDir, DB_FILENAME).exists()) {
+            LogManager.logE(TAG, "Knowledge base database does not exist: " + knowledgeBaseDir);
+            return null;
+        }
+        String key = keyOf(knowledgeBaseDir);
+
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                if (exclusiveKeys.containsKey(key)) {
+                    LogManager.logW(TAG, "Knowledge base is being built, cannot open it: " + key);
+                    return null;
+                }
+                entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry(key);
+                    entries.put(key, entry);
+                }
+                entry.refCount++;
+            }
+
+            // 同一知识库只加载一次，不同知识库的加载互不阻塞
+            synchronized (entry) {
+                if (entry.handler == null) {
+                    // 等待期间该条目可能因加载失败被移除或被 evict，此时改用注册表中的当前条目，避免同一知识库打开两个句柄
+                    synchronized (this) {
+                        if (entry.retired || entries.get(key) != entry) {
+                            entry.refCount--;
+                            continue;
+                        }
+                    }
+                    long startTime = System.currentTimeMillis();
+                    SQLiteVectorDatabaseHandler handler = new SQLiteVectorDatabaseHandler(knowledgeBaseDir, "unknown");
+                    if (!handler.loadDatabase()) {
+                        LogManager.logE(TAG, "Failed to load knowledge base: " + key);
+                        handler.close();
+                        synchronized (this) {
+                            entry.refCount--;
+                            if (entry.refCount == 0 && entries.get(key) == entry) {
+                                entries.remove(key);
+                            }
+                        }
+                        return null;
+                    }
+                    synchronized (this) {
+                        // 加载期间该知识库被独占，不能再交出这个句柄
+                        if (entry.retired) {
+                            entry.refCount--;
+                            handler.close();
+                            LogManager.logW(TAG, "Knowledge base was taken for a build while loading: " + key);
+                            return null;
+                        }
+                        entry.handler = handler;
+                        entriesByHandler.put(handler, entry);
+                        scheduleEviction();
+                    }
+                    LogManager.logI(TAG, "Opened knowledge base " + key + ", took " + (System.currentTimeMillis() - startTime) + "ms");
+                }
+                return entry.handler;
+            }
+        }
+    }
+
+    /**
+     * Return a handle obtained from acquire
+     * @param handler Handle, null is ignored
+     */
+    public synchronized void release(SQLiteVectorDatabaseHandler handler) {
+        if (handler == null) {
+            return;
+        }
+        Entry entry = entriesByHandler.get(handler);
+        if (entry == null || entry.refCount <= 0) {
+            LogManager.logW(TAG, "Released a knowledge base handle that is not held");
+            return;
+        }
+        entry.refCount--;
+        entry.lastReleaseTime = System.currentTimeMillis();
+        if (entry.refCount == 0 && entry.retired) {
+            closeEntry(entry);
+        }
+    }
+
+    /**
+     * Take a knowledge base away from the shared handles before a build or overwrite opens or deletes its files
+     * 逐出共享句柄并立即关闭，即使查询页面仍持有它：两个句柄各自维护向量文件的追加位置、HNSW 图和元数据，
+     * 同时打开会互相覆盖 vectors.f32 和 metadata.json。持有方之后的调用因数据库已关闭而失败，release 照常调用。
+     * 在 endExclusive 之前 acquire 返回 null；必须与 endExclusive 成对调用，可以嵌套
+     * @param knowledgeBaseDir Knowledge base directory
+     */
+    public synchronized void beginExclusive(File knowledgeBaseDir) {
+        String key = keyOf(knowledgeBaseDir);
+        Integer depth = exclusiveKeys.get(key);
+        exclusiveKeys.put(key, depth == null ? 1 : depth + 1);
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        entry.retired = true;
+        if (entry.refCount == 0) {
+            closeEntry(entry);
+        } else if (entry.handler != null) {
+            // 引用仍保留在 entriesByHandler 中，最后一次 release 时移除
+            entry.handler.close();
+            LogManager.logW(TAG, "Closed knowledge base " + key + " for a build while " + entry.refCount + " references are held");
+        }
+    }
+
+    /**
+     * End a beginExclusive, the next acquire reopens the knowledge base from its files
+     * @param knowledgeBaseDir Knowledge base directory
+     */
+    public synchronized void endExclusive(File knowledgeBaseDir) {
+        String key = keyOf(knowledgeBaseDir);
+        Integer depth = exclusiveKeys.get(key);
+        if (depth == null) {
+            LogManager.logW(TAG, "Ended an exclusive access that was not begun: " + key);
+        } else if (depth > 1) {
+            exclusiveKeys.put(key, depth - 1);
+        } else {
+            exclusiveKeys.remove(key);
+        }
+    }
+
+    private void closeEntry(Entry entry) {
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+        }
+        if (entry.handler != null) {
+            entriesByHandler.remove(entry.handler);
+            entry.handler.close();
+            entry.handler = null;
+            LogManager.logD(TAG, "Closed knowledge base " + entry.key);
+        }
+        if (entries.isEmpty() && evictionTimer != null) {
+            evictionTimer.cancel();
+            evictionTimer = null;
+        }
+    }
+
+    private void scheduleEviction() {
+        if (evictionTimer != null) {
+            return;
+        }
+        evictionTimer = new Timer("StarLocalRAG-VectorDbEviction", true);
+        evictionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                closeIdleEntries();
+            }
+        }, EVICTION_CHECK_INTERVAL_MS, EVICTION_CHECK_INTERVAL_MS);
+    }
+
+    private synchronized void closeIdleEntries() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.handler != null && entry.refCount == 0 && now - entry.lastReleaseTime > IDLE_TIMEOUT_MS) {
+                iterator.remove();
+                LogManager.logD(TAG, "Knowledge base " + entry.key + " idle, closing");
+                closeEntry(entry);
+            }
+        }
+    }
+
+    private static String keyOf(File knowledgeBaseDir) {
+        try {
+            return knowledgeBaseDir.getCanonicalPath();
+        } catch (IOException e) {
+            return knowledgeBaseDir.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.starlocalrag;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Vector math helpers for the retrieval hot path
+ * 检索热路径使用的向量计算工具，不做逐元素异常检查、不分配对象
+ */
+public final class VectorMath {
+
+    // 与 ResidentVectorIndex / ScalarQuantizer 中的范数阈值保持一致
+    private static final float MIN_SQUARED_NORM = 1e-6f;
+
+    private VectorMath() {
+    }
+
+    /**
+     * Replace NaN/Infinity components with 0 (in place)
+     * @param vector Vector
+     * @return Number of replaced components
+     */
+    public static int sanitizeInPlace(float[] vector) {
+        return sanitizeInPlace(vector, 0, vector.length);
+    }
+
+    /**
+     * Replace NaN/Infinity components of one row of a row-major matrix with 0 (in place)
+     * @param data Row-major matrix
+     * @param offset Offset of the row
+     * @param length Row length
+     * @return Number of replaced components
+     */
+    public static int sanitizeInPlace(float[] data, int offset, int length) {
+        int replaced = 0;
+        for (int i = offset; i < offset + length; i++) {
+            float v = data[i];
+            if (Float.isNaN(v) || Float.isInfinite(v)) {
+                data[i] = 0.0f;
+                replaced++;
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Inverse L2 norm of a vector, 0 if the norm is too small to be meaningful
+     * @param vector Vector
+     * @return 1 / ||vector|| or 0
+     */
+    public static float inverseNorm(float[] vector) {
+        return inverseNorm(vector, 0, vector.length);
+    }
+
+    /**
+     * Inverse L2 norm of one row of a row-major matrix, 0 if the norm is too small to be meaningful
+     */
+    public static float inverseNorm(float[] data, int offset, int length) {
+        float sum = 0.0f;
+        for (int i = offset; i < offset + length; i++) {
+            sum += data[i] * data[i];
+        }
+        return sum <= MIN_SQUARED_NORM ? 0.0f : (float) (1.0 / Math.sqrt(sum));
+    }
+
+    /**
+     * Scale a vector to unit L2 norm (in place), vectors with a negligible norm are left unchanged
+     * @param vector Vector without NaN/Infinity components
+     * @return Whether the vector was normalized
+     */
+    public static boolean normalizeInPlace(float[] vector) {
+        return normalizeInPlace(vector, 0, vector.length);
+    }
+
+    /**
+     * Scale one row of a row-major matrix to unit L2 norm (in place), rows with a negligible norm are left unchanged
+     * @param data Row-major matrix without NaN/Infinity components in the row
+     * @param offset Offset of the row
+     * @param length Row length
+     * @return Whether the row was normalized
+     */
+    public static boolean normalizeInPlace(float[] data, int offset, int length) {
+        float inverseNorm = inverseNorm(data, offset, length);
+        if (inverseNorm == 0.0f) {
+            return false;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            data[i] *= inverseNorm;
+        }
+        return true;
+    }
+
+    /**
+     * Replace NaN/Infinity components of one row with 0, then scale it to unit L2 norm (in place)
+     * 训练、编码前的样本和质心使用；范数过小的行清洗后保持不变
+     * @param data Row-major matrix
+     * @param offset Offset of the row
+     * @param length Row length
+     * @return Whether the row was normalized
+     */
+    public static boolean sanitizeAndNormalizeInPlace(float[] data, int offset, int length) {
+        sanitizeInPlace(data, offset, length);
+        return normalizeInPlace(data, offset, length);
+    }
+
+    /**
+     * Cosine similarity between a unit query and a vector of arbitrary norm
+     * 用于尚未归一化的旧库向量，会就地清洗 NaN/Infinity
+     * @param unitQuery L2-normalized query
+     * @param vector Vector, sanitized in place
+     * @return Cosine similarity, 0 for a zero vector
+     */
+    public static float cosineToUnit(float[] unitQuery, float[] vector) {
+        sanitizeInPlace(vector);
+        return dot(unitQuery, vector) * inverseNorm(vector);
+    }
+
+    /**
+     * Dot product of two arrays
+     */
+    public static float dot(float[] a, float[] b) {
+        float sum = 0.0f;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Dot product between a query and a row stored in a FloatBuffer (absolute access, position untouched)
+     * @param query Query vector
+     * @param buffer Buffer holding row-major vectors
+     * @param offset Float offset of the row in the buffer
+     * @return Dot product
+     */
+    public static float dot(float[] query, FloatBuffer buffer, int offset) {
+        float sum = 0.0f;
+        for (int i = 0; i < query.length; i++) {
+            sum += query[i] * buffer.get(offset + i);
+        }
+        return sum;
+    }
+}
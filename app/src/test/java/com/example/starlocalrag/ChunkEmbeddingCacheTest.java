@@ -0,0 +1,234 @@
+package com.example.starlocalrag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class ChunkEmbeddingCacheTest {
+
+    private static final long CAPACITY = 8L * 1024 * 1024;
+    private static final int DIMENSION = 8;
+
+    // File layout: magic, dimension, committed length, then 32-byte hash + dimension floats per record
+    private static final int MAGIC = 0x43454332;
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 32 + DIMENSION * 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static float[] embedding(int seed) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = seed + i * 0.125f;
+        }
+        return vector;
+    }
+
+    private ChunkEmbeddingCache open(String modelIdentity) {
+        return ChunkEmbeddingCache.open(folder.getRoot(), modelIdentity, CAPACITY);
+    }
+
+    private File cacheFile() {
+        File[] files = folder.getRoot().listFiles((dir, name) -> name.endsWith(".bin"));
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private ChunkEmbeddingCache openWithEntries(String modelIdentity, int count) {
+        ChunkEmbeddingCache cache = open(modelIdentity);
+        assertNotNull(cache);
+        for (int i = 0; i < count; i++) {
+            cache.put("chunk " + i, embedding(i));
+        }
+        return cache;
+    }
+
+    @Test
+    public void entriesSurviveReopen() {
+        openWithEntries("model-a", 10).close();
+
+        ChunkEmbeddingCache cache = open("model-a");
+        assertNotNull(cache);
+        try {
+            assertEquals(10, cache.size());
+            for (int i = 0; i < 10; i++) {
+                assertArrayEquals(embedding(i), cache.get("chunk " + i), 0.0f);
+            }
+            assertNull(cache.get("chunk 10"));
+            assertEquals(10, cache.getHitCount());
+            assertEquals(1, cache.getMissCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void headerRecordsDimensionAndCommittedLength() throws Exception {
+        openWithEntries("model-a", 3).close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile(), "r")) {
+            assertEquals(MAGIC, raf.readInt());
+            assertEquals(DIMENSION, raf.readInt());
+            assertEquals(HEADER_BYTES + 3L * RECORD_BYTES, raf.readLong());
+            assertEquals(HEADER_BYTES + 3L * RECORD_BYTES, raf.length());
+        }
+    }
+
+    @Test
+    public void tornTailIsDroppedOnLoad() throws Exception {
+        openWithEntries("model-a", 5).close();
+        File file = cacheFile();
+        // A crash in the middle of an append leaves part of a record behind the committed length
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[RECORD_BYTES / 2]);
+        }
+
+        ChunkEmbeddingCache cache = open("model-a");
+        assertNotNull(cache);
+        try {
+            assertEquals(5, cache.size());
+            assertEquals(HEADER_BYTES + 5L * RECORD_BYTES, file.length());
+            // Appends continue at the record boundary
+            cache.put("chunk 5", embedding(5));
+        } finally {
+            cache.close();
+        }
+
+        cache = open("model-a");
+        assertNotNull(cache);
+        try {
+            assertEquals(6, cache.size());
+            assertArrayEquals(embedding(5), cache.get("chunk 5"), 0.0f);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void recordsBeyondCommittedLengthAreDropped() throws Exception {
+        openWithEntries("model-a", 4).close();
+        File file = cacheFile();
+        // Records written after the last sync: full length on disk, committed length not advanced
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8);
+            raf.writeLong(HEADER_BYTES + 2L * RECORD_BYTES);
+        }
+
+        ChunkEmbeddingCache cache = open("model-a");
+        assertNotNull(cache);
+        try {
+            assertEquals(2, cache.size());
+            assertNotNull(cache.get("chunk 1"));
+            assertNull(cache.get("chunk 2"));
+            assertEquals(HEADER_BYTES + 2L * RECORD_BYTES, file.length());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void invalidHeaderDiscardsFile() throws Exception {
+        openWithEntries("model-a", 3).close();
+        File file = cacheFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8);
+            raf.writeLong(raf.length() + RECORD_BYTES);
+        }
+        ChunkEmbeddingCache cache = open("model-a");
+        assertNotNull(cache);
+        assertEquals(0, cache.size());
+        cache.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.writeInt(0x12345678);
+            raf.write(new byte[64]);
+        }
+        cache = open("model-a");
+        assertNotNull(cache);
+        try {
+            assertEquals(0, cache.size());
+            assertEquals(0, file.length());
+            cache.put("chunk 0", embedding(0));
+            assertArrayEquals(embedding(0), cache.get("chunk 0"), 0.0f);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void mismatchedDimensionIsNotStored() {
+        ChunkEmbeddingCache cache = openWithEntries("model-a", 1);
+        try {
+            cache.put("other", new float[DIMENSION + 1]);
+            assertEquals(1, cache.size());
+            assertNull(cache.get("other"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void fileIsOpenedByOneBuildAtATime() {
+        ChunkEmbeddingCache cache = open("model-a");
+        assertNotNull(cache);
+        assertNull(open("model-a"));
+        cache.close();
+        cache = open("model-a");
+        assertNotNull(cache);
+        cache.close();
+    }
+
+    @Test
+    public void openDeletesIdleFilesOfOtherModels() throws Exception {
+        openWithEntries("model-a", 3).close();
+        File stale = new File(folder.getRoot(), "stale.bin.tmp");
+        assertTrue(stale.createNewFile());
+
+        ChunkEmbeddingCache cache = openWithEntries("model-b", 1);
+        try {
+            assertFalse(stale.exists());
+            assertEquals(1, folder.getRoot().listFiles().length);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsRecentEntriesWithinCapacity() {
+        long capacity = 1024L * 1024;
+        int dimension = 1024;
+        int recordBytes = 32 + dimension * 4;
+        ChunkEmbeddingCache cache = ChunkEmbeddingCache.open(folder.getRoot(), "model-a", capacity);
+        assertNotNull(cache);
+        try {
+            float[] vector = new float[dimension];
+            cache.put("first", vector);
+            for (int i = 0; i < 400; i++) {
+                // Keep the first entry recently used
+                assertNotNull(cache.get("first"));
+                cache.put("chunk " + i, vector);
+            }
+            assertTrue(cache.size() * (long) recordBytes + HEADER_BYTES <= capacity);
+            assertNotNull(cache.get("first"));
+            assertNotNull(cache.get("chunk 399"));
+            assertNull(cache.get("chunk 0"));
+            assertTrue(cacheFile().length() <= capacity);
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.starlocalrag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class HalfFloatTest {
+
+    private static int bits(float value) {
+        return HalfFloat.fromFloat(value) & 0xFFFF;
+    }
+
+    @Test
+    public void everyHalfValueRoundTrips() {
+        for (int half = 0; half <= 0xFFFF; half++) {
+            float value = HalfFloat.toFloat((short) half);
+            if (Float.isNaN(value)) {
+                assertTrue(Float.isNaN(HalfFloat.toFloat(HalfFloat.fromFloat(value))));
+            } else {
+                assertEquals("half 0x" + Integer.toHexString(half), half, bits(value));
+            }
+        }
+    }
+
+    @Test
+    public void normalValues() {
+        assertEquals(0x3C00, bits(1.0f));
+        assertEquals(0xC000, bits(-2.0f));
+        assertEquals(0x3555, bits(1.0f / 3.0f));
+        assertEquals(0x7BFF, bits(65504.0f));
+        assertEquals(0x0400, bits(0x1p-14f));
+    }
+
+    @Test
+    public void roundsToNearestEven() {
+        // 1 + 2^-11 lies halfway between 1 and the next half, the even mantissa wins
+        assertEquals(0x3C00, bits(1.0f + 0x1p-11f));
+        assertEquals(0x3C02, bits(1.0f + 3 * 0x1p-11f));
+        assertEquals(0x3C01, bits(1.0f + 0x1p-11f + 0x1p-20f));
+        // Mantissa overflow carries into the exponent
+        assertEquals(0x4000, bits(2.0f - 0x1p-12f));
+    }
+
+    @Test
+    public void subnormalValues() {
+        assertEquals(0x0001, bits(0x1p-24f));
+        assertEquals(0x03FF, bits(1023 * 0x1p-24f));
+        assertEquals(0x8001, bits(-0x1p-24f));
+        // Halfway to the smallest subnormal rounds to even (zero), just above rounds up
+        assertEquals(0x0000, bits(0x1p-25f));
+        assertEquals(0x0001, bits(0x1.8p-25f));
+        assertEquals(0x0002, bits(3 * 0x1p-25f));
+        assertEquals(0x0000, bits(0x1p-30f));
+        // Largest subnormal rounds up into the smallest normal
+        assertEquals(0x0400, bits(1023.5f * 0x1p-24f));
+        assertEquals(0x1p-24f, HalfFloat.toFloat((short) 0x0001), 0.0f);
+        assertEquals(1023 * 0x1p-24f, HalfFloat.toFloat((short) 0x03FF), 0.0f);
+    }
+
+    @Test
+    public void zeroKeepsSign() {
+        assertEquals(0x0000, bits(0.0f));
+        assertEquals(0x8000, bits(-0.0f));
+        assertEquals(Float.floatToRawIntBits(-0.0f), Float.floatToRawIntBits(HalfFloat.toFloat((short) 0x8000)));
+    }
+
+    @Test
+    public void overflowBecomesInfinity() {
+        assertEquals(0x7C00, bits(Float.POSITIVE_INFINITY));
+        assertEquals(0xFC00, bits(Float.NEGATIVE_INFINITY));
+        assertEquals(0x7C00, bits(65520.0f));
+        assertEquals(0x7BFF, bits(65519.0f));
+        assertEquals(0xFC00, bits(-1e10f));
+        assertEquals(Float.POSITIVE_INFINITY, HalfFloat.toFloat((short) 0x7C00), 0.0f);
+        assertEquals(Float.NEGATIVE_INFINITY, HalfFloat.toFloat((short) 0xFC00), 0.0f);
+    }
+
+    @Test
+    public void nanStaysNan() {
+        int half = bits(Float.NaN);
+        assertEquals(0x7C00, half & 0x7C00);
+        assertTrue((half & 0x3FF) != 0);
+        assertTrue(Float.isNaN(HalfFloat.toFloat((short) half)));
+        // A NaN whose payload only sits in the low float bits must not collapse to infinity
+        assertTrue(Float.isNaN(HalfFloat.toFloat(HalfFloat.fromFloat(Float.intBitsToFloat(0x7F800001)))));
+    }
+
+    @Test
+    public void relativeErrorOfNormalizedVectors() {
+        Random random = new Random(41);
+        float[] vector = new float[768];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        VectorMath.normalizeInPlace(vector);
+        float[] decoded = HalfFloat.decode(HalfFloat.encode(vector));
+        for (int i = 0; i < vector.length; i++) {
+            if (Math.abs(vector[i]) >= 0x1p-14f) {
+                assertEquals(vector[i], decoded[i], Math.abs(vector[i]) * 0x1p-11f);
+            } else {
+                assertEquals(vector[i], decoded[i], 0x1p-25f);
+            }
+        }
+    }
+
+    @Test
+    public void dotMatchesDecodedVector() {
+        Random random = new Random(42);
+        float[] query = new float[256];
+        float[] vector = new float[256];
+        for (int i = 0; i < query.length; i++) {
+            query[i] = (float) random.nextGaussian();
+            vector[i] = (float) random.nextGaussian();
+        }
+        byte[] blob = HalfFloat.encode(vector);
+        assertEquals(vector.length * HalfFloat.BYTES, blob.length);
+        float[] decoded = HalfFloat.decode(blob);
+        float expected = 0.0f;
+        for (int i = 0; i < query.length; i++) {
+            expected += query[i] * decoded[i];
+        }
+        assertEquals(expected, HalfFloat.dot(query, blob), 1e-4f);
+        assertArrayEquals(decoded, HalfFloat.decode(HalfFloat.encode(decoded)), 0.0f);
+    }
+}
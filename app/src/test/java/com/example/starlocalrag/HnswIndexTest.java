@@ -0,0 +1,103 @@
+package com.example.starlocalrag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Set;
+
+public class HnswIndexTest {
+
+    private static final int DIMENSION = 64;
+    private static final int COUNT = 3000;
+    private static final int QUERIES = 50;
+    private static final int TOP_K = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HnswIndex buildIndex(float[][] vectors) {
+        HnswIndex index = new HnswIndex(DIMENSION, HnswIndex.DEFAULT_M, HnswIndex.DEFAULT_EF_CONSTRUCTION, vectors.length);
+        for (int i = 0; i < vectors.length; i++) {
+            assertTrue(index.add(i, vectors[i]));
+        }
+        return index;
+    }
+
+    private static double averageRecall(HnswIndex index, float[][] vectors, float[][] queries, int efSearch) {
+        double total = 0.0;
+        for (float[] query : queries) {
+            Set<Long> exact = VectorTestData.exactTopK(vectors, query, TOP_K);
+            total += VectorTestData.recall(exact, VectorTestData.ids(index.search(query, TOP_K, efSearch)));
+        }
+        return total / queries.length;
+    }
+
+    @Test
+    public void recallMatchesBruteForce() {
+        float[][] all = VectorTestData.clusteredUnitVectors(COUNT + QUERIES, DIMENSION, 20, 1);
+        float[][] vectors = Arrays.copyOf(all, COUNT);
+        float[][] queries = Arrays.copyOfRange(all, COUNT, all.length);
+        HnswIndex index = buildIndex(vectors);
+
+        assertEquals(COUNT, index.size());
+        double recall = averageRecall(index, vectors, queries, HnswIndex.DEFAULT_EF_SEARCH);
+        assertTrue("recall@" + TOP_K + " = " + recall, recall >= 0.9);
+    }
+
+    @Test
+    public void largerEfSearchDoesNotLowerRecall() {
+        float[][] all = VectorTestData.clusteredUnitVectors(COUNT + QUERIES, DIMENSION, 20, 2);
+        float[][] vectors = Arrays.copyOf(all, COUNT);
+        float[][] queries = Arrays.copyOfRange(all, COUNT, all.length);
+        HnswIndex index = buildIndex(vectors);
+
+        double narrow = averageRecall(index, vectors, queries, TOP_K);
+        double wide = averageRecall(index, vectors, queries, 256);
+        assertTrue("ef=" + TOP_K + ": " + narrow + ", ef=256: " + wide, wide >= narrow);
+        assertTrue("recall@" + TOP_K + " = " + wide, wide >= 0.97);
+    }
+
+    @Test
+    public void rowFilterOnlyReturnsAllowedRows() {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(COUNT, DIMENSION, 20, 3);
+        HnswIndex index = buildIndex(vectors);
+
+        TopKHeap results = index.search(vectors[0], TOP_K, 200, rowId -> rowId % 2 == 1);
+        assertFalse(results.isEmpty());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(1, results.getId(i) % 2);
+        }
+    }
+
+    @Test
+    public void saveAndLoadKeepResults() {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(500, DIMENSION, 10, 4);
+        HnswIndex index = buildIndex(vectors);
+        File file = new File(folder.getRoot(), "index.hnsw");
+        assertTrue(index.save(file));
+
+        HnswIndex loaded = HnswIndex.load(file);
+        assertNotNull(loaded);
+        assertEquals(index.size(), loaded.size());
+        assertEquals(index.getMaxRowId(), loaded.getMaxRowId());
+        for (int q = 0; q < 10; q++) {
+            assertEquals(VectorTestData.ids(index.search(vectors[q], TOP_K, 64)),
+                    VectorTestData.ids(loaded.search(vectors[q], TOP_K, 64)));
+        }
+    }
+
+    @Test
+    public void rejectsMismatchedDimension() {
+        HnswIndex index = new HnswIndex(DIMENSION, 8, 32, 4);
+        assertFalse(index.add(0, new float[DIMENSION + 1]));
+        assertTrue(index.search(new float[DIMENSION - 1], TOP_K, 64).isEmpty());
+    }
+}
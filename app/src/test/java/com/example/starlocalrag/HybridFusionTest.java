@@ -0,0 +1,59 @@
+package com.example.starlocalrag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HybridFusionTest {
+
+    private static long[] fuse(long[] vectorRows, long[] lexicalRows, int topK) {
+        return SQLiteVectorDatabaseHandler.fuseRankings(vectorRows, lexicalRows, topK);
+    }
+
+    @Test
+    public void rowInBothListsRanksFirst() {
+        long[] fused = fuse(new long[]{1, 2, 3}, new long[]{3, 4, 5}, 10);
+        assertEquals(3, fused[0]);
+        assertEquals(5, fused.length);
+    }
+
+    @Test
+    public void scoresSumReciprocalRanks() {
+        // Row 2: 1/62 + 1/62; rows 1 and 7: 1/61; rows 3 and 9: 1/63
+        assertArrayEquals(new long[]{2, 1, 7, 3, 9}, fuse(new long[]{1, 2, 3}, new long[]{7, 2, 9}, 10));
+    }
+
+    @Test
+    public void equalScoresKeepVectorOrderFirst() {
+        long[] fused = fuse(new long[]{10, 11}, new long[]{20, 21}, 10);
+        assertArrayEquals(new long[]{10, 20, 11, 21}, fused);
+    }
+
+    @Test
+    public void truncatesToTopK() {
+        long[] fused = fuse(new long[]{1, 2, 3, 4}, new long[]{4, 3, 2, 1}, 2);
+        assertEquals(2, fused.length);
+        // 1/61 + 1/64 is above 1/62 + 1/63, rows 1 and 4 tie and keep their first-seen order
+        assertArrayEquals(new long[]{1, 4}, fused);
+    }
+
+    @Test
+    public void emptyListLeavesOtherRankingUnchanged() {
+        assertArrayEquals(new long[]{5, 3, 8}, fuse(new long[]{5, 3, 8}, new long[0], 10));
+        assertArrayEquals(new long[]{5, 3}, fuse(new long[0], new long[]{5, 3}, 10));
+        assertEquals(0, fuse(new long[0], new long[0], 10).length);
+        assertEquals(0, fuse(new long[]{1}, new long[]{1}, 0).length);
+    }
+
+    @Test
+    public void lexicalOnlyMatchCanOutrankLowVectorRanks() {
+        long[] vectorRows = new long[50];
+        for (int i = 0; i < vectorRows.length; i++) {
+            vectorRows[i] = i;
+        }
+        long[] fused = fuse(vectorRows, new long[]{1000}, 3);
+        // Top of the full-text list ties with the top vector row and stays ahead of the second
+        assertArrayEquals(new long[]{0, 1000, 1}, fused);
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.starlocalrag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Set;
+
+public class IvfIndexTest {
+
+    private static final int DIMENSION = 64;
+    private static final int COUNT = 3000;
+    private static final int QUERIES = 50;
+    private static final int TOP_K = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IvfIndex buildIndex(float[][] vectors, File file) {
+        int nlist = IvfIndex.suggestNlist(vectors.length);
+        int sampleCount = Math.min(vectors.length, IvfIndex.trainingSampleSize(nlist, DIMENSION));
+        float[] samples = VectorTestData.flatten(Arrays.copyOf(vectors, sampleCount));
+        float[] centroids = IvfIndex.trainCentroids(samples, sampleCount, DIMENSION, nlist);
+        assertNotNull(centroids);
+        return IvfIndex.build(file, centroids, DIMENSION, consumer -> {
+            for (int i = 0; i < vectors.length; i++) {
+                consumer.accept(i, vectors[i]);
+            }
+            return true;
+        });
+    }
+
+    private static double averageRecall(IvfIndex index, float[][] vectors, float[][] queries, int nprobe) {
+        double total = 0.0;
+        for (float[] query : queries) {
+            Set<Long> exact = VectorTestData.exactTopK(vectors, query, TOP_K);
+            total += VectorTestData.recall(exact, VectorTestData.ids(index.search(query, TOP_K, nprobe)));
+        }
+        return total / queries.length;
+    }
+
+    @Test
+    public void recallMatchesBruteForce() {
+        float[][] all = VectorTestData.clusteredUnitVectors(COUNT + QUERIES, DIMENSION, 20, 11);
+        float[][] vectors = Arrays.copyOf(all, COUNT);
+        float[][] queries = Arrays.copyOfRange(all, COUNT, all.length);
+        IvfIndex index = buildIndex(vectors, new File(folder.getRoot(), "index.ivf"));
+        assertNotNull(index);
+        try {
+            assertEquals(COUNT, index.getTotalCount());
+            assertEquals(COUNT - 1, index.getMaxRowId());
+            double recall = averageRecall(index, vectors, queries, IvfIndex.DEFAULT_NPROBE);
+            assertTrue("recall@" + TOP_K + " = " + recall, recall >= 0.9);
+            // Probing every list scans every row, the result is exact
+            assertEquals(1.0, averageRecall(index, vectors, queries, index.getNlist()), 1e-9);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void reopenedIndexKeepsResults() {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(1000, DIMENSION, 10, 12);
+        File file = new File(folder.getRoot(), "index.ivf");
+        IvfIndex built = buildIndex(vectors, file);
+        assertNotNull(built);
+        IvfIndex opened = IvfIndex.open(file);
+        assertNotNull(opened);
+        try {
+            assertEquals(built.getNlist(), opened.getNlist());
+            assertEquals(built.getTotalCount(), opened.getTotalCount());
+            for (int q = 0; q < 10; q++) {
+                assertEquals(VectorTestData.ids(built.search(vectors[q], TOP_K, 4)),
+                        VectorTestData.ids(opened.search(vectors[q], TOP_K, 4)));
+            }
+        } finally {
+            built.close();
+            opened.close();
+        }
+    }
+
+    @Test
+    public void rowFilterOnlyReturnsAllowedRows() {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(1000, DIMENSION, 10, 13);
+        IvfIndex index = buildIndex(vectors, new File(folder.getRoot(), "index.ivf"));
+        assertNotNull(index);
+        try {
+            TopKHeap results = index.search(vectors[0], TOP_K, index.getNlist(), rowId -> rowId % 2 == 1);
+            assertEquals(TOP_K, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(1, results.getId(i) % 2);
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void closedIndexReturnsNoResults() {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(200, DIMENSION, 4, 14);
+        IvfIndex index = buildIndex(vectors, new File(folder.getRoot(), "index.ivf"));
+        assertNotNull(index);
+        assertFalse(index.search(vectors[0], TOP_K, 4).isEmpty());
+        index.close();
+        assertTrue(index.search(vectors[0], TOP_K, 4).isEmpty());
+    }
+
+    @Test
+    public void openRejectsTruncatedFile() throws Exception {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(200, DIMENSION, 4, 15);
+        File file = new File(folder.getRoot(), "index.ivf");
+        IvfIndex index = buildIndex(vectors, file);
+        assertNotNull(index);
+        index.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        assertNull(IvfIndex.open(file));
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.starlocalrag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class ProductQuantizerTest {
+
+    private static final int DIMENSION = 64;
+    private static final int COUNT = 3000;
+    private static final int QUERIES = 50;
+    private static final int TOP_K = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ProductQuantizer train(float[][] vectors, int m) {
+        // train() normalizes its samples in place, give it a copy
+        ProductQuantizer pq = ProductQuantizer.train(VectorTestData.flatten(vectors), vectors.length, DIMENSION, m,
+                ProductQuantizer.DEFAULT_NBITS);
+        assertNotNull(pq);
+        return pq;
+    }
+
+    @Test
+    public void recallMatchesBruteForce() {
+        float[][] all = VectorTestData.clusteredUnitVectors(COUNT + QUERIES, DIMENSION, 20, 21);
+        float[][] vectors = Arrays.copyOf(all, COUNT);
+        float[][] queries = Arrays.copyOfRange(all, COUNT, all.length);
+        ProductQuantizer pq = train(vectors, 16);
+
+        float[] recall = pq.measureRecall(VectorTestData.flatten(vectors), COUNT, VectorTestData.flatten(queries),
+                QUERIES, TOP_K, 10 * TOP_K);
+        // Codes alone rank coarsely within a cluster
+        assertTrue("PQ recall@" + TOP_K + " = " + recall[0], recall[0] >= 0.35f);
+        // Search re-scores a shortlist with exact similarity, the shortlist must hold the true neighbours
+        assertTrue("shortlist recall = " + recall[1], recall[1] >= 0.95f);
+        assertTrue(recall[1] >= recall[0]);
+    }
+
+    @Test
+    public void scoreApproximatesCosineSimilarity() {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(COUNT, DIMENSION, 20, 22);
+        ProductQuantizer pq = train(vectors, 16);
+
+        double totalError = 0.0;
+        int pairs = 0;
+        for (int q = 0; q < 20; q++) {
+            float[] table = pq.buildLookupTable(vectors[q]);
+            for (int i = 0; i < 200; i++) {
+                float exact = 0.0f;
+                for (int d = 0; d < DIMENSION; d++) {
+                    exact += vectors[q][d] * vectors[i][d];
+                }
+                totalError += Math.abs(pq.score(table, pq.encode(vectors[i])) - exact);
+                pairs++;
+            }
+        }
+        double meanError = totalError / pairs;
+        assertTrue("mean absolute error = " + meanError, meanError < 0.05);
+    }
+
+    @Test
+    public void saveAndLoadKeepCodes() {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(1000, DIMENSION, 10, 23);
+        ProductQuantizer pq = train(vectors, 8);
+        File file = new File(folder.getRoot(), "pq.codebooks");
+        assertTrue(pq.save(file));
+
+        ProductQuantizer loaded = ProductQuantizer.load(file);
+        assertNotNull(loaded);
+        assertEquals(pq.getDimension(), loaded.getDimension());
+        assertEquals(pq.getM(), loaded.getM());
+        assertEquals(pq.getNbits(), loaded.getNbits());
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(pq.encode(vectors[i]), loaded.encode(vectors[i]));
+        }
+    }
+
+    @Test
+    public void encodeRejectsMismatchedDimension() {
+        float[][] vectors = VectorTestData.clusteredUnitVectors(500, DIMENSION, 4, 24);
+        ProductQuantizer pq = train(vectors, 8);
+        assertNull(pq.encode(new float[DIMENSION + 1]));
+        assertEquals(Float.NEGATIVE_INFINITY, pq.score(pq.buildLookupTable(vectors[0]), new byte[3]), 0.0f);
+    }
+
+    @Test
+    public void adjustMDividesDimension() {
+        assertEquals(32, ProductQuantizer.adjustM(768, 32));
+        assertEquals(30, ProductQuantizer.adjustM(1020, 32));
+        assertEquals(7, ProductQuantizer.adjustM(7, 32));
+        assertEquals(1, ProductQuantizer.adjustM(13, 12));
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.starlocalrag;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ScalarQuantizerTest {
+
+    private static final int DIMENSION = 384;
+
+    private static float[] randomVector(Random random, float range) {
+        float[] vector = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            vector[i] = (float) random.nextGaussian() * range;
+        }
+        return vector;
+    }
+
+    private static float cosine(float[] a, float[] b) {
+        double dot = 0.0;
+        double normA = 0.0;
+        double normB = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return (float) (dot / Math.sqrt(normA * normB));
+    }
+
+    private static float similarity(float[] query, byte[] code) {
+        return ScalarQuantizer.similarity(query, ScalarQuantizer.sum(query), VectorMath.inverseNorm(query), code);
+    }
+
+    @Test
+    public void reconstructionErrorIsWithinHalfAStep() {
+        Random random = new Random(31);
+        for (float range : new float[]{1e-3f, 0.05f, 1.0f, 100.0f}) {
+            float[] vector = randomVector(random, range);
+            byte[] code = ScalarQuantizer.encode(vector);
+            assertEquals(ScalarQuantizer.HEADER_BYTES + DIMENSION, code.length);
+
+            ByteBuffer header = ByteBuffer.wrap(code, 0, ScalarQuantizer.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            float scale = header.getFloat();
+            float offset = header.getFloat();
+            for (int i = 0; i < DIMENSION; i++) {
+                float decoded = offset + scale * (code[ScalarQuantizer.HEADER_BYTES + i] + 128);
+                assertEquals("range " + range + ", dimension " + i, vector[i], decoded, scale * 0.5f + Math.ulp(range) * 4);
+            }
+        }
+    }
+
+    @Test
+    public void similarityErrorIsBounded() {
+        Random random = new Random(32);
+        float maxError = 0.0f;
+        for (int i = 0; i < 200; i++) {
+            float[] query = randomVector(random, 1.0f);
+            float[] vector = randomVector(random, 1.0f);
+            // Correlated pairs cover high similarities as well as near-orthogonal ones
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] += query[d] * (i % 4);
+            }
+            float error = Math.abs(similarity(query, ScalarQuantizer.encode(vector)) - cosine(query, vector));
+            maxError = Math.max(maxError, error);
+        }
+        assertTrue("max similarity error = " + maxError, maxError < 0.01f);
+    }
+
+    @Test
+    public void constantVectorIsExact() {
+        float[] vector = new float[DIMENSION];
+        Arrays.fill(vector, 0.25f);
+        float[] query = randomVector(new Random(33), 1.0f);
+        assertEquals(cosine(query, vector), similarity(query, ScalarQuantizer.encode(vector)), 1e-5f);
+    }
+
+    @Test
+    public void nonFiniteValuesAreTreatedAsZero() {
+        float[] vector = randomVector(new Random(34), 1.0f);
+        float[] sanitized = vector.clone();
+        vector[0] = Float.NaN;
+        vector[1] = Float.POSITIVE_INFINITY;
+        vector[2] = Float.NEGATIVE_INFINITY;
+        sanitized[0] = 0.0f;
+        sanitized[1] = 0.0f;
+        sanitized[2] = 0.0f;
+        float[] query = randomVector(new Random(35), 1.0f);
+        assertEquals(similarity(query, ScalarQuantizer.encode(sanitized)), similarity(query, ScalarQuantizer.encode(vector)), 0.0f);
+    }
+
+    @Test
+    public void zeroVectorScoresZero() {
+        float[] query = randomVector(new Random(36), 1.0f);
+        assertEquals(0.0f, similarity(query, ScalarQuantizer.encode(new float[DIMENSION])), 0.0f);
+    }
+
+    @Test
+    public void mismatchedCodeScoresNegativeInfinity() {
+        float[] query = randomVector(new Random(37), 1.0f);
+        assertEquals(Float.NEGATIVE_INFINITY, similarity(query, ScalarQuantizer.encode(new float[DIMENSION - 1])), 0.0f);
+        assertEquals(Float.NEGATIVE_INFINITY, similarity(query, null), 0.0f);
+    }
+}
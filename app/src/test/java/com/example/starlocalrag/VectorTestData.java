@@ -0,0 +1,85 @@
+package com.example.starlocalrag;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Random vectors and exact search shared by the index tests
+ * 近似索引的召回率以暴力余弦检索的结果为基准
+ */
+final class VectorTestData {
+
+    private VectorTestData() {
+    }
+
+    /**
+     * Unit vectors drawn around a few random centres, closer to real embeddings than uniform noise
+     */
+    static float[][] clusteredUnitVectors(int count, int dimension, int clusters, long seed) {
+        Random random = new Random(seed);
+        float[][] centres = new float[clusters][dimension];
+        for (float[] centre : centres) {
+            for (int d = 0; d < dimension; d++) {
+                centre[d] = (float) random.nextGaussian();
+            }
+        }
+        float[][] vectors = new float[count][dimension];
+        for (int i = 0; i < count; i++) {
+            float[] centre = centres[random.nextInt(clusters)];
+            for (int d = 0; d < dimension; d++) {
+                vectors[i][d] = centre[d] + 0.5f * (float) random.nextGaussian();
+            }
+            VectorMath.normalizeInPlace(vectors[i]);
+        }
+        return vectors;
+    }
+
+    /**
+     * Row-major copy of the vectors
+     */
+    static float[] flatten(float[][] vectors) {
+        int dimension = vectors[0].length;
+        float[] flat = new float[vectors.length * dimension];
+        for (int i = 0; i < vectors.length; i++) {
+            System.arraycopy(vectors[i], 0, flat, i * dimension, dimension);
+        }
+        return flat;
+    }
+
+    /**
+     * Indices of the exact top-K by cosine similarity (vectors are unit length)
+     */
+    static Set<Long> exactTopK(float[][] vectors, float[] query, int topK) {
+        TopKHeap heap = new TopKHeap(topK);
+        for (int i = 0; i < vectors.length; i++) {
+            float dot = 0.0f;
+            for (int d = 0; d < query.length; d++) {
+                dot += vectors[i][d] * query[d];
+            }
+            heap.offer(i, dot);
+        }
+        return ids(heap);
+    }
+
+    static Set<Long> ids(TopKHeap heap) {
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < heap.size(); i++) {
+            ids.add(heap.getId(i));
+        }
+        return ids;
+    }
+
+    /**
+     * Fraction of the exact results that the approximate search also returned
+     */
+    static double recall(Set<Long> exact, Set<Long> approximate) {
+        int hits = 0;
+        for (long id : exact) {
+            if (approximate.contains(id)) {
+                hits++;
+            }
+        }
+        return exact.isEmpty() ? 1.0 : (double) hits / exact.size();
+    }
+}